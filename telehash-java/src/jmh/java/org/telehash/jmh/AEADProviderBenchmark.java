@@ -0,0 +1,85 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.TelehashException;
+import org.telehash.crypto.set2a.AEADCipher;
+import org.telehash.crypto.set2a.AEADProvider;
+import org.telehash.crypto.set2a.JCEAEADProvider;
+import org.telehash.crypto.set2a.SpongyCastleAEADProvider;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare line packet encryption and decryption using the vendored
+ * spongycastle GCM cipher and the platform JCE AES/GCM cipher. Where the
+ * JCE cipher is unavailable, the "jce" provider measures its spongycastle
+ * fallback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AEADProviderBenchmark {
+
+    private static final int TAG_BITS = 128;
+
+    @Param({"spongycastle", "jce"})
+    public String mProvider;
+
+    @Param({"64", "1400"})
+    public int mPacketSize;
+
+    private AEADCipher mEncryptCipher;
+    private AEADCipher mDecryptCipher;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+    private final byte[] mIV = new byte[16];
+    private final byte[] mCiphertextIV = new byte[16];
+    private int mSequence = 0;
+
+    @Setup
+    public void setUp() throws TelehashException {
+        Random random = new Random(Fixtures.RANDOM_SEED);
+        AEADProvider provider = new SpongyCastleAEADProvider();
+        if (mProvider.equals("jce")) {
+            provider = new JCEAEADProvider(provider);
+        }
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        mEncryptCipher = provider.createCipher(key, true, TAG_BITS);
+        mDecryptCipher = provider.createCipher(key, false, TAG_BITS);
+
+        mPlaintext = new byte[mPacketSize];
+        random.nextBytes(mPlaintext);
+        mCiphertext = mEncryptCipher.process(mCiphertextIV, mPlaintext, 0, mPlaintext.length);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws TelehashException {
+        // the JCE refuses to encrypt twice with the same key and IV.
+        int sequence = ++mSequence;
+        mIV[1] = (byte)sequence;
+        mIV[2] = (byte)(sequence >>> 8);
+        mIV[3] = (byte)(sequence >>> 16);
+        mIV[4] = (byte)(sequence >>> 24);
+        return mEncryptCipher.process(mIV, mPlaintext, 0, mPlaintext.length);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws TelehashException {
+        return mDecryptCipher.process(mCiphertextIV, mCiphertext, 0, mCiphertext.length);
+    }
+}
@@ -0,0 +1,108 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.Line;
+import org.telehash.core.LineIdentifier;
+import org.telehash.core.LocalNode;
+import org.telehash.core.OpenPacket;
+import org.telehash.core.Packet;
+import org.telehash.core.Telehash;
+import org.telehash.core.TelehashException;
+import org.telehash.crypto.CipherSet;
+import org.telehash.crypto.LineKeyPair;
+import org.telehash.network.Path;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the cipher set operations on the packet path: the encryption
+ * and decryption of line packets, and the rendering and parsing of open
+ * packets. Open packets are rendered with a pre-generated line key pair,
+ * as when the line key pair pool is in use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherSetBenchmark {
+
+    private static final String PATH =
+            "{\"type\": \"ipv4\", \"ip\": \"127.0.0.1\", \"port\": 42424}";
+
+    @Param({"32", "1024"})
+    public int mPlaintextSize;
+
+    private Telehash mTelehash;
+    private Telehash mRemoteTelehash;
+    private LocalNode mRemoteNode;
+    private CipherSet mCipherSet;
+    private Line mLine;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+    private LineKeyPair mLineKeyPair;
+    private byte[] mOpenPacketBytes;
+    private Path mPath;
+
+    @Setup
+    public void setUp() throws TelehashException {
+        Random random = new Random(Fixtures.RANDOM_SEED);
+        mRemoteTelehash = Fixtures.createTelehash();
+        mTelehash = Fixtures.createTelehash();
+        mRemoteNode = mRemoteTelehash.getLocalNode();
+        mCipherSet = mTelehash.getCrypto().getCipherSet(
+                mRemoteNode.getActiveCipherSetIdentifier());
+        mLine = Fixtures.createLine(mTelehash, mRemoteNode, random);
+
+        mPlaintext = new byte[mPlaintextSize];
+        random.nextBytes(mPlaintext);
+        mCiphertext = mCipherSet.renderLineInnerPacket(mLine, mPlaintext);
+
+        mLineKeyPair = mCipherSet.generateLineKeyPair();
+        mOpenPacketBytes = renderOpenPacket();
+        mPath = Path.parsePath(PATH);
+    }
+
+    @Benchmark
+    public byte[] lineEncrypt() throws TelehashException {
+        return mCipherSet.renderLineInnerPacket(mLine, mPlaintext);
+    }
+
+    @Benchmark
+    public byte[] lineDecrypt() throws TelehashException {
+        return mCipherSet.parseLineInnerPacket(mLine, mCiphertext);
+    }
+
+    @Benchmark
+    public byte[] openRender() throws TelehashException {
+        return renderOpenPacket();
+    }
+
+    @Benchmark
+    public Packet openParse() throws TelehashException {
+        return Packet.parse(mRemoteTelehash, mOpenPacketBytes, mPath);
+    }
+
+    private byte[] renderOpenPacket() throws TelehashException {
+        OpenPacket openPacket = new OpenPacket(
+                mTelehash.getLocalNode(),
+                mRemoteNode,
+                mRemoteNode.getActiveCipherSetIdentifier(),
+                LineIdentifier.generate()
+        );
+        openPacket.setLineKeyPair(mLineKeyPair);
+        return openPacket.render();
+    }
+}
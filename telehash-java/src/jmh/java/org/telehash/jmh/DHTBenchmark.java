@@ -0,0 +1,132 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.HashName;
+import org.telehash.core.PeerNode;
+import org.telehash.core.TelehashException;
+import org.telehash.dht.ClosestNodeHeap;
+import org.telehash.dht.NodeTracker;
+import org.telehash.network.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the DHT distance calculations: HashName.distanceMagnitude(), and
+ * the selection of the nodes closest to a target from a routing table, as
+ * performed by NodeTracker.getClosestNodes().
+ *
+ * A NodeTracker only holds nodes with active links, which cannot be
+ * established without a running network, so the closest node selection
+ * is measured by performing the same bucket scan over a routing table
+ * which is filled as a NodeTracker would be by the nodes of a network of
+ * the given size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DHTBenchmark {
+
+    private static final int BUCKET_COUNT = 256;
+    private static final int TARGETS = 1024;
+    private static final int TARGET_MASK = TARGETS - 1;
+    private static final int CLOSEST = 8;
+
+    @Param({"1000", "100000"})
+    public int mNetworkSize;
+
+    private HashName mLocalHashName;
+    private List<List<PeerNode>> mBuckets = new ArrayList<List<PeerNode>>(BUCKET_COUNT);
+    private HashName[] mTargets = new HashName[TARGETS];
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() throws TelehashException {
+        Random random = new Random(Fixtures.RANDOM_SEED);
+        mLocalHashName = randomHashName(random);
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            mBuckets.add(new ArrayList<PeerNode>(NodeTracker.DEFAULT_BUCKET_SIZE));
+        }
+        for (int i=0; i<mNetworkSize; i++) {
+            HashName hashName = randomHashName(random);
+            int distance = mLocalHashName.distanceMagnitude(hashName);
+            if (distance == -1) {
+                continue;
+            }
+            List<PeerNode> bucket = mBuckets.get(distance);
+            if (bucket.size() < NodeTracker.DEFAULT_BUCKET_SIZE) {
+                bucket.add(new PeerNode(hashName, Collections.<Path>emptySet()));
+            }
+        }
+        for (int i=0; i<TARGETS; i++) {
+            mTargets[i] = randomHashName(random);
+        }
+    }
+
+    @Benchmark
+    public int distanceMagnitude() {
+        return mLocalHashName.distanceMagnitude(nextTarget());
+    }
+
+    @Benchmark
+    public List<PeerNode> closestNodes() {
+        return getClosestNodes(nextTarget(), CLOSEST);
+    }
+
+    private HashName nextTarget() {
+        mNext = (mNext + 1) & TARGET_MASK;
+        return mTargets[mNext];
+    }
+
+    /**
+     * The bucket scan of NodeTracker.getClosestNodes().
+     */
+    private List<PeerNode> getClosestNodes(HashName targetHashName, int maxNodes) {
+        ClosestNodeHeap heap = new ClosestNodeHeap(targetHashName, maxNodes);
+        int startingBucket = mLocalHashName.distanceMagnitude(targetHashName);
+        if (startingBucket == -1) {
+            for (int i=0; i<BUCKET_COUNT && ! heap.isFull(); i++) {
+                offer(heap, i);
+            }
+        } else {
+            offer(heap, startingBucket);
+            if (! heap.isFull()) {
+                for (int i = (startingBucket - 1); i >= 0; i--) {
+                    offer(heap, i);
+                }
+            }
+            for (int i = (startingBucket + 1); i < BUCKET_COUNT && ! heap.isFull(); i++) {
+                offer(heap, i);
+            }
+        }
+        return heap.toSortedList();
+    }
+
+    private void offer(ClosestNodeHeap heap, int bucket) {
+        for (PeerNode node : mBuckets.get(bucket)) {
+            heap.offer(node);
+        }
+    }
+
+    private HashName randomHashName(Random random) {
+        byte[] bytes = new byte[HashName.SIZE];
+        random.nextBytes(bytes);
+        return new HashName(bytes);
+    }
+}
@@ -0,0 +1,68 @@
+package org.telehash.jmh;
+
+import org.telehash.core.ChannelIdentifier;
+import org.telehash.core.ChannelPacket;
+import org.telehash.core.Line;
+import org.telehash.core.LineIdentifier;
+import org.telehash.core.LocalNode;
+import org.telehash.core.SeedNode;
+import org.telehash.core.Switch;
+import org.telehash.core.Telehash;
+import org.telehash.core.TelehashException;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Shared setup for the benchmarks: a Telehash context with an unstarted
+ * switch, and keyed lines and channel packets resembling those of a busy
+ * switch.
+ */
+class Fixtures {
+
+    static final long RANDOM_SEED = 1;
+
+    /**
+     * Create a Telehash context with a new local node and an unstarted
+     * switch, and make it the calling thread's context.
+     */
+    static Telehash createTelehash() throws TelehashException {
+        Telehash telehash = new Telehash();
+        telehash.setThreadLocal();
+        telehash.setLocalNode(telehash.getCrypto().generateLocalNode());
+        telehash.setSwitch(new Switch(telehash, new HashSet<SeedNode>()));
+        return telehash;
+    }
+
+    /**
+     * Create a line to the remote node which is keyed in both directions
+     * with the same random key, so its outgoing packets can be parsed as
+     * incoming packets.
+     */
+    static Line createLine(Telehash telehash, LocalNode remoteNode, Random random) {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        Line line = new Line(telehash, remoteNode);
+        line.setCipherSetIdentifier(remoteNode.getActiveCipherSetIdentifier());
+        line.setOutgoingLineIdentifier(LineIdentifier.generate());
+        line.setEncryptionKey(key);
+        line.setDecryptionKey(key);
+        return line;
+    }
+
+    /**
+     * Create a channel packet with the headers of a typical reliable
+     * channel data packet and a random body.
+     */
+    static ChannelPacket createChannelPacket(int bodySize, Random random) {
+        byte[] body = new byte[bodySize];
+        random.nextBytes(body);
+        ChannelPacket channelPacket = new ChannelPacket();
+        channelPacket.setChannelIdentifier(new ChannelIdentifier(1));
+        channelPacket.setType("stream");
+        channelPacket.put("seq", 1234);
+        channelPacket.put("ack", 1233);
+        channelPacket.setBody(body);
+        return channelPacket;
+    }
+}
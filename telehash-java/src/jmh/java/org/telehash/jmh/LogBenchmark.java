@@ -0,0 +1,76 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the logging statements of the packet path when logging is
+ * disabled. The categorized calls, as used by the switch, lines, channels
+ * and reactor, should allocate nothing; the old style of building the
+ * message by concatenation is measured for comparison. Run with
+ * -PjmhProfiler=gc to report the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    private final Object mPacket = new Object();
+    private final Object mLine = new Object();
+    private final Object mChannel = new Object();
+    private final Object mPath = new Object();
+    private int mLength = 1200;
+
+    @Setup
+    public void setUp() {
+        Log.setLevel(Level.ERROR);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log.setLevel(Level.DEBUG);
+    }
+
+    @Benchmark
+    public void categorized() {
+        // the shapes of the per-packet calls in Switch, Line, Channel and
+        // ReactorImpl.
+        if (Log.isEnabled(Category.NETWORK, Level.INFO)) {
+            Log.i(Category.NETWORK, "received datagram of %d bytes from: %s", mLength, mPath);
+        }
+        Log.i(Category.NETWORK, "incoming packet: %s", mPacket);
+        Log.i(Category.LINE, "incoming: %s %s", mLine, mPacket);
+        Log.i(Category.CHANNEL, "outgoing: %s %s %s", mLine, mChannel, mPacket);
+        Log.i(Category.NETWORK, "outgoing packet: %s", mPacket);
+        if (Log.isEnabled(Category.NETWORK, Level.INFO)) {
+            Log.i(Category.NETWORK, "%d datagram(s) sent.", mLength);
+        }
+    }
+
+    @Benchmark
+    public void concatenated() {
+        Log.i("received datagram of "+mLength+" bytes from: "+mPath);
+        Log.i("incoming packet: "+mPacket);
+        Log.i("incoming: "+mLine+" "+mPacket);
+        Log.i("outgoing: "+mLine+" "+mChannel+" "+mPacket);
+        Log.i("outgoing packet: "+mPacket);
+        Log.i(mLength+" datagram(s) sent.");
+    }
+}
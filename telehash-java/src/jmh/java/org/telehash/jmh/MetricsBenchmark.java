@@ -0,0 +1,64 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.metrics.Counter;
+import org.telehash.metrics.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the cost of updating a counter and recording into a histogram,
+ * from one thread and from several contending threads. The metrics are
+ * shared by all benchmark threads, as a switch's metrics are shared by its
+ * reactor and worker threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private static final int CONTENDING_THREADS = 4;
+
+    /**
+     * The values recorded by one benchmark thread, spread over the
+     * histogram's buckets.
+     */
+    @State(Scope.Thread)
+    public static class Values {
+        private int mNext = 0;
+        long next() {
+            return 1000 + (mNext++ & 0xFFFF);
+        }
+    }
+
+    private final Counter mCounter = new Counter();
+    private final Histogram mHistogram = new Histogram();
+
+    @Benchmark
+    public void counterIncrement() {
+        mCounter.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord(Values values) {
+        mHistogram.record(values.next());
+    }
+
+    @Benchmark
+    @Threads(CONTENDING_THREADS)
+    public void histogramRecordContended(Values values) {
+        mHistogram.record(values.next());
+    }
+}
@@ -0,0 +1,93 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.ChannelPacket;
+import org.telehash.core.Line;
+import org.telehash.core.LinePacket;
+import org.telehash.core.Packet;
+import org.telehash.core.Telehash;
+import org.telehash.core.TelehashException;
+import org.telehash.json.JSONException;
+import org.telehash.json.JSONObject;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the rendering and parsing of line packets and of the channel
+ * packets they carry, including the JSON channel headers.
+ *
+ * Line packets are parsed with the line already known, since Packet.parse()
+ * would otherwise require the line to be registered with a running switch. The parsing of open packets by
+ * Packet.parse() is measured by CipherSetBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    @Param({"32", "1024"})
+    public int mBodySize;
+
+    private Telehash mTelehash;
+    private Line mLine;
+    private ChannelPacket mChannelPacket;
+    private byte[] mChannelPacketBytes;
+    private String mChannelHeader;
+    private byte[] mLinePacketBytes;
+
+    @Setup
+    public void setUp() throws TelehashException {
+        Random random = new Random(Fixtures.RANDOM_SEED);
+        mTelehash = Fixtures.createTelehash();
+        mLine = Fixtures.createLine(
+                mTelehash,
+                mTelehash.getCrypto().generateLocalNode(),
+                random
+        );
+        mChannelPacket = Fixtures.createChannelPacket(mBodySize, random);
+        mChannelPacketBytes = mChannelPacket.render();
+        mChannelHeader = Packet.splitPacket(mChannelPacketBytes).json.toString();
+        mLinePacketBytes = new LinePacket(mLine, mChannelPacket).render();
+    }
+
+    @Benchmark
+    public byte[] linePacketRender() throws TelehashException {
+        return new LinePacket(mLine, mChannelPacket).render();
+    }
+
+    @Benchmark
+    public LinePacket linePacketParse() throws TelehashException {
+        Packet.SplitPacket splitPacket = Packet.splitPacket(
+                mLinePacketBytes, 0, mLinePacketBytes.length);
+        return LinePacket.parse(mTelehash, mLine, splitPacket, null);
+    }
+
+    @Benchmark
+    public byte[] channelPacketRender() throws TelehashException {
+        return mChannelPacket.render();
+    }
+
+    @Benchmark
+    public ChannelPacket channelPacketParse() throws TelehashException {
+        return ChannelPacket.parse(mTelehash, mChannelPacketBytes, null);
+    }
+
+    @Benchmark
+    public JSONObject channelHeaderParse() throws JSONException {
+        return new JSONObject(mChannelHeader);
+    }
+}
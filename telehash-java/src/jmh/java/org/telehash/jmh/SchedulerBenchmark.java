@@ -0,0 +1,113 @@
+package org.telehash.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telehash.core.Scheduler;
+import org.telehash.core.VirtualClock;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the scheduler operations of a busy switch, which holds many idle
+ * timeouts that are constantly reset by traffic and re-armed when they
+ * fire, and runs due tasks on every iteration of the select loop.
+ *
+ * The scheduler uses a virtual clock, so that the run benchmark advances
+ * time by one scheduler tick per invocation regardless of its speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    private static final long NANOSECONDS_IN_MILLISECOND = 1000000L;
+    private static final int MINIMUM_DELAY = 1000;
+    private static final int DELAY_RANGE = 60000;
+    private static final int RANDOM_DELAYS = 4096;
+    private static final int RANDOM_DELAY_MASK = RANDOM_DELAYS - 1;
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * An idle timeout which re-arms itself when it fires.
+     */
+    private class IdleTask implements Runnable {
+        Scheduler.Task mTask;
+        @Override
+        public void run() {
+            mScheduler.updateTask(mTask, null, nextDelay());
+        }
+    }
+
+    @Param({"1000", "100000"})
+    public int mTasks;
+
+    private VirtualClock mClock;
+    private Scheduler mScheduler;
+    private IdleTask[] mIdleTasks;
+    private int[] mDelays = new int[RANDOM_DELAYS];
+    private int mNextDelay = 0;
+    private int mNextTask = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(Fixtures.RANDOM_SEED);
+        for (int i=0; i<RANDOM_DELAYS; i++) {
+            mDelays[i] = MINIMUM_DELAY + random.nextInt(DELAY_RANGE);
+        }
+        mClock = new VirtualClock();
+        mScheduler = new Scheduler(mClock);
+        mIdleTasks = new IdleTask[mTasks];
+        for (int i=0; i<mTasks; i++) {
+            IdleTask idleTask = new IdleTask();
+            idleTask.mTask = mScheduler.addTask(idleTask, nextDelay());
+            mIdleTasks[i] = idleTask;
+        }
+    }
+
+    @Benchmark
+    public void addRemove() {
+        mScheduler.removeTask(mScheduler.addTask(NOOP, nextDelay()));
+    }
+
+    @Benchmark
+    public void reset() {
+        mScheduler.updateTask(nextTask().mTask, null, nextDelay());
+    }
+
+    @Benchmark
+    public void run() {
+        mClock.advance(NANOSECONDS_IN_MILLISECOND);
+        mScheduler.runTasks();
+    }
+
+    private int nextDelay() {
+        mNextDelay = (mNextDelay + 1) & RANDOM_DELAY_MASK;
+        return mDelays[mNextDelay];
+    }
+
+    private IdleTask nextTask() {
+        mNextTask++;
+        if (mNextTask == mIdleTasks.length) {
+            mNextTask = 0;
+        }
+        return mIdleTasks[mNextTask];
+    }
+}
@@ -0,0 +1,322 @@
+package org.telehash.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A log listener which hands entries to a background writer thread, so
+ * that logging threads never block on console or disk I/O.
+ *
+ * <p>
+ * Entries are placed in a fixed-size ring buffer. If the buffer is full,
+ * the entry is dropped and counted rather than blocking the logging
+ * thread; the writer reports the number of dropped entries in the log.
+ * The writer drains the buffer in batches, formats them, and writes each
+ * batch with a single FileChannel write. The log file is rotated when it
+ * would exceed the maximum file size, keeping a bounded number of old
+ * files (telehash.log.1, telehash.log.2, ...).
+ * </p>
+ *
+ * <p>
+ * Entries are written in the order they were received, so the contiguous
+ * delivery of Log.buffer()/Log.flush() is preserved.
+ * </p>
+ */
+public class AsyncLogger implements LogListener, Runnable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_MAXIMUM_FILE_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAXIMUM_FILES = 4;
+
+    private static final int MAXIMUM_BATCH = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String mPath;
+    private final boolean mConsole;
+    private final long mMaximumFileSize;
+    private final int mMaximumFiles;
+
+    // ring buffer state, guarded by this
+    private final LogEntry[] mRing;
+    private final int mMask;
+    private long mHead = 0;
+    private long mTail = 0;
+    private boolean mWriting = false;
+    private long mDropped = 0;
+    private long mUnreportedDrops = 0;
+    private boolean mStopRequested = false;
+    private Thread mThread;
+
+    // writer thread state
+    private final LogFormatter mFormatter = new LogFormatter();
+    private final LogEntry[] mBatch = new LogEntry[MAXIMUM_BATCH];
+    private final StringBuilder mText = new StringBuilder();
+    private ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+    private FileChannel mChannel;
+    private long mFileSize;
+
+    /**
+     * Construct a new AsyncLogger with the default capacity and rotation
+     * parameters.
+     *
+     * @param path The log file path, or null to not write a file.
+     * @param console True if entries should also be written to standard
+     *        output.
+     */
+    public AsyncLogger(String path, boolean console) {
+        this(path, console, DEFAULT_CAPACITY, DEFAULT_MAXIMUM_FILE_SIZE, DEFAULT_MAXIMUM_FILES);
+    }
+
+    /**
+     * Construct a new AsyncLogger.
+     *
+     * @param path The log file path, or null to not write a file.
+     * @param console True if entries should also be written to standard
+     *        output.
+     * @param capacity The number of entries the ring buffer can hold; this
+     *        is rounded up to a power of two.
+     * @param maximumFileSize The size in bytes at which the log file is
+     *        rotated.
+     * @param maximumFiles The number of rotated files to keep in addition
+     *        to the current file.
+     */
+    public AsyncLogger(
+            String path,
+            boolean console,
+            int capacity,
+            long maximumFileSize,
+            int maximumFiles
+    ) {
+        if (capacity < 1 || maximumFileSize < 1 || maximumFiles < 0) {
+            throw new IllegalArgumentException("invalid logger capacity or rotation parameters");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mRing = new LogEntry[size];
+        mMask = size - 1;
+        mPath = path;
+        mConsole = console;
+        mMaximumFileSize = maximumFileSize;
+        mMaximumFiles = maximumFiles;
+    }
+
+    public void setEnableColor(boolean enableColor) {
+        synchronized (mFormatter) {
+            mFormatter.setEnableColor(enableColor);
+        }
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mStopRequested = false;
+        mThread = new Thread(this, "telehash-log-writer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Write any queued entries, then stop the writer thread and close the
+     * log file.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mStopRequested = true;
+            notifyAll();
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null && ! Thread.currentThread().equals(thread)) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue an entry for writing. This never blocks on I/O.
+     */
+    @Override
+    public void onLogEvent(LogEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mHead - mTail == mRing.length) {
+                mDropped++;
+                mUnreportedDrops++;
+                return;
+            }
+            mRing[(int)(mHead & mMask)] = entry;
+            mHead++;
+            if (mHead - mTail == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every entry queued before this call has been written.
+     */
+    public synchronized void sync() throws InterruptedException {
+        long target = mHead;
+        while ((mTail < target || mWriting) && mThread != null) {
+            wait();
+        }
+    }
+
+    /** Return the total number of entries dropped because the buffer was full. */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /** Return the number of entries waiting to be written. */
+    public synchronized int size() {
+        return (int)(mHead - mTail);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int count;
+                long dropped;
+                synchronized (this) {
+                    mWriting = false;
+                    notifyAll();
+                    while (mHead == mTail && ! mStopRequested) {
+                        wait();
+                    }
+                    if (mHead == mTail && mUnreportedDrops == 0) {
+                        break;
+                    }
+                    count = (int)Math.min(mHead - mTail, MAXIMUM_BATCH);
+                    for (int i=0; i<count; i++) {
+                        int index = (int)(mTail & mMask);
+                        mBatch[i] = mRing[index];
+                        mRing[index] = null;
+                        mTail++;
+                    }
+                    dropped = mUnreportedDrops;
+                    mUnreportedDrops = 0;
+                    mWriting = true;
+                }
+                writeBatch(count, dropped);
+            }
+        } catch (InterruptedException e) {
+            // exit
+        } finally {
+            closeFile();
+            synchronized (this) {
+                mWriting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeBatch(int count, long dropped) {
+        mText.setLength(0);
+        if (dropped > 0) {
+            mText.append("AsyncLogger: "+dropped+" log entries dropped\n");
+        }
+        synchronized (mFormatter) {
+            for (int i=0; i<count; i++) {
+                mFormatter.format(mBatch[i], mText);
+                mBatch[i] = null;
+            }
+        }
+        byte[] bytes = mText.toString().getBytes(UTF8);
+
+        if (mConsole) {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+        }
+        if (mPath != null) {
+            writeFile(bytes);
+        }
+    }
+
+    private void writeFile(byte[] bytes) {
+        try {
+            if (mChannel != null && mFileSize > 0 && mFileSize + bytes.length > mMaximumFileSize) {
+                rotate();
+            }
+            if (mChannel == null) {
+                openFile();
+            }
+            if (mBuffer.capacity() < bytes.length) {
+                mBuffer = ByteBuffer.allocate(bytes.length);
+            }
+            mBuffer.clear();
+            mBuffer.put(bytes);
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mFileSize += bytes.length;
+        } catch (IOException e) {
+            // the log itself cannot report this, so fall back to stderr.
+            System.err.println("AsyncLogger: cannot write "+mPath+": "+e);
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        mChannel = new FileOutputStream(mPath, false).getChannel();
+        mFileSize = 0;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        if (mMaximumFiles == 0) {
+            return;
+        }
+        new File(mPath+"."+mMaximumFiles).delete();
+        for (int i=mMaximumFiles-1; i>=1; i--) {
+            File file = new File(mPath+"."+i);
+            if (file.exists()) {
+                file.renameTo(new File(mPath+"."+(i+1)));
+            }
+        }
+        new File(mPath).renameTo(new File(mPath+".1"));
+    }
+
+    private void closeFile() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mChannel = null;
+        }
+    }
+
+    /* intentionally package-private */
+    static AsyncLogger createDefault() {
+        String path = new File("/tmp").exists() ? "/tmp/telehash.log" : null;
+        final AsyncLogger logger = new AsyncLogger(path, true);
+        logger.start();
+        // write out any queued entries before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.close();
+            }
+        }, "telehash-log-shutdown"));
+        return logger;
+    }
+}
@@ -1,5 +1,7 @@
 package org.telehash.core;
 
+import org.telehash.core.Log.Category;
+
 import java.util.Map;
 
 public class Channel implements OnTimeoutListener {
@@ -17,7 +19,7 @@ public class Channel implements OnTimeoutListener {
         mLine = line;
         mType = type;
         mChannelIdentifier = line.getNextChannelId();
-        mTimeout = telehash.getSwitch().getTimeout(this, 0);
+        mTimeout = telehash.getSwitch().getLazyTimeout(this, 0);
     }
 
     public Channel(Telehash telehash, Line line, ChannelIdentifier channelIdentifer, String type) {
@@ -25,7 +27,7 @@ public class Channel implements OnTimeoutListener {
         mLine = line;
         mChannelIdentifier = channelIdentifer;
         mType = type;
-        mTimeout = telehash.getSwitch().getTimeout(this, 0);
+        mTimeout = telehash.getSwitch().getLazyTimeout(this, 0);
     }
 
     public void setLine(Line line) {
@@ -77,11 +79,19 @@ public class Channel implements OnTimeoutListener {
         mChannelHandler.handleIncoming(this, channelPacket);
     }
 
-    public void send(byte[] body) throws TelehashException {
-        send(body, null, false);
+    public boolean send(byte[] body) throws TelehashException {
+        return send(body, null, false);
     }
 
-    public void send(byte[] body, Map<String,Object> fields, boolean end) throws TelehashException {
+    /**
+     * Send a packet on this channel.
+     *
+     * @return True if the packet was queued for sending, or false if it was
+     *         dropped because the outgoing queue is full. Producers should
+     *         throttle when this returns false.
+     * @throws TelehashException
+     */
+    public boolean send(byte[] body, Map<String,Object> fields, boolean end) throws TelehashException {
         ChannelPacket channelPacket = new ChannelPacket();
         channelPacket.setChannelIdentifier(mChannelIdentifier);
         if (! mSentFirstPacket) {
@@ -99,8 +109,8 @@ public class Channel implements OnTimeoutListener {
             // TODO: remove from Line's channel tracking
         }
         channelPacket.setBody(body);
-        Log.i("outgoing: "+mLine+" "+this+" "+channelPacket);
-        mTelehash.getSwitch().getLineManager().sendLinePacket(
+        Log.i(Category.CHANNEL, "outgoing: %s %s %s", mLine, this, channelPacket);
+        boolean queued = mTelehash.getSwitch().getLineManager().sendLinePacket(
                 mLine,
                 channelPacket,
                 null,
@@ -108,6 +118,7 @@ public class Channel implements OnTimeoutListener {
         );
 
         mTimeout.reset();
+        return queued;
     }
 
     public void close() throws TelehashException {
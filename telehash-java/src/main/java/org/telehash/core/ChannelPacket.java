@@ -150,7 +150,7 @@ public class ChannelPacket extends Packet {
             Path path
     ) throws TelehashException {
         SplitPacket splitPacket = splitPacket(packetBuffer);
-        return parse(telehash, splitPacket.json, splitPacket.body, path);
+        return parse(telehash, splitPacket.json, splitPacket.getBody(), path);
     }
 
     public static ChannelPacket parse(
@@ -0,0 +1,22 @@
+package org.telehash.core;
+
+/**
+ * A source of time for the switch. Protocol timing (the scheduler, link
+ * keepalives, bucket staleness, round-trip times) reads the clock of the
+ * Telehash context rather than the system, so that a simulation can run
+ * the protocol in virtual time.
+ */
+public interface Clock {
+    /**
+     * Return the current value of a monotonic time source, in
+     * nanoseconds. This is only meaningful relative to other values
+     * returned by this method, as with System.nanoTime().
+     */
+    public long nanoTime();
+
+    /**
+     * Return the current wall clock time, in milliseconds since the epoch,
+     * as with System.currentTimeMillis().
+     */
+    public long currentTimeMillis();
+}
@@ -15,21 +15,97 @@ import java.util.TreeMap;
 public class HashName implements Comparable<HashName> {
     public static final int SIZE = 32;
 
+    private static final int WORDS = 4;
+    private static final int BITS_PER_WORD = 64;
+
     private byte[] mBuffer;
 
+    // the hash name as four big-endian words, most significant first, so
+    // that distance and ordering can be computed without allocation.
+    private final long mWord0;
+    private final long mWord1;
+    private final long mWord2;
+    private final long mWord3;
+    private final int mHashCode;
+
+    /**
+     * Construct a hash name from its 32-byte representation. The buffer must
+     * not be modified afterwards.
+     *
+     * @param buffer The hash name bytes.
+     */
     public HashName(byte[] buffer) {
         if (buffer == null || buffer.length != SIZE) {
             throw new IllegalArgumentException("invalid hash name");
         }
         mBuffer = buffer;
+        mWord0 = getWord(buffer, 0);
+        mWord1 = getWord(buffer, 1);
+        mWord2 = getWord(buffer, 2);
+        mWord3 = getWord(buffer, 3);
+        mHashCode = Arrays.hashCode(buffer);
+    }
+
+    private static long getWord(byte[] buffer, int word) {
+        long value = 0;
+        int offset = word * 8;
+        for (int i=0; i<8; i++) {
+            value = (value << 8) | (buffer[offset+i] & 0xFF);
+        }
+        return value;
     }
 
+    private long getWord(int word) {
+        switch (word) {
+        case 0: return mWord0;
+        case 1: return mWord1;
+        case 2: return mWord2;
+        default: return mWord3;
+        }
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    /**
+     * Return the xor distance between this hash name and the specified hash
+     * name. This allocates; use compareDistance() to order hash names by
+     * distance.
+     */
     public BigInteger distance(HashName other) {
         BigInteger a = new BigInteger(1, mBuffer);
         BigInteger b = new BigInteger(1, other.mBuffer);
         return (a.xor(b));
     }
 
+    /**
+     * Compare the xor distances of two hash names from this hash name,
+     * without allocation.
+     *
+     * @param a The first hash name.
+     * @param b The second hash name.
+     * @return A negative value, zero, or a positive value as a is closer to,
+     *         equally distant from, or farther from this hash name than b.
+     */
+    public int compareDistance(HashName a, HashName b) {
+        int c = compareUnsigned(mWord0 ^ a.mWord0, mWord0 ^ b.mWord0);
+        if (c != 0) {
+            return c;
+        }
+        c = compareUnsigned(mWord1 ^ a.mWord1, mWord1 ^ b.mWord1);
+        if (c != 0) {
+            return c;
+        }
+        c = compareUnsigned(mWord2 ^ a.mWord2, mWord2 ^ b.mWord2);
+        if (c != 0) {
+            return c;
+        }
+        return compareUnsigned(mWord3 ^ a.mWord3, mWord3 ^ b.mWord3);
+    }
+
     /**
      * Return the hashspace distance magnitude between this hashname and the
      * specified hashname. This is defined as the binary logarithm of the xor of
@@ -40,30 +116,18 @@ public class HashName implements Comparable<HashName> {
      *
      * The returned value will always be between -1 and 255, inclusive.
      *
-     * @param A
-     *            The first hashname.
      * @param other
      *            The second hashname.
      * @return The distance, or -1 if the hashnames are identical.
      */
     public int distanceMagnitude(HashName other) {
-        // opportunities for optimization abound.
-        // http://graphics.stanford.edu/~seander/bithacks.html#IntegerLogObvious
-
-        if (this == null || other == null) {
+        if (other == null) {
             throw new IllegalArgumentException("invalid hashname");
         }
-        byte[] ba = this.getBytes();
-        byte[] bb = other.getBytes();
-        for (int i=0; i<HashName.SIZE; i++) {
-            int c = ba[i] ^ bb[i];
-            if (c != 0) {
-                for (int j=0; j<8; j++) {
-                    if ((c & 0x80) != 0) {
-                        return (HashName.SIZE-i-1)*8 + (8-j-1);
-                    }
-                    c = c << 1;
-                }
+        for (int i=0; i<WORDS; i++) {
+            long x = getWord(i) ^ other.getWord(i);
+            if (x != 0) {
+                return (WORDS-i)*BITS_PER_WORD - 1 - Long.numberOfLeadingZeros(x);
             }
         }
         return -1;
@@ -103,11 +167,15 @@ public class HashName implements Comparable<HashName> {
 
     @Override
     public boolean equals(Object other) {
-        if (other != null &&
-            (other instanceof HashName && Arrays.equals(((HashName)other).mBuffer, mBuffer)) ||
-            (other instanceof Node && Arrays.equals(((Node)other).getHashName().mBuffer, mBuffer))
-        ) {
-            return true;
+        if (other instanceof Node) {
+            other = ((Node)other).getHashName();
+        }
+        if (other instanceof HashName) {
+            HashName hashName = (HashName)other;
+            return mWord0 == hashName.mWord0 &&
+                    mWord1 == hashName.mWord1 &&
+                    mWord2 == hashName.mWord2 &&
+                    mWord3 == hashName.mWord3;
         } else {
             return false;
         }
@@ -115,13 +183,23 @@ public class HashName implements Comparable<HashName> {
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(mBuffer);
+        return mHashCode;
     }
 
     @Override
     public int compareTo(HashName other) {
-        BigInteger a = new BigInteger(1, mBuffer);
-        BigInteger b = new BigInteger(1, other.mBuffer);
-        return a.compareTo(b);
+        int c = compareUnsigned(mWord0, other.mWord0);
+        if (c != 0) {
+            return c;
+        }
+        c = compareUnsigned(mWord1, other.mWord1);
+        if (c != 0) {
+            return c;
+        }
+        c = compareUnsigned(mWord2, other.mWord2);
+        if (c != 0) {
+            return c;
+        }
+        return compareUnsigned(mWord3, other.mWord3);
     }
 }
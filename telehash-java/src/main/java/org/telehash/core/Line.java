@@ -1,6 +1,9 @@
 package org.telehash.core;
 
+import org.telehash.core.Log.Category;
 import org.telehash.crypto.CipherSet;
+import org.telehash.crypto.LineCipherContext;
+import org.telehash.diagnostics.SwitchSnapshot;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -47,10 +50,17 @@ public class Line implements OnTimeoutListener {
     private OpenPacket mLocalOpenPacket;
     private OpenPacket mRemoteOpenPacket;
     private byte[] mSharedSecret;
-    private byte[] mEncryptionKey;
-    private byte[] mDecryptionKey;
+    // the decryption key may be read by reactor threads other than the
+    // switch thread, which parse incoming line packets.
+    private volatile byte[] mEncryptionKey;
+    private volatile byte[] mDecryptionKey;
+    // cipher state cached by the cipher set, derived from the keys above.
+    private volatile LineCipherContext mEncryptionContext;
+    private volatile LineCipherContext mDecryptionContext;
 
     private Timeout mTimeout;
+    private long mOpenStartTime = 0L;
+    private long mOpenLatency = -1L;
 
     private Telehash mTelehash;
     private Map<ChannelIdentifier,Channel> mChannels = new HashMap<ChannelIdentifier,Channel>();
@@ -59,7 +69,7 @@ public class Line implements OnTimeoutListener {
 
     public Line(Telehash telehash, Node remoteNode) {
         mTelehash = telehash;
-        mTimeout = telehash.getSwitch().getTimeout(this, 0);
+        mTimeout = telehash.getSwitch().getLazyTimeout(this, 0);
         mRemoteNode = remoteNode;
 
         if (remoteNode.getHashName().compareTo(telehash.getLocalNode().getHashName()) > 0) {
@@ -121,7 +131,7 @@ public class Line implements OnTimeoutListener {
         if (mRemoteNode instanceof PeerNode) {
             return (PeerNode)mRemoteNode;
         } else {
-            Log.e("peer node expected, but line still has: "+mRemoteNode);
+            Log.e(Category.LINE, "peer node expected, but line still has: %s", mRemoteNode);
             return null;
         }
     }
@@ -158,6 +168,7 @@ public class Line implements OnTimeoutListener {
             throw new IllegalArgumentException("invalid encryption key");
         }
         mEncryptionKey = encryptionKey;
+        mEncryptionContext = null;
     }
 
     public byte[] getEncryptionKey() {
@@ -169,12 +180,37 @@ public class Line implements OnTimeoutListener {
             throw new IllegalArgumentException("invalid encryption key");
         }
         mDecryptionKey = decryptionKey;
+        mDecryptionContext = null;
     }
 
     public byte[] getDecryptionKey() {
         return mDecryptionKey;
     }
 
+    /**
+     * Return the cipher set's cached encryption state for this line, or null
+     * if none has been established since the encryption key was set.
+     */
+    public LineCipherContext getEncryptionContext() {
+        return mEncryptionContext;
+    }
+
+    public void setEncryptionContext(LineCipherContext encryptionContext) {
+        mEncryptionContext = encryptionContext;
+    }
+
+    /**
+     * Return the cipher set's cached decryption state for this line, or null
+     * if none has been established since the decryption key was set.
+     */
+    public LineCipherContext getDecryptionContext() {
+        return mDecryptionContext;
+    }
+
+    public void setDecryptionContext(LineCipherContext decryptionContext) {
+        mDecryptionContext = decryptionContext;
+    }
+
     public ChannelIdentifier getNextChannelId() {
         long next = mNextChannelId;
         mNextChannelId += 2;
@@ -201,11 +237,12 @@ public class Line implements OnTimeoutListener {
     /* intentionally package-private */
     void fail(Throwable e) {
         if (mFinished) {
-            Log.e("line "+this+" fail after finish!");
+            Log.e(Category.LINE, "line %s fail after finish!", this);
             return;
         }
         mState = State.ERROR;
         mFinished = true;
+        mTelehash.getMetrics().getLinesFailed().increment();
 
         // cancel timeout
         mTimeout.cancel();
@@ -219,19 +256,25 @@ public class Line implements OnTimeoutListener {
     }
 
     public void completeOpen() {
-        Log.i(toString()+" open completed.");
+        Log.i(Category.LINE, "%s open completed.", this);
         if (mFinished) {
-            Log.e("line "+this+" complete after finish!");
+            Log.e(Category.LINE, "line %s complete after finish!", this);
             return;
         }
         mState = State.ESTABLISHED;
         mFinished = true;
+        mTelehash.getMetrics().getLinesEstablished().increment();
+        if (mOpenStartTime != 0L) {
+            mOpenLatency = mTelehash.getClock().nanoTime() - mOpenStartTime;
+            mTelehash.getMetrics().getLineOpenLatency().record(mOpenLatency);
+        }
 
         // reset the timeout (it will now be a line receive timeout.)
         mTimeout.setDelay(LINE_RECEIVE_TIMEOUT);
 
         // signal open completion
-        Log.i(toString()+" calling open completion handlers: "+mOpenCompletionHandlers);
+        Log.i(Category.LINE, "%s calling open completion handlers: %s",
+                this, mOpenCompletionHandlers);
         for (Completion<Line> completion : mOpenCompletionHandlers) {
             if (completion.mHandler != null) {
                 completion.mHandler.completed(this, completion.mAttachment);
@@ -240,9 +283,20 @@ public class Line implements OnTimeoutListener {
     }
 
     public void startOpenTimer() {
+        mOpenStartTime = mTelehash.getClock().nanoTime();
         mTimeout.setDelay(LINE_OPEN_TIMEOUT);
     }
 
+    /**
+     * Return the time between starting a locally initiated line open and
+     * the line becoming established, in nanoseconds, or -1 if this is not
+     * known (e.g. the line was opened by the remote node, or is not yet
+     * established).
+     */
+    public long getOpenLatency() {
+        return mOpenLatency;
+    }
+
     public long getOpenTime() {
         if (mLocalOpenPacket != null) {
             return mLocalOpenPacket.getOpenTime();
@@ -260,6 +314,7 @@ public class Line implements OnTimeoutListener {
 
         // track channel
         mChannels.put(channel.getChannelIdentifier(), channel);
+        mTelehash.getMetrics().getChannelsOpened().increment();
 
         // consider the channel to be "open" even though we don't know
         // if the remote side will be happy with this channel type.
@@ -273,25 +328,24 @@ public class Line implements OnTimeoutListener {
     public void handleIncoming(LinePacket linePacket) {
         // reset the line timeout
         mTimeout.reset();
-        Log.i(toString()+" TO-RESET to "+mTimeout.getDelay());
 
         ChannelPacket channelPacket = linePacket.getChannelPacket();
-        Log.i("incoming: "+this+" "+channelPacket);
+        Log.i(Category.LINE, "incoming: %s %s", this, channelPacket);
         Channel channel = mChannels.get(channelPacket.getChannelIdentifier());
         if (channel == null) {
             // is this the first communication of a new channel?
             // (it will have a type field)
             String type = channelPacket.getType();
             if (type == null) {
-                Log.i("dropping packet for unknown channel without type");
+                Log.i(Category.LINE, "dropping packet for unknown channel without type");
                 return;
             }
 
             // is anyone interested in channels of this type?
             ChannelHandler channelHandler = mTelehash.getSwitch().getChannelHandler(type);
             if (channelHandler == null) {
-                Log.i("no channel handler for type; type=\""+channelPacket.getType()+
-                        "\" cid="+channelPacket.getChannelIdentifier());
+                Log.i(Category.LINE, "no channel handler for type; type=\"%s\" cid=%s",
+                        channelPacket.getType(), channelPacket.getChannelIdentifier());
                 return;
             }
 
@@ -299,6 +353,7 @@ public class Line implements OnTimeoutListener {
             channel = new Channel(mTelehash, this, channelPacket.getChannelIdentifier(), type);
             channel.setChannelHandler(channelHandler);
             mChannels.put(channel.getChannelIdentifier(), channel);
+            mTelehash.getMetrics().getChannelsOpened().increment();
 
             // invoke callback
             channelHandler.handleIncoming(channel, channelPacket);
@@ -308,7 +363,9 @@ public class Line implements OnTimeoutListener {
         channel.receive(channelPacket);
         // is this the end?
         if (channelPacket.isEnd()) {
-            mChannels.remove(channel.getChannelIdentifier());
+            if (mChannels.remove(channel.getChannelIdentifier()) != null) {
+                mTelehash.getMetrics().getChannelsClosed().increment();
+            }
         }
     }
 
@@ -323,6 +380,30 @@ public class Line implements OnTimeoutListener {
         return set;
     }
 
+    /**
+     * Return the state of this line and its channels, for diagnostics.
+     */
+    public SwitchSnapshot.LineInfo getSnapshot() {
+        List<SwitchSnapshot.ChannelInfo> channels =
+                new ArrayList<SwitchSnapshot.ChannelInfo>(mChannels.size());
+        for (Channel channel : mChannels.values()) {
+            channels.add(new SwitchSnapshot.ChannelInfo(
+                    channel.getChannelIdentifier().toLong(),
+                    channel.getType(),
+                    channel.getTimeout()
+            ));
+        }
+        return new SwitchSnapshot.LineInfo(
+                mRemoteNode.getHashName().asHex(),
+                mRemoteNode.getClass().getSimpleName(),
+                mIncomingLineIdentifier == null ? null : mIncomingLineIdentifier.asHex(),
+                mOutgoingLineIdentifier == null ? null : mOutgoingLineIdentifier.asHex(),
+                mState.name(),
+                mOpenLatency,
+                channels
+        );
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -340,7 +421,7 @@ public class Line implements OnTimeoutListener {
 
     @Override
     public void handleTimeout() {
-        Log.e(""+this+" TIMEOUT");
+        Log.e(Category.LINE, "%s TIMEOUT", this);
         TelehashException exception;
         switch (mState) {
         case NODE_LOOKUP:
@@ -360,8 +441,16 @@ public class Line implements OnTimeoutListener {
             break;
         }
 
+        if (mState == State.ESTABLISHED) {
+            mTelehash.getMetrics().getLineReceiveTimeouts().increment();
+        } else {
+            mTelehash.getMetrics().getLinesTimedOut().increment();
+        }
         mState = State.TIMEOUT;
 
+        // the line's channels end with it.
+        mTelehash.getMetrics().getChannelsClosed().add(mChannels.size());
+
         // dereference from switch
         mTelehash.getSwitch().getLineManager().clearLine(this);
 
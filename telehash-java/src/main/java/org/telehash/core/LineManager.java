@@ -1,13 +1,22 @@
 package org.telehash.core;
 
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
+import org.telehash.crypto.CipherSet;
+import org.telehash.crypto.LineKeyPair;
+import org.telehash.crypto.impl.LineKeyPairPool;
 import org.telehash.dht.DHT;
 import org.telehash.dht.NodeLookupTask;
+import org.telehash.diagnostics.SwitchSnapshot;
 import org.telehash.network.Path;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LineManager {
 
@@ -16,8 +25,10 @@ public class LineManager {
     private static class LineTracker {
         private Map<HashName,Line> mHashNameToLineMap = new HashMap<HashName,Line>();
         private Map<Node,Line> mNodeToLineMap = new HashMap<Node,Line>();
+        // incoming line packets may be parsed on reactor threads other than
+        // the switch thread, so this lookup must be thread-safe.
         private Map<LineIdentifier,Line> mIncomingLineIdentifierToLineMap =
-                new HashMap<LineIdentifier,Line>();
+                new ConcurrentHashMap<LineIdentifier,Line>();
         public Line getByNode(Node node) {
             return mNodeToLineMap.get(node);
         }
@@ -25,26 +36,19 @@ public class LineManager {
             return mHashNameToLineMap.get(hashName);
         }
         public Line getByIncomingLineIdentifier(LineIdentifier lineIdentifier) {
-
-            // TODO: remove this debugging block
-            StringBuilder sb = new StringBuilder();
-            if (mIncomingLineIdentifierToLineMap.get(lineIdentifier) == null) {
-                if (mIncomingLineIdentifierToLineMap.containsKey(lineIdentifier)) {
-                    sb.append("XXX has key, but value is null\n");
-                } else {
-                    sb.append("XXX cannot find "+
-                            lineIdentifier+" ; candidates include:\n");
-                    for (LineIdentifier id : mIncomingLineIdentifierToLineMap.keySet()) {
-                        sb.append("XXX     "+id+" "+(id != null ? id.hashCode() : "null")+"\n");
-                    }
+            Line line = mIncomingLineIdentifierToLineMap.get(lineIdentifier);
+            if (line == null && Log.isEnabled(Category.LINE, Level.DEBUG)) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("cannot find "+lineIdentifier+" ; candidates include:\n");
+                for (LineIdentifier id : mIncomingLineIdentifierToLineMap.keySet()) {
+                    sb.append("    "+id+" "+id.hashCode()+"\n");
                 }
+                Log.d(Category.LINE, "%s", sb);
             }
-            Log.i(sb.toString());
-
-            return mIncomingLineIdentifierToLineMap.get(lineIdentifier);
+            return line;
         }
         public void add(Line line) {
-            Log.i("tracking line: "+line);
+            Log.i(Category.LINE, "tracking line: %s", line);
             if (mNodeToLineMap.containsKey(line.getRemoteNode())) {
                 // put() would overwrite, but we must make sure to
                 // remove the entry from both maps.
@@ -59,7 +63,8 @@ public class LineManager {
             //Log.i(toString());
         }
         public void remove(Line line) {
-            Log.i("removing line: "+line+" // inc="+line.getIncomingLineIdentifier()+" out="+line.getOutgoingLineIdentifier()+" node="+line.getRemoteNode());
+            Log.i(Category.LINE, "removing line: %s // inc=%s out=%s",
+                    line, line.getIncomingLineIdentifier(), line.getOutgoingLineIdentifier());
             mHashNameToLineMap.remove(line.getRemoteNode().getHashName());
             mNodeToLineMap.remove(line.getRemoteNode());
             mIncomingLineIdentifierToLineMap.remove(line.getIncomingLineIdentifier());
@@ -68,6 +73,9 @@ public class LineManager {
         public Collection<Line> getLines() {
             return mNodeToLineMap.values();
         }
+        public int size() {
+            return mNodeToLineMap.size();
+        }
         // TODO: purge()
 
         @Override
@@ -105,18 +113,85 @@ public class LineManager {
     }
     private LineTracker mLineTracker = new LineTracker();
 
+    // pre-generated line key pairs, by cipher set.
+    private Map<CipherSetIdentifier,LineKeyPairPool> mLineKeyPairPools =
+            new HashMap<CipherSetIdentifier,LineKeyPairPool>();
+    private int mLineKeyPairPoolCapacity = LineKeyPairPool.DEFAULT_CAPACITY;
+    private int mLineKeyPairPoolLowWaterMark = LineKeyPairPool.DEFAULT_LOW_WATER_MARK;
+
     ////////////////////////////////////////////////////////////
 
     public LineManager(Telehash telehash) {
         mTelehash = telehash;
     }
 
+    /**
+     * Configure the pools of pre-generated line key pairs. This must be
+     * called before init().
+     *
+     * @param capacity The number of key pairs to hold for each cipher set,
+     *        or 0 to generate key pairs on demand.
+     * @param lowWaterMark The number of available key pairs at or below
+     *        which a pool is refilled.
+     */
+    public void setLineKeyPairPoolSize(int capacity, int lowWaterMark) {
+        mLineKeyPairPoolCapacity = capacity;
+        mLineKeyPairPoolLowWaterMark = lowWaterMark;
+    }
+
     public void init() {
+        if (mLineKeyPairPoolCapacity > 0) {
+            for (CipherSet cipherSet : mTelehash.getCrypto().getAllCipherSets()) {
+                LineKeyPairPool pool = new LineKeyPairPool(
+                        cipherSet,
+                        mLineKeyPairPoolCapacity,
+                        mLineKeyPairPoolLowWaterMark
+                );
+                pool.start();
+                mLineKeyPairPools.put(cipherSet.getCipherSetId(), pool);
+            }
+        }
+    }
 
+    public void close() {
+        for (LineKeyPairPool pool : mLineKeyPairPools.values()) {
+            pool.close();
+        }
+        mLineKeyPairPools.clear();
     }
 
-    public void dump() {
-        Log.i(mLineTracker.toString());
+    /**
+     * Return the line key pair pool for the specified cipher set, or null if
+     * key pairs for this cipher set are generated on demand.
+     */
+    public LineKeyPairPool getLineKeyPairPool(CipherSetIdentifier csid) {
+        return mLineKeyPairPools.get(csid);
+    }
+
+    /**
+     * Provide an outgoing open packet with a line key pair from the pool, if
+     * one exists for its cipher set. Otherwise, the key pair will be
+     * generated when the packet is pre-rendered.
+     */
+    private void assignLineKeyPair(OpenPacket openPacket) throws TelehashException {
+        LineKeyPairPool pool =
+                mLineKeyPairPools.get(openPacket.getCipherSet().getCipherSetId());
+        if (pool != null) {
+            openPacket.setLineKeyPair(pool.take());
+        }
+    }
+
+    /**
+     * Return the state of the tracked lines, for diagnostics.
+     */
+    public List<SwitchSnapshot.LineInfo> getLineSnapshots() {
+        Collection<Line> lines = mLineTracker.getLines();
+        List<SwitchSnapshot.LineInfo> snapshots =
+                new ArrayList<SwitchSnapshot.LineInfo>(lines.size());
+        for (Line line : lines) {
+            snapshots.add(line.getSnapshot());
+        }
+        return snapshots;
     }
 
     public void openChannel(
@@ -140,7 +215,7 @@ public class LineManager {
         openLine(destination, false, lineOpenCompletionHandler, null);
     }
 
-    public void sendLinePacket(
+    public boolean sendLinePacket(
             Line line,
             ChannelPacket channelPacket,
             CompletionHandler<Line> handler,
@@ -148,15 +223,24 @@ public class LineManager {
     ) throws TelehashException {
         // create a line packet
         LinePacket linePacket = new LinePacket(line, channelPacket);
-        mTelehash.getSwitch().sendPacket(linePacket);
+        return mTelehash.getSwitch().sendPacket(linePacket);
     }
 
-    private void calculateLineKeys(Line line, OpenPacket incomingOpen, OpenPacket outgoingOpen) {
-        // calculate ECDH
-        byte[] sharedSecret = line.getCipherSet().calculateECDHSharedSecret(
-                incomingOpen.getLinePublicKey(),
-                outgoingOpen.getLinePrivateKey()
-        );
+    private void calculateLineKeys(
+            Line line,
+            OpenPacket incomingOpen,
+            OpenPacket outgoingOpen,
+            byte[] sharedSecret
+    ) {
+        // calculate ECDH, unless it was already performed off the switch thread
+        if (sharedSecret == null) {
+            long start = System.nanoTime();
+            sharedSecret = line.getCipherSet().calculateECDHSharedSecret(
+                    incomingOpen.getLinePublicKey(),
+                    outgoingOpen.getLinePrivateKey()
+            );
+            mTelehash.getMetrics().getECDHTime().record(System.nanoTime() - start);
+        }
         line.setSharedSecret(sharedSecret);
         // The encryption key for a line is defined as the SHA 256 digest of
         // the ECDH shared secret (32 bytes) + outgoing line id (16 bytes) +
@@ -207,6 +291,11 @@ public class LineManager {
         return Line.sortByOpenTime(mLineTracker.getLines());
     }
 
+    /** Return the number of tracked lines. */
+    public int getLineCount() {
+        return mLineTracker.size();
+    }
+
     ////////////////////////////////////////////////////////////
     // line establishment and negotiation methods
     ////////////////////////////////////////////////////////////
@@ -217,7 +306,7 @@ public class LineManager {
             CompletionHandler<Line> handler,
             Object attachment
     ) {
-        Log.i("openLine destination="+destination+" reopen="+reopen);
+        Log.i(Category.LINE, "openLine destination=%s reopen=%s", destination, reopen);
 
         // NOTE: if this is called twice, the latter call supersedes the
         // previous line entry.  Perhaps instead we should throw an exception,
@@ -247,7 +336,7 @@ public class LineManager {
         // (it's an *incoming* line identifier, but will be provided in the *outgoing* open.)
         line.setIncomingLineIdentifier(LineIdentifier.generate());
 
-        Log.i("tracking line "+line+" due to openLine()");
+        Log.i(Category.LINE, "tracking line %s due to openLine()", line);
         mLineTracker.add(line);
 
         // Determine if this is a direct line open, or a reverse line open.
@@ -302,6 +391,7 @@ public class LineManager {
 
         // enqueue the packet to be sent
         try {
+            assignLineKeyPair(openPacket);
             mTelehash.getSwitch().sendPacket(line.getLocalOpenPacket());
         } catch (RuntimeException e) {
             mLineTracker.remove(line);
@@ -391,6 +481,22 @@ public class LineManager {
                             return;
                         }
 
+                        // a cached result may have gone stale, so forget it
+                        // if the line cannot be opened.
+                        if (task == null) {
+                            final HashName hashName = resultNode.getHashName();
+                            line.addOpenCompletionHandler(new CompletionHandler<Line>() {
+                                @Override
+                                public void completed(Line result, Object attachment) {
+                                }
+                                @Override
+                                public void failed(Throwable exc, Object attachment) {
+                                    mTelehash.getSwitch().getDHT().getNodeLookupManager()
+                                            .invalidate(hashName);
+                                }
+                            }, null);
+                        }
+
                         // replace the line's placeholder node with the lookup result
                         line.setRemoteNode(resultNode);
 
@@ -413,8 +519,28 @@ public class LineManager {
 
     /** intentionally package-private */
     void handleOpenPacket(OpenPacket incomingOpenPacket) throws TelehashException {
+        handleOpenPacket(incomingOpenPacket, null, null);
+    }
+
+    /**
+     * Handle an incoming open packet.
+     *
+     * @param incomingOpenPacket The open packet.
+     * @param replyKeyPair If not null, the line key pair to use should a reply
+     *        open packet be needed.
+     * @param replySharedSecret If not null, the ECDH shared secret already
+     *        calculated from the incoming open's line public key and the
+     *        private key of replyKeyPair.
+     * @throws TelehashException
+     */
+    /* intentionally package-private */
+    void handleOpenPacket(
+            OpenPacket incomingOpenPacket,
+            LineKeyPair replyKeyPair,
+            byte[] replySharedSecret
+    ) throws TelehashException {
 
-        Log.i("OPEN received from: "+incomingOpenPacket.getSourceNode());
+        Log.i(Category.LINE, "OPEN received from: %s", incomingOpenPacket.getSourceNode());
 
         // is there a pending line for this?
         PeerNode remoteNode = incomingOpenPacket.getSourceNode();
@@ -423,7 +549,15 @@ public class LineManager {
                 line.getOutgoingLineIdentifier() == null ||
                 line.getOutgoingLineIdentifier().equals(incomingOpenPacket.getLineIdentifier())
         )) {
-            // an existing line is present for this open.
+            // an existing line is present for this open, so no reply open
+            // is needed; return any key pair prepared for one.
+            if (replyKeyPair != null) {
+                LineKeyPairPool pool = mLineKeyPairPools.get(
+                        incomingOpenPacket.getCipherSet().getCipherSetId());
+                if (pool != null) {
+                    pool.restore(replyKeyPair);
+                }
+            }
 
             if (line.getState() == Line.State.ESTABLISHED) {
                 // this line is already established -- this open packet
@@ -433,9 +567,9 @@ public class LineManager {
 
             line.setRemoteOpenPacket(incomingOpenPacket);
             line.setOutgoingLineIdentifier(incomingOpenPacket.getLineIdentifier());
-            calculateLineKeys(line, incomingOpenPacket, line.getLocalOpenPacket());
+            calculateLineKeys(line, incomingOpenPacket, line.getLocalOpenPacket(), null);
             line.completeOpen();
-            Log.i("new line established for local initiator");
+            Log.i(Category.LINE, "new line established for local initiator");
         } else {
             // The remote node is initiating a line to us.  (Perhaps because we asked
             // for an introduction via peer/connect.)  Prepare a response open packet.
@@ -450,14 +584,14 @@ public class LineManager {
                 );
                 // note: this open packet is *outgoing* but its embedded line identifier
                 // is to be used for *incoming* line packets.
-                Log.i("\tmatches existing line: "+line);
-                Log.i("\topenPacket.lineid="+replyOpenPacket.getLineIdentifier());
+                Log.i(Category.LINE, "\tmatches existing line: %s", line);
+                Log.i(Category.LINE, "\topenPacket.lineid=%s", replyOpenPacket.getLineIdentifier());
                 line.setIncomingLineIdentifier(replyOpenPacket.getLineIdentifier());
                 line.setLocalOpenPacket(replyOpenPacket);
-                Log.i("\tline remote node was: "+line.getRemoteNode());
+                Log.i(Category.LINE, "\tline remote node was: %s", line.getRemoteNode());
                 line.setRemoteNode(incomingOpenPacket.getSourceNode());
-                Log.i("\tline remote node now: "+line.getRemoteNode());
-                Log.i("\tnew line established for remote initiator (reverse)");
+                Log.i(Category.LINE, "\tline remote node now: %s", line.getRemoteNode());
+                Log.i(Category.LINE, "\tnew line established for remote initiator (reverse)");
             } else {
                 // create a new open package and line.
                 LineIdentifier incomingLineIdentifier = LineIdentifier.generate();
@@ -472,11 +606,17 @@ public class LineManager {
                 line.setIncomingLineIdentifier(incomingLineIdentifier);
                 line.setLocalOpenPacket(replyOpenPacket);
                 mLineTracker.add(line);
-                Log.i("new line established for remote initiator");
+                Log.i(Category.LINE, "new line established for remote initiator");
             }
 
             // perform the "pre-render" stage so values such as the EC key pair
-            // have been generated.
+            // have been generated (or taken from the pool.)
+            if (replyKeyPair != null) {
+                replyOpenPacket.setLineKeyPair(replyKeyPair);
+            } else {
+                assignLineKeyPair(replyOpenPacket);
+                replySharedSecret = null;
+            }
             replyOpenPacket.preRender();
 
             // update the Line with information from the remote node's open packet.
@@ -486,7 +626,7 @@ public class LineManager {
             line.setOutgoingLineIdentifier(incomingOpenPacket.getLineIdentifier());
 
             // perform ECDH
-            calculateLineKeys(line, incomingOpenPacket, replyOpenPacket);
+            calculateLineKeys(line, incomingOpenPacket, replyOpenPacket, replySharedSecret);
 
             // TODO: discard open packets after line establishment?
 
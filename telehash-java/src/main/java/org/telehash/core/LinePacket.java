@@ -102,15 +102,19 @@ public class LinePacket extends Packet {
 
         if (splitPacket.headerLength != 0 ||
                 splitPacket.json != null ||
-                splitPacket.body == null ||
-                splitPacket.body.length < LineIdentifier.SIZE
+                splitPacket.buffer == null ||
+                splitPacket.bodyLength < LineIdentifier.SIZE
         ) {
             throw new TelehashException("invalid line packet format");
         }
 
         // extract the line id
         byte[] lineIdBytes = new byte[LineIdentifier.SIZE];
-        System.arraycopy(splitPacket.body, 0, lineIdBytes, 0, LineIdentifier.SIZE);
+        System.arraycopy(
+                splitPacket.buffer, splitPacket.bodyOffset,
+                lineIdBytes, 0,
+                LineIdentifier.SIZE
+        );
         LineIdentifier lineIdentifier = new LineIdentifier(lineIdBytes);
 
         // confirm that the line id is valid
@@ -119,13 +123,43 @@ public class LinePacket extends Packet {
             throw new TelehashException("unknown line id: "+lineIdentifier);
         }
 
-        // extract the inner packet
-        int innerPacketSize = splitPacket.body.length - LineIdentifier.SIZE;
-        byte[] innerPacket = new byte[innerPacketSize];
-        System.arraycopy(splitPacket.body, LineIdentifier.SIZE, innerPacket, 0, innerPacketSize);
+        return parse(telehash, line, splitPacket, path);
+    }
 
-        // cipherset processing of inner packet
-        byte[] channelPlaintext = line.getCipherSet().parseLineInnerPacket(line, innerPacket);
+    /**
+     * Parse a line packet whose line has already been determined.
+     *
+     * @param telehash The Telehash context.
+     * @param line The line identified by the packet.
+     * @param splitPacket The split packet.
+     * @param path The path from which this packet was received.
+     * @return The parsed line packet.
+     * @throws TelehashException
+     */
+    public static LinePacket parse(
+            Telehash telehash,
+            Line line,
+            SplitPacket splitPacket,
+            Path path
+    ) throws TelehashException {
+        if (splitPacket.headerLength != 0 ||
+                splitPacket.json != null ||
+                splitPacket.buffer == null ||
+                splitPacket.bodyLength < LineIdentifier.SIZE
+        ) {
+            throw new TelehashException("invalid line packet format");
+        }
+
+        // cipherset processing of the inner packet, which is decrypted in
+        // place from the received buffer.
+        long start = System.nanoTime();
+        byte[] channelPlaintext = line.getCipherSet().parseLineInnerPacket(
+                line,
+                splitPacket.buffer,
+                splitPacket.bodyOffset + LineIdentifier.SIZE,
+                splitPacket.bodyLength - LineIdentifier.SIZE
+        );
+        telehash.getMetrics().getLineDecryptTime().record(System.nanoTime() - start);
 
         // parse the embedded channel packet
         ChannelPacket channelPacket = ChannelPacket.parse(telehash, channelPlaintext, path);
@@ -1,13 +1,32 @@
 package org.telehash.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * Logging facility.
+ *
+ * <p>
+ * Each message belongs to a category and has a level, and is only
+ * formatted and dispatched if its level meets the threshold set for its
+ * category. Messages are format strings (see String.format()). The
+ * category methods accept up to three arguments without allocating a
+ * varargs array, so a disabled call on a hot path creates no garbage as
+ * long as its arguments already exist; callers whose arguments must be
+ * computed or boxed should guard the call with isEnabled().
+ * </p>
+ */
 public class Log {
 
     public enum Category {
-        UNKNOWN
+        UNKNOWN,
+        NETWORK,
+        LINE,
+        CHANNEL,
+        DHT,
+        CRYPTO
     };
 
     public enum Level {
@@ -22,23 +41,166 @@ public class Log {
     private static List<LogListener> sLogListeners = new ArrayList<LogListener>();
     private static boolean mInitialized = false;
 
+    /** The minimum enabled level ordinal of each category. */
+    private static volatile int[] sThresholds = new int[Category.values().length];
+
     private static ThreadLocal<LinkedList<LogEntry>> sBuffer =
             new ThreadLocal<LinkedList<LogEntry>>();
 
     public static void d(String msg, Object... args) {
-        println(Level.DEBUG, msg, args);
+        println(Category.UNKNOWN, Level.DEBUG, msg, args);
     }
     public static void v(String msg, Object... args) {
-        println(Level.VERBOSE, msg, args);
+        println(Category.UNKNOWN, Level.VERBOSE, msg, args);
     }
     public static void i(String msg, Object... args) {
-        println(Level.INFO, msg, args);
+        println(Category.UNKNOWN, Level.INFO, msg, args);
     }
     public static void w(String msg, Object... args) {
-        println(Level.WARNING, msg, args);
+        println(Category.UNKNOWN, Level.WARNING, msg, args);
     }
     public static void e(String msg, Object... args) {
-        println(Level.ERROR, msg, args);
+        println(Category.UNKNOWN, Level.ERROR, msg, args);
+    }
+
+    public static void d(Category category, String msg) {
+        if (isEnabled(category, Level.DEBUG)) {
+            println(category, Level.DEBUG, msg);
+        }
+    }
+    public static void d(Category category, String msg, Object arg1) {
+        if (isEnabled(category, Level.DEBUG)) {
+            println(category, Level.DEBUG, msg, arg1);
+        }
+    }
+    public static void d(Category category, String msg, Object arg1, Object arg2) {
+        if (isEnabled(category, Level.DEBUG)) {
+            println(category, Level.DEBUG, msg, arg1, arg2);
+        }
+    }
+    public static void d(Category category, String msg,
+            Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category, Level.DEBUG)) {
+            println(category, Level.DEBUG, msg, arg1, arg2, arg3);
+        }
+    }
+
+    public static void v(Category category, String msg) {
+        if (isEnabled(category, Level.VERBOSE)) {
+            println(category, Level.VERBOSE, msg);
+        }
+    }
+    public static void v(Category category, String msg, Object arg1) {
+        if (isEnabled(category, Level.VERBOSE)) {
+            println(category, Level.VERBOSE, msg, arg1);
+        }
+    }
+    public static void v(Category category, String msg, Object arg1, Object arg2) {
+        if (isEnabled(category, Level.VERBOSE)) {
+            println(category, Level.VERBOSE, msg, arg1, arg2);
+        }
+    }
+    public static void v(Category category, String msg,
+            Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category, Level.VERBOSE)) {
+            println(category, Level.VERBOSE, msg, arg1, arg2, arg3);
+        }
+    }
+
+    public static void i(Category category, String msg) {
+        if (isEnabled(category, Level.INFO)) {
+            println(category, Level.INFO, msg);
+        }
+    }
+    public static void i(Category category, String msg, Object arg1) {
+        if (isEnabled(category, Level.INFO)) {
+            println(category, Level.INFO, msg, arg1);
+        }
+    }
+    public static void i(Category category, String msg, Object arg1, Object arg2) {
+        if (isEnabled(category, Level.INFO)) {
+            println(category, Level.INFO, msg, arg1, arg2);
+        }
+    }
+    public static void i(Category category, String msg,
+            Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category, Level.INFO)) {
+            println(category, Level.INFO, msg, arg1, arg2, arg3);
+        }
+    }
+
+    public static void w(Category category, String msg) {
+        if (isEnabled(category, Level.WARNING)) {
+            println(category, Level.WARNING, msg);
+        }
+    }
+    public static void w(Category category, String msg, Object arg1) {
+        if (isEnabled(category, Level.WARNING)) {
+            println(category, Level.WARNING, msg, arg1);
+        }
+    }
+    public static void w(Category category, String msg, Object arg1, Object arg2) {
+        if (isEnabled(category, Level.WARNING)) {
+            println(category, Level.WARNING, msg, arg1, arg2);
+        }
+    }
+    public static void w(Category category, String msg,
+            Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category, Level.WARNING)) {
+            println(category, Level.WARNING, msg, arg1, arg2, arg3);
+        }
+    }
+
+    public static void e(Category category, String msg) {
+        if (isEnabled(category, Level.ERROR)) {
+            println(category, Level.ERROR, msg);
+        }
+    }
+    public static void e(Category category, String msg, Object arg1) {
+        if (isEnabled(category, Level.ERROR)) {
+            println(category, Level.ERROR, msg, arg1);
+        }
+    }
+    public static void e(Category category, String msg, Object arg1, Object arg2) {
+        if (isEnabled(category, Level.ERROR)) {
+            println(category, Level.ERROR, msg, arg1, arg2);
+        }
+    }
+    public static void e(Category category, String msg,
+            Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category, Level.ERROR)) {
+            println(category, Level.ERROR, msg, arg1, arg2, arg3);
+        }
+    }
+
+    /**
+     * Return true if messages of the specified category and level would be
+     * logged.
+     */
+    public static boolean isEnabled(Category category, Level level) {
+        return level.ordinal() >= sThresholds[category.ordinal()];
+    }
+
+    /**
+     * Set the minimum level logged for every category.
+     */
+    public static void setLevel(Level level) {
+        int[] thresholds = new int[Category.values().length];
+        Arrays.fill(thresholds, level.ordinal());
+        synchronized (sLock) {
+            sThresholds = thresholds;
+        }
+    }
+
+    /**
+     * Set the minimum level logged for a category.
+     */
+    public static void setLevel(Category category, Level level) {
+        synchronized (sLock) {
+            int[] thresholds = sThresholds.clone();
+            thresholds[category.ordinal()] = level.ordinal();
+            sThresholds = thresholds;
+        }
     }
 
     public static void setLogListener(LogListener logListener) {
@@ -47,14 +209,26 @@ public class Log {
     }
 
     public static void addLogListener(LogListener logListener) {
-        sLogListeners.add(logListener);
+        synchronized (sLock) {
+            sLogListeners.add(logListener);
+        }
+    }
+
+    public static void removeLogListener(LogListener logListener) {
+        synchronized (sLock) {
+            sLogListeners.remove(logListener);
+        }
     }
 
-    private static void println(Level level, String msg, Object... args) {
+    private static void println(Category category, Level level, String msg, Object... args) {
+        if (! isEnabled(category, level)) {
+            return;
+        }
+
         // first-call initialization
         if (mInitialized == false) {
             if (sLogListeners.isEmpty()) {
-                sLogListeners.add(new StandardLogger());
+                sLogListeners.add(AsyncLogger.createDefault());
             }
             mInitialized = true;
         }
@@ -64,12 +238,11 @@ public class Log {
         }
         String text = String.format(msg, args);
         LogEntry entry;
-        entry = new LogEntry(Category.UNKNOWN, level, text);
         if (args.length > 0 && (args[args.length-1] instanceof Throwable)) {
             Throwable throwable = (Throwable)args[args.length - 1];
-            entry = new LogEntry(Category.UNKNOWN, level, text, throwable);
+            entry = new LogEntry(category, level, text, throwable);
         } else {
-            entry = new LogEntry(Category.UNKNOWN, level, text);
+            entry = new LogEntry(category, level, text);
         }
 
         synchronized (sLock) {
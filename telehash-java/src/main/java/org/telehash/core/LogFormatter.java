@@ -0,0 +1,95 @@
+package org.telehash.core;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Render log entries as text lines, each prefixed with a timestamp and the
+ * short hashname of the node that logged it. This class is not
+ * thread-safe.
+ */
+/* intentionally package-private */
+class LogFormatter {
+
+    private static final String ESCAPE = new String(new char[] {0x1B});
+    private static final String COLOR_RESET = ESCAPE + "[39;49m";
+    private static final String COLOR_RED = ESCAPE + "[31m";
+    private static final String COLOR_GREEN = ESCAPE + "[32m";
+    private static final String COLOR_BLUE = ESCAPE + "[34m";
+    private static final String COLOR_MAGENTA = ESCAPE + "[35m";
+    private static final String COLOR_CYAN = ESCAPE + "[36m";
+    private static final String COLOR_YELLOW = ESCAPE + "[33m";
+    private static final String COLOR_RED_BOLD = ESCAPE + "[31;1m";
+    private static final String COLOR_GREEN_BOLD = ESCAPE + "[32;1m";
+    private static final String COLOR_BLUE_BOLD = ESCAPE + "[34;1m";
+    private static final String COLOR_MAGENTA_BOLD = ESCAPE + "[35;1m";
+    private static final String COLOR_CYAN_BOLD = ESCAPE + "[36;1m";
+    private static final String COLOR_YELLOW_BOLD = ESCAPE + "[33;1m";
+    private static final String COLORS[] = new String[] {
+        COLOR_RED, COLOR_GREEN, COLOR_BLUE, COLOR_MAGENTA, COLOR_CYAN, COLOR_YELLOW,
+        COLOR_RED_BOLD, COLOR_GREEN_BOLD, COLOR_BLUE_BOLD, COLOR_MAGENTA_BOLD, COLOR_CYAN_BOLD,
+        COLOR_YELLOW_BOLD
+    };
+
+    private final Map<HashName,String> mColorMap = new HashMap<HashName,String>();
+    private boolean mEnableColor = false;
+
+    public void setEnableColor(boolean enableColor) {
+        mEnableColor = enableColor;
+    }
+
+    /**
+     * Append the lines of the entry to the output.
+     */
+    public void format(LogEntry entry, StringBuilder output) {
+        LocalNode localNode = entry.getTelehash().getLocalNode();
+
+        String tag;
+        if (localNode == null) {
+            tag = "[        ] ";
+        } else {
+            byte[] hashName = localNode.getHashName().getBytes();
+            int a = hashName[0] & 0xFF;
+            int b = hashName[1] & 0xFF;
+            int c = hashName[2] & 0xFF;
+            int d = hashName[3] & 0xFF;
+            tag = String.format("[%02x%02x%02x%02x] ", a,b,c,d);
+        }
+
+        String timestamp = String.format("%07.3f", (entry.getTime()/1000000000.0f));
+        tag = timestamp + " " + tag;
+
+        String color;
+        String endColor;
+        if (mEnableColor && localNode != null) {
+            HashName hashName = localNode.getHashName();
+            color = mColorMap.get(hashName);
+            if (color == null) {
+                color = COLORS[Math.abs(hashName.hashCode()) % COLORS.length];
+                mColorMap.put(hashName, color);
+            }
+            endColor = COLOR_RESET;
+        } else {
+            color = "";
+            endColor = "";
+        }
+
+        String text = entry.getMessage();
+        for (String line : text.split("\n")) {
+            if (! line.isEmpty()) {
+                output.append(color+tag+line+endColor+"\n");
+            }
+        }
+
+        Throwable error = entry.getError();
+        if (error != null) {
+            StringWriter errors = new StringWriter();
+            error.printStackTrace(new PrintWriter(errors));
+            for (String line : errors.toString().split("\n")) {
+                output.append(color+tag+line+endColor+"\n");
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.telehash.json.JSONObject;
 import org.telehash.json.JSONStringer;
 import org.telehash.crypto.CipherSet;
 import org.telehash.crypto.HashNamePublicKey;
+import org.telehash.crypto.LineKeyPair;
 import org.telehash.crypto.LinePrivateKey;
 import org.telehash.crypto.LinePublicKey;
 import org.telehash.network.Path;
@@ -221,6 +222,17 @@ public class OpenPacket extends Packet {
         return mLinePrivateKey;
     }
 
+    /**
+     * Provide the line key pair for an outgoing open packet, so that one
+     * need not be generated when the packet is pre-rendered.
+     *
+     * @param keyPair The line key pair.
+     */
+    public void setLineKeyPair(LineKeyPair keyPair) {
+        mLinePublicKey = keyPair.getPublicKey();
+        mLinePrivateKey = keyPair.getPrivateKey();
+    }
+
     public CipherSet getCipherSet() {
         return mCipherSet;
     }
@@ -300,11 +312,13 @@ public class OpenPacket extends Packet {
         if (cipherSet == null) {
             throw new TelehashException("unsupported cipher set id");
         }
+        long start = System.nanoTime();
         OpenPacket openPacket = cipherSet.parseOpenPacket(
                 telehash,
                 splitPacket,
                 path
         );
+        telehash.getMetrics().getOpenParseTime().record(System.nanoTime() - start);
         return openPacket;
     }
 
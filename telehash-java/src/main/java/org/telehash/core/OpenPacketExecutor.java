@@ -0,0 +1,398 @@
+package org.telehash.core;
+
+import org.telehash.core.Log.Category;
+import org.telehash.crypto.CipherSet;
+import org.telehash.crypto.LineKeyPair;
+import org.telehash.crypto.impl.LineKeyPairPool;
+import org.telehash.network.Datagram;
+import org.telehash.network.Message;
+import org.telehash.network.Path;
+import org.telehash.network.Reactor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs the public-key cryptography of incoming open packets (RSA
+ * decryption and signature verification, and a speculative ECDH key
+ * agreement for the reply open) on a bounded pool of worker threads, so that
+ * a burst of opens does not stall established lines on the switch thread.
+ *
+ * <p>
+ * Results are posted back to the switch thread with Reactor.sendMessage(),
+ * where the line is established. To preserve ordering, the open packets of a
+ * single source are processed one at a time, in the order they were
+ * received, and datagrams arriving from a source while an open packet from
+ * that source is being processed are held back, and handed to the switch
+ * after the open. The number of datagrams held back is bounded, both for
+ * each source and in total; further datagrams are dropped.
+ * </p>
+ */
+public class OpenPacketExecutor {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int MAXIMUM_DEFERRED_PER_SOURCE = 64;
+    public static final int MAXIMUM_DEFERRED = 1024;
+
+    private static final long SHUTDOWN_TIMEOUT = 1000;
+
+    /**
+     * The result of processing an open packet, posted to the switch thread.
+     */
+    /* intentionally package-private */
+    static class CompletedOpen extends Message {
+        final Path source;
+        final OpenPacket packet;
+        final LineKeyPair replyKeyPair;
+        final byte[] replySharedSecret;
+        final long postTime;
+        CompletedOpen(
+                Path source,
+                OpenPacket packet,
+                LineKeyPair replyKeyPair,
+                byte[] replySharedSecret
+        ) {
+            this.source = source;
+            this.packet = packet;
+            this.replyKeyPair = replyKeyPair;
+            this.replySharedSecret = replySharedSecret;
+            this.postTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * An open packet awaiting a worker thread.
+     */
+    private static class QueuedOpen {
+        final byte[] bytes;
+        final long submitTime;
+        QueuedOpen(byte[] bytes, long submitTime) {
+            this.bytes = bytes;
+            this.submitTime = submitTime;
+        }
+    }
+
+    /**
+     * The open packets of a single source which have not yet been handled
+     * by the switch, and the datagrams deferred behind them. Guarded by the
+     * OpenPacketExecutor.
+     */
+    private static class SourceQueue {
+        final LinkedList<QueuedOpen> opens = new LinkedList<QueuedOpen>();
+        final List<Datagram> deferred = new ArrayList<Datagram>();
+        // the number of open packets submitted and not yet completed.
+        int pending = 0;
+        // true if a worker is draining this source's opens.
+        boolean scheduled = false;
+    }
+
+    private final Telehash mTelehash;
+    private final Reactor mReactor;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mQueueCapacity;
+    private final OpenPacketStatistics mStatistics = new OpenPacketStatistics();
+
+    // guarded by "this".
+    private final Map<Path,SourceQueue> mSources = new HashMap<Path,SourceQueue>();
+    private int mQueuedOpens = 0;
+    private int mDeferredDatagrams = 0;
+
+    /**
+     * Construct a new OpenPacketExecutor.
+     *
+     * @param telehash The Telehash context.
+     * @param reactor The reactor used to post results to the switch thread.
+     * @param threads The number of worker threads.
+     * @param queueCapacity The maximum number of open packets awaiting a
+     *        worker thread; further open packets are dropped.
+     */
+    public OpenPacketExecutor(
+            final Telehash telehash,
+            Reactor reactor,
+            int threads,
+            int queueCapacity
+    ) {
+        mTelehash = telehash;
+        mReactor = reactor;
+        mQueueCapacity = queueCapacity;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger();
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        telehash.setThreadLocal();
+                        runnable.run();
+                    }
+                }, "telehash-open-crypto-"+mThreadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // the executor's queue holds at most one task per source, so it need
+        // not be bounded; the number of queued open packets is.
+        mExecutor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                threadFactory
+        );
+    }
+
+    public OpenPacketStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Submit an open packet datagram for processing. The datagram contents
+     * are copied, so the caller may release its buffer on return.
+     *
+     * @param datagram The datagram containing the open packet.
+     * @return True if the packet was queued, or false if it was dropped
+     *         because the queue is full.
+     */
+    public boolean submit(Datagram datagram) {
+        final Path source = datagram.getSource();
+        QueuedOpen open = new QueuedOpen(copy(datagram), System.nanoTime());
+        final SourceQueue queue;
+        boolean schedule;
+        synchronized (this) {
+            if (mQueuedOpens >= mQueueCapacity) {
+                queue = null;
+                schedule = false;
+            } else {
+                SourceQueue existing = mSources.get(source);
+                if (existing == null) {
+                    existing = new SourceQueue();
+                    mSources.put(source, existing);
+                }
+                queue = existing;
+                queue.opens.add(open);
+                queue.pending++;
+                mQueuedOpens++;
+                schedule = ! queue.scheduled;
+                queue.scheduled = true;
+            }
+        }
+        if (queue == null) {
+            Log.w(Category.LINE, "open packet queue full; dropping open from %s", source);
+            mStatistics.recordRejected();
+            return false;
+        }
+        if (! schedule) {
+            mStatistics.recordSubmitted();
+            return true;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(source, queue);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor has been closed, so forget the source's queued
+            // opens, and stop holding back its datagrams.
+            synchronized (this) {
+                int count = queue.opens.size();
+                mQueuedOpens -= count;
+                queue.pending -= count;
+                queue.opens.clear();
+                queue.scheduled = false;
+                if (queue.pending <= 0 && mSources.get(source) == queue) {
+                    mSources.remove(source);
+                    mDeferredDatagrams -= queue.deferred.size();
+                }
+            }
+            Log.w(Category.LINE, "open packet executor closed; dropping open from %s", source);
+            mStatistics.recordRejected();
+            return false;
+        }
+        mStatistics.recordSubmitted();
+        return true;
+    }
+
+    /**
+     * If an open packet from the datagram's source is being processed, hold
+     * back the datagram (copying its contents) until the open has been
+     * handled by the switch. If too many datagrams are already held back,
+     * the datagram is dropped instead.
+     *
+     * @param datagram The incoming datagram.
+     * @return True if the datagram was deferred or dropped.
+     */
+    public boolean deferIfPending(Datagram datagram) {
+        Path source = datagram.getSource();
+        synchronized (this) {
+            SourceQueue queue = mSources.get(source);
+            if (queue == null) {
+                return false;
+            }
+            if (queue.deferred.size() >= MAXIMUM_DEFERRED_PER_SOURCE ||
+                    mDeferredDatagrams >= MAXIMUM_DEFERRED) {
+                mStatistics.recordDroppedDeferredDatagram();
+                return true;
+            }
+            queue.deferred.add(new Datagram(copy(datagram), source, datagram.getDestination()));
+            mDeferredDatagrams++;
+        }
+        mStatistics.recordDeferredDatagram();
+        return true;
+    }
+
+    /**
+     * Establish the line for a completed open packet. This must be called on
+     * the switch thread.
+     *
+     * @param completed The completed open.
+     * @return Any datagrams deferred behind this open packet, which the
+     *         caller must now dispatch in order, or null if there are none.
+     */
+    /* intentionally package-private */
+    List<Datagram> complete(CompletedOpen completed) {
+        long start = System.nanoTime();
+        mStatistics.recordStage(OpenPacketStatistics.Stage.HANDOFF, start - completed.postTime);
+        if (completed.packet != null) {
+            try {
+                mTelehash.getSwitch().getLineManager().handleOpenPacket(
+                        completed.packet,
+                        completed.replyKeyPair,
+                        completed.replySharedSecret
+                );
+            } catch (TelehashException e) {
+                Log.i(Category.LINE, "error handling incoming open packet: %s", e);
+            }
+            mStatistics.recordStage(
+                    OpenPacketStatistics.Stage.COMPLETE,
+                    System.nanoTime() - start
+            );
+        }
+
+        synchronized (this) {
+            SourceQueue queue = mSources.get(completed.source);
+            if (queue == null) {
+                return null;
+            }
+            queue.pending--;
+            if (queue.pending > 0) {
+                return null;
+            }
+            mSources.remove(completed.source);
+            mDeferredDatagrams -= queue.deferred.size();
+            return queue.deferred.isEmpty() ? null : queue.deferred;
+        }
+    }
+
+    /**
+     * Stop the worker threads, discarding any queued open packets.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Process the queued open packets of a source in order, posting each
+     * result before starting on the next.
+     */
+    private void drain(Path source, SourceQueue queue) {
+        while (true) {
+            QueuedOpen open;
+            synchronized (this) {
+                open = queue.opens.poll();
+                if (open == null) {
+                    queue.scheduled = false;
+                    return;
+                }
+                mQueuedOpens--;
+            }
+            process(open.bytes, source, open.submitTime);
+        }
+    }
+
+    private void process(byte[] bytes, Path source, long submitTime) {
+        long start = System.nanoTime();
+        mStatistics.recordStage(OpenPacketStatistics.Stage.QUEUE, start - submitTime);
+
+        OpenPacket openPacket = null;
+        LineKeyPairPool pool = null;
+        LineKeyPair replyKeyPair = null;
+        byte[] replySharedSecret = null;
+        try {
+            // parse, decrypt, and verify
+            Packet packet = Packet.parse(mTelehash, bytes, 0, bytes.length, source);
+            if (packet instanceof OpenPacket) {
+                openPacket = (OpenPacket)packet;
+            }
+            long parsed = System.nanoTime();
+            mStatistics.recordStage(OpenPacketStatistics.Stage.PARSE, parsed - start);
+
+            // most opens are answered with a reply open, so prepare its line
+            // key pair and perform ECDH now. (if the open turns out to be a
+            // reply to our own open, the switch returns the unused key pair
+            // to its pool.)
+            if (openPacket != null) {
+                CipherSet cipherSet = openPacket.getCipherSet();
+                pool = mTelehash.getSwitch().getLineManager()
+                        .getLineKeyPairPool(cipherSet.getCipherSetId());
+                replyKeyPair =
+                        (pool != null) ? pool.take() : cipherSet.generateLineKeyPair();
+                long ecdhStart = System.nanoTime();
+                replySharedSecret = cipherSet.calculateECDHSharedSecret(
+                        openPacket.getLinePublicKey(),
+                        replyKeyPair.getPrivateKey()
+                );
+                mTelehash.getMetrics().getECDHTime().record(System.nanoTime() - ecdhStart);
+                mStatistics.recordStage(
+                        OpenPacketStatistics.Stage.ECDH,
+                        System.nanoTime() - parsed
+                );
+            }
+        } catch (TelehashException e) {
+            Log.w(Category.LINE, "open packet processing failed", e);
+            mStatistics.recordFailed();
+            mTelehash.getMetrics().getParseFailures().increment();
+            openPacket = null;
+        } catch (RuntimeException e) {
+            Log.w(Category.LINE, "open packet processing failed", e);
+            mStatistics.recordFailed();
+            mTelehash.getMetrics().getParseFailures().increment();
+            openPacket = null;
+        }
+
+        if (openPacket == null && replyKeyPair != null) {
+            if (pool != null) {
+                pool.restore(replyKeyPair);
+            }
+            replyKeyPair = null;
+            replySharedSecret = null;
+        }
+
+        mReactor.sendMessage(
+                new CompletedOpen(source, openPacket, replyKeyPair, replySharedSecret)
+        );
+    }
+
+    private static byte[] copy(Datagram datagram) {
+        byte[] bytes = new byte[datagram.getLength()];
+        System.arraycopy(datagram.getBytes(), datagram.getOffset(), bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,156 @@
+package org.telehash.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and per-stage latencies maintained by an OpenPacketExecutor.
+ * All methods may be called from any thread.
+ */
+public class OpenPacketStatistics {
+
+    /**
+     * The stages through which an incoming open packet passes.
+     */
+    public enum Stage {
+        /** Waiting in the executor queue for a worker thread. */
+        QUEUE,
+        /** Parsing, decrypting, and verifying the open packet. */
+        PARSE,
+        /** Obtaining a line key pair and performing ECDH. */
+        ECDH,
+        /** Waiting for the switch thread to accept the result. */
+        HANDOFF,
+        /** Establishing the line on the switch thread. */
+        COMPLETE
+    };
+
+    /**
+     * Latency totals for a single stage.
+     */
+    public static class StageStatistics {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanoseconds = new AtomicLong();
+        private final AtomicLong mMaximumNanoseconds = new AtomicLong();
+
+        void record(long nanoseconds) {
+            mCount.incrementAndGet();
+            mTotalNanoseconds.addAndGet(nanoseconds);
+            long maximum;
+            while (nanoseconds > (maximum = mMaximumNanoseconds.get())) {
+                if (mMaximumNanoseconds.compareAndSet(maximum, nanoseconds)) {
+                    break;
+                }
+            }
+        }
+
+        /** The number of packets which completed this stage. */
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /** The mean time spent in this stage, in nanoseconds. */
+        public long getMeanNanoseconds() {
+            long count = mCount.get();
+            return (count == 0) ? 0 : mTotalNanoseconds.get() / count;
+        }
+
+        /** The maximum time spent in this stage, in nanoseconds. */
+        public long getMaximumNanoseconds() {
+            return mMaximumNanoseconds.get();
+        }
+
+        @Override
+        public String toString() {
+            return "n="+getCount()+
+                    " mean="+(getMeanNanoseconds()/1000)+"us"+
+                    " max="+(getMaximumNanoseconds()/1000)+"us";
+        }
+    }
+
+    private final StageStatistics[] mStages = new StageStatistics[Stage.values().length];
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mDeferredDatagrams = new AtomicLong();
+    private final AtomicLong mDroppedDeferredDatagrams = new AtomicLong();
+
+    public OpenPacketStatistics() {
+        for (int i=0; i<mStages.length; i++) {
+            mStages[i] = new StageStatistics();
+        }
+    }
+
+    void recordStage(Stage stage, long nanoseconds) {
+        mStages[stage.ordinal()].record(nanoseconds);
+    }
+
+    void recordSubmitted() {
+        mSubmitted.incrementAndGet();
+    }
+
+    void recordRejected() {
+        mRejected.incrementAndGet();
+    }
+
+    void recordFailed() {
+        mFailed.incrementAndGet();
+    }
+
+    void recordDeferredDatagram() {
+        mDeferredDatagrams.incrementAndGet();
+    }
+
+    void recordDroppedDeferredDatagram() {
+        mDroppedDeferredDatagrams.incrementAndGet();
+    }
+
+    /** Return the latency totals for the specified stage. */
+    public StageStatistics getStage(Stage stage) {
+        return mStages[stage.ordinal()];
+    }
+
+    /** The number of open packets accepted by the executor. */
+    public long getSubmitted() {
+        return mSubmitted.get();
+    }
+
+    /** The number of open packets dropped because the executor queue was full. */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /** The number of open packets which failed to parse or verify. */
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    /**
+     * The number of datagrams held back until an open packet from the same
+     * source had been processed.
+     */
+    public long getDeferredDatagrams() {
+        return mDeferredDatagrams.get();
+    }
+
+    /**
+     * The number of datagrams dropped because too many datagrams were
+     * already held back behind open packets.
+     */
+    public long getDroppedDeferredDatagrams() {
+        return mDroppedDeferredDatagrams.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("submitted="+getSubmitted()+
+                " rejected="+getRejected()+
+                " failed="+getFailed()+
+                " deferred="+getDeferredDatagrams()+
+                " deferredDropped="+getDroppedDeferredDatagrams());
+        for (Stage stage : Stage.values()) {
+            sb.append(" "+stage.name().toLowerCase()+"=["+getStage(stage)+"]");
+        }
+        return sb.toString();
+    }
+}
@@ -25,17 +25,45 @@ public abstract class Packet {
     protected PeerNode mSourceNode;
     protected PeerNode mDestinationNode;
 
+    /**
+     * A packet split into its header and body. The body is not copied out
+     * of the original buffer, but is described by the buffer, bodyOffset,
+     * and bodyLength fields.
+     */
     public static final class SplitPacket {
         public SplitPacket(int headerLength, short singleByteHeader, JSONObject json, byte[] body) {
+            this(headerLength, singleByteHeader, json, body, 0, body.length);
+        }
+        public SplitPacket(
+                int headerLength,
+                short singleByteHeader,
+                JSONObject json,
+                byte[] buffer,
+                int bodyOffset,
+                int bodyLength
+        ) {
             this.headerLength = headerLength;
             this.singleByteHeader = singleByteHeader;
             this.json = json;
-            this.body = body;
+            this.buffer = buffer;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
         }
         public int headerLength;
         public short singleByteHeader;
         public JSONObject json;
-        public byte[] body;
+        public byte[] buffer;
+        public int bodyOffset;
+        public int bodyLength;
+
+        /**
+         * Return a copy of the packet body.
+         */
+        public byte[] getBody() {
+            byte[] body = new byte[bodyLength];
+            System.arraycopy(buffer, bodyOffset, body, 0, bodyLength);
+            return body;
+        }
     }
 
     public void setSourceNode(PeerNode sourceNode) {
@@ -75,9 +103,32 @@ public abstract class Packet {
             Telehash telehash,
             byte[] buffer,
             Path sourcePath
+    ) throws TelehashException {
+        return parse(telehash, buffer, 0, buffer.length, sourcePath);
+    }
+
+    /**
+     * Parse the specified region of the provided byte buffer into a packet
+     * object. The buffer region is not copied; the packet (or the channel
+     * plaintext, in the case of line packets) is decoded directly from it.
+     *
+     * @param telehash The Telehash context.
+     * @param buffer The buffer to parse.
+     * @param offset The offset of the packet within the buffer.
+     * @param length The length of the packet.
+     * @param sourcePath The path from which this packet was received.
+     * @return The parsed packet, or null if a null packet was received.
+     * @throws TelehashException
+     */
+    public static Packet parse(
+            Telehash telehash,
+            byte[] buffer,
+            int offset,
+            int length,
+            Path sourcePath
     ) throws TelehashException {
         // split the packet into the JSON header and the body.
-        SplitPacket splitPacket = splitPacket(buffer);
+        SplitPacket splitPacket = splitPacket(buffer, offset, length);
         if (splitPacket == null) {
             // null packet received
             return null;
@@ -115,16 +166,67 @@ public abstract class Packet {
         }
     }
 
+    /**
+     * Determine whether the specified buffer region holds an open packet,
+     * by examining only the outer header length.
+     *
+     * @param buffer The buffer.
+     * @param offset The offset of the packet within the buffer.
+     * @param length The length of the packet.
+     * @return True if the region holds an open packet.
+     */
+    public static boolean isOpenPacket(byte[] buffer, int offset, int length) {
+        if (length <= MINIMUM_PACKET_LENGTH) {
+            return false;
+        }
+        int headerLength = ((buffer[offset]&0xFF)<<8) | (buffer[offset+1]&0xFF);
+        return headerLength == OPEN_HEADER_LENGTH;
+    }
+
+    /**
+     * If the specified buffer region holds a line packet, return its line
+     * identifier. Nothing is decrypted.
+     *
+     * @param buffer The buffer.
+     * @param offset The offset of the packet within the buffer.
+     * @param length The length of the packet.
+     * @return The line identifier, or null if the region does not hold a
+     *         line packet.
+     */
+    public static LineIdentifier getLineIdentifier(byte[] buffer, int offset, int length) {
+        if (length < LENGTH_PREFIX_SIZE + LineIdentifier.SIZE) {
+            return null;
+        }
+        int headerLength = ((buffer[offset]&0xFF)<<8) | (buffer[offset+1]&0xFF);
+        if (headerLength != LINE_HEADER_LENGTH) {
+            return null;
+        }
+        byte[] lineIdBytes = new byte[LineIdentifier.SIZE];
+        System.arraycopy(buffer, offset+LENGTH_PREFIX_SIZE, lineIdBytes, 0, LineIdentifier.SIZE);
+        return new LineIdentifier(lineIdBytes);
+    }
+
     public static SplitPacket splitPacket(byte[] buffer) throws TelehashException {
-        if (buffer.length <= MINIMUM_PACKET_LENGTH) {
+        return splitPacket(buffer, 0, buffer.length);
+    }
+
+    public static SplitPacket splitPacket(
+            byte[] buffer,
+            int offset,
+            int length
+    ) throws TelehashException {
+        if (length <= MINIMUM_PACKET_LENGTH) {
             // this can happen if we receive "null" packets
             return null;
         }
 
-        int headerLength = ((buffer[0]&0xFF)<<8) | (buffer[1]&0xFF);
+        int headerLength = ((buffer[offset]&0xFF)<<8) | (buffer[offset+1]&0xFF);
         if (headerLength < MINIMUM_HEADER_LENGTH || headerLength > MAXIMUM_HEADER_LENGTH) {
             throw new TelehashException("invalid json length");
         }
+        if (HEADER_START_POSITION + headerLength > length) {
+            throw new TelehashException("header length exceeds packet length");
+        }
 
         JSONObject json;
         short singleByteHeader;
@@ -133,12 +235,12 @@ public abstract class Packet {
             singleByteHeader = 0x00;
         } else if (headerLength == 1) {
             json = null;
-            singleByteHeader = buffer[HEADER_START_POSITION];
+            singleByteHeader = buffer[offset+HEADER_START_POSITION];
         } else {
             singleByteHeader = 0x00;
             try {
                 json = new JSONObject(
-                        new String(buffer, HEADER_START_POSITION, headerLength, "UTF-8")
+                        new String(buffer, offset+HEADER_START_POSITION, headerLength, "UTF-8")
                 );
             } catch (JSONException e) {
                 throw new TelehashException(e);
@@ -147,11 +249,12 @@ public abstract class Packet {
             }
         }
 
-        int bodyLength = buffer.length - headerLength - HEADER_START_POSITION;
-        byte[] body = new byte[bodyLength];
-        System.arraycopy(buffer, HEADER_START_POSITION+headerLength, body, 0, bodyLength);
+        int bodyOffset = offset + HEADER_START_POSITION + headerLength;
+        int bodyLength = length - headerLength - HEADER_START_POSITION;
 
-        return new SplitPacket(headerLength, singleByteHeader, json, body);
+        return new SplitPacket(
+                headerLength, singleByteHeader, json, buffer, bodyOffset, bodyLength
+        );
     }
 
     protected static final void assertNotNull(Object o) throws TelehashException {
@@ -1,72 +1,173 @@
 package org.telehash.core;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.metrics.Histogram;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The scheduler runs tasks after a specified delay. It is implemented as a
+ * hashed hierarchical timing wheel with a resolution of one millisecond:
+ * adding, removing, and rescheduling a task are constant-time operations,
+ * and running the due tasks touches only those tasks (and the occasional
+ * cascade of a higher-level wheel slot).
+ *
+ * <p>
+ * The lowest wheel holds tasks due within the next 256 ticks, one slot per
+ * tick. Each higher wheel covers 256 times the range of the one below it,
+ * and its slots are "cascaded" (re-inserted into the lower wheels) as time
+ * reaches them. Four wheels cover about 49 days; tasks scheduled further in
+ * the future are parked in the highest wheel and re-inserted as needed.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe; it is driven by the switch thread.
+ * </p>
+ */
 public class Scheduler {
 
     private static final int NANOSECONDS_IN_MILLISECOND = 1000000;
 
-    public static class Task implements Comparable<Task> {
+    private static final long TICK_NANOSECONDS = NANOSECONDS_IN_MILLISECOND;
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_COUNT = 4;
+    private static final int BITMAP_WORDS = WHEEL_SIZE / 64;
+    private static final long MAXIMUM_TICK_DELTA = (1L << (WHEEL_BITS * WHEEL_COUNT)) - 1;
+
+    public static class Task {
         private Runnable mRunnable;
         private long mTime;
+        private long mTick;
+        private Task mPrevious;
+        private Task mNext;
+        private TaskList mList;
 
         public Task(Runnable runnable, long time) {
             mRunnable = runnable;
             mTime = time;
         }
 
+        /**
+         * Return true if this task is currently scheduled to run.
+         */
+        public boolean isScheduled() {
+            return mList != null;
+        }
+
         @Override
         public String toString() {
             return "Task["+mRunnable.hashCode()+"/"+mTime+"]";
         }
+    }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((mRunnable == null) ? 0 : mRunnable.hashCode());
-            result = prime * result + (int) (mTime ^ (mTime >>> 32));
-            return result;
+    /**
+     * A doubly-linked list of tasks occupying one wheel slot.
+     */
+    private static final class TaskList {
+        private Task mHead;
+        private Task mTail;
+        private int mWheel;
+        private int mSlot;
+
+        TaskList(int wheel, int slot) {
+            mWheel = wheel;
+            mSlot = slot;
         }
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Task other = (Task) obj;
-            if (mRunnable == null) {
-                if (other.mRunnable != null)
-                    return false;
-            } else if (!mRunnable.equals(other.mRunnable))
-                return false;
-            if (mTime != other.mTime)
-                return false;
-            return true;
+
+        boolean isEmpty() {
+            return mHead == null;
         }
 
-        @Override
-        public int compareTo(Task other) {
-            if (mTime < other.mTime) {
-                return -1;
-            } else if (mTime > other.mTime) {
-                return +1;
-            } else if (mRunnable.hashCode() < other.mRunnable.hashCode()) {
-                return -1;
-            } else if (mRunnable.hashCode() > other.mRunnable.hashCode()) {
-                return +1;
+        void append(Task task) {
+            task.mList = this;
+            task.mNext = null;
+            task.mPrevious = mTail;
+            if (mTail == null) {
+                mHead = task;
             } else {
-                return 0;
+                mTail.mNext = task;
+            }
+            mTail = task;
+        }
+
+        void unlink(Task task) {
+            if (task.mPrevious == null) {
+                mHead = task.mNext;
+            } else {
+                task.mPrevious.mNext = task.mNext;
+            }
+            if (task.mNext == null) {
+                mTail = task.mPrevious;
+            } else {
+                task.mNext.mPrevious = task.mPrevious;
+            }
+            task.mPrevious = null;
+            task.mNext = null;
+            task.mList = null;
+        }
+    }
+
+    private final TaskList[][] mWheels = new TaskList[WHEEL_COUNT][WHEEL_SIZE];
+    private final long[][] mOccupied = new long[WHEEL_COUNT][BITMAP_WORDS];
+    /** An empty list which is swapped into a wheel slot when its tasks are detached. */
+    private TaskList mSpareList = new TaskList(-1, -1);
+    private final long mOrigin;
+    /** The next tick to be processed; all earlier ticks have been run. */
+    private long mCurrentTick;
+    private int mSize = 0;
+    private final Clock mClock;
+    private Histogram mLagHistogram;
+
+    public Scheduler() {
+        this(new SystemClock());
+    }
+
+    /**
+     * Construct a new Scheduler.
+     *
+     * @param clock The clock used for task deadlines.
+     */
+    public Scheduler(Clock clock) {
+        mClock = clock;
+        for (int wheel=0; wheel<WHEEL_COUNT; wheel++) {
+            for (int slot=0; slot<WHEEL_SIZE; slot++) {
+                mWheels[wheel][slot] = new TaskList(wheel, slot);
             }
         }
+        mOrigin = now();
+        mCurrentTick = 0;
+    }
+
+    /**
+     * Set the histogram in which to record how late each task runs relative
+     * to its deadline, in nanoseconds.
+     *
+     * @param histogram The histogram, or null to not record.
+     */
+    public void setLagHistogram(Histogram histogram) {
+        mLagHistogram = histogram;
+    }
+
+    /**
+     * Return the current time in nanoseconds, as used for task deadlines.
+     */
+    protected long now() {
+        return mClock.nanoTime();
+    }
+
+    /**
+     * Return the scheduler's notion of the current time, in nanoseconds.
+     * This is only meaningful relative to other values returned by this
+     * method.
+     */
+    public long getTime() {
+        return now();
     }
-    private SortedSet<Task> mTasks = new TreeSet<Task>();
 
     /**
      * Schedule a new task to be executed after a delay.
@@ -74,8 +175,8 @@ public class Scheduler {
      * @param delay The delay in milliseconds.
      */
     public Task addTask(Runnable runnable, long delay) {
-        Task task = new Task(runnable, System.nanoTime() + delay*NANOSECONDS_IN_MILLISECOND);
-        mTasks.add(task);
+        Task task = new Task(runnable, now() + delay*NANOSECONDS_IN_MILLISECOND);
+        schedule(task);
         return task;
     }
 
@@ -85,11 +186,14 @@ public class Scheduler {
      * @param task
      */
     public void removeTask(Task task) {
-        mTasks.remove(task);
+        if (task.mList != null) {
+            unlink(task);
+        }
     }
 
     /**
-     * Updated an existing task to use a new delay and/or runnable.
+     * Updated an existing task to use a new delay and/or runnable. If the
+     * task has already run or been removed, it is scheduled again.
      *
      * @param runnable
      *            The runnable to run at the specified time, or null if the
@@ -99,42 +203,70 @@ public class Scheduler {
      *            updated.
      */
     public void updateTask(Task task, Runnable runnable, long delay) {
-        mTasks.remove(task);
+        if (task.mList != null) {
+            unlink(task);
+        }
         if (runnable != null) {
             task.mRunnable = runnable;
         }
         if (delay != -1) {
-            task.mTime = System.nanoTime() + delay*NANOSECONDS_IN_MILLISECOND;
+            task.mTime = now() + delay*NANOSECONDS_IN_MILLISECOND;
         }
-        mTasks.add(task);
+        schedule(task);
+    }
+
+    /**
+     * Return the number of scheduled tasks.
+     */
+    public int size() {
+        return mSize;
     }
 
     /**
-     * Run all tasks that are ready for execution.
+     * Run all tasks that are ready for execution. A task scheduled by a
+     * running task is placed no earlier than the tick after the one being
+     * run, so it is still run by this call if that tick is already due.
      */
     public void runTasks() {
-        long time = System.nanoTime();
-
-        // iterate over a copy of the task list, since otherwise
-        // the called runnable may add a task and cause us to
-        // receive a ConcurrentModificationException.
-        //
-        // TODO: adding all the tasks into a separate sorted tree is a lot
-        // of work to do for every iteration of the switch's select loop.
-        // find a better way.
-        Set<Task> tasks = new TreeSet<Task>(mTasks);
-
-        Iterator<Task> iterator = tasks.iterator();
-        Set<Task> removalSet = new HashSet<Task>();
-        while (iterator.hasNext()) {
-            Task task = iterator.next();
-            if (task.mTime > time) {
+        long now = now();
+        long nowTick = (now - mOrigin) / TICK_NANOSECONDS;
+        Histogram lagHistogram = mLagHistogram;
+
+        while (mCurrentTick <= nowTick) {
+            long tick = mCurrentTick;
+            if ((tick & WHEEL_MASK) == 0) {
+                cascade(tick);
+            }
+
+            // find the next occupied slot in the current rotation of the
+            // lowest wheel, skipping over empty ticks.
+            int slot = nextOccupiedSlot(0, (int)(tick & WHEEL_MASK));
+            if (slot < 0) {
+                // nothing more in this rotation
+                mCurrentTick = Math.min(nowTick + 1, (tick | WHEEL_MASK) + 1);
+                continue;
+            }
+            long dueTick = (tick & ~WHEEL_MASK) | slot;
+            if (dueTick > nowTick) {
+                mCurrentTick = nowTick + 1;
                 break;
             }
-            task.mRunnable.run();
-            removalSet.add(task);
+
+            // detach the slot's tasks and advance time before running them,
+            // so tasks scheduled by the runnables land in a later slot.
+            TaskList due = detachSlot(0, slot);
+            mCurrentTick = dueTick + 1;
+            Task task;
+            while ((task = due.mHead) != null) {
+                due.unlink(task);
+                mSize--;
+                if (lagHistogram != null) {
+                    lagHistogram.record(now - task.mTime);
+                }
+                task.mRunnable.run();
+            }
+            mSpareList = due;
         }
-        mTasks.removeAll(removalSet);
     }
 
     /**
@@ -142,24 +274,204 @@ public class Scheduler {
      * 0 if no upcoming tasks are scheduled, or -1 if tasks are ready
      * for immediate execution.
      *
+     * The returned delay may be shorter than the true delay when the next
+     * task is in a higher-level wheel, in which case the caller will simply
+     * wake early, cascade the wheel, and wait again.
+     *
      * @return
      */
     public long getNextTaskTime() {
-        if (mTasks.isEmpty()) {
+        if (mSize == 0) {
             return 0;
         }
-        long nextTaskTime = (mTasks.first().mTime - System.nanoTime())/NANOSECONDS_IN_MILLISECOND;
-        if (nextTaskTime <= 0) {
+        long remaining = mOrigin + getNextTick()*TICK_NANOSECONDS - now();
+        if (remaining <= 0) {
             return -1;
         } else {
-            return nextTaskTime;
+            return (remaining + NANOSECONDS_IN_MILLISECOND - 1)/NANOSECONDS_IN_MILLISECOND;
         }
     }
 
-    public void dump() {
-        Log.i("SCHEDULER TASKS:");
-        for (Task task : mTasks) {
-            Log.i("    "+task);
+    /**
+     * Return the scheduled tasks, soonest first, for diagnostics.
+     */
+    public List<SwitchSnapshot.TimerInfo> getTimerSnapshots() {
+        List<Task> tasks = new ArrayList<Task>(mSize);
+        for (int wheel=0; wheel<WHEEL_COUNT; wheel++) {
+            for (int slot=0; slot<WHEEL_SIZE; slot++) {
+                for (Task task = mWheels[wheel][slot].mHead; task != null; task = task.mNext) {
+                    tasks.add(task);
+                }
+            }
+        }
+        Collections.sort(tasks, new Comparator<Task>() {
+            @Override
+            public int compare(Task a, Task b) {
+                return (a.mTime < b.mTime) ? -1 : ((a.mTime > b.mTime) ? 1 : 0);
+            }
+        });
+
+        long now = now();
+        List<SwitchSnapshot.TimerInfo> timers =
+                new ArrayList<SwitchSnapshot.TimerInfo>(tasks.size());
+        for (Task task : tasks) {
+            String description;
+            if (task.mRunnable instanceof Timeout) {
+                description = ((Timeout)task.mRunnable).describe();
+            } else {
+                description = task.mRunnable.getClass().getName();
+            }
+            timers.add(new SwitchSnapshot.TimerInfo(task.mTime - now, description));
+        }
+        return timers;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // wheel management
+
+    private void schedule(Task task) {
+        // round the deadline up to a tick boundary so tasks never run early.
+        long tick = (task.mTime - mOrigin + TICK_NANOSECONDS - 1) / TICK_NANOSECONDS;
+        task.mTick = tick;
+        insert(task);
+        mSize++;
+    }
+
+    private void unlink(Task task) {
+        TaskList list = task.mList;
+        list.unlink(task);
+        if (list.isEmpty() && list.mWheel >= 0) {
+            clearOccupied(list.mWheel, list.mSlot);
+        }
+        mSize--;
+    }
+
+    /**
+     * Place a task in the appropriate wheel slot for its tick, relative to
+     * the current tick.
+     */
+    private void insert(Task task) {
+        long tick = Math.max(task.mTick, mCurrentTick);
+        long delta = tick - mCurrentTick;
+        if (delta > MAXIMUM_TICK_DELTA) {
+            // beyond the range of the wheels; park it in the furthest slot
+            // and re-insert when that slot is cascaded.
+            tick = mCurrentTick + MAXIMUM_TICK_DELTA;
+            delta = MAXIMUM_TICK_DELTA;
+        }
+        int wheel = 0;
+        while (delta >= WHEEL_SIZE && wheel < WHEEL_COUNT - 1) {
+            delta >>>= WHEEL_BITS;
+            wheel++;
+        }
+        int slot = (int)((tick >>> (wheel * WHEEL_BITS)) & WHEEL_MASK);
+        mWheels[wheel][slot].append(task);
+        setOccupied(wheel, slot);
+    }
+
+    /**
+     * At the start of each rotation of the lowest wheel, move the tasks in
+     * the current slot of the next wheel down into the lower wheels, and so
+     * on up the hierarchy whenever a wheel also completes a rotation.
+     */
+    private void cascade(long tick) {
+        for (int wheel=1; wheel<WHEEL_COUNT; wheel++) {
+            int slot = (int)((tick >>> (wheel * WHEEL_BITS)) & WHEEL_MASK);
+            if (! mWheels[wheel][slot].isEmpty()) {
+                TaskList list = detachSlot(wheel, slot);
+                Task task;
+                while ((task = list.mHead) != null) {
+                    list.unlink(task);
+                    insert(task);
+                }
+                mSpareList = list;
+            }
+            if (slot != 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Detach the task list of a wheel slot in constant time, by swapping an
+     * empty spare list into the slot. The caller must return the detached
+     * list to mSpareList once it has been emptied.
+     */
+    private TaskList detachSlot(int wheel, int slot) {
+        TaskList list = mWheels[wheel][slot];
+        TaskList spare = mSpareList;
+        spare.mWheel = wheel;
+        spare.mSlot = slot;
+        mWheels[wheel][slot] = spare;
+        clearOccupied(wheel, slot);
+        list.mWheel = -1;
+        list.mSlot = -1;
+        mSpareList = null;
+        return list;
+    }
+
+    /**
+     * Return the tick at (or before) which the next task may become due.
+     */
+    private long getNextTick() {
+        long tick = mCurrentTick;
+        int slot = nextOccupiedSlot(0, (int)(tick & WHEEL_MASK));
+        if (slot >= 0) {
+            return (tick & ~WHEEL_MASK) | slot;
+        }
+        if (nextOccupiedSlot(0, 0) >= 0) {
+            // tasks in the next rotation of the lowest wheel
+            return (tick | WHEEL_MASK) + 1;
+        }
+
+        // otherwise, the next task arrives with the earliest cascade of an
+        // occupied higher-level slot.
+        long nextTick = Long.MAX_VALUE;
+        for (int wheel=1; wheel<WHEEL_COUNT; wheel++) {
+            int shift = wheel * WHEEL_BITS;
+            int currentSlot = (int)((tick >>> shift) & WHEEL_MASK);
+            int start = (currentSlot + 1) & WHEEL_MASK;
+            int occupied = nextOccupiedSlot(wheel, start);
+            if (occupied < 0) {
+                occupied = nextOccupiedSlot(wheel, 0);
+            }
+            if (occupied < 0) {
+                continue;
+            }
+            int distance = (occupied - currentSlot) & WHEEL_MASK;
+            if (distance == 0) {
+                distance = WHEEL_SIZE;
+            }
+            long cascadeTick = ((tick >>> shift) + distance) << shift;
+            nextTick = Math.min(nextTick, cascadeTick);
+        }
+        return nextTick;
+    }
+
+    private void setOccupied(int wheel, int slot) {
+        mOccupied[wheel][slot >>> 6] |= (1L << (slot & 63));
+    }
+
+    private void clearOccupied(int wheel, int slot) {
+        mOccupied[wheel][slot >>> 6] &= ~(1L << (slot & 63));
+    }
+
+    /**
+     * Return the first occupied slot of the specified wheel at or after the
+     * specified slot (without wrapping), or -1 if there is none.
+     */
+    private int nextOccupiedSlot(int wheel, int from) {
+        long[] bitmap = mOccupied[wheel];
+        int word = from >>> 6;
+        long bits = bitmap[word] & (-1L << (from & 63));
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == BITMAP_WORDS) {
+                return -1;
+            }
+            bits = bitmap[word];
         }
     }
 }
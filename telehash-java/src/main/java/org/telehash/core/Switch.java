@@ -1,7 +1,14 @@
 package org.telehash.core;
 
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
 import org.telehash.crypto.HashNamePublicKey;
+import org.telehash.crypto.impl.LineKeyPairPool;
 import org.telehash.dht.DHT;
+import org.telehash.dht.NodeTracker;
+import org.telehash.diagnostics.SwitchDiagnostics;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.metrics.TelehashMetrics;
 import org.telehash.network.Datagram;
 import org.telehash.network.DatagramHandler;
 import org.telehash.network.InetPath;
@@ -13,8 +20,10 @@ import org.telehash.network.Reactor;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Switch class is the heart of Telehash. The switch is responsible for
@@ -24,6 +33,14 @@ import java.util.Set;
 public class Switch implements DatagramHandler, MessageHandler {
 
     private static final int DEFAULT_PORT = 42424;
+    private static final int SNAPSHOT_TIMEOUT = 5000;
+
+    /**
+     * The maximum number of datagrams received on other reactor threads
+     * (e.g. reactor shards) which may await the switch thread; further
+     * datagrams are dropped until it catches up.
+     */
+    private static final int MAXIMUM_PENDING_INCOMING = 1024;
 
     private Telehash mTelehash;
     private Set<SeedNode> mSeeds;
@@ -36,12 +53,55 @@ public class Switch implements DatagramHandler, MessageHandler {
     private boolean mStopRequested = false;
 
     private LocalNode mLocalNode;
-    private Scheduler mScheduler = new Scheduler();
+    private Scheduler mScheduler;
 
     private DHT mDHT;
-    private LineManager mLineManager;
+    private volatile LineManager mLineManager;
+    private int mLineKeyPairPoolCapacity = LineKeyPairPool.DEFAULT_CAPACITY;
+    private int mLineKeyPairPoolLowWaterMark = LineKeyPairPool.DEFAULT_LOW_WATER_MARK;
+    private int mBucketSize = NodeTracker.DEFAULT_BUCKET_SIZE;
+    private int mReplacementCacheSize = NodeTracker.DEFAULT_REPLACEMENT_CACHE_SIZE;
+    private String mRoutingTableFilename = null;
+    private int mMaximumRestoredLinks = DHT.DEFAULT_MAXIMUM_RESTORED_LINKS;
+    private volatile OpenPacketExecutor mOpenPacketExecutor;
+    private int mOpenPacketThreads = OpenPacketExecutor.DEFAULT_THREADS;
+    private int mOpenPacketQueueCapacity = OpenPacketExecutor.DEFAULT_QUEUE_CAPACITY;
+
+    // counts published by the switch thread for diagnostics, which may be
+    // read from any thread.
+    private volatile long mIterations = 0;
+    private volatile int mLineCount = 0;
+    private volatile int mLinkCount = 0;
+    private volatile int mPendingLookupCount = 0;
+    private volatile int mTimerCount = 0;
+    private SwitchDiagnostics mDiagnostics;
+    private final AtomicInteger mPendingIncoming = new AtomicInteger();
+
+    /**
+     * A packet which was received and parsed on a reactor thread other than
+     * the switch thread (e.g. a reactor shard), to be processed on the
+     * switch thread.
+     */
+    private static class IncomingPacketMessage extends Message {
+        final Packet packet;
+        public IncomingPacketMessage(Packet packet) {
+            this.packet = packet;
+        }
+    }
 
-    private int mIterations = 0;
+    /**
+     * A line packet for an unknown line, or for a line whose keys are not
+     * yet known, received on a reactor thread other than the switch thread.
+     * The line may be established by an open packet from the same source
+     * which is still awaiting the switch thread, so the datagram is handled
+     * again on the switch thread, after that open.
+     */
+    private static class UnknownLineDatagramMessage extends Message {
+        final Datagram datagram;
+        public UnknownLineDatagramMessage(Datagram datagram) {
+            this.datagram = datagram;
+        }
+    }
 
     private static class OpenChannelMessage extends Message {
         final Node destination;
@@ -54,16 +114,28 @@ public class Switch implements DatagramHandler, MessageHandler {
         }
     }
 
+    /**
+     * A request from another thread for a snapshot of the switch state.
+     */
+    private static class SnapshotMessage extends Message {
+        final Flag flag = new Flag();
+        volatile SwitchSnapshot snapshot;
+    }
+
     public Switch(Telehash telehash, Set<SeedNode> seeds) {
         mTelehash = telehash;
         mSeeds = seeds;
         mPort = DEFAULT_PORT;
+        mScheduler = new Scheduler(telehash.getClock());
+        mScheduler.setLagHistogram(telehash.getMetrics().getSchedulerLag());
     }
 
     public Switch(Telehash telehash, Set<SeedNode> seeds, int port) {
         mTelehash = telehash;
         mSeeds = seeds;
         mPort = port;
+        mScheduler = new Scheduler(telehash.getClock());
+        mScheduler.setLagHistogram(telehash.getMetrics().getSchedulerLag());
     }
 
     public void start() throws TelehashException {
@@ -86,13 +158,8 @@ public class Switch implements DatagramHandler, MessageHandler {
         mReactor = mTelehash.getNetwork().createReactor(mPort);
         mReactor.setDatagramHandler(this);
         mReactor.setMessageHandler(this);
-        try {
-            mReactor.start();
-        } catch (IOException e) {
-            throw new TelehashException(e);
-        }
 
-        // launch thread
+        // launch thread; the reactor is started by loop().
         mThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -103,8 +170,12 @@ public class Switch implements DatagramHandler, MessageHandler {
         mThread.start();
 
         // block until the start tasks in loop() have finished.
-        mStartFlag.waitForSignal();
+        Throwable error = mStartFlag.waitForSignal();
         mStartFlag.reset();
+        if (error != null) {
+            mReactor = null;
+            throw new TelehashException(error);
+        }
     }
 
     public void stop() {
@@ -130,6 +201,69 @@ public class Switch implements DatagramHandler, MessageHandler {
         return mLineManager;
     }
 
+    /**
+     * Configure the pools of pre-generated line key pairs. This must be
+     * called before start().
+     *
+     * @param capacity The number of key pairs to hold for each cipher set,
+     *        or 0 to generate key pairs on demand.
+     * @param lowWaterMark The number of available key pairs at or below
+     *        which a pool is refilled.
+     */
+    public void setLineKeyPairPoolSize(int capacity, int lowWaterMark) {
+        mLineKeyPairPoolCapacity = capacity;
+        mLineKeyPairPoolLowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * Configure the DHT's bucket sizes. This must be called before start().
+     *
+     * @param bucketSize The maximum number of links in each bucket (k).
+     * @param replacementCacheSize The maximum number of replacement
+     *        candidates remembered for each bucket.
+     */
+    public void setBucketSize(int bucketSize, int replacementCacheSize) {
+        mBucketSize = bucketSize;
+        mReplacementCacheSize = replacementCacheSize;
+    }
+
+    /**
+     * Persist the DHT routing table to the specified file at shutdown and
+     * periodically, and re-link to its most recently seen nodes at startup.
+     * This must be called before start().
+     *
+     * @param routingTableFilename The snapshot filename, or null to disable
+     *        persistence.
+     * @param maximumRestoredLinks The maximum number of links to open to
+     *        previously seen nodes at startup.
+     */
+    public void setRoutingTableFile(String routingTableFilename, int maximumRestoredLinks) {
+        mRoutingTableFilename = routingTableFilename;
+        mMaximumRestoredLinks = maximumRestoredLinks;
+    }
+
+    /**
+     * Configure the worker pool used to process incoming open packets. This
+     * must be called before start().
+     *
+     * @param threads The number of worker threads, or 0 to process open
+     *        packets on the switch thread.
+     * @param queueCapacity The maximum number of open packets awaiting a
+     *        worker thread.
+     */
+    public void setOpenPacketExecutorSize(int threads, int queueCapacity) {
+        mOpenPacketThreads = threads;
+        mOpenPacketQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Return the open packet worker pool, or null if open packets are
+     * processed on the switch thread.
+     */
+    public OpenPacketExecutor getOpenPacketExecutor() {
+        return mOpenPacketExecutor;
+    }
+
     public void waitForInit() {
         mDHT.waitForInit();
     }
@@ -174,18 +308,41 @@ public class Switch implements DatagramHandler, MessageHandler {
         }
     }
 
-    public void sendPacket(Packet packet) throws TelehashException {
+    /**
+     * Render and send a packet.
+     *
+     * @param packet The packet to send.
+     * @return True if the packet was queued for sending, or false if the
+     *         reactor's write queue was full.
+     * @throws TelehashException
+     */
+    public boolean sendPacket(Packet packet) throws TelehashException {
         if (packet == null) {
-            return;
+            return true;
         }
-        Log.i("outgoing packet: "+packet);
-
-        Datagram datagram =
-                new Datagram(packet.render(), null, packet.getDestinationNode().getPath());
+        Log.i(Category.NETWORK, "outgoing packet: %s", packet);
+
+        TelehashMetrics metrics = mTelehash.getMetrics();
+        long renderStart = System.nanoTime();
+        byte[] bytes = packet.render();
+        long renderTime = System.nanoTime() - renderStart;
+        if (packet instanceof LinePacket) {
+            metrics.getLineEncryptTime().record(renderTime);
+        } else if (packet instanceof OpenPacket) {
+            metrics.getOpenRenderTime().record(renderTime);
+        }
+        Datagram datagram = new Datagram(bytes, null, packet.getDestinationNode().getPath());
 
         if (mReactor != null) {
-            mReactor.sendDatagram(datagram);
+            if (mReactor.sendDatagram(datagram)) {
+                metrics.getDatagramsSent().increment();
+                metrics.getBytesSent().add(bytes.length);
+                return true;
+            }
+            metrics.getDatagramsRejected().increment();
+            return false;
         }
+        return true;
     }
 
     public void sendHolePunch(Path destination) {
@@ -193,7 +350,7 @@ public class Switch implements DatagramHandler, MessageHandler {
         Datagram datagram =
                 new Datagram(emptyBuffer, null, destination);
         if (mReactor != null) {
-            Log.i("sending hole-punch packet to: "+destination);
+            Log.i(Category.NETWORK, "sending hole-punch packet to: %s", destination);
             mReactor.sendDatagram(datagram);
         }
     }
@@ -213,11 +370,43 @@ public class Switch implements DatagramHandler, MessageHandler {
         }
 
         mLineManager = new LineManager(mTelehash);
+        mLineManager.setLineKeyPairPoolSize(
+                mLineKeyPairPoolCapacity,
+                mLineKeyPairPoolLowWaterMark
+        );
         mLineManager.init();
 
+        if (mOpenPacketThreads > 0) {
+            mOpenPacketExecutor = new OpenPacketExecutor(
+                    mTelehash,
+                    mReactor,
+                    mOpenPacketThreads,
+                    mOpenPacketQueueCapacity
+            );
+        }
+
+        // start receiving only once the line manager and executors exist,
+        // since reactor shards dispatch datagrams as soon as they start.
+        try {
+            mReactor.start();
+        } catch (IOException e) {
+            if (mOpenPacketExecutor != null) {
+                mOpenPacketExecutor.close();
+            }
+            mLineManager.close();
+            mStartFlag.signalError(e);
+            return;
+        }
+
         mDHT = new DHT(mTelehash, mLocalNode, mSeeds);
+        mDHT.setBucketSize(mBucketSize, mReplacementCacheSize);
+        mDHT.setRoutingTableFile(mRoutingTableFilename, mMaximumRestoredLinks);
         mDHT.init();
 
+        mDiagnostics = new SwitchDiagnostics(this, mLocalNode.getHashName());
+        mDiagnostics.register();
+        mTelehash.getMetrics().registerMBeans(mLocalNode.getHashName().asHex());
+
         // signal start completion
         mStartFlag.signal();
 
@@ -233,23 +422,14 @@ public class Switch implements DatagramHandler, MessageHandler {
 
                 // select and dispatch
                 mReactor.select(nextTaskTime);
+                mTelehash.getMetrics().getWriteQueueDepth().record(
+                        mReactor.getStatistics().getWriteQueueDepth());
 
                 // run any timed tasks
                 mScheduler.runTasks();
 
-                Log.buffer();
-                try {
-                    Log.i(String.format("---- state after iteration %04d ----",
-                            mIterations));
-                    mLineManager.dump();
-                    mDHT.dump();
-                    mScheduler.dump();
-                } finally {
-                    Log.i(String.format("---- end of iteration: %04d ----",
-                            mIterations));
-                    mIterations++;
-                    Log.flush();
-                }
+                mIterations++;
+                publishCounts();
 
                 if (mStopRequested) {
                     Log.i("switch stop requested");
@@ -269,28 +449,109 @@ public class Switch implements DatagramHandler, MessageHandler {
             }
         }
 
+        if (mOpenPacketExecutor != null) {
+            mOpenPacketExecutor.close();
+        }
         mDHT.close();
+        mLineManager.close();
+        mDiagnostics.unregister();
+        mTelehash.getMetrics().unregisterMBeans();
         Log.i("Telehash switch "+mLocalNode+" ending.");
 
         // signal loop completion
         mStopFlag.signal();
     }
 
+    /**
+     * Handle an incoming datagram. This is normally called on the switch
+     * thread, but a sharded reactor calls it concurrently from its shard
+     * threads. In that case the datagram is parsed (and decrypted) on the
+     * calling thread, and the resulting packet is passed to the switch
+     * thread for processing.
+     *
+     * Open packets are handed to the OpenPacketExecutor, if one is
+     * configured, and other datagrams from the same source are held back
+     * until the open packet has been processed. Line packets for unknown
+     * lines received on other threads are passed to the switch thread to be
+     * handled after any open packet from the same source which preceded
+     * them. At most MAXIMUM_PENDING_INCOMING packets from other threads may
+     * await the switch thread; further packets are dropped.
+     */
     @Override
     public void handleDatagram(Datagram datagram) {
-        byte[] buffer = datagram.getBytes();
+        boolean onSwitchThread = (Thread.currentThread() == mThread);
+        if (! onSwitchThread) {
+            mTelehash.setThreadLocal();
+        }
+        TelehashMetrics metrics = mTelehash.getMetrics();
+        metrics.getDatagramsReceived().increment();
+        metrics.getBytesReceived().add(datagram.getLength());
+        if (Log.isEnabled(Category.NETWORK, Level.INFO)) {
+            Log.i(Category.NETWORK, "received datagram of %d bytes from: %s",
+                    datagram.getLength(), datagram.getSource());
+        }
+        dispatchDatagram(datagram, onSwitchThread);
+    }
+
+    /**
+     * Parse and process a received datagram. Datagrams which were held back
+     * and are handled again on the switch thread re-enter here, so that
+     * they are only counted once as received.
+     */
+    private void dispatchDatagram(Datagram datagram, boolean onSwitchThread) {
         Path source = datagram.getSource();
-        Log.i("received datagram of "+buffer.length+" bytes from: "+source);
+        TelehashMetrics metrics = mTelehash.getMetrics();
+        OpenPacketExecutor openPacketExecutor = mOpenPacketExecutor;
+        if (openPacketExecutor != null) {
+            if (Packet.isOpenPacket(
+                    datagram.getBytes(),
+                    datagram.getOffset(),
+                    datagram.getLength()
+            )) {
+                openPacketExecutor.submit(datagram);
+                return;
+            }
+            if (openPacketExecutor.deferIfPending(datagram)) {
+                return;
+            }
+        }
+        if (! onSwitchThread) {
+            LineIdentifier lineIdentifier = Packet.getLineIdentifier(
+                    datagram.getBytes(),
+                    datagram.getOffset(),
+                    datagram.getLength()
+            );
+            // a line we initiated is known from the moment its open is
+            // sent, but its keys are only set when the peer's open is
+            // handled on the switch thread.
+            Line line = (lineIdentifier != null) ? mLineManager.getLine(lineIdentifier) : null;
+            if (lineIdentifier != null && (line == null || line.getDecryptionKey() == null)) {
+                byte[] bytes = new byte[datagram.getLength()];
+                System.arraycopy(
+                        datagram.getBytes(), datagram.getOffset(), bytes, 0, bytes.length);
+                postIncoming(new UnknownLineDatagramMessage(
+                        new Datagram(bytes, source, datagram.getDestination())));
+                return;
+            }
+        }
 
         // parse the packet
         Packet packet;
         try {
-            packet = Packet.parse(mTelehash, buffer, source);
+            packet = Packet.parse(
+                    mTelehash,
+                    datagram.getBytes(),
+                    datagram.getOffset(),
+                    datagram.getLength(),
+                    source
+            );
         } catch (RuntimeException e) {
-            Log.w("switch datagram handling failed",  e);
+            Log.w(Category.NETWORK, "switch datagram handling failed", e);
+            metrics.getParseFailures().increment();
             return;
         } catch (TelehashException e) {
-            Log.w("switch datagram handling failed",  e);
+            Log.w(Category.NETWORK, "switch datagram handling failed", e);
+            metrics.getParseFailures().increment();
             return;
         }
         if (packet == null) {
@@ -299,22 +560,58 @@ public class Switch implements DatagramHandler, MessageHandler {
         }
 
         // process the packet
-        handleIncomingPacket(packet);
+        if (onSwitchThread) {
+            handleIncomingPacket(packet);
+        } else {
+            postIncoming(new IncomingPacketMessage(packet));
+        }
+    }
+
+    /**
+     * Pass a received packet or datagram from another reactor thread to the
+     * switch thread, unless too many are already waiting.
+     */
+    private void postIncoming(Message message) {
+        if (mPendingIncoming.incrementAndGet() > MAXIMUM_PENDING_INCOMING) {
+            mPendingIncoming.decrementAndGet();
+            mTelehash.getMetrics().getIncomingDropped().increment();
+            return;
+        }
+        mReactor.sendMessage(message);
     }
 
     @Override
     public void handleMessage(Message message) {
         // process any pending messages
         if (message != null) {
-            if (message instanceof OpenChannelMessage) {
+            if (message instanceof IncomingPacketMessage) {
+                mPendingIncoming.decrementAndGet();
+                handleIncomingPacket(((IncomingPacketMessage)message).packet);
+            } else if (message instanceof UnknownLineDatagramMessage) {
+                mPendingIncoming.decrementAndGet();
+                dispatchDatagram(((UnknownLineDatagramMessage)message).datagram, true);
+            } else if (message instanceof OpenPacketExecutor.CompletedOpen) {
+                List<Datagram> deferred = mOpenPacketExecutor.complete(
+                        (OpenPacketExecutor.CompletedOpen)message
+                );
+                if (deferred != null) {
+                    for (Datagram datagram : deferred) {
+                        dispatchDatagram(datagram, true);
+                    }
+                }
+            } else if (message instanceof OpenChannelMessage) {
                 OpenChannelMessage m = (OpenChannelMessage)message;
                 openChannelNow(m.destination, m.type, m.channelHandler);
+            } else if (message instanceof SnapshotMessage) {
+                SnapshotMessage m = (SnapshotMessage)message;
+                m.snapshot = createSnapshot();
+                m.flag.signal();
             }
         }
     }
 
     private void handleIncomingPacket(Packet packet) {
-        Log.i("incoming packet: "+packet);
+        Log.i(Category.NETWORK, "incoming packet: %s", packet);
         try {
             if (packet instanceof OpenPacket) {
                 mLineManager.handleOpenPacket((OpenPacket)packet);
@@ -323,7 +620,7 @@ public class Switch implements DatagramHandler, MessageHandler {
                 linePacket.getLine().handleIncoming(linePacket);
             }
         } catch (TelehashException e) {
-            Log.i("error handling incoming packet: "+e);
+            Log.i(Category.NETWORK, "error handling incoming packet: %s", e);
             e.printStackTrace();
         }
     }
@@ -339,6 +636,91 @@ public class Switch implements DatagramHandler, MessageHandler {
         return mRegisteredChannelHandlers.get(type);
     }
 
+    /**
+     * Return a snapshot of the state of the switch: its lines and channels,
+     * DHT buckets and links, node lookups in progress, and timers. The
+     * snapshot is taken on the switch thread; if this is called from
+     * another thread, it blocks until the switch thread has taken it.
+     *
+     * @return The snapshot.
+     * @throws TelehashException If the switch is not running, or did not
+     *         respond in time.
+     */
+    public SwitchSnapshot getSnapshot() throws TelehashException {
+        if (Thread.currentThread() == mThread) {
+            return createSnapshot();
+        }
+        Reactor reactor = mReactor;
+        if (reactor == null || mThread == null || mStopRequested) {
+            throw new TelehashException("switch is not running");
+        }
+        SnapshotMessage message = new SnapshotMessage();
+        reactor.sendMessage(message);
+        message.flag.waitForSignal(SNAPSHOT_TIMEOUT);
+        if (message.snapshot == null) {
+            throw new TelehashException("timeout waiting for switch snapshot");
+        }
+        return message.snapshot;
+    }
+
+    /** The number of switch loop iterations completed. */
+    public long getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * Return the number of tracked lines, as of the last switch loop
+     * iteration. This may be called from any thread.
+     */
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Return the number of links in the DHT buckets, as of the last switch
+     * loop iteration. This may be called from any thread.
+     */
+    public int getLinkCount() {
+        return mLinkCount;
+    }
+
+    /**
+     * Return the number of node lookups in progress, as of the last switch
+     * loop iteration. This may be called from any thread.
+     */
+    public int getPendingLookupCount() {
+        return mPendingLookupCount;
+    }
+
+    /**
+     * Return the number of scheduled timers, as of the last switch loop
+     * iteration. This may be called from any thread.
+     */
+    public int getTimerCount() {
+        return mTimerCount;
+    }
+
+    private void publishCounts() {
+        mLineCount = mLineManager.getLineCount();
+        mLinkCount = mDHT.getLinkCount();
+        mPendingLookupCount = mDHT.getNodeLookupManager().getPendingCount();
+        mTimerCount = mScheduler.size();
+    }
+
+    private SwitchSnapshot createSnapshot() {
+        // keep the published counts consistent with the snapshot.
+        publishCounts();
+        return new SwitchSnapshot(
+                mLocalNode.getHashName().asHex(),
+                mScheduler.getTime(),
+                mIterations,
+                mLineManager.getLineSnapshots(),
+                mDHT.getBucketSnapshots(),
+                mDHT.getNodeLookupManager().getLookupSnapshots(),
+                mScheduler.getTimerSnapshots()
+        );
+    }
+
     public Scheduler getScheduler() {
         return mScheduler;
     }
@@ -346,4 +728,17 @@ public class Switch implements DatagramHandler, MessageHandler {
     public Timeout getTimeout(OnTimeoutListener listener, long delay) {
         return new Timeout(mScheduler, listener, delay);
     }
+
+    /**
+     * Return a lazy timeout, whose reset() only records the time of the last
+     * activity rather than rescheduling. This is suited to idle timers which
+     * are reset on every packet.
+     *
+     * @param listener The listener to notify when the timeout expires.
+     * @param delay The delay in milliseconds, or 0 to leave the timeout stopped.
+     * @return The new timeout.
+     */
+    public Timeout getLazyTimeout(OnTimeoutListener listener, long delay) {
+        return new Timeout(mScheduler, listener, delay, true);
+    }
 }
@@ -0,0 +1,16 @@
+package org.telehash.core;
+
+/**
+ * A clock backed by the system's time sources.
+ */
+public class SystemClock implements Clock {
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -2,6 +2,7 @@ package org.telehash.core;
 
 import org.telehash.crypto.Crypto;
 import org.telehash.crypto.impl.CryptoImpl;
+import org.telehash.metrics.TelehashMetrics;
 import org.telehash.network.Network;
 import org.telehash.network.impl.NetworkImpl;
 import org.telehash.storage.Storage;
@@ -14,6 +15,8 @@ public class Telehash {
     private Network mNetwork;
     private LocalNode mLocalNode;
     private Switch mSwitch;
+    private Clock mClock = new SystemClock();
+    private final TelehashMetrics mMetrics = new TelehashMetrics();
 
     public Telehash() {
         mCrypto = new CryptoImpl();
@@ -58,6 +61,23 @@ public class Telehash {
         return mLocalNode;
     }
 
+    /**
+     * Set the clock used for protocol timing. This must be called before
+     * the switch is created.
+     *
+     * @param clock The clock.
+     */
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+    public Clock getClock() {
+        return mClock;
+    }
+
+    public TelehashMetrics getMetrics() {
+        return mMetrics;
+    }
+
     public void setSwitch(Switch telehashSwitch) {
         mSwitch = telehashSwitch;
     }
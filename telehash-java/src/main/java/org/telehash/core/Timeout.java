@@ -2,16 +2,46 @@ package org.telehash.core;
 
 import java.lang.ref.WeakReference;
 
+/**
+ * A resettable timer which notifies a listener when it expires.
+ *
+ * <p>
+ * A lazy timeout is intended for idle timers which are reset on every
+ * packet. Instead of rescheduling its task, reset() only records the time of
+ * the most recent activity. When the scheduled task fires, it compares that
+ * time against the delay, and either notifies the listener or re-arms itself
+ * for the remaining time.
+ * </p>
+ */
 public class Timeout implements Runnable {
 
+    private static final long NANOSECONDS_IN_MILLISECOND = 1000000L;
+
     private Scheduler mScheduler;
     private WeakReference<OnTimeoutListener> mListener;
     private long mDelay;
     private Scheduler.Task mTask;
+    private final boolean mLazy;
+    private long mLastActivity;
 
     public Timeout(Scheduler scheduler, OnTimeoutListener listener, long delay) {
+        this(scheduler, listener, delay, false);
+    }
+
+    /**
+     * Construct a new Timeout.
+     *
+     * @param scheduler The scheduler used to run the timeout.
+     * @param listener The listener to notify when the timeout expires.
+     * @param delay The delay in milliseconds, or 0 if the timeout should not
+     *        be started.
+     * @param lazy True if reset() should only record the activity time, and
+     *        defer rescheduling until the timeout fires.
+     */
+    public Timeout(Scheduler scheduler, OnTimeoutListener listener, long delay, boolean lazy) {
         mScheduler = scheduler;
         mListener = new WeakReference<OnTimeoutListener>(listener);
+        mLazy = lazy;
         mDelay = 0;
         mTask = null;
         setDelay(delay);
@@ -19,10 +49,11 @@ public class Timeout implements Runnable {
 
     @Override
     public String toString() {
-        return "Timeout[delay="+mDelay+"/task="+mTask+"]{"+hashCode()+"}";
+        return "Timeout[delay="+mDelay+"/task="+mTask+(mLazy ? "/lazy" : "")+"]{"+hashCode()+"}";
     }
 
     public void setDelay(long delay) {
+        mLastActivity = mScheduler.getTime();
         if (delay > 0) {
             if (mTask != null) {
                 mScheduler.updateTask(mTask, null, delay);
@@ -42,12 +73,23 @@ public class Timeout implements Runnable {
         return mDelay;
     }
 
+    public boolean isLazy() {
+        return mLazy;
+    }
+
     /**
      * Reset (and re-start) the timer with the previously established delay.
      */
     public void reset() {
         if (mDelay > 0) {
-            if (mTask != null) {
+            if (mLazy) {
+                mLastActivity = mScheduler.getTime();
+                if (mTask == null) {
+                    mTask = mScheduler.addTask(this, mDelay);
+                } else if (! mTask.isScheduled()) {
+                    mScheduler.updateTask(mTask, null, mDelay);
+                }
+            } else if (mTask != null) {
                 mScheduler.updateTask(mTask, null, mDelay);
             } else {
                 mTask = mScheduler.addTask(this, mDelay);
@@ -55,6 +97,14 @@ public class Timeout implements Runnable {
         }
     }
 
+    /**
+     * Describe this timeout by its listener, for diagnostics.
+     */
+    /* intentionally package-private */
+    String describe() {
+        return (mLazy ? "lazy timeout " : "timeout ")+mDelay+"ms: "+mListener.get();
+    }
+
     public void cancel() {
         if (mTask != null) {
             mScheduler.removeTask(mTask);
@@ -64,6 +114,19 @@ public class Timeout implements Runnable {
 
     @Override
     public void run() {
+        if (mLazy && mDelay > 0) {
+            // re-arm if there was activity since the task was scheduled.
+            long remaining =
+                    mLastActivity + mDelay*NANOSECONDS_IN_MILLISECOND - mScheduler.getTime();
+            if (remaining > 0) {
+                mScheduler.updateTask(
+                        mTask,
+                        null,
+                        (remaining + NANOSECONDS_IN_MILLISECOND - 1)/NANOSECONDS_IN_MILLISECOND
+                );
+                return;
+            }
+        }
         OnTimeoutListener listener = mListener.get();
         if (listener != null) {
             listener.handleTimeout();
@@ -0,0 +1,67 @@
+package org.telehash.core;
+
+/**
+ * A clock which only moves when advanced, for running switches in
+ * simulated time. Time never moves backwards. This clock may be shared by
+ * the switches of many Telehash contexts, and may be read from any
+ * thread.
+ */
+public class VirtualClock implements Clock {
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
+    private final long mEpochMillis;
+    private volatile long mNanoTime = 0L;
+
+    /**
+     * Construct a new VirtualClock whose nanosecond time starts at zero and
+     * whose wall clock time starts at the current system time.
+     */
+    public VirtualClock() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Construct a new VirtualClock.
+     *
+     * @param epochMillis The wall clock time, in milliseconds since the
+     *        epoch, corresponding to a nanosecond time of zero.
+     */
+    public VirtualClock(long epochMillis) {
+        mEpochMillis = epochMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNanoTime;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mEpochMillis + mNanoTime / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    /**
+     * Advance the clock.
+     *
+     * @param nanoseconds The non-negative amount of time to advance.
+     */
+    public synchronized void advance(long nanoseconds) {
+        if (nanoseconds < 0) {
+            throw new IllegalArgumentException("time cannot move backwards");
+        }
+        mNanoTime += nanoseconds;
+    }
+
+    /**
+     * Advance the clock to the specified time, if it is later than the
+     * current time.
+     *
+     * @param nanoTime The new nanosecond time.
+     */
+    public synchronized void advanceTo(long nanoTime) {
+        if (nanoTime > mNanoTime) {
+            mNanoTime = nanoTime;
+        }
+    }
+}
@@ -146,6 +146,24 @@ public interface CipherSet {
      */
     public byte[] parseLineInnerPacket(Line line, byte[] innerPacket) throws TelehashException;
 
+    /**
+     * Parse the "inner" (i.e. cipherset-dependent) portion of a line packet,
+     * reading it directly from a region of a larger buffer.
+     *
+     * @param line The line associated with this line packet.
+     * @param buffer The buffer containing the binary form of the inner packet.
+     * @param offset The offset of the inner packet within the buffer.
+     * @param length The length of the inner packet.
+     * @return The channel packet plaintext.
+     * @throws TelehashException
+     */
+    public byte[] parseLineInnerPacket(
+            Line line,
+            byte[] buffer,
+            int offset,
+            int length
+    ) throws TelehashException;
+
     /**
      * Perform Elliptic Curve Diffie-Hellman key agreement
      *
@@ -0,0 +1,14 @@
+package org.telehash.crypto;
+
+/**
+ * Cipher state which a cipher set may cache on a line, so that the
+ * per-packet work of encrypting or decrypting line packets does not include
+ * re-deriving state from the line key. The context is opaque to the line;
+ * only the cipher set which created it knows its contents.
+ */
+public interface LineCipherContext {
+    /**
+     * Return the key from which this context was derived.
+     */
+    public byte[] getKey();
+}
@@ -0,0 +1,183 @@
+package org.telehash.crypto.impl;
+
+import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.TelehashException;
+import org.telehash.crypto.CipherSet;
+import org.telehash.crypto.LineKeyPair;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of line key pairs which are generated ahead of time on a background
+ * thread, so that opening a line does not include the cost of elliptic curve
+ * key generation.
+ *
+ * The generator thread refills the pool to its capacity whenever the number
+ * of available key pairs falls to the low-water mark. If the pool is empty
+ * when a key pair is requested, one is generated synchronously.
+ *
+ * Each key pair is handed out at most once, unless it is returned unused
+ * with restore(). This class is thread-safe.
+ */
+public class LineKeyPairPool implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 8;
+    public static final int DEFAULT_LOW_WATER_MARK = 2;
+
+    private final CipherSet mCipherSet;
+    private final int mCapacity;
+    private final int mLowWaterMark;
+    private final LinkedList<LineKeyPair> mKeyPairs = new LinkedList<LineKeyPair>();
+    private Thread mThread;
+    private boolean mStopRequested = false;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * Construct a new LineKeyPairPool.
+     *
+     * @param cipherSet The cipher set used to generate key pairs.
+     * @param capacity The maximum number of key pairs to hold.
+     * @param lowWaterMark The number of key pairs at or below which the pool
+     *        is refilled.
+     */
+    public LineKeyPairPool(CipherSet cipherSet, int capacity, int lowWaterMark) {
+        if (capacity < 1 || lowWaterMark < 0 || lowWaterMark >= capacity) {
+            throw new IllegalArgumentException("invalid pool capacity or low-water mark");
+        }
+        mCipherSet = cipherSet;
+        mCapacity = capacity;
+        mLowWaterMark = lowWaterMark;
+    }
+
+    public CipherSet getCipherSet() {
+        return mCipherSet;
+    }
+
+    /**
+     * Start the generator thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mStopRequested = false;
+        mThread = new Thread(this, "telehash-line-key-pool-"+mCipherSet.getCipherSetId());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop the generator thread and discard any pooled key pairs.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mStopRequested = true;
+            mKeyPairs.clear();
+            notifyAll();
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null && ! Thread.currentThread().equals(thread)) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Obtain a fresh line key pair, from the pool if possible.
+     *
+     * @return The key pair.
+     * @throws TelehashException If a key pair could not be generated.
+     */
+    public LineKeyPair take() throws TelehashException {
+        synchronized (this) {
+            LineKeyPair keyPair = mKeyPairs.poll();
+            if (mKeyPairs.size() <= mLowWaterMark) {
+                notifyAll();
+            }
+            if (keyPair != null) {
+                mHits++;
+                return keyPair;
+            }
+            mMisses++;
+        }
+        return mCipherSet.generateLineKeyPair();
+    }
+
+    /**
+     * Return a key pair obtained with take() which was never sent to a peer,
+     * so that it may be handed out again. The key pair is discarded if the
+     * pool is already full, or has been closed.
+     *
+     * @param keyPair The unused key pair.
+     */
+    public synchronized void restore(LineKeyPair keyPair) {
+        if (! mStopRequested && mKeyPairs.size() < mCapacity) {
+            mKeyPairs.addFirst(keyPair);
+        }
+    }
+
+    /** Return the number of key pairs currently available. */
+    public synchronized int size() {
+        return mKeyPairs.size();
+    }
+
+    /** Return the number of requests satisfied from the pool. */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /** Return the number of requests which required synchronous generation. */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // wait until the pool needs refilling
+            synchronized (this) {
+                while (! mStopRequested && mKeyPairs.size() > mLowWaterMark) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopRequested) {
+                    return;
+                }
+            }
+
+            // refill to capacity
+            while (true) {
+                synchronized (this) {
+                    if (mStopRequested) {
+                        return;
+                    }
+                    if (mKeyPairs.size() >= mCapacity) {
+                        break;
+                    }
+                }
+                LineKeyPair keyPair;
+                try {
+                    keyPair = mCipherSet.generateLineKeyPair();
+                } catch (TelehashException e) {
+                    Log.e(Category.CRYPTO, "line key pair generation failed; pool stopping", e);
+                    return;
+                }
+                synchronized (this) {
+                    if (! mStopRequested) {
+                        mKeyPairs.add(keyPair);
+                    }
+                }
+            }
+        }
+    }
+}
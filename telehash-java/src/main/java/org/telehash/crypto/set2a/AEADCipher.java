@@ -0,0 +1,30 @@
+package org.telehash.crypto.set2a;
+
+import org.telehash.core.TelehashException;
+
+/**
+ * An AES-256-GCM cipher bound to a single key and direction, which may be
+ * used for many packets by supplying a new IV for each.
+ *
+ * Implementations are not thread-safe.
+ */
+public interface AEADCipher {
+    /**
+     * Encrypt or decrypt the specified region of a buffer.
+     *
+     * @param iv The initialization vector for this packet.
+     * @param buffer The buffer containing the input.
+     * @param offset The offset of the input within the buffer.
+     * @param length The length of the input.
+     * @return The ciphertext (including the authentication tag) when
+     *         encrypting, or the verified plaintext when decrypting.
+     * @throws TelehashException If the authentication tag does not verify,
+     *         or another problem occurred.
+     */
+    public byte[] process(
+            byte[] iv,
+            byte[] buffer,
+            int offset,
+            int length
+    ) throws TelehashException;
+}
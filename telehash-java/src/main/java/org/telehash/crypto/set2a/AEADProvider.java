@@ -0,0 +1,21 @@
+package org.telehash.crypto.set2a;
+
+/**
+ * A source of AES-256-GCM ciphers for cipher set 2a.
+ */
+public interface AEADProvider {
+    /**
+     * Return a short name for this provider, for logging.
+     */
+    public String getName();
+
+    /**
+     * Create a cipher bound to the specified key.
+     *
+     * @param key The 256-bit key.
+     * @param forEncryption True to encrypt, false to decrypt.
+     * @param tagBits The size of the authentication tag, in bits.
+     * @return The new cipher.
+     */
+    public AEADCipher createCipher(byte[] key, boolean forEncryption, int tagBits);
+}
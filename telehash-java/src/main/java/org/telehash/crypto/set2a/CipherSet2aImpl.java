@@ -36,6 +36,7 @@ import org.telehash.crypto.Crypto;
 import org.telehash.crypto.HashNameKeyPair;
 import org.telehash.crypto.HashNamePrivateKey;
 import org.telehash.crypto.HashNamePublicKey;
+import org.telehash.crypto.LineCipherContext;
 import org.telehash.crypto.LineKeyPair;
 import org.telehash.crypto.LinePrivateKey;
 import org.telehash.crypto.LinePublicKey;
@@ -72,6 +73,10 @@ public class CipherSet2aImpl implements CipherSet {
 
     private SecureRandom mRandom = new SecureRandom();
 
+    // the source of line packet ciphers
+    private AEADProvider mAEADProvider =
+            new JCEAEADProvider(new SpongyCastleAEADProvider());
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     };
@@ -94,6 +99,23 @@ public class CipherSet2aImpl implements CipherSet {
         mECGenerator.init(mECKeyGenerationParameters);
     }
 
+    /**
+     * Return the provider of the AES-256-GCM ciphers used for line packets.
+     */
+    public AEADProvider getAEADProvider() {
+        return mAEADProvider;
+    }
+
+    /**
+     * Set the provider of the AES-256-GCM ciphers used for line packets.
+     * This only affects lines whose cipher contexts are created afterwards.
+     *
+     * @param provider The provider.
+     */
+    public void setAEADProvider(AEADProvider provider) {
+        mAEADProvider = provider;
+    }
+
     /**
      * Return the Cipher Set ID (CSID) for this cipher set.
      */
@@ -214,11 +236,15 @@ public class CipherSet2aImpl implements CipherSet {
     }
 
     /**
-     * Generate a fresh elliptic curve key pair
+     * Generate a fresh elliptic curve key pair. This may be called from any
+     * thread (e.g. a LineKeyPairPool generator).
      */
     @Override
     public LineKeyPair generateLineKeyPair() throws TelehashException {
-        AsymmetricCipherKeyPair keyPair = mECGenerator.generateKeyPair();
+        AsymmetricCipherKeyPair keyPair;
+        synchronized (mECGenerator) {
+            keyPair = mECGenerator.generateKeyPair();
+        }
 
         AsymmetricKeyParameter publicKey = keyPair.getPublic();
         AsymmetricKeyParameter privateKey = keyPair.getPrivate();
@@ -260,22 +286,7 @@ public class CipherSet2aImpl implements CipherSet {
         cipher.init(true,  params);
 
         // encrypt
-        byte[] cipherText = new byte[cipher.getOutputSize(plainText.length)];
-        int nbytes = cipher.processBytes(plainText, 0, plainText.length, cipherText, 0);
-        try {
-            nbytes += cipher.doFinal(cipherText, nbytes);
-        } catch (CryptoException e) {
-            throw new TelehashException(e);
-        }
-
-        // trim output if needed
-        if (nbytes < cipherText.length) {
-            byte[] trimmedCipherText = new byte[nbytes];
-            System.arraycopy(cipherText, 0, trimmedCipherText, 0, nbytes);
-            cipherText = trimmedCipherText;
-        }
-
-        return cipherText;
+        return processAES256GCM(cipher, plainText, 0, plainText.length);
     }
 
     /**
@@ -293,6 +304,30 @@ public class CipherSet2aImpl implements CipherSet {
             byte[] iv,
             byte[] key,
             int tagBits
+    ) throws TelehashException {
+        return decryptAES256GCM(cipherText, 0, cipherText.length, iv, key, tagBits);
+    }
+
+    /**
+     * Decrypt the ciphertext found in the specified region of the provided
+     * buffer using AES-256-GCM with the provided initialization vector (IV)
+     * and key.
+     *
+     * @param buffer The buffer containing the ciphertext to decrypt.
+     * @param offset The offset of the ciphertext within the buffer.
+     * @param length The length of the ciphertext.
+     * @param iv The initialization vector.
+     * @param key The encryption key.
+     * @return The resulting plaintext.
+     * @throws TelehashException If a problem occurred.
+     */
+    private byte[] decryptAES256GCM(
+            byte[] buffer,
+            int offset,
+            int length,
+            byte[] iv,
+            byte[] key,
+            int tagBits
     ) throws TelehashException {
         // initialize cipher
         GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
@@ -300,22 +335,79 @@ public class CipherSet2aImpl implements CipherSet {
         cipher.init(false,  params);
 
         // decrypt
-        byte[] plainText = new byte[cipher.getOutputSize(cipherText.length)];
-        int nbytes = cipher.processBytes(cipherText, 0, cipherText.length, plainText, 0);
+        return processAES256GCM(cipher, buffer, offset, length);
+    }
+
+    /**
+     * Run the provided region of a buffer through an initialized GCM cipher,
+     * and return the complete output (including or verifying the
+     * authentication tag).
+     *
+     * @param cipher The initialized cipher.
+     * @param buffer The buffer containing the input.
+     * @param offset The offset of the input within the buffer.
+     * @param length The length of the input.
+     * @return The cipher output.
+     * @throws TelehashException If a problem occurred.
+     */
+    private byte[] processAES256GCM(
+            GCMBlockCipher cipher,
+            byte[] buffer,
+            int offset,
+            int length
+    ) throws TelehashException {
+        byte[] output = new byte[cipher.getOutputSize(length)];
+        int nbytes = cipher.processBytes(buffer, offset, length, output, 0);
         try {
-            nbytes += cipher.doFinal(plainText, nbytes);
+            nbytes += cipher.doFinal(output, nbytes);
         } catch (CryptoException e) {
             throw new TelehashException(e);
         }
 
         // trim output if needed
-        if (nbytes < plainText.length) {
-            byte[] trimmedPlainText = new byte[nbytes];
-            System.arraycopy(plainText, 0, trimmedPlainText, 0, nbytes);
-            plainText = trimmedPlainText;
+        if (nbytes < output.length) {
+            byte[] trimmedOutput = new byte[nbytes];
+            System.arraycopy(output, 0, trimmedOutput, 0, nbytes);
+            output = trimmedOutput;
         }
 
-        return plainText;
+        return output;
+    }
+
+    /**
+     * Return the line's cached encryption context, creating it if the line
+     * has none or if the line's encryption key has changed.
+     */
+    private LineCipherContextImpl getEncryptionContext(Line line) {
+        byte[] key = line.getEncryptionKey();
+        LineCipherContext context = line.getEncryptionContext();
+        if (! (context instanceof LineCipherContextImpl) || context.getKey() != key) {
+            context = new LineCipherContextImpl(
+                    key,
+                    mAEADProvider.createCipher(key, true, LINE_CHANNEL_MAC_BITS),
+                    new LineIVGenerator(mCrypto.getRandomBytes(LineIVGenerator.PREFIX_SIZE))
+            );
+            line.setEncryptionContext(context);
+        }
+        return (LineCipherContextImpl)context;
+    }
+
+    /**
+     * Return the line's cached decryption context, creating it if the line
+     * has none or if the line's decryption key has changed.
+     */
+    private LineCipherContextImpl getDecryptionContext(Line line) {
+        byte[] key = line.getDecryptionKey();
+        LineCipherContext context = line.getDecryptionContext();
+        if (! (context instanceof LineCipherContextImpl) || context.getKey() != key) {
+            context = new LineCipherContextImpl(
+                    key,
+                    mAEADProvider.createCipher(key, false, LINE_CHANNEL_MAC_BITS),
+                    null
+            );
+            line.setDecryptionContext(context);
+        }
+        return (LineCipherContextImpl)context;
     }
 
     @Override
@@ -328,7 +420,7 @@ public class CipherSet2aImpl implements CipherSet {
         if (splitPacket.json != null || (! csid.equals(CIPHER_SET_ID))) {
             throw new TelehashException("invalid open packet");
         }
-        if (splitPacket.body.length <
+        if (splitPacket.bodyLength <
                 LINE_KEY_CIPHERTEXT_BYTES+SIGNATURE_CIPHERTEXT_BYTES) {
             throw new TelehashException("open packet is too small.");
         }
@@ -336,20 +428,25 @@ public class CipherSet2aImpl implements CipherSet {
         // extract the outer packet fields
         // TODO: optimize
         byte[] lineKeyCiphertext = new byte[LINE_KEY_CIPHERTEXT_BYTES];
-        System.arraycopy(splitPacket.body, 0, lineKeyCiphertext, 0, LINE_KEY_CIPHERTEXT_BYTES);
+        System.arraycopy(
+                splitPacket.buffer, splitPacket.bodyOffset,
+                lineKeyCiphertext, 0,
+                LINE_KEY_CIPHERTEXT_BYTES
+        );
         byte[] signatureCiphertext = new byte[SIGNATURE_CIPHERTEXT_BYTES];
         System.arraycopy(
-                splitPacket.body, LINE_KEY_CIPHERTEXT_BYTES,
+                splitPacket.buffer, splitPacket.bodyOffset+LINE_KEY_CIPHERTEXT_BYTES,
                 signatureCiphertext, 0,
                 SIGNATURE_CIPHERTEXT_BYTES
         );
         byte[] innerPacketCiphertext = new byte[
-                splitPacket.body.length -
+                splitPacket.bodyLength -
                 LINE_KEY_CIPHERTEXT_BYTES -
                 SIGNATURE_CIPHERTEXT_BYTES
         ];
         System.arraycopy(
-                splitPacket.body, LINE_KEY_CIPHERTEXT_BYTES+SIGNATURE_CIPHERTEXT_BYTES,
+                splitPacket.buffer,
+                splitPacket.bodyOffset+LINE_KEY_CIPHERTEXT_BYTES+SIGNATURE_CIPHERTEXT_BYTES,
                 innerPacketCiphertext, 0,
                 innerPacketCiphertext.length
         );
@@ -386,7 +483,7 @@ public class CipherSet2aImpl implements CipherSet {
         // Extract the hashname public key of the sender from the inner
         // packet BODY (binary encoded format).
         HashNamePublicKey senderHashNamePublicKey =
-                decodeHashNamePublicKey(innerPacket.body);
+                decodeHashNamePublicKey(innerPacket.getBody());
 
         // derive the sender's hashname and create a node object
         //Node sourceNode = new Node(senderHashNamePublicKey, path);
@@ -465,10 +562,13 @@ public class CipherSet2aImpl implements CipherSet {
         // be the time of line key generation.
         open.setOpenTime(System.currentTimeMillis());
 
-        // generate the line key pair
-        LineKeyPair lineKeyPair = generateLineKeyPair();
-        open.setLinePublicKey(lineKeyPair.getPublicKey());
-        open.setLinePrivateKey(lineKeyPair.getPrivateKey());
+        // generate the line key pair, unless the caller has provided one
+        // (e.g. from a pool of pre-generated key pairs.)
+        if (open.getLinePrivateKey() == null) {
+            LineKeyPair lineKeyPair = generateLineKeyPair();
+            open.setLinePublicKey(lineKeyPair.getPublicKey());
+            open.setLinePrivateKey(lineKeyPair.getPrivateKey());
+        }
 
         // generate KEYC (the line key ciphertext) by encrypting the
         // public line key with the recipient's hashname public key.
@@ -584,22 +684,21 @@ public class CipherSet2aImpl implements CipherSet {
             Line line,
             byte[] channelPlaintext
     ) throws TelehashException {
-        Crypto crypto = Telehash.get().getCrypto();
-
-        // generate a random IV
-        byte[] iv = crypto.getRandomBytes(LINE_IV_SIZE);
-        if (iv.length != LINE_IV_SIZE) {
-            throw new TelehashException("line iv must be exactly 16 bytes");
+        // generate the IV (unique per packet, from the line's counter) and
+        // encrypt the channel packet using the line's cached cipher
+        LineCipherContextImpl context = getEncryptionContext(line);
+        byte[] iv;
+        byte[] channelCiphertext;
+        synchronized (context) {
+            iv = context.nextIV();
+            channelCiphertext = context.process(
+                    iv,
+                    channelPlaintext,
+                    0,
+                    channelPlaintext.length
+            );
         }
 
-        // encrypt the channel packet
-        byte[] channelCiphertext = encryptAES256GCM(
-                channelPlaintext,
-                iv,
-                line.getEncryptionKey(),
-                LINE_CHANNEL_MAC_BITS
-        );
-
         // assemble the inner (i.e. cipherset-generated) portion
         byte[] inner = Util.concatenateByteArrays(iv, channelCiphertext);
 
@@ -616,27 +715,46 @@ public class CipherSet2aImpl implements CipherSet {
      */
     @Override
     public byte[] parseLineInnerPacket(Line line, byte[] innerPacket) throws TelehashException {
-        Crypto crypto = Telehash.get().getCrypto();
+        return parseLineInnerPacket(line, innerPacket, 0, innerPacket.length);
+    }
 
+    /**
+     * Parse the "inner" (i.e. cipherset-dependent) portion of a line packet,
+     * reading it directly from a region of a larger buffer.
+     *
+     * @param line The line associated with this line packet.
+     * @param buffer The buffer containing the binary form of the inner packet.
+     * @param offset The offset of the inner packet within the buffer.
+     * @param length The length of the inner packet.
+     * @return The channel packet plaintext.
+     * @throws TelehashException
+     */
+    @Override
+    public byte[] parseLineInnerPacket(
+            Line line,
+            byte[] buffer,
+            int offset,
+            int length
+    ) throws TelehashException {
         // extract iv
-        if (innerPacket.length < LINE_IV_SIZE) {
+        if (length < LINE_IV_SIZE) {
             throw new TelehashException("invalid line packet");
         }
         byte[] iv = new byte[LINE_IV_SIZE];
-        System.arraycopy(innerPacket, 0, iv, 0, LINE_IV_SIZE);
-
-        // extract channel ciphertext
-        int channelCiphertextSize = innerPacket.length - LINE_IV_SIZE;
-        byte[] channelCiphertext = new byte[channelCiphertextSize];
-        System.arraycopy(innerPacket, LINE_IV_SIZE, channelCiphertext, 0, channelCiphertextSize);
-
-        // decrypt the channel ciphertext
-        byte[] channelPlaintext = decryptAES256GCM(
-                channelCiphertext,
-                iv,
-                line.getDecryptionKey(),
-                LINE_CHANNEL_MAC_BITS
-        );
+        System.arraycopy(buffer, offset, iv, 0, LINE_IV_SIZE);
+
+        // decrypt the channel ciphertext directly from the buffer, using the
+        // line's cached cipher
+        LineCipherContextImpl context = getDecryptionContext(line);
+        byte[] channelPlaintext;
+        synchronized (context) {
+            channelPlaintext = context.process(
+                    iv,
+                    buffer,
+                    offset + LINE_IV_SIZE,
+                    length - LINE_IV_SIZE
+            );
+        }
 
         return channelPlaintext;
     }
@@ -13,6 +13,7 @@ import org.spongycastle.crypto.params.RSAKeyParameters;
 import org.spongycastle.crypto.util.PublicKeyFactory;
 import org.telehash.core.CipherSetIdentifier;
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
 import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
 import org.telehash.core.Util;
@@ -149,7 +150,7 @@ public class HashNamePublicKeyImpl implements HashNamePublicKey {
         try {
             return Telehash.get().getCrypto().sha256Digest(getEncoded());
         } catch (TelehashException e) {
-            Log.e("sha256 failure", e);
+            Log.e(Category.CRYPTO, "sha256 failure", e);
             return null;
         }
     }
@@ -0,0 +1,107 @@
+package org.telehash.crypto.set2a;
+
+import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.TelehashException;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An AEAD provider using the platform's javax.crypto "AES/GCM/NoPadding"
+ * implementation, which on modern JVMs uses AES and carry-less multiply
+ * instructions where the hardware supports them.
+ *
+ * The JCE only accepts tags of 96 to 128 bits, so ciphers with smaller tags
+ * are obtained from a fallback provider.
+ */
+public class JCEAEADProvider implements AEADProvider {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int MINIMUM_TAG_BITS = 96;
+    private static final int MAXIMUM_TAG_BITS = 128;
+
+    private static class JCECipher implements AEADCipher {
+        private final Cipher mCipher;
+        private final SecretKeySpec mKey;
+        private final int mMode;
+        private final int mTagBits;
+
+        JCECipher(byte[] key, boolean forEncryption, int tagBits)
+                throws GeneralSecurityException {
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+            mKey = new SecretKeySpec(key, KEY_ALGORITHM);
+            mMode = forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+            mTagBits = tagBits;
+        }
+
+        @Override
+        public byte[] process(
+                byte[] iv,
+                byte[] buffer,
+                int offset,
+                int length
+        ) throws TelehashException {
+            try {
+                mCipher.init(mMode, mKey, new GCMParameterSpec(mTagBits, iv));
+                return mCipher.doFinal(buffer, offset, length);
+            } catch (GeneralSecurityException e) {
+                throw new TelehashException(e);
+            }
+        }
+    }
+
+    private final AEADProvider mFallbackProvider;
+    private final boolean mAvailable;
+
+    public JCEAEADProvider(AEADProvider fallbackProvider) {
+        mFallbackProvider = fallbackProvider;
+        mAvailable = isSupported();
+    }
+
+    /**
+     * Return true if the platform provides AES-256-GCM. (Some older JVMs
+     * lack GCM entirely, or restrict AES keys to 128 bits.)
+     */
+    public static boolean isSupported() {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(
+                    Cipher.ENCRYPT_MODE,
+                    new SecretKeySpec(new byte[32], KEY_ALGORITHM),
+                    new GCMParameterSpec(MAXIMUM_TAG_BITS, new byte[16])
+            );
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        } catch (LinkageError e) {
+            // GCMParameterSpec is not present before Java 7
+            return false;
+        }
+    }
+
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    @Override
+    public String getName() {
+        return mAvailable ? "jce" : mFallbackProvider.getName();
+    }
+
+    @Override
+    public AEADCipher createCipher(byte[] key, boolean forEncryption, int tagBits) {
+        if (mAvailable && tagBits >= MINIMUM_TAG_BITS && tagBits <= MAXIMUM_TAG_BITS) {
+            try {
+                return new JCECipher(key, forEncryption, tagBits);
+            } catch (GeneralSecurityException e) {
+                Log.w(Category.CRYPTO, "JCE AES/GCM unavailable, using %s", mFallbackProvider.getName(), e);
+            }
+        }
+        return mFallbackProvider.createCipher(key, forEncryption, tagBits);
+    }
+}
@@ -0,0 +1,58 @@
+package org.telehash.crypto.set2a;
+
+import org.telehash.core.TelehashException;
+import org.telehash.crypto.LineCipherContext;
+
+/**
+ * An AES-256-GCM cipher bound to a line key. Key-dependent state is derived
+ * once, when the context is created; each packet only supplies a new IV.
+ *
+ * The context is not thread-safe; callers must synchronize on it.
+ */
+public class LineCipherContextImpl implements LineCipherContext {
+    private final byte[] mKey;
+    private final AEADCipher mCipher;
+    private final LineIVGenerator mIVGenerator;
+
+    /**
+     * Construct a new LineCipherContextImpl.
+     *
+     * @param key The line key.
+     * @param cipher A cipher bound to the line key.
+     * @param ivGenerator The IV generator for outgoing packets, or null if
+     *        this is a decryption context.
+     */
+    public LineCipherContextImpl(byte[] key, AEADCipher cipher, LineIVGenerator ivGenerator) {
+        mKey = key;
+        mCipher = cipher;
+        mIVGenerator = ivGenerator;
+    }
+
+    @Override
+    public byte[] getKey() {
+        return mKey;
+    }
+
+    /**
+     * Return a new IV for an outgoing packet.
+     */
+    /* intentionally package-private */
+    byte[] nextIV() {
+        return mIVGenerator.next();
+    }
+
+    /**
+     * Encrypt or decrypt a packet with the specified IV.
+     *
+     * @param iv The initialization vector.
+     * @param buffer The buffer containing the input.
+     * @param offset The offset of the input within the buffer.
+     * @param length The length of the input.
+     * @return The output.
+     * @throws TelehashException If a problem occurred.
+     */
+    /* intentionally package-private */
+    byte[] process(byte[] iv, byte[] buffer, int offset, int length) throws TelehashException {
+        return mCipher.process(iv, buffer, offset, length);
+    }
+}
@@ -0,0 +1,57 @@
+package org.telehash.crypto.set2a;
+
+/**
+ * Generates unique 16-byte line packet IVs from a random per-line prefix and
+ * a 64-bit counter, so that no random number generation is needed per
+ * packet. Peers only read the IV from the packet, so the scheme is invisible
+ * to them.
+ *
+ * The IV layout is an 8-byte random prefix followed by the big-endian
+ * counter. A line key never encrypts more than 2^64 packets, so IVs never
+ * repeat under the same key.
+ *
+ * This class is not thread-safe.
+ */
+public class LineIVGenerator {
+    public static final int IV_SIZE = 16;
+    public static final int PREFIX_SIZE = 8;
+
+    private final byte[] mPrefix;
+    private long mCounter = 0;
+
+    /**
+     * Construct a new LineIVGenerator.
+     *
+     * @param prefix PREFIX_SIZE random bytes unique to this line.
+     */
+    public LineIVGenerator(byte[] prefix) {
+        if (prefix == null || prefix.length != PREFIX_SIZE) {
+            throw new IllegalArgumentException("invalid iv prefix");
+        }
+        mPrefix = prefix.clone();
+    }
+
+    /**
+     * Write the next IV into the provided buffer.
+     *
+     * @param buffer The output buffer.
+     * @param offset The offset at which to write IV_SIZE bytes.
+     */
+    public void next(byte[] buffer, int offset) {
+        System.arraycopy(mPrefix, 0, buffer, offset, PREFIX_SIZE);
+        long counter = mCounter++;
+        for (int i=IV_SIZE-1; i>=PREFIX_SIZE; i--) {
+            buffer[offset+i] = (byte)counter;
+            counter >>>= 8;
+        }
+    }
+
+    /**
+     * Return a newly allocated copy of the next IV.
+     */
+    public byte[] next() {
+        byte[] iv = new byte[IV_SIZE];
+        next(iv, 0);
+        return iv;
+    }
+}
@@ -0,0 +1,69 @@
+package org.telehash.crypto.set2a;
+
+import org.spongycastle.crypto.CryptoException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.telehash.core.TelehashException;
+
+/**
+ * An AEAD provider using the vendored pure-Java GCMBlockCipher on the
+ * spongycastle AES engine. This supports every tag size used by cipher
+ * set 2a, including the 32-bit and 64-bit MACs.
+ */
+public class SpongyCastleAEADProvider implements AEADProvider {
+
+    private static class Cipher implements AEADCipher {
+        private final byte[] mKey;
+        private final boolean mForEncryption;
+        private final int mTagBits;
+        private final GCMBlockCipher mCipher = new GCMBlockCipher(new AESEngine());
+        private boolean mKeyed = false;
+
+        Cipher(byte[] key, boolean forEncryption, int tagBits) {
+            mKey = key;
+            mForEncryption = forEncryption;
+            mTagBits = tagBits;
+        }
+
+        @Override
+        public byte[] process(
+                byte[] iv,
+                byte[] buffer,
+                int offset,
+                int length
+        ) throws TelehashException {
+            // a null key parameter re-uses the AES key schedule and the GCM
+            // multiplier tables from the previous init.
+            KeyParameter keyParameter = mKeyed ? null : new KeyParameter(mKey);
+            mCipher.init(mForEncryption, new AEADParameters(keyParameter, mTagBits, iv));
+            mKeyed = true;
+
+            byte[] output = new byte[mCipher.getOutputSize(length)];
+            int nbytes = mCipher.processBytes(buffer, offset, length, output, 0);
+            try {
+                nbytes += mCipher.doFinal(output, nbytes);
+            } catch (CryptoException e) {
+                throw new TelehashException(e);
+            }
+
+            // trim output if needed
+            if (nbytes < output.length) {
+                byte[] trimmedOutput = new byte[nbytes];
+                System.arraycopy(output, 0, trimmedOutput, 0, nbytes);
+                output = trimmedOutput;
+            }
+            return output;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "spongycastle";
+    }
+
+    @Override
+    public AEADCipher createCipher(byte[] key, boolean forEncryption, int tagBits) {
+        return new Cipher(key, forEncryption, tagBits);
+    }
+}
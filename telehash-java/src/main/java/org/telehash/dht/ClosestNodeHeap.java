@@ -0,0 +1,116 @@
+package org.telehash.dht;
+
+import org.telehash.core.HashName;
+import org.telehash.core.PeerNode;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Select the nodes closest to a target hash name from a stream of offered
+ * nodes, using a bounded max-heap keyed on xor distance. Once the heap is
+ * full, each offered node costs a single distance comparison against the
+ * farthest retained node, and nothing is allocated beyond the heap itself.
+ */
+public class ClosestNodeHeap {
+    private final HashName mTarget;
+    private final PeerNode[] mNodes;
+    private int mSize = 0;
+
+    /**
+     * Construct a new ClosestNodeHeap.
+     *
+     * @param target The target hash name.
+     * @param capacity The maximum number of nodes to retain.
+     */
+    public ClosestNodeHeap(HashName target, int capacity) {
+        mTarget = target;
+        mNodes = new PeerNode[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isFull() {
+        return mSize == mNodes.length;
+    }
+
+    /**
+     * Offer a node for selection.
+     *
+     * @param node The node.
+     * @return True if the node is (for now) among the closest nodes.
+     */
+    public boolean offer(PeerNode node) {
+        if (mSize < mNodes.length) {
+            mNodes[mSize] = node;
+            siftUp(mSize);
+            mSize++;
+            return true;
+        }
+        if (mSize == 0 || compare(node, mNodes[0]) >= 0) {
+            return false;
+        }
+        mNodes[0] = node;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Return the selected nodes sorted by increasing distance from the
+     * target. This empties the heap.
+     *
+     * @return The selected nodes.
+     */
+    public List<PeerNode> toSortedList() {
+        int count = mSize;
+        // heapsort in place: repeatedly move the farthest node to the end.
+        while (mSize > 1) {
+            mSize--;
+            swap(0, mSize);
+            siftDown(0);
+        }
+        mSize = 0;
+        PeerNode[] nodes = (count == mNodes.length) ? mNodes : Arrays.copyOf(mNodes, count);
+        return Arrays.asList(nodes);
+    }
+
+    private int compare(PeerNode a, PeerNode b) {
+        return mTarget.compareDistance(a.getHashName(), b.getHashName());
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(mNodes[index], mNodes[parent]) <= 0) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2*index + 1;
+            if (child >= mSize) {
+                return;
+            }
+            if (child + 1 < mSize && compare(mNodes[child + 1], mNodes[child]) > 0) {
+                child++;
+            }
+            if (compare(mNodes[child], mNodes[index]) <= 0) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        PeerNode node = mNodes[i];
+        mNodes[i] = mNodes[j];
+        mNodes[j] = node;
+    }
+}
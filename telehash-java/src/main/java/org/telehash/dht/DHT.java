@@ -12,17 +12,23 @@ import org.telehash.core.HashName;
 import org.telehash.core.Line;
 import org.telehash.core.LocalNode;
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
 import org.telehash.core.Node;
+import org.telehash.core.OnTimeoutListener;
 import org.telehash.core.PeerNode;
 import org.telehash.core.SeeNode;
 import org.telehash.core.SeedNode;
 import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
+import org.telehash.core.Timeout;
 import org.telehash.core.Util;
 import org.telehash.crypto.CipherSet;
 import org.telehash.crypto.HashNamePublicKey;
+import org.telehash.diagnostics.SwitchSnapshot;
 import org.telehash.network.InetPath;
 import org.telehash.network.Path;
+import org.telehash.storage.RoutingTableEntry;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -45,15 +51,26 @@ public class DHT {
     public static final String PEER_TYPE = "peer";
     public static final String PEER_KEY = "peer";
 
+    public static final int DEFAULT_MAXIMUM_RESTORED_LINKS = 32;
+    public static final long DEFAULT_ROUTING_TABLE_SAVE_INTERVAL = 5 * 60 * 1000;
+    public static final int DEFAULT_MINIMUM_RESTORED_LINKS = 4;
+    public static final long DEFAULT_RESTORE_GRACE_PERIOD = 2000;
+
     private Telehash mTelehash;
     private Set<SeedNode> mInitialSeeds;
     private NodeTracker mNodeTracker;
+    private NodeLookupManager mNodeLookupManager;
     private Object mInitFinishedLock = new Object();
     private boolean mInitFinished = false;
+    private String mRoutingTableFilename = null;
+    private int mMaximumRestoredLinks = DEFAULT_MAXIMUM_RESTORED_LINKS;
+    private Timeout mRoutingTableTimeout;
+    private RestoreTrigger mRestoreTrigger;
 
     public DHT(Telehash telehash, LocalNode localNode, Set<SeedNode> seeds) {
         mTelehash = telehash;
         mNodeTracker = new NodeTracker(localNode);
+        mNodeLookupManager = new NodeLookupManager(telehash, mNodeTracker);
         mInitialSeeds = seeds;
     }
 
@@ -62,6 +79,36 @@ public class DHT {
         return mNodeTracker;
     }
 
+    /**
+     * Configure the routing table's bucket sizes. This must be called
+     * before init().
+     *
+     * @param bucketSize The maximum number of links in each bucket (k).
+     * @param replacementCacheSize The maximum number of replacement
+     *        candidates remembered for each bucket.
+     */
+    public void setBucketSize(int bucketSize, int replacementCacheSize) {
+        mNodeTracker.setBucketSize(bucketSize, replacementCacheSize);
+    }
+
+    /**
+     * Configure persistence of the routing table. When a filename is set,
+     * init() re-links to the most recently seen nodes of the previous
+     * snapshot, and the snapshot is rewritten periodically and by close().
+     * Once a few restored links are active, init() proceeds without linking
+     * to the seeds, which are kept as replacement candidates instead. This
+     * must be called before init().
+     *
+     * @param routingTableFilename The snapshot filename, or null to disable
+     *        persistence.
+     * @param maximumRestoredLinks The maximum number of links to open to
+     *        previously seen nodes at startup.
+     */
+    public void setRoutingTableFile(String routingTableFilename, int maximumRestoredLinks) {
+        mRoutingTableFilename = routingTableFilename;
+        mMaximumRestoredLinks = maximumRestoredLinks;
+    }
+
     public void init() {
         // register to receive channel packets for our types
         mTelehash.getSwitch().registerChannelHandler(SEEK_TYPE, mChannelHandler);
@@ -88,15 +135,133 @@ public class DHT {
             }}
         );
 
-        // open link channels to all seeds
+        if (mRoutingTableFilename == null) {
+            linkSeeds(trigger);
+            return;
+        }
+
+        // re-link to the most recently seen nodes of the previous run. their
+        // buckets are then fresh, and are skipped by the bucket refresh. the
+        // seeds are only linked if the snapshot turns out to be stale.
+        mRestoreTrigger = new RestoreTrigger(trigger);
+        int linkCount = 0;
+        try {
+            List<RoutingTableEntry> entries =
+                    mTelehash.getStorage().readRoutingTable(mRoutingTableFilename);
+            Log.i("DHT: restore "+entries.size()+" nodes from routing table snapshot");
+            linkCount = mNodeTracker.restoreLinks(entries, mMaximumRestoredLinks, mRestoreTrigger);
+        } catch (TelehashException e) {
+            Log.w("DHT: cannot read routing table snapshot", e);
+        }
+        mRestoreTrigger.start(linkCount);
+        mRoutingTableTimeout = mTelehash.getSwitch().getTimeout(
+                mRoutingTableSaver,
+                DEFAULT_ROUTING_TABLE_SAVE_INTERVAL
+        );
+    }
+
+    private void linkSeeds(CounterTrigger trigger) {
+        int linkCount = 0;
         if (mInitialSeeds != null && (! mInitialSeeds.isEmpty())) {
             Log.i("DHT: link to initial seeds");
             for (SeedNode node : mInitialSeeds) {
                 mNodeTracker.openLink(node, trigger);
             }
-            trigger.setLimit(mInitialSeeds.size());
-        } else {
-            trigger.setLimit(0);
+            linkCount += mInitialSeeds.size();
+        }
+        trigger.setLimit(linkCount);
+    }
+
+    /**
+     * Follow the links restored from a routing table snapshot, and continue
+     * init once enough of them are active. If all of them finish without
+     * that, or they take longer than the grace period, the snapshot is
+     * considered stale and the seeds are linked instead.
+     */
+    private class RestoreTrigger extends CounterTrigger implements OnTimeoutListener {
+        private CounterTrigger mSeedTrigger;
+        private Timeout mGraceTimeout;
+        private int mLinks = 0;
+        private int mFinishedLinks = 0;
+        private boolean mStarted = false;
+        private boolean mDone = false;
+
+        public RestoreTrigger(CounterTrigger seedTrigger) {
+            super(null);
+            mSeedTrigger = seedTrigger;
+        }
+
+        public void start(int links) {
+            mLinks = links;
+            mStarted = true;
+            if (links > 0) {
+                mGraceTimeout = mTelehash.getSwitch().getTimeout(
+                        this, DEFAULT_RESTORE_GRACE_PERIOD);
+            }
+            check();
+        }
+
+        @Override
+        public void signal() {
+            mFinishedLinks++;
+            check();
+        }
+
+        @Override
+        public void handleTimeout() {
+            if (! mDone) {
+                Log.i("DHT: restored links not active within grace period");
+                finish(false);
+            }
+        }
+
+        private void check() {
+            if (mDone || ! mStarted) {
+                return;
+            }
+            int required = Math.min(DEFAULT_MINIMUM_RESTORED_LINKS, mLinks);
+            if (mLinks > 0 && mNodeTracker.getActiveLinkCount() >= required) {
+                finish(true);
+            } else if (mFinishedLinks >= mLinks) {
+                finish(false);
+            }
+        }
+
+        private void finish(boolean restored) {
+            mDone = true;
+            if (mGraceTimeout != null) {
+                mGraceTimeout.cancel();
+            }
+            if (restored) {
+                // the snapshot suffices, so keep the seeds in reserve.
+                Log.i("DHT: routing table restored; seeds kept as replacements");
+                if (mInitialSeeds != null) {
+                    for (SeedNode node : mInitialSeeds) {
+                        mNodeTracker.addReplacement(node);
+                    }
+                }
+                mSeedTrigger.setLimit(0);
+            } else {
+                linkSeeds(mSeedTrigger);
+            }
+        }
+    }
+
+    private OnTimeoutListener mRoutingTableSaver = new OnTimeoutListener() {
+        @Override
+        public void handleTimeout() {
+            writeRoutingTable();
+            mRoutingTableTimeout.reset();
+        }
+    };
+
+    private void writeRoutingTable() {
+        List<RoutingTableEntry> entries = mNodeTracker.getRoutingTableSnapshot();
+        try {
+            mTelehash.getStorage().writeRoutingTable(entries, mRoutingTableFilename);
+            Log.i("DHT: wrote "+entries.size()+" nodes to routing table snapshot");
+        } catch (TelehashException e) {
+            Log.w("DHT: cannot write routing table snapshot", e);
         }
     }
 
@@ -112,12 +277,28 @@ public class DHT {
         }
     }
 
-    public void dump() {
-        mNodeTracker.dump();
+    /** Return the number of links in the buckets. */
+    public int getLinkCount() {
+        return mNodeTracker.size();
+    }
+
+    /**
+     * Return the state of the non-empty buckets, for diagnostics.
+     */
+    public List<SwitchSnapshot.BucketInfo> getBucketSnapshots() {
+        return mNodeTracker.getBucketSnapshots();
     }
 
     public void close() {
-        mNodeTracker.dump();
+        if (Log.isEnabled(Category.DHT, Level.DEBUG)) {
+            Log.d(Category.DHT, "closing DHT; buckets: %s", mNodeTracker.getBucketSnapshots());
+        }
+        if (mRoutingTableFilename != null) {
+            if (mRoutingTableTimeout != null) {
+                mRoutingTableTimeout.cancel();
+            }
+            writeRoutingTable();
+        }
     }
 
     public void handleNewLine(Line line) {
@@ -216,7 +397,7 @@ public class DHT {
         }
 
         HashName target = new HashName(Util.hexToBytes(seekString));
-        Set<PeerNode> nodes = mNodeTracker.getClosestNodes(target, MAX_SEEK_NODES_RETURNED);
+        List<PeerNode> nodes = mNodeTracker.getClosestNodes(target, MAX_SEEK_NODES_RETURNED);
 
         StringBuilder log = new StringBuilder();
         log.append("processing: seek "+target+"\n");
@@ -356,18 +537,24 @@ public class DHT {
         mTelehash.getSwitch().getLineManager().openLine(node, false, null, null);
     }
 
+    public NodeLookupManager getNodeLookupManager() {
+        return mNodeLookupManager;
+    }
+
     /**
      * Initiate a node lookup of the specified hashname. The caller should
      * maintain a reference to the returned NodeLookupTask until it is no longer
      * needed, to avoid early garbage collection.
      *
+     * Concurrent lookups of the same hashname share a single task, and
+     * recently resolved hashnames are answered from a cache; see
+     * NodeLookupManager.
+     *
      * @param hashName
      * @param handler
-     * @return
+     * @return The lookup task, or null if the result was cached.
      */
     public NodeLookupTask nodeLookup(HashName hashName, NodeLookupTask.Handler handler) {
-        NodeLookupTask lookup = new NodeLookupTask(mTelehash, mNodeTracker, hashName, handler);
-        lookup.start();
-        return lookup;
+        return mNodeLookupManager.lookup(hashName, handler);
     }
-}
\ No newline at end of file
+}
@@ -8,6 +8,8 @@ import org.telehash.core.ChannelPacket;
 import org.telehash.core.CounterTrigger;
 import org.telehash.core.HashName;
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
 import org.telehash.core.Node;
 import org.telehash.core.OnTimeoutListener;
 import org.telehash.core.PeerNode;
@@ -15,6 +17,7 @@ import org.telehash.core.SeeNode;
 import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
 import org.telehash.core.Timeout;
+import org.telehash.diagnostics.SwitchSnapshot;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +30,9 @@ public class Link {
     private static final long MINIMUM_SEND_TIME = 30*NANOSECONDS_IN_SECOND;
     private static final long MAXIMUM_SEND_TIME = 55*NANOSECONDS_IN_SECOND;
     private static final long LINK_TIMEOUT = 120*NANOSECONDS_IN_SECOND;
+    // a reply later than this is assumed to be the peer's own keepalive
+    // rather than a response to ours, and is not used as an RTT sample.
+    private static final long MAXIMUM_RTT_SAMPLE = 10*NANOSECONDS_IN_SECOND;
 
     public enum State {
         PENDING,
@@ -39,23 +45,25 @@ public class Link {
     private Channel mChannel = null;
     private long mLastSend = 0L;
     private long mLastReceive = 0L;
+    private boolean mAwaitingReply = false;
+    private final long mCreationTime = now();
     private CounterTrigger mTrigger = null;
 
     private class Keepalive implements OnTimeoutListener {
         @Override
         public void handleTimeout() {
             if (Link.this.mState == State.ACTIVE) {
-                Log.i("LINK KEEPALIVE HANDLE"+Link.this);
+                Log.i(Category.DHT, "LINK KEEPALIVE HANDLE %s", Link.this);
                 mKeepaliveTimeout.cancel();
                 mKeepaliveTimeout.reset();
-                Log.i("LINK KEEPALIVE HANDLE/RESET: "+Link.this.mKeepaliveTimeout);
+                Log.i(Category.DHT, "LINK KEEPALIVE HANDLE/RESET: %s", Link.this.mKeepaliveTimeout);
                 Link.this.send();
             }
         }
     }
     private Keepalive mKeepalive = new Keepalive();
     private Timeout mKeepaliveTimeout =
-            Telehash.get().getSwitch().getTimeout(mKeepalive, 0);
+            Telehash.get().getSwitch().getLazyTimeout(mKeepalive, 0);
 
     @Override
     protected void finalize() throws Throwable {
@@ -75,12 +83,10 @@ public class Link {
         Telehash.get().getSwitch().openChannelNow(mNode, DHT.LINK_TYPE, new ChannelHandler() {
             @Override
             public void handleError(Channel channel, Throwable error) {
-                Log.e("DHT: problem linking to seed "+mNode+":", error);
+                Log.e(Category.DHT, "DHT: problem linking to seed %s:", mNode, error);
                 mState = State.CLOSED;
                 mNodeTracker.onLinkClose(Link.this);
-                if (mTrigger != null) {
-                    mTrigger.signal();
-                }
+                signalTrigger();
             }
             @Override
             public void handleIncoming(Channel channel,
@@ -90,7 +96,12 @@ public class Link {
             @Override
             public void handleOpen(Channel channel) {
                 Link.this.mChannel = channel;
-                Log.i("DHT XXX: link channel open: "+channel);
+                if (mState == State.CLOSED) {
+                    // the link was evicted or rejected before the channel opened
+                    close();
+                    return;
+                }
+                Log.i(Category.DHT, "link channel open: %s", channel);
                 send();
             }
         });
@@ -107,6 +118,23 @@ public class Link {
         mNodeTracker = nodeTracker;
         mChannel = channel;
         mNode = channel.getRemoteNode();
+        // later packets carry no type, so route them to this link rather
+        // than to the DHT's listening handler.
+        channel.setChannelHandler(new ChannelHandler() {
+            @Override
+            public void handleError(Channel channel, Throwable error) {
+                Log.e(Category.DHT, "DHT: problem with link from %s:", mNode, error);
+                mState = State.CLOSED;
+                mNodeTracker.onLinkClose(Link.this);
+            }
+            @Override
+            public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+                Link.this.handleIncoming(channelPacket);
+            }
+            @Override
+            public void handleOpen(Channel channel) {
+            }
+        });
         handleIncoming(channelPacket);
     }
 
@@ -118,14 +146,60 @@ public class Link {
         return mNode;
     }
 
+    /**
+     * Return the clock time in nanoseconds at which a message was last received on
+     * this link, or 0 if none has been received.
+     */
+    public long getLastReceiveTime() {
+        return mLastReceive;
+    }
+
+    /**
+     * Determine whether the peer has failed to send anything within the
+     * link timeout, counting from the link's creation if nothing has been
+     * received yet.
+     *
+     * @param now The current clock time in nanoseconds.
+     * @return True if the link is unresponsive.
+     */
+    public boolean isUnresponsive(long now) {
+        long lastActivity = Math.max(mLastReceive, mCreationTime);
+        return (now - lastActivity) > LINK_TIMEOUT;
+    }
+
+    private static long now() {
+        return Telehash.get().getClock().nanoTime();
+    }
+
     public void setTrigger(CounterTrigger trigger) {
         mTrigger = trigger;
     }
 
+    /**
+     * Signal the trigger, if any, that this link has either become active or
+     * failed. The trigger is signaled at most once.
+     */
+    private void signalTrigger() {
+        CounterTrigger trigger = mTrigger;
+        mTrigger = null;
+        if (trigger != null) {
+            trigger.signal();
+        }
+    }
+
     private void handleIncoming(ChannelPacket channelPacket) {
-        Log.i(String.format("LINK[%08x] IN line=%s channel=%s",
-                super.hashCode(), mChannel.getLine(), channelPacket.getChannelIdentifier()));
-        mLastReceive = System.nanoTime();
+        if (Log.isEnabled(Category.DHT, Level.INFO)) {
+            Log.i(Category.DHT, "LINK[%08x] IN line=%s channel=%s",
+                    super.hashCode(), mChannel.getLine(), channelPacket.getChannelIdentifier());
+        }
+        mLastReceive = now();
+        if (mAwaitingReply) {
+            mAwaitingReply = false;
+            long rtt = mLastReceive - mLastSend;
+            if (rtt < MAXIMUM_RTT_SAMPLE) {
+                mNodeTracker.getRttEstimator().addSample(mNode.getHashName(), rtt);
+            }
+        }
 
         if (channelPacket.isEnd()) {
             close();
@@ -138,13 +212,17 @@ public class Link {
         if (mState != State.ACTIVE) {
             mState = State.ACTIVE;
             mNodeTracker.onLinkActive(this);
-            if (mTrigger != null) {
-                mTrigger.signal();
-            }
+            signalTrigger();
 
             // establish a keepalive timer
             mKeepaliveTimeout.setDelay(MAXIMUM_SEND_TIME/1000000);
-            Log.i("KEEPALIVE: "+this+" setting to "+MAXIMUM_SEND_TIME/1000000000.0+" sec  timeout="+mKeepaliveTimeout);
+            if (Log.isEnabled(Category.DHT, Level.INFO)) {
+                Log.i(Category.DHT, "KEEPALIVE: %s setting to %s sec  timeout=%s",
+                        this, MAXIMUM_SEND_TIME/1000000000.0, mKeepaliveTimeout);
+            }
+        } else {
+            // keep the node tracker's buckets in last-seen order
+            mNodeTracker.onLinkSeen(this);
         }
 
         // parse any provided see nodes, and submit them to the DHT.
@@ -154,7 +232,7 @@ public class Link {
             try {
                 seeNodes = parseSee(seeArray, mChannel.getRemoteNode());
             } catch (TelehashException e) {
-                Log.e("bad see object in link channel");
+                Log.e(Category.DHT, "bad see object in link channel");
                 return;
             }
             // submit seeNodes to DHT for possible inclusion in buckets.
@@ -178,10 +256,12 @@ public class Link {
     }
 
     private void send() {
-        Log.i(String.format("LINK[%08x] OUT line=%s channel=%s",
-                super.hashCode(), mChannel.getLine(), mChannel.getChannelIdentifier()));
-        if ((System.nanoTime()-mLastSend) < MINIMUM_SEND_TIME) {
-            Log.i(String.format("LINK[%08x] OUT -- TOO SOON",super.hashCode()));
+        if (Log.isEnabled(Category.DHT, Level.INFO)) {
+            Log.i(Category.DHT, "LINK[%08x] OUT line=%s channel=%s",
+                    super.hashCode(), mChannel.getLine(), mChannel.getChannelIdentifier());
+        }
+        if ((now()-mLastSend) < MINIMUM_SEND_TIME) {
+            Log.i(Category.DHT, "LINK OUT -- TOO SOON");
             // too soon
             return;
         }
@@ -189,24 +269,29 @@ public class Link {
         linkMsg.put(DHT.SEED_KEY, true);
         try {
             mChannel.send(null, linkMsg, false);
-            mLastSend = System.nanoTime();
-            mKeepaliveTimeout.cancel();
+            mLastSend = now();
+            mAwaitingReply = true;
             mKeepaliveTimeout.reset();
-            Log.i("LINK KEEPALIVE SEND/RESET: "+Link.this.mKeepaliveTimeout);
+            Log.i(Category.DHT, "LINK KEEPALIVE SEND/RESET: %s", Link.this.mKeepaliveTimeout);
         } catch (TelehashException e) {
-            Log.e("DHT: problem sending link message: ", e);
+            Log.e(Category.DHT, "DHT: problem sending link message: ", e);
         }
     }
 
     public void close() {
         mState = State.CLOSED;
-        try {
-            mChannel.close();
-        } catch (TelehashException e) {
-            Log.e("problem closing link channel: ",e);
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (TelehashException e) {
+                Log.e(Category.DHT, "problem closing link channel: ", e);
+            }
         }
         mNodeTracker.onLinkClose(this);
         mKeepaliveTimeout.cancel();
+        // a link rejected or evicted before it became active still counts
+        // as finished.
+        signalTrigger();
     }
 
     private static Set<SeeNode> parseSee(
@@ -231,6 +316,19 @@ public class Link {
         return sees;
     }
 
+    /**
+     * Return the state of this link, for diagnostics.
+     */
+    public SwitchSnapshot.LinkInfo getSnapshot() {
+        long rtt = mNodeTracker.getRttEstimator().getSmoothedRtt(mNode.getHashName());
+        return new SwitchSnapshot.LinkInfo(
+                mNode.getHashName().asHex(),
+                mState.name(),
+                mLastReceive,
+                rtt == Long.MAX_VALUE ? -1 : rtt
+        );
+    }
+
     // Java identity
 
     @Override
@@ -3,7 +3,6 @@ package org.telehash.dht;
 import org.telehash.core.HashName;
 import org.telehash.core.Node;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 class NodeDistanceComparator implements Comparator<Node> {
@@ -13,8 +12,6 @@ class NodeDistanceComparator implements Comparator<Node> {
     }
     @Override
     public int compare(Node a, Node b) {
-        BigInteger da = mTargetHashName.distance(a.getHashName());
-        BigInteger db = mTargetHashName.distance(b.getHashName());
-        return da.compareTo(db);
+        return mTargetHashName.compareDistance(a.getHashName(), b.getHashName());
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package org.telehash.dht;
+
+import org.telehash.core.HashName;
+import org.telehash.core.Node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of node lookup results. Each result expires after a fixed
+ * time-to-live, and when the cache is full the least-recently used result
+ * is evicted.
+ *
+ * Times are supplied by the caller (normally Scheduler.getTime(), in
+ * nanoseconds), so that the cache can be driven by any clock.
+ */
+public class NodeLookupCache {
+
+    private static class Entry {
+        final Node mNode;
+        final long mExpirationTime;
+        Entry(Node node, long expirationTime) {
+            mNode = node;
+            mExpirationTime = expirationTime;
+        }
+    }
+
+    private final int mCapacity;
+    private final long mTimeToLive;
+    private final LinkedHashMap<HashName,Entry> mEntries;
+
+    /**
+     * Construct a new NodeLookupCache.
+     *
+     * @param capacity The maximum number of cached results.
+     * @param timeToLive The time in nanoseconds for which a result is valid.
+     */
+    public NodeLookupCache(final int capacity, long timeToLive) {
+        mCapacity = capacity;
+        mTimeToLive = timeToLive;
+        // access order, so iteration starts with the least-recently used entry.
+        mEntries = new LinkedHashMap<HashName,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashName,Entry> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Return the cached result for the target hash name.
+     *
+     * @param hashName The target hash name.
+     * @param now The current time in nanoseconds.
+     * @return The cached node, or null if there is no unexpired result.
+     */
+    public Node get(HashName hashName, long now) {
+        Entry entry = mEntries.get(hashName);
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.mExpirationTime >= 0) {
+            mEntries.remove(hashName);
+            return null;
+        }
+        return entry.mNode;
+    }
+
+    /**
+     * Cache the result of a lookup.
+     *
+     * @param hashName The target hash name.
+     * @param node The resolved node.
+     * @param now The current time in nanoseconds.
+     */
+    public void put(HashName hashName, Node node, long now) {
+        if (mCapacity <= 0 || node == null) {
+            return;
+        }
+        mEntries.put(hashName, new Entry(node, now + mTimeToLive));
+    }
+
+    /**
+     * Discard the cached result for the target hash name, e.g. because
+     * the node could not be reached.
+     *
+     * @param hashName The target hash name.
+     */
+    public void remove(HashName hashName) {
+        mEntries.remove(hashName);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+}
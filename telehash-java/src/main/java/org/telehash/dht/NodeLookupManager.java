@@ -0,0 +1,238 @@
+package org.telehash.dht;
+
+import org.telehash.core.HashName;
+import org.telehash.core.Log;
+import org.telehash.core.Node;
+import org.telehash.core.Scheduler;
+import org.telehash.core.Telehash;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.metrics.TelehashMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts node lookups on behalf of the DHT and its clients. Concurrent
+ * lookups of the same target are merged into a single NodeLookupTask whose
+ * result is delivered to every handler, and resolved nodes are cached for
+ * a limited time so that repeated lookups of the same target skip the
+ * iterative search.
+ *
+ * All methods must be called on the switch thread.
+ */
+public class NodeLookupManager {
+
+    public static final int DEFAULT_CACHE_CAPACITY = 256;
+    public static final long DEFAULT_CACHE_TTL = 60 * 1000;
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+    private static final int LATENCY_SAMPLES = 256;
+
+    private Telehash mTelehash;
+    private NodeTracker mNodeTracker;
+    private NodeLookupCache mCache;
+    private Map<HashName,PendingLookup> mPendingLookups = new HashMap<HashName,PendingLookup>();
+
+    private long mLookups = 0;
+    private long mCoalesced = 0;
+    private long mCacheHits = 0;
+
+    // the durations of the most recently finished lookup tasks, in
+    // nanoseconds. guarded by itself.
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    private int mLatencyCount = 0;
+
+    /**
+     * A lookup in progress, and the handlers awaiting its result.
+     */
+    private class PendingLookup implements NodeLookupTask.Handler {
+        final HashName mTarget;
+        final List<NodeLookupTask.Handler> mHandlers = new ArrayList<NodeLookupTask.Handler>(1);
+        final long mStartTime = mTelehash.getClock().nanoTime();
+        NodeLookupTask mTask;
+
+        PendingLookup(HashName target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void handleError(NodeLookupTask task, Throwable e) {
+            mPendingLookups.remove(mTarget);
+            recordCompletion(task, mTelehash.getClock().nanoTime() - mStartTime);
+            for (NodeLookupTask.Handler handler : mHandlers) {
+                handler.handleError(task, e);
+            }
+        }
+
+        @Override
+        public void handleCompletion(NodeLookupTask task, Node result) {
+            mPendingLookups.remove(mTarget);
+            recordCompletion(task, mTelehash.getClock().nanoTime() - mStartTime);
+            if (result != null && ! isSelf(mTarget)) {
+                mCache.put(mTarget, result, getScheduler().getTime());
+            }
+            for (NodeLookupTask.Handler handler : mHandlers) {
+                handler.handleCompletion(task, result);
+            }
+        }
+    }
+
+    public NodeLookupManager(Telehash telehash, NodeTracker nodeTracker) {
+        mTelehash = telehash;
+        mNodeTracker = nodeTracker;
+        mCache = new NodeLookupCache(
+                DEFAULT_CACHE_CAPACITY,
+                DEFAULT_CACHE_TTL * NANOSECONDS_PER_MILLISECOND
+        );
+    }
+
+    /**
+     * Configure the result cache, discarding any cached results.
+     *
+     * @param capacity The maximum number of cached results, or 0 to disable
+     *        caching.
+     * @param timeToLive The time in milliseconds for which a result is valid.
+     */
+    public void setCacheSize(int capacity, long timeToLive) {
+        mCache = new NodeLookupCache(capacity, timeToLive * NANOSECONDS_PER_MILLISECOND);
+    }
+
+    /**
+     * Look up the specified hashname. If a result is cached, the handler's
+     * handleCompletion() is invoked with a null task from a scheduler task
+     * rather than from within this call. If a lookup of the same hashname
+     * is already in progress, the handler is attached to it.
+     *
+     * Lookups of the local hashname (self-seeks) are never answered from
+     * the cache, since their purpose is the traversal itself.
+     *
+     * @param hashName The hashname to look up.
+     * @param handler The handler to notify of the result.
+     * @return The lookup task, or null if the result was cached.
+     */
+    public NodeLookupTask lookup(HashName hashName, final NodeLookupTask.Handler handler) {
+        mLookups++;
+        if (! isSelf(hashName)) {
+            final Node cached = mCache.get(hashName, getScheduler().getTime());
+            if (cached != null) {
+                mCacheHits++;
+                Log.i("node lookup cache hit: "+hashName.getShortHash());
+                getScheduler().addTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.handleCompletion(null, cached);
+                    }
+                }, 0);
+                return null;
+            }
+        }
+
+        PendingLookup pending = mPendingLookups.get(hashName);
+        if (pending != null) {
+            mCoalesced++;
+            Log.i("node lookup coalesced: "+hashName.getShortHash());
+            pending.mHandlers.add(handler);
+            return pending.mTask;
+        }
+
+        pending = new PendingLookup(hashName);
+        pending.mHandlers.add(handler);
+        pending.mTask = new NodeLookupTask(mTelehash, mNodeTracker, hashName, pending);
+        mPendingLookups.put(hashName, pending);
+        pending.mTask.start();
+        return pending.mTask;
+    }
+
+    /**
+     * Discard any cached result for the specified hashname, e.g. because
+     * the cached node could not be reached.
+     *
+     * @param hashName The hashname.
+     */
+    public void invalidate(HashName hashName) {
+        mCache.remove(hashName);
+    }
+
+    /** Return the number of lookups requested. */
+    public long getLookupCount() {
+        return mLookups;
+    }
+
+    /** Return the number of lookups merged into one already in progress. */
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /** Return the number of lookups answered from the cache. */
+    public long getCacheHitCount() {
+        return mCacheHits;
+    }
+
+    /** Return the number of lookups in progress. */
+    public int getPendingCount() {
+        return mPendingLookups.size();
+    }
+
+    /**
+     * Return the median duration of recently finished lookup tasks. This
+     * may be called from any thread.
+     *
+     * @return The median latency in nanoseconds, or -1 if no lookup has
+     *         finished.
+     */
+    public long getMedianLookupLatency() {
+        long[] latencies;
+        synchronized (mLatencies) {
+            if (mLatencyCount == 0) {
+                return -1;
+            }
+            latencies = Arrays.copyOf(mLatencies, Math.min(mLatencyCount, LATENCY_SAMPLES));
+        }
+        Arrays.sort(latencies);
+        return latencies[latencies.length / 2];
+    }
+
+    /**
+     * Return the state of the lookups in progress, for diagnostics.
+     */
+    public List<SwitchSnapshot.LookupInfo> getLookupSnapshots() {
+        long now = mTelehash.getClock().nanoTime();
+        List<SwitchSnapshot.LookupInfo> lookups =
+                new ArrayList<SwitchSnapshot.LookupInfo>(mPendingLookups.size());
+        for (PendingLookup lookup : mPendingLookups.values()) {
+            lookups.add(new SwitchSnapshot.LookupInfo(
+                    lookup.mTarget.asHex(),
+                    now - lookup.mStartTime,
+                    lookup.mHandlers.size()
+            ));
+        }
+        return lookups;
+    }
+
+    private void recordCompletion(NodeLookupTask task, long latency) {
+        addLatency(latency);
+        TelehashMetrics metrics = mTelehash.getMetrics();
+        metrics.getLookupDuration().record(latency);
+        if (task != null) {
+            metrics.getLookupIterations().record(task.getIterations());
+        }
+    }
+
+    private void addLatency(long latency) {
+        synchronized (mLatencies) {
+            mLatencies[mLatencyCount % LATENCY_SAMPLES] = latency;
+            mLatencyCount++;
+        }
+    }
+
+    private boolean isSelf(HashName hashName) {
+        return mTelehash.getLocalNode().getHashName().equals(hashName);
+    }
+
+    private Scheduler getScheduler() {
+        return mTelehash.getSwitch().getScheduler();
+    }
+}
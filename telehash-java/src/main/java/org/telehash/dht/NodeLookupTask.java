@@ -2,6 +2,8 @@ package org.telehash.dht;
 
 import org.telehash.core.HashName;
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
 import org.telehash.core.Node;
 import org.telehash.core.OnTimeoutListener;
 import org.telehash.core.PeerNode;
@@ -10,8 +12,9 @@ import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
 import org.telehash.core.Timeout;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -26,6 +29,14 @@ public class NodeLookupTask implements OnTimeoutListener {
      */
     private static final int QUERY_CONCURRENCY_PARAMETER = 3;
 
+    /**
+     * The concurrency grows by one, up to this limit, each time a seek times
+     * out, and shrinks back towards QUERY_CONCURRENCY_PARAMETER as seeks
+     * complete. Slow peers thus cost extra parallelism rather than extra
+     * lookup time.
+     */
+    private static final int MAXIMUM_QUERY_CONCURRENCY = 2*QUERY_CONCURRENCY_PARAMETER;
+
     /**
      * The Kademlia "k closest nodes" parameter. Since we're only using Kademlia
      * as a key-based routing scheme and not a full storage-capable DHT, our
@@ -50,8 +61,8 @@ public class NodeLookupTask implements OnTimeoutListener {
     private SortedSet<Node> mVisitedNodes;
     private Set<NodeSeekRequest> mOutstandingSeeks = new HashSet<NodeSeekRequest>();
     private int mIterations = 0;
+    private int mConcurrency = QUERY_CONCURRENCY_PARAMETER;
     private Node mClosestNode = null;
-    private BigInteger mClosestNodeDistance = null;
 
     private int mTimeoutInterval = DEFAULT_NODE_LOOKUP_TIMEOUT;
     private Timeout mTimeout;
@@ -98,6 +109,13 @@ public class NodeLookupTask implements OnTimeoutListener {
         }
     }
 
+    /**
+     * Return the number of iterations (rounds of seeks) performed so far.
+     */
+    public int getIterations() {
+        return mIterations;
+    }
+
     public Node getClosestVisitedNode() {
         return mVisitedNodes.first();
     }
@@ -110,13 +128,18 @@ public class NodeLookupTask implements OnTimeoutListener {
         // start with the set of nodes in our tracker that are closest to the target.
         mActive = true;
         mTimeout.setDelay(mTimeoutInterval);
-        Log.i("tracked nodes = "+mNodeTracker.size());
         mQueryNodes.addAll(mNodeTracker.getClosestNodes(mTargetHashName, CLOSENESS));
-        Log.i("adding initial query nodes = "+
-                mNodeTracker.getClosestNodes(mTargetHashName, CLOSENESS));
+        if (Log.isEnabled(Category.DHT, Level.INFO)) {
+            Log.i(Category.DHT, "tracked nodes = %d; initial query nodes = %s",
+                    mNodeTracker.size(), mQueryNodes);
+        }
         iterate();
     }
 
+    private boolean isCloser(Node a, Node b) {
+        return mTargetHashName.compareDistance(a.getHashName(), b.getHashName()) < 0;
+    }
+
     private String dumpNodes(SortedSet<Node> nodes) {
         StringBuilder sb = new StringBuilder();
         for (Node node : nodes) {
@@ -127,29 +150,32 @@ public class NodeLookupTask implements OnTimeoutListener {
     }
 
     private void iterate() {
-        Log.buffer();
-        try {
-            Log.d("node lookup "+mTargetHashName.getShortHash()+" iteration "+mIterations+" "+hashCode());
-            Log.d("  querynodes="+dumpNodes(mQueryNodes));
-            Log.d("  visitednodes="+dumpNodes(mVisitedNodes));
-            // remove already visited nodes from our set of queryable nodes
-            mQueryNodes.removeAll(mVisitedNodes);
-            Log.d("  querynodes="+dumpNodes(mQueryNodes));
-            Log.d("  outstandingSeeks="+mOutstandingSeeks);
-        } finally {
+        boolean debug = Log.isEnabled(Category.DHT, Level.DEBUG);
+        if (debug) {
+            Log.buffer();
+            Log.d(Category.DHT, "node lookup %s iteration %d %x",
+                    mTargetHashName.getShortHash(), mIterations, hashCode());
+            Log.d(Category.DHT, "  querynodes=%s", dumpNodes(mQueryNodes));
+            Log.d(Category.DHT, "  visitednodes=%s", dumpNodes(mVisitedNodes));
+        }
+        // remove already visited nodes from our set of queryable nodes
+        mQueryNodes.removeAll(mVisitedNodes);
+        if (debug) {
+            Log.d(Category.DHT, "  querynodes=%s", dumpNodes(mQueryNodes));
+            Log.d(Category.DHT, "  outstandingSeeks=%s", mOutstandingSeeks);
             Log.flush();
         }
 
         // if there are no queryable nodes, signal completion
         if (mQueryNodes.isEmpty()) {
-            Log.d("node lookup complete: no queryable nodes.");
+            Log.d(Category.DHT, "node lookup complete: no queryable nodes.");
             complete(null);
             return;
         }
 
         // if the target node is present in our set, signal completion
         if (mTargetHashName.equals(mQueryNodes.first().getHashName())) {
-            Log.d("node lookup complete: "+mQueryNodes.first());
+            Log.d(Category.DHT, "node lookup complete: %s", mQueryNodes.first());
             complete(mQueryNodes.first());
             return;
         }
@@ -158,54 +184,35 @@ public class NodeLookupTask implements OnTimeoutListener {
         if (mIterations > 0 &&
                 mClosestNode != null &&
                 (mIterations % QUERY_CONCURRENCY_PARAMETER) == 0) {
-            BigInteger distanceToClosestQueryNode =
-                    mQueryNodes.first().getHashName().distance(mTargetHashName);
-            if (distanceToClosestQueryNode.compareTo(mClosestNodeDistance) >= 0) {
-                Log.d("node lookup complete: converged");
+            if (mTargetHashName.compareDistance(
+                    mQueryNodes.first().getHashName(),
+                    mClosestNode.getHashName()
+            ) >= 0) {
+                Log.d(Category.DHT, "node lookup complete: converged");
                 complete(null);
                 return;
             }
 
             // record the closest node yet discovered
             Node candidate = null;
-            BigInteger candidateDistance = null;
             if (! mVisitedNodes.isEmpty()) {
                 candidate = mVisitedNodes.first();
-                candidateDistance = candidate.getHashName().distance(mTargetHashName);
             }
             if (candidate == null) {
                 candidate = mQueryNodes.first();
-                candidateDistance = candidate.getHashName().distance(mTargetHashName);
-            } else {
-                BigInteger dq = mQueryNodes.first().getHashName().distance(mTargetHashName);
-                if (dq.compareTo(candidateDistance) < 0) {
-                    candidate = mQueryNodes.first();
-                    candidateDistance = dq;
-                }
+            } else if (isCloser(mQueryNodes.first(), candidate)) {
+                candidate = mQueryNodes.first();
             }
-            if (mClosestNode != null) {
-                BigInteger dp = mClosestNode.getHashName().distance(mTargetHashName);
-                if (dp.compareTo(candidateDistance) < 0) {
-                    candidate = mClosestNode;
-                    candidateDistance = dp;
-                }
+            if (mClosestNode != null && isCloser(mClosestNode, candidate)) {
+                candidate = mClosestNode;
             }
             mClosestNode = candidate;
-            mClosestNodeDistance = candidateDistance;
         }
 
         // make a copy of the nodes to query, so we can safely append to mQueryNodes
         // from within the iteration
-        int additionalRequestsNeeded = QUERY_CONCURRENCY_PARAMETER - mOutstandingSeeks.size();
-        int seeks=0;
-        List<Node> currentQueryNodes = new ArrayList<Node>(additionalRequestsNeeded);
-        for (Node queryNode : mQueryNodes) {
-            currentQueryNodes.add(queryNode);
-            seeks++;
-            if (seeks >= additionalRequestsNeeded) {
-                break;
-            }
-        }
+        List<Node> currentQueryNodes =
+                selectQueryNodes(mConcurrency - mOutstandingSeeks.size());
 
         // provision/start the additional seek requests.
         for (Node queryNode : currentQueryNodes) {
@@ -221,8 +228,15 @@ public class NodeLookupTask implements OnTimeoutListener {
                             if (mFinished) {
                                 return;
                             }
-                            Log.i("error during seek: "+e.getMessage(), e);
+                            Log.i(Category.DHT, "error during seek: %s", e.getMessage(), e);
                             mOutstandingSeeks.remove(seek);
+                            if (seek.isTimedOut()) {
+                                mNodeTracker.getRttEstimator().addTimeout(
+                                        seek.getQueryNode().getHashName());
+                                if (mConcurrency < MAXIMUM_QUERY_CONCURRENCY) {
+                                    mConcurrency++;
+                                }
+                            }
                             iterate();
                         }
                         @Override
@@ -230,8 +244,15 @@ public class NodeLookupTask implements OnTimeoutListener {
                             if (mFinished) {
                                 return;
                             }
-                            Log.i("seek complete");
+                            Log.i(Category.DHT, "seek complete");
                             mOutstandingSeeks.remove(seek);
+                            mNodeTracker.getRttEstimator().addSample(
+                                    seek.getQueryNode().getHashName(),
+                                    seek.getRoundTripTime()
+                            );
+                            if (mConcurrency > QUERY_CONCURRENCY_PARAMETER) {
+                                mConcurrency--;
+                            }
 
                             // in case our node is present in the list, remove it
                             // since there's no point opening a line to ourselves.
@@ -262,6 +283,7 @@ public class NodeLookupTask implements OnTimeoutListener {
                         }
                     }
             );
+            seek.setTimeout(mNodeTracker.getRttEstimator().getTimeout(queryNode.getHashName()));
             mOutstandingSeeks.add(seek);
             mVisitedNodes.add(queryNode);
             seek.start();
@@ -270,18 +292,66 @@ public class NodeLookupTask implements OnTimeoutListener {
         mIterations++;
     }
 
+    /**
+     * Select the next nodes to query, closest to the target first. Nodes
+     * at the same distance magnitude from the target are equally useful for
+     * convergence, so among the nodes sharing the magnitude of the last
+     * selected node, those with the lowest smoothed round-trip time are
+     * preferred.
+     *
+     * @param count The number of nodes to select.
+     * @return The selected nodes.
+     */
+    private List<Node> selectQueryNodes(int count) {
+        List<Node> candidates = new ArrayList<Node>();
+        if (count <= 0) {
+            return candidates;
+        }
+        int tieStart = 0;
+        int tieMagnitude = -2;
+        for (Node node : mQueryNodes) {
+            int magnitude = node.getHashName().distanceMagnitude(mTargetHashName);
+            if (magnitude != tieMagnitude) {
+                if (candidates.size() >= count) {
+                    break;
+                }
+                tieStart = candidates.size();
+                tieMagnitude = magnitude;
+            }
+            candidates.add(node);
+        }
+        if (candidates.size() > count) {
+            final RttEstimator rttEstimator = mNodeTracker.getRttEstimator();
+            Collections.sort(
+                    candidates.subList(tieStart, candidates.size()),
+                    new Comparator<Node>() {
+                        @Override
+                        public int compare(Node a, Node b) {
+                            long rttA = rttEstimator.getSmoothedRtt(a.getHashName());
+                            long rttB = rttEstimator.getSmoothedRtt(b.getHashName());
+                            return (rttA < rttB) ? -1 : ((rttA > rttB) ? 1 : 0);
+                        }
+                    }
+            );
+            candidates = new ArrayList<Node>(candidates.subList(0, count));
+        }
+        return candidates;
+    }
+
     private void fail(Throwable e) {
         if (mFinished) {
-            Log.w("node lookup FAIL-AFTER-FINISH: " + mTargetHashName.getShortHash()
-                    + " iteration " + mIterations + " " + hashCode(),
+            Log.w("node lookup FAIL-AFTER-FINISH: %s iteration %d %x",
+                    mTargetHashName.getShortHash(), mIterations, hashCode(),
                     new TelehashException("here"));
             return;
         }
         mFinished = true;
         mTimeout.cancel();
 
-        Log.w("node lookup FAILURE: " + mTargetHashName.getShortHash()
-                + " iteration " + mIterations + " " + hashCode());
+        if (Log.isEnabled(Category.DHT, Level.WARNING)) {
+            Log.w(Category.DHT, "node lookup FAILURE: %s iteration %d %x",
+                    mTargetHashName.getShortHash(), mIterations, hashCode());
+        }
         if (mHandler != null) {
             mHandler.handleError(this, e);
         }
@@ -289,16 +359,18 @@ public class NodeLookupTask implements OnTimeoutListener {
 
     private void complete(Node node) {
         if (mFinished) {
-            Log.w("node lookup COMPLETE-AFTER-FINISH: " + mTargetHashName.getShortHash()
-                    + " iteration " + mIterations + " " + hashCode(),
+            Log.w("node lookup COMPLETE-AFTER-FINISH: %s iteration %d %x",
+                    mTargetHashName.getShortHash(), mIterations, hashCode(),
                     new TelehashException("here"));
             return;
         }
         mFinished = true;
         mTimeout.cancel();
 
-        Log.w("node lookup COMPLETE: " + mTargetHashName.getShortHash()
-                + " iteration " + mIterations + " " + hashCode());
+        if (Log.isEnabled(Category.DHT, Level.WARNING)) {
+            Log.w(Category.DHT, "node lookup COMPLETE: %s iteration %d %x",
+                    mTargetHashName.getShortHash(), mIterations, hashCode());
+        }
         if (mHandler != null) {
             mHandler.handleCompletion(this, node);
         }
@@ -7,11 +7,14 @@ import org.telehash.core.ChannelHandler;
 import org.telehash.core.ChannelPacket;
 import org.telehash.core.HashName;
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
 import org.telehash.core.Node;
+import org.telehash.core.OnTimeoutListener;
 import org.telehash.core.PeerNode;
 import org.telehash.core.SeeNode;
 import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
+import org.telehash.core.Timeout;
 import org.telehash.core.Util;
 
 import java.util.HashMap;
@@ -22,7 +25,7 @@ import java.util.Set;
 /**
  * Handle a single seek/see transaction.
  */
-public class NodeSeekRequest {
+public class NodeSeekRequest implements OnTimeoutListener {
 
     private static final String SEEK_TYPE = "seek";
     private static final String SEEK_KEY = "seek";
@@ -38,6 +41,12 @@ public class NodeSeekRequest {
     private HashName mTargetHashName;
     private Handler mHandler;
     private Set<SeeNode> mResultNodes;
+    private Timeout mTimeout;
+    private long mTimeoutInterval = 0;
+    private long mSendTime = 0L;
+    private long mRoundTripTime = -1L;
+    private boolean mTimedOut = false;
+    private boolean mFinished = false;
 
     public NodeSeekRequest(
             Telehash telehash,
@@ -49,29 +58,65 @@ public class NodeSeekRequest {
         mQueryNode = queryNode;
         mTargetHashName = targetHashName;
         mHandler = handler;
-        Log.i("NodeSeekRequest="+this+" mQueryNode="+mQueryNode+" mTargetHashName="+mTargetHashName);
+        mTimeout = telehash.getSwitch().getTimeout(this, 0);
+        Log.i(Category.DHT, "NodeSeekRequest=%s mQueryNode=%s mTargetHashName=%s",
+                this, mQueryNode, mTargetHashName);
     }
 
     public Set<SeeNode> getResultNodes() {
         return mResultNodes;
     }
 
+    public Node getQueryNode() {
+        return mQueryNode;
+    }
+
+    /**
+     * Fail the seek if no response has arrived within the specified
+     * interval of start(). This must be called before start().
+     *
+     * @param timeout The timeout in milliseconds, or 0 to rely on the
+     *        channel's own timeout.
+     */
+    public void setTimeout(long timeout) {
+        mTimeoutInterval = timeout;
+    }
+
+    /**
+     * Return the time between sending the seek and receiving its response,
+     * in nanoseconds, or -1 if the seek has not completed.
+     */
+    public long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /**
+     * Return true if the seek failed because no response arrived within
+     * its timeout.
+     */
+    public boolean isTimedOut() {
+        return mTimedOut;
+    }
+
     public void start() {
-        Log.i("open seek channel to node: "+mQueryNode);
+        Log.i(Category.DHT, "open seek channel to node: %s", mQueryNode);
+        if (mTimeoutInterval > 0) {
+            mTimeout.setDelay(mTimeoutInterval);
+        }
         mTelehash.getSwitch().openChannel(mQueryNode, SEEK_TYPE, new ChannelHandler() {
             @Override
             public void handleError(Channel channel, Throwable error) {
-                Log.i("seek channel error: "+error.getMessage());
+                Log.i(Category.DHT, "seek channel error: %s", error.getMessage());
                 fail(error);
             }
             @Override
             public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
-                Log.i("seek channel incoming");
+                Log.i(Category.DHT, "seek channel incoming");
                 parseResult(channelPacket);
             }
             @Override
             public void handleOpen(Channel channel) {
-                Log.i("seek channel open");
+                Log.i(Category.DHT, "seek channel open");
                 Map<String,Object> fields = new HashMap<String,Object>();
 
                 // To protect the user's privacy, only provide enough of the target hashname
@@ -92,6 +137,7 @@ public class NodeSeekRequest {
                 fields.put(SEEK_KEY, Util.bytesToHex(target));
                 try {
                     channel.send(null, fields, false);
+                    mSendTime = mTelehash.getClock().nanoTime();
                 } catch (TelehashException e) {
                     fail(e);
                     return;
@@ -101,6 +147,9 @@ public class NodeSeekRequest {
     }
 
     private void parseResult(ChannelPacket channelPacket) {
+        if (mFinished) {
+            return;
+        }
         Object seeObject = channelPacket.get(SEE_KEY);
         if (! (seeObject instanceof JSONArray)) {
             fail(new TelehashException("'see' object not an array"));
@@ -135,13 +184,29 @@ public class NodeSeekRequest {
         }
 
         // signal success/finish
+        mFinished = true;
+        mTimeout.cancel();
+        if (mSendTime != 0L) {
+            mRoundTripTime = mTelehash.getClock().nanoTime() - mSendTime;
+        }
         mHandler.handleCompletion(this);
     }
 
     private void fail(Throwable e) {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mTimeout.cancel();
         mHandler.handleError(this, e);
     }
 
+    @Override
+    public void handleTimeout() {
+        mTimedOut = true;
+        fail(new TelehashException("seek timeout: "+this));
+    }
+
     @Override
     public String toString() {
         return "seek<"+mQueryNode.getHashName().getShortHash()+">";
@@ -2,8 +2,10 @@ package org.telehash.dht;
 
 import org.telehash.core.Channel;
 import org.telehash.core.ChannelPacket;
+import org.telehash.core.CipherSetIdentifier;
 import org.telehash.core.CompletionHandler;
 import org.telehash.core.CounterTrigger;
+import org.telehash.core.FullNode;
 import org.telehash.core.HashName;
 import org.telehash.core.Line;
 import org.telehash.core.LocalNode;
@@ -11,68 +13,152 @@ import org.telehash.core.Log;
 import org.telehash.core.Node;
 import org.telehash.core.PeerNode;
 import org.telehash.core.SeeNode;
+import org.telehash.core.SeedNode;
 import org.telehash.core.Telehash;
+import org.telehash.crypto.HashNamePublicKey;
+import org.telehash.diagnostics.SwitchSnapshot;
 import org.telehash.network.Path;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import org.telehash.storage.RoutingTableEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
 
 public class NodeTracker {
     private static final int BUCKET_COUNT = 256;
-    private static final int MAX_BUCKET_SIZE = 9;
+    public static final int DEFAULT_BUCKET_SIZE = 9;
+    public static final int DEFAULT_REPLACEMENT_CACHE_SIZE = 9;
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
     private static final long NANOSECONDS_PER_SECOND = 1000000L;
     private static final long NANOSECONDS_PER_HOUR = 3600 * NANOSECONDS_PER_SECOND;
     private static final long BUCKET_REFRESH_TIME_NS = 1 * NANOSECONDS_PER_HOUR;
 
-    private static class Bucket {
-        Map<HashName,Link> mLinks = new HashMap<HashName,Link>();
+    /**
+     * A k-bucket. "Each k-bucket is kept sorted by time last seen --
+     * least-recently seen node at the head, most-recently seen at the tail."
+     * When the bucket is full, a new node replaces the least-recently seen
+     * node only if that node has become unresponsive; otherwise the new node
+     * is remembered in a bounded replacement cache, from which vacancies are
+     * filled.
+     */
+    private class Bucket {
+        // links in order of last seen time, least-recently seen first.
+        LinkedHashMap<HashName,Link> mLinks = new LinkedHashMap<HashName,Link>();
+        // candidate nodes in order of last seen time, least-recently seen first.
+        LinkedHashMap<HashName,PeerNode> mReplacements = new LinkedHashMap<HashName,PeerNode>();
         long mLastNodeLookupTime = -1;
 
         // TODO: get count of nodes in each state
 
-        // TODO:
-        // "Each k-bucket is kept sorted by time last seen -- least-recently
-        // seen node at the head, most-recently seen at the tail."
-
         public int size() {
             return mLinks.size();
         }
 
         public void addLink(Link link) {
-            if (mLinks.containsKey(link.getNode().getHashName())) {
+            if (link.getState() == Link.State.CLOSED) {
+                return;
+            }
+            HashName hashName = link.getNode().getHashName();
+            Link existing = mLinks.get(hashName);
+            if (existing == link) {
+                touch(link);
+                return;
+            }
+            if (existing != null) {
                 // already present in bucket
                 Log.w("BUCKET: "+link+" already present.");
                 return;
             }
-            if (mLinks.size() == MAX_BUCKET_SIZE) {
-                // TODO: take action to possibly prune the bucket
+            Link evicted = null;
+            if (mLinks.size() >= mBucketSize) {
+                Link leastRecentlySeen = mLinks.values().iterator().next();
+                if (! leastRecentlySeen.isUnresponsive(now())) {
+                    // keep the responsive incumbent, and remember the new node.
+                    addReplacement(link.getNode());
+                    Log.w("BUCKET: "+link+" not added -- max size reached.");
+                    link.close();
+                    return;
+                }
+                Log.i("BUCKET: evicting unresponsive "+leastRecentlySeen+" for "+link);
+                mLinks.remove(leastRecentlySeen.getNode().getHashName());
+                mLinkCount--;
+                evicted = leastRecentlySeen;
+            }
+            mReplacements.remove(hashName);
+            mLinks.put(hashName, link);
+            mLinkCount++;
+            mLastNodeLookupTime = now();
+            if (evicted != null) {
+                evicted.close();
+            }
+        }
 
-                link.close();
-                Log.w("BUCKET: "+link+" not added -- max size reached.");
-                return;
+        /**
+         * Move the link to the most-recently seen position.
+         */
+        public void touch(Link link) {
+            HashName hashName = link.getNode().getHashName();
+            if (mLinks.get(hashName) == link) {
+                mLinks.remove(hashName);
+                mLinks.put(hashName, link);
             }
-            mLinks.put(link.getNode().getHashName(), link);
-            mLastNodeLookupTime = System.nanoTime();
         }
 
-        public void removeLink(Link link) {
-            mLinks.remove(link);
+        /**
+         * Remove the link from the bucket.
+         *
+         * @return The most-recently seen replacement node, which should be
+         *         linked to fill the vacancy, or null.
+         */
+        public PeerNode removeLink(Link link) {
+            HashName hashName = link.getNode().getHashName();
+            if (mLinks.get(hashName) != link) {
+                return null;
+            }
+            mLinks.remove(hashName);
+            mLinkCount--;
+            PeerNode replacement = null;
+            for (PeerNode node : mReplacements.values()) {
+                replacement = node;
+            }
+            if (replacement != null) {
+                mReplacements.remove(replacement.getHashName());
+            }
+            return replacement;
         }
 
-        public void accumulateActiveNodes(Set<PeerNode> nodes) {
+        private void addReplacement(PeerNode node) {
+            mReplacements.remove(node.getHashName());
+            mReplacements.put(node.getHashName(), node);
+            while (mReplacements.size() > mReplacementCacheSize) {
+                Iterator<HashName> iterator = mReplacements.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        public void offerActiveNodes(ClosestNodeHeap heap) {
             for (Link link : mLinks.values()) {
                 if (link.getState() == Link.State.ACTIVE) {
-                    nodes.add(link.getNode());
+                    heap.offer(link.getNode());
                 }
             }
         }
     }
 
     private Bucket[] mBuckets = new Bucket[BUCKET_COUNT];
+    // the number of links in all buckets.
+    private int mLinkCount = 0;
     private LocalNode mLocalNode;
+    private int mBucketSize = DEFAULT_BUCKET_SIZE;
+    private int mReplacementCacheSize = DEFAULT_REPLACEMENT_CACHE_SIZE;
+    private RttEstimator mRttEstimator = new RttEstimator();
 
     public NodeTracker(LocalNode localNode) {
         mLocalNode = localNode;
@@ -82,12 +168,35 @@ public class NodeTracker {
         }
     }
 
-    public int size() {
-        int size = 0;
-        for (int i=0; i<BUCKET_COUNT; i++) {
-            size += mBuckets[i].size();
+    /**
+     * Configure the bucket sizes.
+     *
+     * @param bucketSize The maximum number of links in each bucket (k).
+     * @param replacementCacheSize The maximum number of replacement
+     *        candidates remembered for each bucket.
+     */
+    public void setBucketSize(int bucketSize, int replacementCacheSize) {
+        if (bucketSize < 1 || replacementCacheSize < 0) {
+            throw new IllegalArgumentException("invalid bucket size");
         }
-        return size;
+        mBucketSize = bucketSize;
+        mReplacementCacheSize = replacementCacheSize;
+    }
+
+    public int getBucketSize() {
+        return mBucketSize;
+    }
+
+    /**
+     * Return the round-trip time estimates of known peers, which are fed by
+     * seek responses and link keepalives.
+     */
+    public RttEstimator getRttEstimator() {
+        return mRttEstimator;
+    }
+
+    public int size() {
+        return mLinkCount;
     }
 
     /**
@@ -125,14 +234,147 @@ public class NodeTracker {
         getBucket(channel.getRemoteNode()).addLink(link);
     }
 
+    /**
+     * Open links to the nodes of a routing table snapshot, most recently
+     * seen first. Nodes which would overflow their bucket are remembered as
+     * replacement candidates instead.
+     *
+     * This method is intentionally package-private.
+     *
+     * @param entries The snapshot entries.
+     * @param maxLinks The maximum number of links to open.
+     * @param trigger The trigger to signal as each link finishes opening.
+     * @return The number of links opened, each of which will signal the
+     *         trigger.
+     */
+    int restoreLinks(List<RoutingTableEntry> entries, int maxLinks, CounterTrigger trigger) {
+        List<RoutingTableEntry> sorted = new ArrayList<RoutingTableEntry>(entries);
+        Collections.sort(sorted, new Comparator<RoutingTableEntry>() {
+            @Override
+            public int compare(RoutingTableEntry a, RoutingTableEntry b) {
+                long seenA = a.getLastSeenTime();
+                long seenB = b.getLastSeenTime();
+                return (seenA > seenB) ? -1 : ((seenA < seenB) ? 1 : 0);
+            }
+        });
+        int count = 0;
+        for (RoutingTableEntry entry : sorted) {
+            PeerNode node = entry.getNode();
+            Bucket bucket = getBucket(node);
+            if (bucket == null || bucket.mLinks.containsKey(node.getHashName())) {
+                continue;
+            }
+            if (count >= maxLinks || bucket.size() >= mBucketSize) {
+                bucket.addReplacement(node);
+                continue;
+            }
+            openLink(node, trigger);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Remember a node as a replacement candidate for its bucket, to be
+     * linked when a vacancy arises, rather than linking to it now.
+     *
+     * This method is intentionally package-private.
+     *
+     * @param node The node.
+     */
+    void addReplacement(PeerNode node) {
+        Bucket bucket = getBucket(node);
+        if (bucket == null || bucket.mLinks.containsKey(node.getHashName())) {
+            return;
+        }
+        bucket.addReplacement(node);
+    }
+
+    /**
+     * Return the number of links which are active.
+     *
+     * This method is intentionally package-private.
+     */
+    int getActiveLinkCount() {
+        int count = 0;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            for (Link link : mBuckets[i].mLinks.values()) {
+                if (link.getState() == Link.State.ACTIVE) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return a snapshot of the active links, suitable for persisting with
+     * Storage.writeRoutingTable(). Nodes whose fingerprints, public key, or
+     * paths are unknown cannot be re-linked later, and are omitted.
+     *
+     * @return The snapshot entries.
+     */
+    public List<RoutingTableEntry> getRoutingTableSnapshot() {
+        List<RoutingTableEntry> entries = new ArrayList<RoutingTableEntry>();
+        long nowNanos = now();
+        long nowMillis = Telehash.get().getClock().currentTimeMillis();
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            for (Link link : mBuckets[i].mLinks.values()) {
+                if (link.getState() != Link.State.ACTIVE) {
+                    continue;
+                }
+                PeerNode node = link.getNode();
+                SortedMap<CipherSetIdentifier,HashNamePublicKey> publicKeys;
+                if (node instanceof FullNode) {
+                    publicKeys = ((FullNode)node).getPublicKeys();
+                } else {
+                    publicKeys = new TreeMap<CipherSetIdentifier,HashNamePublicKey>();
+                    if (node.getActiveCipherSetIdentifier() != null &&
+                            node.getActivePublicKey() != null) {
+                        publicKeys.put(
+                                node.getActiveCipherSetIdentifier(),
+                                node.getActivePublicKey()
+                        );
+                    }
+                }
+                if (node.getFingerprints() == null ||
+                        publicKeys == null ||
+                        publicKeys.isEmpty() ||
+                        node.getPaths().isEmpty()) {
+                    continue;
+                }
+                long lastSeen = nowMillis -
+                        (nowNanos - link.getLastReceiveTime()) / NANOSECONDS_PER_MILLISECOND;
+                entries.add(new RoutingTableEntry(
+                        new SeedNode(node.getFingerprints(), publicKeys, node.getPaths()),
+                        lastSeen
+                ));
+            }
+        }
+        return entries;
+    }
+
     /** intentionally package-private */
     void onLinkActive(Link link) {
         getBucket(link.getNode()).addLink(link);
     }
 
+    /** intentionally package-private */
+    void onLinkSeen(Link link) {
+        getBucket(link.getNode()).touch(link);
+    }
+
     /** intentionally package-private */
     void onLinkClose(Link link) {
-        getBucket(link.getNode()).removeLink(link);
+        PeerNode replacement = getBucket(link.getNode()).removeLink(link);
+        if (replacement != null) {
+            Log.i("BUCKET: replacing "+link+" with "+replacement.getHashName().getShortHash());
+            openLink(replacement, null);
+        }
+    }
+
+    private static long now() {
+        return Telehash.get().getClock().nanoTime();
     }
 
     private boolean linkExists(Node node) {
@@ -190,52 +432,53 @@ public class NodeTracker {
     */
 
     /**
-     * Fetch a set of nodes closest to the target hashname.
+     * Fetch the nodes closest to the target hashname.
+     *
+     * Buckets are scanned in order of increasing xor distance from the
+     * target, and scanning stops once enough nodes have been found in
+     * buckets which are all closer than the remaining ones.
      *
      * @param targetHashName
      *            The target hash name.
      * @param maxNodes
      *            The maximum number of nodes to fetch.
-     * @return A set of nodes sorted by increasing distance from the target
+     * @return A list of nodes sorted by increasing distance from the target
      *         hashname.
      */
-    public SortedSet<PeerNode> getClosestNodes(HashName targetHashName, int maxNodes) {
-        SortedSet<PeerNode> sortedNodes =
-                new TreeSet<PeerNode>(new NodeDistanceComparator(targetHashName));
+    public List<PeerNode> getClosestNodes(HashName targetHashName, int maxNodes) {
+        ClosestNodeHeap heap = new ClosestNodeHeap(targetHashName, maxNodes);
 
         // determine the starting bucket based on the distance from me.
         int startingBucket = mLocalNode.getHashName().distanceMagnitude(targetHashName);
         if (startingBucket == -1) {
-            // the target node is ourself -- scan all buckets
-            for (int i=0; i<BUCKET_COUNT && sortedNodes.size() < maxNodes; i++) {
-                mBuckets[i].accumulateActiveNodes(sortedNodes);
+            // the target node is ourself -- nodes in bucket i are at
+            // distance magnitude i, so scan upwards from the closest bucket.
+            for (int i=0; i<BUCKET_COUNT && ! heap.isFull(); i++) {
+                mBuckets[i].offerActiveNodes(heap);
             }
         } else {
-            // the target node is not ourself -- scan the target bucket
-            // first, followed by closer buckets, followed by farther buckets.
+            // the target node is not ourself. nodes in the target bucket
+            // are closest to it; nodes in all closer buckets are at distance
+            // magnitude startingBucket; nodes in a farther bucket i are at
+            // distance magnitude i.
 
             // scan the target bucket
-            mBuckets[startingBucket].accumulateActiveNodes(sortedNodes);
+            mBuckets[startingBucket].offerActiveNodes(heap);
 
             // scan closer buckets
-            for (int i = (startingBucket - 1); i >= 0 && sortedNodes.size() < maxNodes; i--) {
-                mBuckets[i].accumulateActiveNodes(sortedNodes);
+            if (! heap.isFull()) {
+                for (int i = (startingBucket - 1); i >= 0; i--) {
+                    mBuckets[i].offerActiveNodes(heap);
+                }
             }
 
             // scan farther buckets
-            for (int i = (startingBucket + 1);
-                    i < BUCKET_COUNT && sortedNodes.size() < maxNodes;
-                    i++) {
-                mBuckets[i].accumulateActiveNodes(sortedNodes);
+            for (int i = (startingBucket + 1); i < BUCKET_COUNT && ! heap.isFull(); i++) {
+                mBuckets[i].offerActiveNodes(heap);
             }
         }
 
-        // trim nodes
-        while (sortedNodes.size() > maxNodes) {
-            sortedNodes.remove(sortedNodes.last());
-        }
-
-        return sortedNodes;
+        return heap.toSortedList();
     }
 
     /**
@@ -245,9 +488,7 @@ public class NodeTracker {
      */
     public void refreshBuckets(final Runnable completionHandler) {
         Log.i("perform self-seek");
-        NodeLookupTask lookup = new NodeLookupTask(
-                Telehash.get(),
-                this,
+        Telehash.get().getSwitch().getDHT().nodeLookup(
                 mLocalNode.getHashName(),
                 new NodeLookupTask.Handler() {
                     @Override
@@ -305,7 +546,7 @@ public class NodeTracker {
                         CounterTrigger alarm = new CounterTrigger(completionHandler);
 
                         int bucketRefreshCount = 0;
-                        long now = System.nanoTime();
+                        long now = now();
                         for (int i=neighborDistance; i<BUCKET_COUNT; i++) {
                             Log.i("considering bucket["+i+"] of size="+mBuckets[i].size()
                                     +": "+mBuckets[i]);
@@ -320,7 +561,6 @@ public class NodeTracker {
                     }
                 }
         );
-        lookup.start();
     }
 
     /**
@@ -332,9 +572,7 @@ public class NodeTracker {
     private void refreshBucket(final CounterTrigger alarm, final int bucket) {
         Log.i("bucket[%d] start refresh", bucket);
         HashName hashName = DHT.getRandomHashName(mLocalNode.getHashName(), bucket);
-        NodeLookupTask lookup = new NodeLookupTask(
-                Telehash.get(),
-                this,
+        Telehash.get().getSwitch().getDHT().nodeLookup(
                 hashName,
                 new NodeLookupTask.Handler() {
                     @Override
@@ -350,21 +588,25 @@ public class NodeTracker {
                     }
                 }
         );
-        lookup.start();
     }
 
-    public void dump() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("DHT tracking "+size()+" nodes:\n");
+    /**
+     * Return the state of the non-empty buckets, for diagnostics.
+     */
+    public List<SwitchSnapshot.BucketInfo> getBucketSnapshots() {
+        List<SwitchSnapshot.BucketInfo> buckets = new ArrayList<SwitchSnapshot.BucketInfo>();
         for (int i=0; i<BUCKET_COUNT; i++) {
-            if (mBuckets[i].size() > 0) {
-                sb.append("    ["+i+"] ");
-                for (Link link : mBuckets[i].mLinks.values()) {
-                    sb.append(link+" ");
+            Bucket bucket = mBuckets[i];
+            if (bucket.size() > 0 || ! bucket.mReplacements.isEmpty()) {
+                List<SwitchSnapshot.LinkInfo> links =
+                        new ArrayList<SwitchSnapshot.LinkInfo>(bucket.size());
+                for (Link link : bucket.mLinks.values()) {
+                    links.add(link.getSnapshot());
                 }
-                sb.append("\n");
+                buckets.add(new SwitchSnapshot.BucketInfo(
+                        i, links, bucket.mReplacements.size()));
             }
         }
-        Log.d(sb.toString());
+        return buckets;
     }
 }
@@ -0,0 +1,183 @@
+package org.telehash.dht;
+
+import org.telehash.core.HashName;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Track the round-trip time to each peer, and derive retransmission-style
+ * timeouts from it.
+ *
+ * The smoothed round-trip time (SRTT) and round-trip time variation
+ * (RTTVAR) of each peer are maintained as in RFC 6298: the first sample R
+ * sets SRTT = R and RTTVAR = R/2, and each subsequent sample updates
+ * RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R| and then SRTT = 7/8 SRTT + 1/8 R.
+ * A peer's timeout is SRTT + 4 RTTVAR, clamped to a sane range.
+ *
+ * Samples are keyed by hash name, since many Node objects may represent
+ * the same peer. The number of tracked peers is bounded, and the
+ * least-recently updated peer is forgotten first.
+ *
+ * All methods must be called on the switch thread.
+ */
+public class RttEstimator {
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** The timeout used for a peer with no round-trip time samples. */
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final long MINIMUM_TIMEOUT = 250;
+    public static final long MAXIMUM_TIMEOUT = 15000;
+
+    /**
+     * The round-trip time estimate of a single peer. Times are in
+     * nanoseconds.
+     */
+    public static class Estimate {
+        private long mSmoothedRtt;
+        private long mRttVariation;
+        private int mSamples = 0;
+
+        /* intentionally package-private */
+        void addSample(long rtt) {
+            if (mSamples == 0) {
+                mSmoothedRtt = rtt;
+                mRttVariation = rtt / 2;
+            } else {
+                mRttVariation = (3 * mRttVariation + Math.abs(mSmoothedRtt - rtt)) / 4;
+                mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+            }
+            mSamples++;
+        }
+
+        public long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        public long getRttVariation() {
+            return mRttVariation;
+        }
+
+        public int getSampleCount() {
+            return mSamples;
+        }
+
+        /**
+         * Return the timeout SRTT + 4 RTTVAR in milliseconds, clamped to
+         * [MINIMUM_TIMEOUT, MAXIMUM_TIMEOUT].
+         */
+        public long getTimeout() {
+            long timeout = (mSmoothedRtt + 4 * mRttVariation) / NANOSECONDS_PER_MILLISECOND;
+            return Math.min(MAXIMUM_TIMEOUT, Math.max(MINIMUM_TIMEOUT, timeout));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("srtt=%.1fms rttvar=%.1fms n=%d",
+                    mSmoothedRtt / 1e6, mRttVariation / 1e6, mSamples);
+        }
+    }
+
+    private final LinkedHashMap<HashName,Estimate> mEstimates;
+
+    public RttEstimator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a new RttEstimator.
+     *
+     * @param capacity The maximum number of peers to track.
+     */
+    public RttEstimator(final int capacity) {
+        mEstimates = new LinkedHashMap<HashName,Estimate>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashName,Estimate> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Record a round-trip time sample.
+     *
+     * @param hashName The peer's hash name.
+     * @param rtt The measured round-trip time in nanoseconds.
+     */
+    public void addSample(HashName hashName, long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        Estimate estimate = mEstimates.get(hashName);
+        if (estimate == null) {
+            estimate = new Estimate();
+            mEstimates.put(hashName, estimate);
+        }
+        estimate.addSample(rtt);
+    }
+
+    /**
+     * Record that a request to a peer timed out. As when RFC 6298 backs off
+     * the retransmission timer, the timeout is recorded as a sample of
+     * twice the peer's current timeout, so that an unresponsive peer ranks
+     * behind responsive ones and is given longer before its next request is
+     * abandoned. A peer with no samples already ranks last, and keeps the
+     * default timeout.
+     *
+     * @param hashName The peer's hash name.
+     */
+    public void addTimeout(HashName hashName) {
+        Estimate estimate = mEstimates.get(hashName);
+        if (estimate != null) {
+            estimate.addSample(2 * estimate.getTimeout() * NANOSECONDS_PER_MILLISECOND);
+        }
+    }
+
+    /**
+     * Return the round-trip time estimate of a peer.
+     *
+     * @param hashName The peer's hash name.
+     * @return The estimate, or null if no samples have been recorded.
+     */
+    public Estimate getEstimate(HashName hashName) {
+        return mEstimates.get(hashName);
+    }
+
+    /**
+     * Return the timeout to use for a request to a peer.
+     *
+     * @param hashName The peer's hash name.
+     * @return The timeout in milliseconds.
+     */
+    public long getTimeout(HashName hashName) {
+        Estimate estimate = mEstimates.get(hashName);
+        if (estimate == null) {
+            return DEFAULT_TIMEOUT;
+        }
+        return estimate.getTimeout();
+    }
+
+    /**
+     * Return the smoothed round-trip time of a peer, for ranking peers by
+     * latency.
+     *
+     * @param hashName The peer's hash name.
+     * @return The smoothed round-trip time in nanoseconds, or
+     *         Long.MAX_VALUE if no samples have been recorded.
+     */
+    public long getSmoothedRtt(HashName hashName) {
+        Estimate estimate = mEstimates.get(hashName);
+        if (estimate == null) {
+            return Long.MAX_VALUE;
+        }
+        return estimate.getSmoothedRtt();
+    }
+
+    public int size() {
+        return mEstimates.size();
+    }
+}
@@ -0,0 +1,106 @@
+package org.telehash.diagnostics;
+
+import org.telehash.core.HashName;
+import org.telehash.core.Log;
+import org.telehash.core.Switch;
+import org.telehash.core.TelehashException;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Expose the state of a switch over JMX, under the object name
+ * "org.telehash:type=Switch,hashname=&lt;hex hashname&gt;".
+ */
+public class SwitchDiagnostics implements SwitchDiagnosticsMXBean {
+
+    public static final String DOMAIN = "org.telehash";
+
+    private final Switch mSwitch;
+    private final HashName mHashName;
+    private ObjectName mObjectName;
+
+    public SwitchDiagnostics(Switch telehashSwitch, HashName hashName) {
+        mSwitch = telehashSwitch;
+        mHashName = hashName;
+    }
+
+    /**
+     * Register with the platform MBean server. A failure to register is
+     * logged, and is otherwise harmless.
+     */
+    public void register() {
+        try {
+            ObjectName name = new ObjectName(
+                    DOMAIN+":type=Switch,hashname="+mHashName.asHex());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            mObjectName = name;
+        } catch (JMException e) {
+            Log.w("cannot register switch diagnostics", e);
+        }
+    }
+
+    /**
+     * Unregister from the platform MBean server.
+     */
+    public void unregister() {
+        if (mObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+        } catch (JMException e) {
+            Log.w("cannot unregister switch diagnostics", e);
+        }
+        mObjectName = null;
+    }
+
+    /** The object name under which this is registered, or null. */
+    public ObjectName getObjectName() {
+        return mObjectName;
+    }
+
+    @Override
+    public String getHashName() {
+        return mHashName.asHex();
+    }
+
+    @Override
+    public long getIterations() {
+        return mSwitch.getIterations();
+    }
+
+    @Override
+    public int getLineCount() {
+        return mSwitch.getLineCount();
+    }
+
+    @Override
+    public int getLinkCount() {
+        return mSwitch.getLinkCount();
+    }
+
+    @Override
+    public int getPendingLookupCount() {
+        return mSwitch.getPendingLookupCount();
+    }
+
+    @Override
+    public int getTimerCount() {
+        return mSwitch.getTimerCount();
+    }
+
+    @Override
+    public String dump() {
+        try {
+            return mSwitch.getSnapshot().toString();
+        } catch (TelehashException e) {
+            // JMX clients only see standard exception types.
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.telehash.diagnostics;
+
+/**
+ * The management interface of a switch, as exposed over JMX. The counts
+ * are published by the switch thread as it runs, and are read without
+ * involving the switch; only dump() takes a full snapshot of the switch
+ * state.
+ */
+public interface SwitchDiagnosticsMXBean {
+
+    /** The hex hashname of the local node. */
+    String getHashName();
+
+    /** The number of switch loop iterations completed. */
+    long getIterations();
+
+    /** The number of tracked lines. */
+    int getLineCount();
+
+    /** The number of links in the DHT buckets. */
+    int getLinkCount();
+
+    /** The number of node lookups in progress. */
+    int getPendingLookupCount();
+
+    /** The number of scheduled timers. */
+    int getTimerCount();
+
+    /**
+     * Render a full snapshot of the switch state: lines and channels,
+     * buckets and links, node lookups, and timers.
+     */
+    String dump();
+}
@@ -0,0 +1,371 @@
+package org.telehash.diagnostics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the state of a switch: its lines and their
+ * channels, the DHT buckets and their links, the node lookups in progress,
+ * and the scheduled timers.
+ *
+ * Snapshots are taken on demand on the switch thread (see
+ * Switch.getSnapshot()), and may then be read from any thread.
+ */
+public class SwitchSnapshot {
+
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000.0;
+
+    /**
+     * The state of a channel.
+     */
+    public static class ChannelInfo {
+        private final long mId;
+        private final String mType;
+        private final long mTimeout;
+
+        public ChannelInfo(long id, String type, long timeout) {
+            mId = id;
+            mType = type;
+            mTimeout = timeout;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        /** The channel timeout in milliseconds, or 0 if none is set. */
+        public long getTimeout() {
+            return mTimeout;
+        }
+
+        @Override
+        public String toString() {
+            return mId+"/"+mType;
+        }
+    }
+
+    /**
+     * The state of a line.
+     */
+    public static class LineInfo {
+        private final String mRemoteHashName;
+        private final String mRemoteNodeType;
+        private final String mIncomingLineIdentifier;
+        private final String mOutgoingLineIdentifier;
+        private final String mState;
+        private final long mOpenLatency;
+        private final List<ChannelInfo> mChannels;
+
+        public LineInfo(
+                String remoteHashName,
+                String remoteNodeType,
+                String incomingLineIdentifier,
+                String outgoingLineIdentifier,
+                String state,
+                long openLatency,
+                List<ChannelInfo> channels
+        ) {
+            mRemoteHashName = remoteHashName;
+            mRemoteNodeType = remoteNodeType;
+            mIncomingLineIdentifier = incomingLineIdentifier;
+            mOutgoingLineIdentifier = outgoingLineIdentifier;
+            mState = state;
+            mOpenLatency = openLatency;
+            mChannels = freeze(channels);
+        }
+
+        /** The hex hashname of the remote node. */
+        public String getRemoteHashName() {
+            return mRemoteHashName;
+        }
+
+        /** The kind of node at the remote end (e.g. PeerNode or SeeNode). */
+        public String getRemoteNodeType() {
+            return mRemoteNodeType;
+        }
+
+        /** The hex incoming line identifier, or null if not yet assigned. */
+        public String getIncomingLineIdentifier() {
+            return mIncomingLineIdentifier;
+        }
+
+        /** The hex outgoing line identifier, or null if not yet known. */
+        public String getOutgoingLineIdentifier() {
+            return mOutgoingLineIdentifier;
+        }
+
+        /** The name of the line state. */
+        public String getState() {
+            return mState;
+        }
+
+        /** The line open latency in nanoseconds, or -1 if not known. */
+        public long getOpenLatency() {
+            return mOpenLatency;
+        }
+
+        public List<ChannelInfo> getChannels() {
+            return mChannels;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%-8s %-8s-%-8s %-20s %s channels=%s",
+                    shorten(mRemoteHashName),
+                    shorten(mIncomingLineIdentifier),
+                    shorten(mOutgoingLineIdentifier),
+                    mState,
+                    mRemoteNodeType,
+                    mChannels
+            );
+        }
+    }
+
+    /**
+     * The state of a DHT link.
+     */
+    public static class LinkInfo {
+        private final String mHashName;
+        private final String mState;
+        private final long mLastReceiveTime;
+        private final long mSmoothedRtt;
+
+        public LinkInfo(String hashName, String state, long lastReceiveTime, long smoothedRtt) {
+            mHashName = hashName;
+            mState = state;
+            mLastReceiveTime = lastReceiveTime;
+            mSmoothedRtt = smoothedRtt;
+        }
+
+        /** The hex hashname of the linked node. */
+        public String getHashName() {
+            return mHashName;
+        }
+
+        /** The name of the link state. */
+        public String getState() {
+            return mState;
+        }
+
+        /** The clock time in nanoseconds of the last receipt, or 0 if none. */
+        public long getLastReceiveTime() {
+            return mLastReceiveTime;
+        }
+
+        /** The smoothed round-trip time in nanoseconds, or -1 if not known. */
+        public long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        @Override
+        public String toString() {
+            return shorten(mHashName)+"/"+mState;
+        }
+    }
+
+    /**
+     * The state of a non-empty DHT bucket.
+     */
+    public static class BucketInfo {
+        private final int mIndex;
+        private final List<LinkInfo> mLinks;
+        private final int mReplacementCount;
+
+        public BucketInfo(int index, List<LinkInfo> links, int replacementCount) {
+            mIndex = index;
+            mLinks = freeze(links);
+            mReplacementCount = replacementCount;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** The bucket's links, least-recently seen first. */
+        public List<LinkInfo> getLinks() {
+            return mLinks;
+        }
+
+        /** The number of replacement candidates remembered for the bucket. */
+        public int getReplacementCount() {
+            return mReplacementCount;
+        }
+
+        @Override
+        public String toString() {
+            return "["+mIndex+"] "+mLinks+" replacements="+mReplacementCount;
+        }
+    }
+
+    /**
+     * The state of a node lookup in progress.
+     */
+    public static class LookupInfo {
+        private final String mTarget;
+        private final long mAge;
+        private final int mHandlerCount;
+
+        public LookupInfo(String target, long age, int handlerCount) {
+            mTarget = target;
+            mAge = age;
+            mHandlerCount = handlerCount;
+        }
+
+        /** The hex hashname being looked up. */
+        public String getTarget() {
+            return mTarget;
+        }
+
+        /** The time since the lookup started, in nanoseconds. */
+        public long getAge() {
+            return mAge;
+        }
+
+        /** The number of requesters awaiting the result. */
+        public int getHandlerCount() {
+            return mHandlerCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s age=%.1fms handlers=%d",
+                    shorten(mTarget), mAge/NANOSECONDS_IN_MILLISECOND, mHandlerCount);
+        }
+    }
+
+    /**
+     * A scheduled timer.
+     */
+    public static class TimerInfo {
+        private final long mDelay;
+        private final String mDescription;
+
+        public TimerInfo(long delay, String description) {
+            mDelay = delay;
+            mDescription = description;
+        }
+
+        /** The time until the timer fires, in nanoseconds (negative if overdue). */
+        public long getDelay() {
+            return mDelay;
+        }
+
+        /** A description of the timer's task. */
+        public String getDescription() {
+            return mDescription;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%+.1fms %s", mDelay/NANOSECONDS_IN_MILLISECOND, mDescription);
+        }
+    }
+
+    private final String mHashName;
+    private final long mTime;
+    private final long mIterations;
+    private final List<LineInfo> mLines;
+    private final List<BucketInfo> mBuckets;
+    private final List<LookupInfo> mLookups;
+    private final List<TimerInfo> mTimers;
+
+    public SwitchSnapshot(
+            String hashName,
+            long time,
+            long iterations,
+            List<LineInfo> lines,
+            List<BucketInfo> buckets,
+            List<LookupInfo> lookups,
+            List<TimerInfo> timers
+    ) {
+        mHashName = hashName;
+        mTime = time;
+        mIterations = iterations;
+        mLines = freeze(lines);
+        mBuckets = freeze(buckets);
+        mLookups = freeze(lookups);
+        mTimers = freeze(timers);
+    }
+
+    /** The hex hashname of the local node. */
+    public String getHashName() {
+        return mHashName;
+    }
+
+    /** The clock time in nanoseconds at which the snapshot was taken. */
+    public long getTime() {
+        return mTime;
+    }
+
+    /** The number of switch loop iterations completed. */
+    public long getIterations() {
+        return mIterations;
+    }
+
+    public List<LineInfo> getLines() {
+        return mLines;
+    }
+
+    /** The non-empty DHT buckets, in index order. */
+    public List<BucketInfo> getBuckets() {
+        return mBuckets;
+    }
+
+    /** Return the total number of links in the DHT buckets. */
+    public int getLinkCount() {
+        int count = 0;
+        for (BucketInfo bucket : mBuckets) {
+            count += bucket.getLinks().size();
+        }
+        return count;
+    }
+
+    public List<LookupInfo> getLookups() {
+        return mLookups;
+    }
+
+    /** The scheduled timers, soonest first. */
+    public List<TimerInfo> getTimers() {
+        return mTimers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("switch "+shorten(mHashName)+" after iteration "+mIterations+"\n");
+        sb.append(mLines.size()+" lines:\n");
+        for (LineInfo line : mLines) {
+            sb.append("    "+line+"\n");
+        }
+        sb.append("DHT tracking "+getLinkCount()+" nodes:\n");
+        for (BucketInfo bucket : mBuckets) {
+            sb.append("    "+bucket+"\n");
+        }
+        sb.append(mLookups.size()+" node lookups in progress:\n");
+        for (LookupInfo lookup : mLookups) {
+            sb.append("    "+lookup+"\n");
+        }
+        sb.append(mTimers.size()+" timers:\n");
+        for (TimerInfo timer : mTimers) {
+            sb.append("    "+timer+"\n");
+        }
+        return sb.toString();
+    }
+
+    private static <T> List<T> freeze(List<T> list) {
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+
+    private static String shorten(String hex) {
+        if (hex == null) {
+            return "";
+        }
+        return hex.length() > 8 ? hex.substring(0, 8) : hex;
+    }
+}
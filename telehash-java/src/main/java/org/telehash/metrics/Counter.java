@@ -0,0 +1,30 @@
+package org.telehash.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count. Updates are lock-free and may be made
+ * from any thread.
+ */
+public class Counter implements CounterMXBean {
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    public void increment() {
+        mCount.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mCount.addAndGet(delta);
+    }
+
+    @Override
+    public long getCount() {
+        return mCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(mCount.get());
+    }
+}
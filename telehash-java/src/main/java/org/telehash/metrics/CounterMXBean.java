@@ -0,0 +1,10 @@
+package org.telehash.metrics;
+
+/**
+ * The management interface of a counter, as exposed over JMX.
+ */
+public interface CounterMXBean {
+
+    /** The current count. */
+    long getCount();
+}
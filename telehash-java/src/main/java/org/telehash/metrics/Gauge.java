@@ -0,0 +1,17 @@
+package org.telehash.metrics;
+
+/**
+ * A value which is sampled when read, such as a queue depth. Subclasses
+ * read the value from the component being measured, so a gauge costs
+ * nothing until it is read; getValue() may be called from any thread.
+ */
+public abstract class Gauge implements GaugeMXBean {
+
+    @Override
+    public abstract long getValue();
+
+    @Override
+    public String toString() {
+        return Long.toString(getValue());
+    }
+}
@@ -0,0 +1,10 @@
+package org.telehash.metrics;
+
+/**
+ * The management interface of a gauge, as exposed over JMX.
+ */
+public interface GaugeMXBean {
+
+    /** The current value. */
+    long getValue();
+}
@@ -0,0 +1,123 @@
+package org.telehash.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of non-negative values, such as latencies in nanoseconds,
+ * recorded in a fixed number of logarithmic buckets.
+ *
+ * <p>
+ * Values below 4 have a bucket each; above that, each power of two is
+ * divided into four equal buckets, so a reported percentile is within 25%
+ * of the true value. The histogram occupies the same memory no matter how
+ * many values are recorded. Recording is lock-free and may be done from
+ * any thread.
+ * </p>
+ */
+public class Histogram implements HistogramMXBean {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* intentionally package-private */
+    static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(getBucketIndex(value));
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && ! mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Return a copy of the current distribution.
+     */
+    public HistogramSnapshot getSnapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new HistogramSnapshot(buckets, mSum.get(), mMax.get());
+    }
+
+    @Override
+    public long getCount() {
+        return getSnapshot().getCount();
+    }
+
+    @Override
+    public double getMean() {
+        return getSnapshot().getMean();
+    }
+
+    @Override
+    public long getMax() {
+        return mMax.get();
+    }
+
+    @Override
+    public long getMedian() {
+        return getSnapshot().getPercentile(0.5);
+    }
+
+    @Override
+    public long get90thPercentile() {
+        return getSnapshot().getPercentile(0.9);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getSnapshot().getPercentile(0.99);
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+
+    /* intentionally package-private */
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Return the smallest value recorded in the specified bucket.
+     */
+    /* intentionally package-private */
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Return the largest value recorded in the specified bucket.
+     */
+    /* intentionally package-private */
+    static long getBucketUpperBound(int index) {
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return getBucketLowerBound(index + 1) - 1;
+    }
+}
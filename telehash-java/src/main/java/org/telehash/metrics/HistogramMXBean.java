@@ -0,0 +1,26 @@
+package org.telehash.metrics;
+
+/**
+ * The management interface of a histogram, as exposed over JMX.
+ * Percentiles are approximate; see Histogram.
+ */
+public interface HistogramMXBean {
+
+    /** The number of recorded values. */
+    long getCount();
+
+    /** The mean of the recorded values. */
+    double getMean();
+
+    /** The largest recorded value. */
+    long getMax();
+
+    /** The approximate 50th percentile. */
+    long getMedian();
+
+    /** The approximate 90th percentile. */
+    long get90thPercentile();
+
+    /** The approximate 99th percentile. */
+    long get99thPercentile();
+}
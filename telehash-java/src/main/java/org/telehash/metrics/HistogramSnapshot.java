@@ -0,0 +1,81 @@
+package org.telehash.metrics;
+
+/**
+ * An immutable copy of the distribution recorded by a Histogram.
+ */
+public class HistogramSnapshot {
+
+    private final long[] mBuckets;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+
+    /* intentionally package-private */
+    HistogramSnapshot(long[] buckets, long sum, long max) {
+        mBuckets = buckets;
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+    }
+
+    /** The number of recorded values. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** The sum of the recorded values. */
+    public long getSum() {
+        return mSum;
+    }
+
+    /** The largest recorded value. */
+    public long getMax() {
+        return mMax;
+    }
+
+    /** The mean of the recorded values, or 0 if there are none. */
+    public double getMean() {
+        if (mCount == 0) {
+            return 0.0;
+        }
+        return (double)mSum / mCount;
+    }
+
+    /**
+     * Return the approximate value below which the specified fraction of
+     * the recorded values fall. The result is the upper bound of the
+     * bucket containing that rank, capped by the largest recorded value.
+     *
+     * @param fraction The fraction, between 0 and 1 (e.g. 0.99).
+     * @return The percentile value, or 0 if there are no values.
+     */
+    public long getPercentile(double fraction) {
+        if (fraction < 0.0 || fraction > 1.0) {
+            throw new IllegalArgumentException("invalid percentile fraction");
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i=0; i<mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.getBucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                mCount, getMean(),
+                getPercentile(0.5), getPercentile(0.9), getPercentile(0.99),
+                mMax);
+    }
+}
@@ -0,0 +1,154 @@
+package org.telehash.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A collection of named counters, gauges and histograms.
+ *
+ * <p>
+ * Looking up a metric by name is synchronized, so components should look
+ * up their metrics once and keep the references; updating a metric is
+ * lock-free. The registry can be read as a whole with getSnapshot(), and
+ * each metric can be registered with the platform MBean server under
+ * "org.telehash:type=Metrics,scope=&lt;scope&gt;,name=&lt;name&gt;".
+ * </p>
+ */
+public class MetricsRegistry {
+
+    public static final String DOMAIN = "org.telehash";
+
+    // guarded by this
+    private final Map<String,Object> mMetrics = new TreeMap<String,Object>();
+    private final Map<String,ObjectName> mObjectNames = new HashMap<String,ObjectName>();
+    private String mScope;
+
+    /**
+     * Return the named counter, creating it if necessary.
+     *
+     * @throws IllegalArgumentException If the name is used by a metric of
+     *         another kind.
+     */
+    public synchronized Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            Counter counter = new Counter();
+            add(name, counter);
+            return counter;
+        } else if (metric instanceof Counter) {
+            return (Counter)metric;
+        } else {
+            throw new IllegalArgumentException("metric is not a counter: "+name);
+        }
+    }
+
+    /**
+     * Return the named histogram, creating it if necessary.
+     *
+     * @throws IllegalArgumentException If the name is used by a metric of
+     *         another kind.
+     */
+    public synchronized Histogram histogram(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            Histogram histogram = new Histogram();
+            add(name, histogram);
+            return histogram;
+        } else if (metric instanceof Histogram) {
+            return (Histogram)metric;
+        } else {
+            throw new IllegalArgumentException("metric is not a histogram: "+name);
+        }
+    }
+
+    /**
+     * Add a gauge.
+     *
+     * @throws IllegalArgumentException If the name is already in use.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        if (mMetrics.containsKey(name)) {
+            throw new IllegalArgumentException("metric already exists: "+name);
+        }
+        add(name, gauge);
+    }
+
+    /**
+     * Return the current values of all metrics.
+     */
+    public synchronized MetricsSnapshot getSnapshot() {
+        Map<String,Long> counters = new HashMap<String,Long>();
+        Map<String,Long> gauges = new HashMap<String,Long>();
+        Map<String,HistogramSnapshot> histograms = new HashMap<String,HistogramSnapshot>();
+        for (Map.Entry<String,Object> entry : mMetrics.entrySet()) {
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                counters.put(entry.getKey(), ((Counter)metric).getCount());
+            } else if (metric instanceof Gauge) {
+                gauges.put(entry.getKey(), ((Gauge)metric).getValue());
+            } else if (metric instanceof Histogram) {
+                histograms.put(entry.getKey(), ((Histogram)metric).getSnapshot());
+            }
+        }
+        return new MetricsSnapshot(counters, gauges, histograms);
+    }
+
+    /**
+     * Register every metric, including any added later, with the platform
+     * MBean server. A failure to register a metric is ignored, since
+     * metrics are advisory.
+     *
+     * @param scope The scope which distinguishes these metrics from those
+     *        of other registries in the same JVM (e.g. a hashname).
+     */
+    public synchronized void registerMBeans(String scope) {
+        unregisterMBeans();
+        mScope = scope;
+        for (Map.Entry<String,Object> entry : mMetrics.entrySet()) {
+            registerMBean(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server.
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : mObjectNames.values()) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+        mObjectNames.clear();
+        mScope = null;
+    }
+
+    private void add(String name, Object metric) {
+        mMetrics.put(name, metric);
+        if (mScope != null) {
+            registerMBean(name, metric);
+        }
+    }
+
+    private void registerMBean(String name, Object metric) {
+        try {
+            ObjectName objectName = new ObjectName(
+                    DOMAIN+":type=Metrics,scope="+ObjectName.quote(mScope)+
+                    ",name="+ObjectName.quote(name)
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric, objectName);
+            mObjectNames.put(name, objectName);
+        } catch (JMException e) {
+            // metrics are advisory; the value remains available through
+            // getSnapshot().
+        }
+    }
+}
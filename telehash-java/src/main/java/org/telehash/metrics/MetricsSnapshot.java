@@ -0,0 +1,79 @@
+package org.telehash.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of the values of all metrics in a registry, by name.
+ */
+public class MetricsSnapshot {
+
+    private final SortedMap<String,Long> mCounters;
+    private final SortedMap<String,Long> mGauges;
+    private final SortedMap<String,HistogramSnapshot> mHistograms;
+
+    /* intentionally package-private */
+    MetricsSnapshot(
+            Map<String,Long> counters,
+            Map<String,Long> gauges,
+            Map<String,HistogramSnapshot> histograms
+    ) {
+        mCounters = Collections.unmodifiableSortedMap(new TreeMap<String,Long>(counters));
+        mGauges = Collections.unmodifiableSortedMap(new TreeMap<String,Long>(gauges));
+        mHistograms = Collections.unmodifiableSortedMap(
+                new TreeMap<String,HistogramSnapshot>(histograms));
+    }
+
+    public SortedMap<String,Long> getCounters() {
+        return mCounters;
+    }
+
+    public SortedMap<String,Long> getGauges() {
+        return mGauges;
+    }
+
+    public SortedMap<String,HistogramSnapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    /**
+     * Return the value of the named counter, or 0 if there is no such
+     * counter.
+     */
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return (value == null) ? 0 : value;
+    }
+
+    /**
+     * Return the value of the named gauge, or 0 if there is no such gauge.
+     */
+    public long getGauge(String name) {
+        Long value = mGauges.get(name);
+        return (value == null) ? 0 : value;
+    }
+
+    /**
+     * Return the named histogram, or null if there is no such histogram.
+     */
+    public HistogramSnapshot getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Long> entry : mCounters.entrySet()) {
+            sb.append(entry.getKey()+" = "+entry.getValue()+"\n");
+        }
+        for (Map.Entry<String,Long> entry : mGauges.entrySet()) {
+            sb.append(entry.getKey()+" = "+entry.getValue()+"\n");
+        }
+        for (Map.Entry<String,HistogramSnapshot> entry : mHistograms.entrySet()) {
+            sb.append(entry.getKey()+": "+entry.getValue()+"\n");
+        }
+        return sb.toString();
+    }
+}
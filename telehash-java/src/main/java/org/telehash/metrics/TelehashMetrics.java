@@ -0,0 +1,175 @@
+package org.telehash.metrics;
+
+/**
+ * The standard metrics of a Telehash instance. Times are in nanoseconds.
+ */
+public class TelehashMetrics extends MetricsRegistry {
+
+    public static final String DATAGRAMS_RECEIVED = "network.datagrams.received";
+    public static final String DATAGRAMS_SENT = "network.datagrams.sent";
+    public static final String DATAGRAMS_REJECTED = "network.datagrams.rejected";
+    public static final String BYTES_RECEIVED = "network.bytes.received";
+    public static final String BYTES_SENT = "network.bytes.sent";
+    public static final String INCOMING_DROPPED = "network.datagrams.dropped";
+    public static final String PARSE_FAILURES = "network.parse.failures";
+    public static final String WRITE_QUEUE_DEPTH = "network.writeQueue.depth";
+    public static final String LINES_ESTABLISHED = "line.opens.established";
+    public static final String LINES_FAILED = "line.opens.failed";
+    public static final String LINES_TIMED_OUT = "line.opens.timeout";
+    public static final String LINE_OPEN_LATENCY = "line.opens.latency";
+    public static final String LINE_RECEIVE_TIMEOUTS = "line.receive.timeout";
+    public static final String CHANNELS_OPENED = "channel.opened";
+    public static final String CHANNELS_CLOSED = "channel.closed";
+    public static final String CHANNELS_ACTIVE = "channel.active";
+    public static final String LOOKUP_ITERATIONS = "dht.lookup.iterations";
+    public static final String LOOKUP_DURATION = "dht.lookup.duration";
+    public static final String CRYPTO_OPEN_PARSE = "crypto.open.parse";
+    public static final String CRYPTO_OPEN_RENDER = "crypto.open.render";
+    public static final String CRYPTO_ECDH = "crypto.ecdh";
+    public static final String CRYPTO_LINE_ENCRYPT = "crypto.line.encrypt";
+    public static final String CRYPTO_LINE_DECRYPT = "crypto.line.decrypt";
+    public static final String SCHEDULER_LAG = "scheduler.lag";
+
+    private final Counter mDatagramsReceived = counter(DATAGRAMS_RECEIVED);
+    private final Counter mDatagramsSent = counter(DATAGRAMS_SENT);
+    private final Counter mDatagramsRejected = counter(DATAGRAMS_REJECTED);
+    private final Counter mBytesReceived = counter(BYTES_RECEIVED);
+    private final Counter mBytesSent = counter(BYTES_SENT);
+    private final Counter mIncomingDropped = counter(INCOMING_DROPPED);
+    private final Counter mParseFailures = counter(PARSE_FAILURES);
+    private final Histogram mWriteQueueDepth = histogram(WRITE_QUEUE_DEPTH);
+    private final Counter mLinesEstablished = counter(LINES_ESTABLISHED);
+    private final Counter mLinesFailed = counter(LINES_FAILED);
+    private final Counter mLinesTimedOut = counter(LINES_TIMED_OUT);
+    private final Histogram mLineOpenLatency = histogram(LINE_OPEN_LATENCY);
+    private final Counter mLineReceiveTimeouts = counter(LINE_RECEIVE_TIMEOUTS);
+    private final Counter mChannelsOpened = counter(CHANNELS_OPENED);
+    private final Counter mChannelsClosed = counter(CHANNELS_CLOSED);
+    private final Histogram mLookupIterations = histogram(LOOKUP_ITERATIONS);
+    private final Histogram mLookupDuration = histogram(LOOKUP_DURATION);
+    private final Histogram mOpenParseTime = histogram(CRYPTO_OPEN_PARSE);
+    private final Histogram mOpenRenderTime = histogram(CRYPTO_OPEN_RENDER);
+    private final Histogram mECDHTime = histogram(CRYPTO_ECDH);
+    private final Histogram mLineEncryptTime = histogram(CRYPTO_LINE_ENCRYPT);
+    private final Histogram mLineDecryptTime = histogram(CRYPTO_LINE_DECRYPT);
+    private final Histogram mSchedulerLag = histogram(SCHEDULER_LAG);
+
+    public TelehashMetrics() {
+        gauge(CHANNELS_ACTIVE, new Gauge() {
+            @Override
+            public long getValue() {
+                return mChannelsOpened.getCount() - mChannelsClosed.getCount();
+            }
+        });
+    }
+
+    /** Datagrams passed to the switch by the reactor. */
+    public Counter getDatagramsReceived() {
+        return mDatagramsReceived;
+    }
+
+    /** Datagrams queued for sending. */
+    public Counter getDatagramsSent() {
+        return mDatagramsSent;
+    }
+
+    /** Datagrams which could not be queued because the write queue was full. */
+    public Counter getDatagramsRejected() {
+        return mDatagramsRejected;
+    }
+
+    public Counter getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public Counter getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Received datagrams dropped because too many received on other reactor
+     * threads were awaiting the switch thread.
+     */
+    public Counter getIncomingDropped() {
+        return mIncomingDropped;
+    }
+
+    /** Received datagrams which could not be parsed or decrypted. */
+    public Counter getParseFailures() {
+        return mParseFailures;
+    }
+
+    /** The reactor write queue depth, sampled once per switch iteration. */
+    public Histogram getWriteQueueDepth() {
+        return mWriteQueueDepth;
+    }
+
+    public Counter getLinesEstablished() {
+        return mLinesEstablished;
+    }
+
+    public Counter getLinesFailed() {
+        return mLinesFailed;
+    }
+
+    /** Lines which timed out before being established. */
+    public Counter getLinesTimedOut() {
+        return mLinesTimedOut;
+    }
+
+    /** The time to establish locally initiated lines. */
+    public Histogram getLineOpenLatency() {
+        return mLineOpenLatency;
+    }
+
+    /** Established lines which timed out for lack of incoming packets. */
+    public Counter getLineReceiveTimeouts() {
+        return mLineReceiveTimeouts;
+    }
+
+    public Counter getChannelsOpened() {
+        return mChannelsOpened;
+    }
+
+    public Counter getChannelsClosed() {
+        return mChannelsClosed;
+    }
+
+    /** The number of iterations taken by each finished node lookup. */
+    public Histogram getLookupIterations() {
+        return mLookupIterations;
+    }
+
+    public Histogram getLookupDuration() {
+        return mLookupDuration;
+    }
+
+    /** The time to parse and decrypt an open packet. */
+    public Histogram getOpenParseTime() {
+        return mOpenParseTime;
+    }
+
+    /** The time to encrypt and sign an outgoing open packet. */
+    public Histogram getOpenRenderTime() {
+        return mOpenRenderTime;
+    }
+
+    public Histogram getECDHTime() {
+        return mECDHTime;
+    }
+
+    /** The time to render and encrypt an outgoing line packet. */
+    public Histogram getLineEncryptTime() {
+        return mLineEncryptTime;
+    }
+
+    /** The time to decrypt an incoming line packet. */
+    public Histogram getLineDecryptTime() {
+        return mLineDecryptTime;
+    }
+
+    /** The delay between a scheduled task's deadline and its execution. */
+    public Histogram getSchedulerLag() {
+        return mSchedulerLag;
+    }
+}
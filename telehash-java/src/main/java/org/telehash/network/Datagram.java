@@ -1,20 +1,50 @@
 package org.telehash.network;
 
+/**
+ * A datagram, represented as a region of a byte array.
+ *
+ * <p>
+ * Datagrams received by a reactor may reference a pooled receive buffer, in
+ * which case the datagram bytes are only valid for the duration of the
+ * DatagramHandler.handleDatagram() call. Handlers that need to retain the
+ * datagram contents beyond that call must copy them.
+ * </p>
+ */
 public class Datagram {
     private byte[] mBytes;
+    private int mOffset;
+    private int mLength;
     private Path mSource;
     private Path mDestination;
 
     public Datagram(byte[] bytes, Path source, Path destination) {
+        this(bytes, 0, bytes.length, source, destination);
+    }
+
+    public Datagram(byte[] bytes, int offset, int length, Path source, Path destination) {
         mBytes = bytes;
+        mOffset = offset;
+        mLength = length;
         mSource = source;
         mDestination = destination;
     }
 
+    /**
+     * Return the backing array of this datagram. The datagram contents are
+     * the getLength() bytes starting at getOffset().
+     */
     public byte[] getBytes() {
         return mBytes;
     }
 
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
     public Path getSource() {
         return mSource;
     }
@@ -0,0 +1,10 @@
+package org.telehash.network;
+
+/**
+ * Receives datagrams which could not be queued for sending because the
+ * reactor's write queue was full. This is called from the thread that
+ * submitted the datagram.
+ */
+public interface OverflowHandler {
+    void handleOverflow(Datagram datagram);
+}
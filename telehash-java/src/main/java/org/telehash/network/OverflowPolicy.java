@@ -0,0 +1,19 @@
+package org.telehash.network;
+
+/**
+ * The action a reactor takes when a datagram is submitted for sending while
+ * its write queue is at capacity.
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued datagram to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Discard the newly submitted datagram. */
+    DROP_NEWEST,
+
+    /**
+     * Do not queue the newly submitted datagram, and pass it to the
+     * configured OverflowHandler instead.
+     */
+    CALLBACK
+}
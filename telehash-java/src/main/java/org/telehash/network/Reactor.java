@@ -10,6 +10,14 @@ public interface Reactor {
     void close() throws IOException;
     void wakeup();
     void select(long timeout) throws IOException;
-    void sendDatagram(Datagram datagram);
+    /**
+     * Queue a datagram for sending. This may be called from any thread.
+     *
+     * @return True if the datagram was queued, or false if the write queue
+     *         was full and the datagram was dropped. Callers should treat
+     *         false as a signal to throttle.
+     */
+    boolean sendDatagram(Datagram datagram);
     void sendMessage(Message message);
+    ReactorStatistics getStatistics();
 }
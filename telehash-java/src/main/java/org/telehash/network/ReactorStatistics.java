@@ -0,0 +1,153 @@
+package org.telehash.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-batch and cumulative counters maintained by a reactor.
+ *
+ * A "batch" is the work performed by a single call to Reactor.select(). Except
+ * where noted, the counters are only updated by the thread driving the
+ * reactor, but they may be read from any thread.
+ */
+public class ReactorStatistics {
+
+    private volatile int mLastBatchReads;
+    private volatile int mLastBatchWrites;
+    private volatile int mLastBatchMessages;
+    private volatile long mBatches;
+    private final AtomicLong mTotalReads = new AtomicLong();
+    private final AtomicLong mHandoffs = new AtomicLong();
+    private final AtomicLong mDroppedHandoffs = new AtomicLong();
+    private volatile long mTotalWrites;
+    private volatile long mTotalMessages;
+    private volatile long mLimitedBatches;
+    private volatile int mWriteQueueDepth;
+    private final AtomicLong mDroppedDatagrams = new AtomicLong();
+
+    /**
+     * Record the results of a completed batch.
+     *
+     * @param reads The number of datagrams received.
+     * @param writes The number of datagrams sent.
+     * @param messages The number of messages handled.
+     * @param limited True if any per-batch limit was reached.
+     */
+    public void recordBatch(int reads, int writes, int messages, boolean limited) {
+        mLastBatchReads = reads;
+        mLastBatchWrites = writes;
+        mLastBatchMessages = messages;
+        mBatches++;
+        mTotalReads.addAndGet(reads);
+        mTotalWrites += writes;
+        mTotalMessages += messages;
+        if (limited) {
+            mLimitedBatches++;
+        }
+    }
+
+    /**
+     * Record datagrams received by a reactor shard thread. This may be called
+     * from any thread.
+     *
+     * @param reads The number of datagrams received.
+     * @param handoffs The number of those which were handed off to the
+     *        shard owning their source.
+     * @param droppedHandoffs The number of those which were dropped because
+     *        the owning shard's handoff queue was full.
+     */
+    public void recordShardReads(int reads, int handoffs, int droppedHandoffs) {
+        mTotalReads.addAndGet(reads);
+        mHandoffs.addAndGet(handoffs);
+        mDroppedHandoffs.addAndGet(droppedHandoffs);
+    }
+
+    /**
+     * Record the number of datagrams awaiting transmission.
+     */
+    public void setWriteQueueDepth(int depth) {
+        mWriteQueueDepth = depth;
+    }
+
+    /**
+     * Record that an outgoing datagram was dropped due to write queue
+     * overflow. This may be called from any thread.
+     */
+    public void recordDroppedDatagram() {
+        mDroppedDatagrams.incrementAndGet();
+    }
+
+    /** The number of datagrams received in the most recent batch. */
+    public int getLastBatchReads() {
+        return mLastBatchReads;
+    }
+
+    /** The number of datagrams sent in the most recent batch. */
+    public int getLastBatchWrites() {
+        return mLastBatchWrites;
+    }
+
+    /** The number of messages handled in the most recent batch. */
+    public int getLastBatchMessages() {
+        return mLastBatchMessages;
+    }
+
+    /** The total number of batches processed. */
+    public long getBatches() {
+        return mBatches;
+    }
+
+    /** The total number of datagrams received. */
+    public long getTotalReads() {
+        return mTotalReads.get();
+    }
+
+    /** The total number of datagrams handed off between reactor shards. */
+    public long getHandoffs() {
+        return mHandoffs.get();
+    }
+
+    /**
+     * The total number of received datagrams dropped because the owning
+     * shard's handoff queue was full.
+     */
+    public long getDroppedHandoffs() {
+        return mDroppedHandoffs.get();
+    }
+
+    /** The total number of datagrams sent. */
+    public long getTotalWrites() {
+        return mTotalWrites;
+    }
+
+    /** The total number of messages handled. */
+    public long getTotalMessages() {
+        return mTotalMessages;
+    }
+
+    /** The number of batches which were cut short by a per-batch limit. */
+    public long getLimitedBatches() {
+        return mLimitedBatches;
+    }
+
+    /** The number of datagrams awaiting transmission after the most recent batch. */
+    public int getWriteQueueDepth() {
+        return mWriteQueueDepth;
+    }
+
+    /** The total number of outgoing datagrams dropped due to write queue overflow. */
+    public long getDroppedDatagrams() {
+        return mDroppedDatagrams.get();
+    }
+
+    @Override
+    public String toString() {
+        return "batches="+mBatches+
+                " last=["+mLastBatchReads+"r/"+mLastBatchWrites+"w/"+mLastBatchMessages+"m]"+
+                " total=["+mTotalReads.get()+"r/"+mTotalWrites+"w/"+mTotalMessages+"m]"+
+                " limited="+mLimitedBatches+
+                " handoffs="+mHandoffs.get()+
+                " handoffsDropped="+mDroppedHandoffs.get()+
+                " queued="+mWriteQueueDepth+
+                " dropped="+mDroppedDatagrams.get();
+    }
+}
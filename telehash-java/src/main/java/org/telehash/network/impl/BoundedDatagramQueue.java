@@ -0,0 +1,68 @@
+package org.telehash.network.impl;
+
+import org.telehash.network.Datagram;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free, bounded queue of datagrams. Any number of threads may offer
+ * and poll datagrams concurrently: the reactor thread polls datagrams to
+ * send them, and producers may poll to discard the oldest datagram when the
+ * queue is full. The size may briefly exceed the number of queued datagrams
+ * while an offer or poll is in progress.
+ */
+class BoundedDatagramQueue {
+
+    private final Queue<Datagram> mQueue = new ConcurrentLinkedQueue<Datagram>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile int mCapacity;
+
+    BoundedDatagramQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    void setCapacity(int capacity) {
+        mCapacity = capacity;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Add a datagram to the tail of the queue, if there is room.
+     *
+     * @return True if the datagram was queued, or false if the queue is full.
+     */
+    boolean offer(Datagram datagram) {
+        if (mSize.incrementAndGet() > mCapacity) {
+            mSize.decrementAndGet();
+            return false;
+        }
+        mQueue.offer(datagram);
+        return true;
+    }
+
+    /**
+     * Remove and return the datagram at the head of the queue.
+     *
+     * @return The datagram, or null if the queue is empty.
+     */
+    Datagram poll() {
+        Datagram datagram = mQueue.poll();
+        if (datagram != null) {
+            mSize.decrementAndGet();
+        }
+        return datagram;
+    }
+
+    boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    int size() {
+        return mSize.get();
+    }
+}
@@ -0,0 +1,68 @@
+package org.telehash.network.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of reusable datagram receive buffers.
+ *
+ * Buffers are array-backed so that received datagrams can be handed to the
+ * packet parser (and the cipher set) as an offset/length view of the
+ * backing array, without an intermediate copy. Idle buffers are kept on a
+ * fixed-size stack, so neither acquiring nor releasing a buffer allocates
+ * once the pool is warm, and the most recently used (cache-warm) buffer is
+ * reused first. This class is thread-safe.
+ */
+class DatagramBufferPool {
+
+    private final int mBufferSize;
+    // guarded by this
+    private final ByteBuffer[] mBuffers;
+    private int mPooledBuffers = 0;
+
+    /**
+     * Construct a new DatagramBufferPool.
+     *
+     * @param bufferSize The size of each buffer.
+     * @param maximumPooledBuffers The maximum number of idle buffers to retain.
+     */
+    DatagramBufferPool(int bufferSize, int maximumPooledBuffers) {
+        mBufferSize = bufferSize;
+        mBuffers = new ByteBuffer[maximumPooledBuffers];
+    }
+
+    /**
+     * Obtain a cleared buffer from the pool, allocating a new buffer if the
+     * pool is empty.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (mPooledBuffers > 0) {
+                mPooledBuffers--;
+                buffer = mBuffers[mPooledBuffers];
+                mBuffers[mPooledBuffers] = null;
+            }
+        }
+        if (buffer == null) {
+            return ByteBuffer.allocate(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use the buffer (or
+     * any datagram referencing its backing array) after releasing it.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != mBufferSize) {
+            return;
+        }
+        synchronized (this) {
+            if (mPooledBuffers < mBuffers.length) {
+                mBuffers[mPooledBuffers] = buffer;
+                mPooledBuffers++;
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.telehash.network.impl;
 import org.telehash.core.TelehashException;
 import org.telehash.network.InetPath;
 import org.telehash.network.Network;
+import org.telehash.network.OverflowHandler;
+import org.telehash.network.OverflowPolicy;
 import org.telehash.network.Path;
 import org.telehash.network.Reactor;
 
@@ -18,6 +20,54 @@ import java.util.Enumeration;
  */
 public class NetworkImpl implements Network {
 
+    private int mMaximumReadsPerBatch = ReactorImpl.DEFAULT_MAXIMUM_READS_PER_BATCH;
+    private int mMaximumWritesPerBatch = ReactorImpl.DEFAULT_MAXIMUM_WRITES_PER_BATCH;
+    private int mMaximumMessagesPerBatch = ReactorImpl.DEFAULT_MAXIMUM_MESSAGES_PER_BATCH;
+    private int mWriteQueueCapacity = ReactorImpl.DEFAULT_WRITE_QUEUE_CAPACITY;
+    private OverflowPolicy mOverflowPolicy = ReactorImpl.DEFAULT_OVERFLOW_POLICY;
+    private OverflowHandler mOverflowHandler;
+    private int mShardCount = 1;
+
+    /**
+     * Configure the per-batch limits applied to reactors subsequently
+     * created by this network. A limit of zero means unlimited.
+     *
+     * @param maximumReads The maximum datagrams received per select.
+     * @param maximumWrites The maximum datagrams sent per select.
+     * @param maximumMessages The maximum messages handled per select.
+     */
+    public void setBatchLimits(int maximumReads, int maximumWrites, int maximumMessages) {
+        mMaximumReadsPerBatch = maximumReads;
+        mMaximumWritesPerBatch = maximumWrites;
+        mMaximumMessagesPerBatch = maximumMessages;
+    }
+
+    /**
+     * Configure the outgoing datagram queue of reactors subsequently created
+     * by this network.
+     *
+     * @param capacity The maximum number of queued datagrams.
+     * @param policy The action to take when the queue is full.
+     * @param handler The handler to receive rejected datagrams, if the
+     *        policy is OverflowPolicy.CALLBACK.
+     */
+    public void setWriteQueue(int capacity, OverflowPolicy policy, OverflowHandler handler) {
+        mWriteQueueCapacity = capacity;
+        mOverflowPolicy = policy;
+        mOverflowHandler = handler;
+    }
+
+    /**
+     * Enable sharded network mode for reactors subsequently created by this
+     * network. Each reactor will open the specified number of sockets on its
+     * port using SO_REUSEPORT, receiving from each on a separate thread.
+     *
+     * @param shardCount The number of shards, typically the number of cores.
+     */
+    public void setShardCount(int shardCount) {
+        mShardCount = shardCount;
+    }
+
     /**
      * Parse a string representing a network address.
      *
@@ -82,7 +132,13 @@ public class NetworkImpl implements Network {
      */
     @Override
     public Reactor createReactor(int port) {
-        return new ReactorImpl(port);
+        ReactorImpl reactor = new ReactorImpl(port);
+        reactor.setMaximumReadsPerBatch(mMaximumReadsPerBatch);
+        reactor.setMaximumWritesPerBatch(mMaximumWritesPerBatch);
+        reactor.setMaximumMessagesPerBatch(mMaximumMessagesPerBatch);
+        reactor.setWriteQueue(mWriteQueueCapacity, mOverflowPolicy, mOverflowHandler);
+        reactor.setShardCount(mShardCount);
+        return reactor;
     }
 
 }
@@ -1,17 +1,24 @@
 package org.telehash.network.impl;
 
 import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
 import org.telehash.network.Datagram;
 import org.telehash.network.DatagramHandler;
 import org.telehash.network.InetPath;
 import org.telehash.network.Message;
 import org.telehash.network.MessageHandler;
+import org.telehash.network.OverflowHandler;
+import org.telehash.network.OverflowPolicy;
 import org.telehash.network.Path;
 import org.telehash.network.Reactor;
+import org.telehash.network.ReactorStatistics;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
@@ -22,14 +29,42 @@ import java.util.Queue;
 
 public class ReactorImpl implements Reactor {
 
+    /** The largest datagram we expect to receive. */
+    private static final int MAXIMUM_DATAGRAM_SIZE = 2048;
+
+    /** The number of idle receive buffers to retain for reuse. */
+    private static final int RECEIVE_BUFFER_POOL_SIZE = 16;
+
+    /** The default per-batch limits; zero means unlimited. */
+    static final int DEFAULT_MAXIMUM_READS_PER_BATCH = 64;
+    static final int DEFAULT_MAXIMUM_WRITES_PER_BATCH = 64;
+    static final int DEFAULT_MAXIMUM_MESSAGES_PER_BATCH = 64;
+
+    /** The default write queue capacity and overflow policy. */
+    static final int DEFAULT_WRITE_QUEUE_CAPACITY = 1024;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST;
+
     private int mPort;
     private Selector mSelector;
     private SelectionKey mSelectionKey;
     private DatagramChannel mChannel;
     private DatagramHandler mDatagramHandler;
     private MessageHandler mMessageHandler;
-    private Queue<Datagram> mWriteQueue = new LinkedList<Datagram>();
+    private BoundedDatagramQueue mWriteQueue =
+            new BoundedDatagramQueue(DEFAULT_WRITE_QUEUE_CAPACITY);
+    private volatile OverflowPolicy mOverflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private volatile OverflowHandler mOverflowHandler;
+    /** A datagram dequeued for sending which could not be sent without blocking. */
+    private Datagram mPendingWrite;
     private Queue<Message> mMessageQueue = new LinkedList<Message>();
+    private DatagramBufferPool mBufferPool =
+            new DatagramBufferPool(MAXIMUM_DATAGRAM_SIZE, RECEIVE_BUFFER_POOL_SIZE);
+    private int mMaximumReadsPerBatch = DEFAULT_MAXIMUM_READS_PER_BATCH;
+    private int mMaximumWritesPerBatch = DEFAULT_MAXIMUM_WRITES_PER_BATCH;
+    private int mMaximumMessagesPerBatch = DEFAULT_MAXIMUM_MESSAGES_PER_BATCH;
+    private ReactorStatistics mStatistics = new ReactorStatistics();
+    private int mShardCount = 1;
+    private ReactorShard[] mShards;
 
     /**
      * Construct a new ReactorImpl.
@@ -40,6 +75,79 @@ public class ReactorImpl implements Reactor {
         mPort = port;
     }
 
+    /**
+     * Set the maximum number of datagrams to receive in a single batch. Each
+     * call to select() drains the socket until no datagram is available or
+     * this limit is reached, so that timers are not starved under load.
+     *
+     * @param maximum The maximum, or zero for no limit.
+     */
+    public void setMaximumReadsPerBatch(int maximum) {
+        mMaximumReadsPerBatch = maximum;
+    }
+
+    /**
+     * Set the maximum number of datagrams to send in a single batch. Each
+     * call to select() flushes the write queue until the socket would block
+     * or this limit is reached.
+     *
+     * @param maximum The maximum, or zero for no limit.
+     */
+    public void setMaximumWritesPerBatch(int maximum) {
+        mMaximumWritesPerBatch = maximum;
+    }
+
+    /**
+     * Set the maximum number of queued messages to handle in a single batch.
+     *
+     * @param maximum The maximum, or zero for no limit.
+     */
+    public void setMaximumMessagesPerBatch(int maximum) {
+        mMaximumMessagesPerBatch = maximum;
+    }
+
+    int getMaximumReadsPerBatch() {
+        return mMaximumReadsPerBatch;
+    }
+
+    /**
+     * Set the number of shards. With more than one shard, start() opens one
+     * DatagramChannel per shard, all bound to the same port with
+     * SO_REUSEPORT, and receives from each on its own thread. The datagram
+     * handler is then invoked concurrently from the shard threads, although
+     * all datagrams from a given source path are dispatched by the same
+     * shard, in order.
+     * Writes and messages are still processed by the thread calling
+     * select().
+     *
+     * If the platform does not support SO_REUSEPORT, a single socket is used.
+     *
+     * @param shardCount The number of shards.
+     */
+    public void setShardCount(int shardCount) {
+        mShardCount = Math.max(1, shardCount);
+    }
+
+    /**
+     * Configure the outgoing datagram queue.
+     *
+     * @param capacity The maximum number of queued datagrams.
+     * @param policy The action to take when a datagram is submitted while
+     *        the queue is full.
+     * @param handler The handler to receive rejected datagrams, if the
+     *        policy is OverflowPolicy.CALLBACK.
+     */
+    public void setWriteQueue(int capacity, OverflowPolicy policy, OverflowHandler handler) {
+        mWriteQueue.setCapacity(capacity);
+        mOverflowPolicy = policy;
+        mOverflowHandler = handler;
+    }
+
+    @Override
+    public ReactorStatistics getStatistics() {
+        return mStatistics;
+    }
+
     @Override
     public void setDatagramHandler(DatagramHandler datagramHandler) {
         mDatagramHandler = datagramHandler;
@@ -56,12 +164,41 @@ public class ReactorImpl implements Reactor {
         try {
             mSelector = Selector.open();
             mChannel = DatagramChannel.open();
+            SocketOption<Boolean> reusePort = null;
+            if (mShardCount > 1) {
+                reusePort = getReusePortOption(mChannel);
+                if (reusePort == null) {
+                    Log.w(Category.NETWORK, "SO_REUSEPORT is not supported; using a single reactor socket.");
+                    mShardCount = 1;
+                } else {
+                    mChannel.setOption(reusePort, true);
+                }
+            }
             // TODO: configure port number
             mChannel.socket().bind(new InetSocketAddress(mPort));
             mChannel.configureBlocking(false);
-            mSelectionKey = mChannel.register(mSelector, SelectionKey.OP_READ);
+            if (mShardCount == 1) {
+                mSelectionKey = mChannel.register(mSelector, SelectionKey.OP_READ);
+            } else {
+                // the first channel is also used for writes by the select() thread.
+                mSelectionKey = mChannel.register(mSelector, 0);
+                int port = mChannel.socket().getLocalPort();
+                mShards = new ReactorShard[mShardCount];
+                mShards[0] = new ReactorShard(this, 0, mChannel);
+                for (int i=1; i<mShardCount; i++) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    channel.setOption(reusePort, true);
+                    channel.socket().bind(new InetSocketAddress(port));
+                    channel.configureBlocking(false);
+                    mShards[i] = new ReactorShard(this, i, channel);
+                }
+                for (ReactorShard shard : mShards) {
+                    shard.start();
+                }
+            }
         } catch (IOException e) {
             try {
+                closeShards();
                 mSelector.close();
                 mChannel.close();
             } catch (IOException e1) {
@@ -71,6 +208,27 @@ public class ReactorImpl implements Reactor {
         }
     }
 
+    /**
+     * Obtain the SO_REUSEPORT socket option, if it is available on this
+     * platform. The option is looked up reflectively since it is not present
+     * in older Java runtimes.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption(DatagramChannel channel) {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            if (channel.supportedOptions().contains(option)) {
+                return option;
+            }
+        } catch (NoSuchFieldException e) {
+            // not supported by this runtime.
+        } catch (IllegalAccessException e) {
+            // not supported by this runtime.
+        }
+        return null;
+    }
+
     @Override
     public void stop() {
         if (mSelector != null) {
@@ -80,11 +238,30 @@ public class ReactorImpl implements Reactor {
 
     @Override
     public void close() throws IOException {
+        closeShards();
         mSelector.close();
         mChannel.close();
         mSelector = null;
     }
 
+    private void closeShards() throws IOException {
+        if (mShards == null) {
+            return;
+        }
+        for (ReactorShard shard : mShards) {
+            if (shard != null) {
+                shard.stop();
+            }
+        }
+        for (ReactorShard shard : mShards) {
+            if (shard != null) {
+                shard.join();
+                shard.getChannel().close();
+            }
+        }
+        mShards = null;
+    }
+
     @Override
     public void wakeup() {
         if (mSelector != null) {
@@ -94,103 +271,260 @@ public class ReactorImpl implements Reactor {
 
     @Override
     public void select(long timeout) throws IOException {
-        // prepare for select
-        if (mWriteQueue.isEmpty()) {
-            mSelectionKey.interestOps(SelectionKey.OP_READ);
+        // prepare for select -- in sharded mode, reads are performed by the
+        // shard threads.
+        int readInterest = (mShards == null) ? SelectionKey.OP_READ : 0;
+        if (mPendingWrite == null && mWriteQueue.isEmpty()) {
+            mSelectionKey.interestOps(readInterest);
         } else {
-            mSelectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            Log.i("selecting for write");
+            mSelectionKey.interestOps(readInterest | SelectionKey.OP_WRITE);
+            Log.i(Category.NETWORK, "selecting for write");
         }
 
-        // select
-        mSelector.select(timeout);
+        // select -- if messages are still pending from a previous batch
+        // which reached its limit, don't block.
+        boolean messagesPending;
+        synchronized (mMessageQueue) {
+            messagesPending = ! mMessageQueue.isEmpty();
+        }
+        if (messagesPending) {
+            mSelector.selectNow();
+        } else {
+            mSelector.select(timeout);
+        }
 
         // dispatch
+        int reads = 0;
+        int writes = 0;
+        boolean limited = false;
         if (mSelector.selectedKeys().contains(mSelectionKey)) {
             if (mSelectionKey.isReadable()) {
-                handleIncoming();
+                reads = handleIncoming();
+                limited |= (mMaximumReadsPerBatch > 0 && reads == mMaximumReadsPerBatch);
             }
             if (mSelectionKey.isWritable()) {
-                handleOutgoing();
+                writes = handleOutgoing();
+                limited |= (mMaximumWritesPerBatch > 0 && writes == mMaximumWritesPerBatch);
             }
+            mSelector.selectedKeys().clear();
         }
-        synchronized (mMessageQueue) {
-            Message message = mMessageQueue.poll();
-            if (message != null && mMessageHandler != null) {
-                mMessageHandler.handleMessage(message);
+        int messages = handleMessages();
+        limited |= (mMaximumMessagesPerBatch > 0 && messages == mMaximumMessagesPerBatch);
+
+        mStatistics.recordBatch(reads, writes, messages, limited);
+        mStatistics.setWriteQueueDepth(mWriteQueue.size());
+    }
+
+    /**
+     * Receive datagrams until the socket has no more available, or until the
+     * per-batch limit is reached.
+     *
+     * @return The number of datagrams received.
+     */
+    private int handleIncoming() {
+        int count = 0;
+        while (mMaximumReadsPerBatch <= 0 || count < mMaximumReadsPerBatch) {
+            if (! receiveDatagram()) {
+                break;
             }
+            count++;
         }
+        return count;
     }
 
-    private void handleIncoming() {
-        // TODO: don't allocate a new buffer every time.
-        ByteBuffer buffer = ByteBuffer.allocate(2048);
-        SocketAddress socketAddress;
+    /**
+     * Receive and dispatch a single datagram.
+     *
+     * @return True if a datagram was received, or false if none was available.
+     */
+    private boolean receiveDatagram() {
+        ByteBuffer buffer = mBufferPool.acquire();
         try {
-            socketAddress = mChannel.receive(buffer);
-            if (socketAddress == null) {
-                // no datagram available to read.
-                return;
+            SocketAddress socketAddress;
+            try {
+                socketAddress = mChannel.receive(buffer);
+                if (socketAddress == null) {
+                    // no datagram available to read.
+                    return false;
+                }
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+                return false;
             }
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return;
+            Path sourcePath = Path.socketAddressToPath(socketAddress);
+            if (sourcePath == null) {
+                return true;
+            }
+
+            // the datagram references the pooled buffer directly; the
+            // buffer is recycled once the handler returns.
+            dispatchDatagram(new Datagram(
+                    buffer.array(),
+                    buffer.arrayOffset(),
+                    buffer.position(),
+                    sourcePath,
+                    null
+            ));
+            return true;
+        } finally {
+            mBufferPool.release(buffer);
         }
-        Path sourcePath = Path.socketAddressToPath(socketAddress);
-        if (sourcePath == null) {
-            return;
+    }
+
+    void dispatchDatagram(Datagram datagram) {
+        DatagramHandler handler = mDatagramHandler;
+        if (handler != null) {
+            handler.handleDatagram(datagram);
         }
+    }
 
-        // extract a byte array of the datagram buffer
-        // TODO: retool parse() to take length/offset args to avoid excessive copying.
-        byte[] packetBuffer = new byte[buffer.position()];
-        System.arraycopy(buffer.array(), 0, packetBuffer, 0, buffer.position());
+    DatagramBufferPool getBufferPool() {
+        return mBufferPool;
+    }
 
-        if (mDatagramHandler != null) {
-            mDatagramHandler.handleDatagram(new Datagram(packetBuffer,sourcePath,null));
-        }
+    ReactorShard getShard(int index) {
+        return mShards[index];
     }
 
-    private void handleOutgoing() {
-        Datagram datagram = mWriteQueue.poll();
-        if (datagram == null) {
-            // the write queue is empty.
-            return;
-        }
+    /**
+     * Determine which shard owns the provided datagram. Datagrams are owned
+     * by the shard selected by their source path, so that all datagrams from
+     * a peer -- in particular, an open packet and the line packets which
+     * follow it -- are dispatched by the same thread, in the order received.
+     *
+     * @param datagram The received datagram.
+     * @return The index of the owning shard.
+     */
+    int getOwningShard(Datagram datagram) {
+        int hash = datagram.getSource().hashCode();
+        // spread the port and address bits over the low bits.
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 8);
+        return (hash & Integer.MAX_VALUE) % mShards.length;
+    }
 
-        Path destination = datagram.getDestination();
-        if (! (destination instanceof InetPath)) {
-            return;
+    /**
+     * Send queued datagrams until the queue is empty, the socket would block,
+     * or the per-batch limit is reached.
+     *
+     * @return The number of datagrams sent.
+     */
+    private int handleOutgoing() {
+        int count = 0;
+        while (mMaximumWritesPerBatch <= 0 || count < mMaximumWritesPerBatch) {
+            // the datagram is dequeued before sending (rather than peeked)
+            // since producers may concurrently drop the oldest entry.
+            Datagram datagram = mPendingWrite;
+            mPendingWrite = null;
+            if (datagram == null) {
+                datagram = mWriteQueue.poll();
+            }
+            if (datagram == null) {
+                // the write queue is empty.
+                break;
+            }
+
+            Path destination = datagram.getDestination();
+            if (! (destination instanceof InetPath)) {
+                continue;
+            }
+            InetAddress destinationAddress = ((InetPath)destination).getAddress();
+            int destinationPort = ((InetPath)destination).getPort();
+
+            ByteBuffer buffer = ByteBuffer.wrap(
+                    datagram.getBytes(),
+                    datagram.getOffset(),
+                    datagram.getLength()
+            );
+            try {
+                int sent = mChannel.send(
+                        buffer,
+                        new InetSocketAddress(destinationAddress, destinationPort)
+                );
+                if (sent == 0) {
+                    // the socket would block; retry this datagram next time.
+                    mPendingWrite = datagram;
+                    break;
+                }
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            count++;
+        }
+        if (count > 0) {
+            if (Log.isEnabled(Category.NETWORK, Level.INFO)) {
+                Log.i(Category.NETWORK, "%d datagram(s) sent.", count);
+            }
         }
-        InetAddress destinationAddress = ((InetPath)destination).getAddress();
-        int destinationPort = ((InetPath)destination).getPort();
+        return count;
+    }
 
-        // TODO: don't allocate a new buffer every time.
-        ByteBuffer buffer = ByteBuffer.allocate(2048);
-        buffer.clear();
-        buffer.put(datagram.getBytes());
-        buffer.flip();
-        try {
-            mChannel.send(buffer, new InetSocketAddress(destinationAddress, destinationPort));
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    /**
+     * Handle queued messages until the queue is empty or the per-batch limit
+     * is reached.
+     *
+     * @return The number of messages handled.
+     */
+    private int handleMessages() {
+        int count = 0;
+        while (mMaximumMessagesPerBatch <= 0 || count < mMaximumMessagesPerBatch) {
+            Message message;
+            synchronized (mMessageQueue) {
+                message = mMessageQueue.poll();
+            }
+            if (message == null) {
+                break;
+            }
+            if (mMessageHandler != null) {
+                mMessageHandler.handleMessage(message);
+            }
+            count++;
         }
-        Log.i("datagram sent.");
+        return count;
     }
 
     /**
      * Send a datagram.  This is potentially called from an outside thread.
      *
      * @param datagram
+     * @return True if the datagram was queued (possibly in place of the
+     *         oldest queued datagram, under OverflowPolicy.DROP_OLDEST), or
+     *         false if it was dropped or handed to the overflow handler.
      */
     @Override
-    public void sendDatagram(Datagram datagram) {
-        // TODO: synchronize writequeue
-        // TODO: limit write queue (block if limit reached?)
-        mWriteQueue.offer(datagram);
-        mSelector.wakeup();
+    public boolean sendDatagram(Datagram datagram) {
+        boolean queued = mWriteQueue.offer(datagram);
+        if (! queued) {
+            switch (mOverflowPolicy) {
+            case DROP_OLDEST:
+                if (mWriteQueue.poll() != null) {
+                    mStatistics.recordDroppedDatagram();
+                }
+                queued = mWriteQueue.offer(datagram);
+                if (! queued) {
+                    // other producers took the vacated slot.
+                    mStatistics.recordDroppedDatagram();
+                }
+                break;
+            case DROP_NEWEST:
+                mStatistics.recordDroppedDatagram();
+                break;
+            case CALLBACK:
+                mStatistics.recordDroppedDatagram();
+                OverflowHandler handler = mOverflowHandler;
+                if (handler != null) {
+                    handler.handleOverflow(datagram);
+                }
+                break;
+            }
+        }
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        return queued;
     }
 
     @Override
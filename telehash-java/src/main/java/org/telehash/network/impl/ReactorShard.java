@@ -0,0 +1,194 @@
+package org.telehash.network.impl;
+
+import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.network.Datagram;
+import org.telehash.network.Path;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * One shard of a sharded ReactorImpl. Each shard owns a DatagramChannel
+ * bound (via SO_REUSEPORT) to the reactor's port, and a thread which
+ * receives datagrams from it. Datagrams are dispatched by the shard which
+ * owns their source path; those which arrive on another shard's socket are
+ * handed off to the owner through a bounded queue, so that all datagrams
+ * from a given source are dispatched by a single thread, in order. If the
+ * owner falls behind and its handoff queue fills, further handoffs to it
+ * are dropped.
+ */
+class ReactorShard implements Runnable {
+
+    /** The maximum number of datagrams awaiting dispatch from other shards. */
+    static final int HANDOFF_QUEUE_CAPACITY = 1024;
+
+    private static class HandoffDatagram {
+        final ByteBuffer buffer;
+        final Datagram datagram;
+        HandoffDatagram(ByteBuffer buffer, Datagram datagram) {
+            this.buffer = buffer;
+            this.datagram = datagram;
+        }
+    }
+
+    private final ReactorImpl mReactor;
+    private final int mIndex;
+    private final DatagramChannel mChannel;
+    private final Selector mSelector;
+    private final Queue<HandoffDatagram> mHandoffQueue =
+            new ArrayBlockingQueue<HandoffDatagram>(HANDOFF_QUEUE_CAPACITY);
+    private Thread mThread;
+    private volatile boolean mStopRequested = false;
+
+    /**
+     * Construct a new ReactorShard.
+     *
+     * @param reactor The parent reactor.
+     * @param index The index of this shard.
+     * @param channel A bound, non-blocking channel.
+     * @throws IOException
+     */
+    ReactorShard(ReactorImpl reactor, int index, DatagramChannel channel) throws IOException {
+        mReactor = reactor;
+        mIndex = index;
+        mChannel = channel;
+        mSelector = Selector.open();
+        mChannel.register(mSelector, SelectionKey.OP_READ);
+    }
+
+    DatagramChannel getChannel() {
+        return mChannel;
+    }
+
+    void start() {
+        mThread = new Thread(this, "telehash-reactor-shard-"+mIndex);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Ask the shard thread to stop.
+     */
+    void stop() {
+        mStopRequested = true;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Wait for the shard thread to finish after stop(), and release the
+     * shard's selector. The channel itself is closed by the parent reactor.
+     */
+    void join() throws IOException {
+        if (mThread != null && ! Thread.currentThread().equals(mThread)) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mSelector.close();
+    }
+
+    /**
+     * Hand a received datagram to this shard for dispatch. This is called
+     * from other shard threads.
+     *
+     * @return True if the datagram was queued, or false if it was dropped
+     *         (and its buffer released) because the handoff queue is full.
+     */
+    boolean handoff(ByteBuffer buffer, Datagram datagram) {
+        if (! mHandoffQueue.offer(new HandoffDatagram(buffer, datagram))) {
+            mReactor.getBufferPool().release(buffer);
+            return false;
+        }
+        mSelector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (! mStopRequested) {
+            try {
+                mSelector.select();
+                mSelector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(Category.NETWORK, "reactor shard %d select failed", mIndex, e);
+                break;
+            }
+
+            // dispatch datagrams handed off by other shards
+            HandoffDatagram handoff;
+            while ((handoff = mHandoffQueue.poll()) != null) {
+                dispatch(handoff.buffer, handoff.datagram);
+            }
+
+            // receive from our own socket
+            int reads = 0;
+            int handoffs = 0;
+            int dropped = 0;
+            int maximumReads = mReactor.getMaximumReadsPerBatch();
+            while (maximumReads <= 0 || reads < maximumReads) {
+                ByteBuffer buffer = mReactor.getBufferPool().acquire();
+                SocketAddress socketAddress;
+                try {
+                    socketAddress = mChannel.receive(buffer);
+                } catch (IOException e) {
+                    mReactor.getBufferPool().release(buffer);
+                    if (! mStopRequested) {
+                        Log.e(Category.NETWORK, "reactor shard %d receive failed", mIndex, e);
+                    }
+                    break;
+                }
+                if (socketAddress == null) {
+                    // no datagram available to read.
+                    mReactor.getBufferPool().release(buffer);
+                    break;
+                }
+                reads++;
+
+                Path sourcePath = Path.socketAddressToPath(socketAddress);
+                if (sourcePath == null) {
+                    mReactor.getBufferPool().release(buffer);
+                    continue;
+                }
+                Datagram datagram = new Datagram(
+                        buffer.array(),
+                        buffer.arrayOffset(),
+                        buffer.position(),
+                        sourcePath,
+                        null
+                );
+
+                int owner = mReactor.getOwningShard(datagram);
+                if (owner == mIndex) {
+                    dispatch(buffer, datagram);
+                } else if (mReactor.getShard(owner).handoff(buffer, datagram)) {
+                    handoffs++;
+                } else {
+                    dropped++;
+                }
+            }
+            mReactor.getStatistics().recordShardReads(reads, handoffs, dropped);
+        }
+    }
+
+    private void dispatch(ByteBuffer buffer, Datagram datagram) {
+        try {
+            mReactor.dispatchDatagram(datagram);
+        } catch (RuntimeException e) {
+            Log.e(Category.NETWORK, "reactor shard %d datagram handler failed", mIndex, e);
+        } finally {
+            mReactor.getBufferPool().release(buffer);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.telehash.storage;
+
+import org.telehash.core.SeedNode;
+
+/**
+ * A node recorded in a persisted routing table snapshot, along with the
+ * time it was last seen.
+ */
+public class RoutingTableEntry {
+    private SeedNode mNode;
+    private long mLastSeenTime;
+
+    /**
+     * Construct a new RoutingTableEntry.
+     *
+     * @param node The node, with its fingerprints, public keys, and paths.
+     * @param lastSeenTime The wall clock time (in milliseconds since the
+     *        epoch) at which the node was last heard from.
+     */
+    public RoutingTableEntry(SeedNode node, long lastSeenTime) {
+        mNode = node;
+        mLastSeenTime = lastSeenTime;
+    }
+
+    public SeedNode getNode() {
+        return mNode;
+    }
+
+    public long getLastSeenTime() {
+        return mLastSeenTime;
+    }
+
+    @Override
+    public String toString() {
+        return "RoutingTableEntry["+mNode+" seen="+mLastSeenTime+"]";
+    }
+}
@@ -4,6 +4,7 @@ import org.telehash.core.LocalNode;
 import org.telehash.core.SeedNode;
 import org.telehash.core.TelehashException;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -71,4 +72,34 @@ public interface Storage {
      *             If a problem happened while reading and parsing the seeds.
      */
     public Set<SeedNode> readSeeds(String seedsFilename) throws TelehashException;
+
+    /**
+     * Read a routing table snapshot previously written by
+     * writeRoutingTable().
+     *
+     * @param routingTableFilename
+     *            The filename of the JSON-encoded routing table snapshot.
+     * @return The snapshot entries, or an empty list if the file does not
+     *         exist.
+     * @throws TelehashException
+     *             If a problem happened while reading and parsing the snapshot.
+     */
+    public List<RoutingTableEntry> readRoutingTable(String routingTableFilename)
+            throws TelehashException;
+
+    /**
+     * Write a snapshot of the routing table, so that a restarted switch may
+     * re-link to recently seen nodes rather than bootstrapping from the
+     * seeds alone. The file is replaced atomically where the platform
+     * allows.
+     *
+     * @param entries
+     *            The nodes to write.
+     * @param routingTableFilename
+     *            The filename of the JSON-encoded routing table snapshot.
+     * @throws TelehashException
+     *             If a problem happened while writing the snapshot.
+     */
+    public void writeRoutingTable(List<RoutingTableEntry> entries, String routingTableFilename)
+            throws TelehashException;
 }
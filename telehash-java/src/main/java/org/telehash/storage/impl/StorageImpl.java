@@ -19,11 +19,16 @@ import org.telehash.crypto.HashNameKeyPair;
 import org.telehash.crypto.HashNamePrivateKey;
 import org.telehash.crypto.HashNamePublicKey;
 import org.telehash.network.Path;
+import org.telehash.storage.RoutingTableEntry;
 import org.telehash.storage.Storage;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -187,67 +192,199 @@ public class StorageImpl implements Storage {
                 continue;
             }
             String keyString = (String)keyObject;
+            nodes.add(parseNode(keyString, toplevel.getJSONObject(keyString)));
+        }
+        return nodes;
+    }
+
+    private static final String SEEN_KEY = "seen";
+    private static final String TEMPORARY_FILENAME_SUFFIX = ".tmp";
 
-            HashName hashName = new HashName(Util.hexToBytes(keyString));
-            JSONObject seed = toplevel.getJSONObject(keyString);
+    /**
+     * Read a routing table snapshot previously written by
+     * writeRoutingTable(). Entries which can no longer be parsed or
+     * verified are skipped.
+     *
+     * @param routingTableFilename
+     *            The filename of the JSON-encoded routing table snapshot.
+     * @return The snapshot entries, or an empty list if the file does not
+     *         exist.
+     * @throws TelehashException
+     *             If a problem happened while reading and parsing the snapshot.
+     */
+    @Override
+    public List<RoutingTableEntry> readRoutingTable(String routingTableFilename)
+            throws TelehashException {
+        List<RoutingTableEntry> entries = new ArrayList<RoutingTableEntry>();
+        if (! new File(routingTableFilename).exists()) {
+            return entries;
+        }
 
-            FingerprintSet fingerprints = new FingerprintSet(seed.getJSONObject(FINGERPRINTS_KEY));
-            if (! fingerprints.getHashName().equals(hashName)) {
-                throw new TelehashException("seed fingerprints do not match hashname");
+        JSONObject toplevel;
+        try {
+            FileInputStream inputStream = new FileInputStream(routingTableFilename);
+            try {
+                toplevel = new JSONObject(new JSONTokener(inputStream));
+            } finally {
+                inputStream.close();
             }
+        } catch (JSONException e) {
+            throw new TelehashException(e);
+        } catch (IOException e) {
+            throw new TelehashException(e);
+        }
 
-            // parse seed paths
-            List<Path> paths = new ArrayList<Path>();
-            if (seed.has(PATHS_KEY)) {
-                JSONArray pathsArray = seed.getJSONArray(PATHS_KEY);
-                paths.addAll(Path.parsePathArray(pathsArray));
+        Iterator<?> toplevelIterator = toplevel.keys();
+        while (toplevelIterator.hasNext()) {
+            Object keyObject = toplevelIterator.next();
+            if (keyObject == null || (! (keyObject instanceof String))) {
+                Log.w("unknown json key object type: "+keyObject);
+                continue;
             }
-            if (paths.isEmpty()) {
-                throw new TelehashException("no valid network paths found for seed!");
+            String keyString = (String)keyObject;
+            try {
+                JSONObject nodeObject = toplevel.getJSONObject(keyString);
+                SeedNode node = parseNode(keyString, nodeObject);
+                if (node.getPublicKeys().isEmpty()) {
+                    continue;
+                }
+                entries.add(new RoutingTableEntry(node, nodeObject.optLong(SEEN_KEY, 0L)));
+            } catch (TelehashException e) {
+                Log.w("skipping routing table entry "+keyString+": "+e.getMessage());
+            } catch (JSONException e) {
+                Log.w("skipping routing table entry "+keyString+": "+e.getMessage());
             }
+        }
+        return entries;
+    }
 
-            JSONObject keysObject = seed.getJSONObject(PUBLICKEYS_KEY);
-            Iterator<?> keysIter = keysObject.keys();
-            SortedMap<CipherSetIdentifier,HashNamePublicKey> publicKeys =
-                    new TreeMap<CipherSetIdentifier,HashNamePublicKey>();
-            while (keysIter.hasNext()) {
-                // cipher set id
-                Object csidObject = keysIter.next();
-                if (! (csidObject instanceof String)) {
-                    throw new TelehashException("invalid csid in seeds json");
-                }
-                String csidString = (String)csidObject;
-                CipherSetIdentifier csid = new CipherSetIdentifier((String)csidObject);
+    /**
+     * Write a snapshot of the routing table. The snapshot is written to a
+     * temporary file which then replaces the named file, so an interrupted
+     * write does not destroy the previous snapshot.
+     *
+     * @param entries
+     *            The nodes to write.
+     * @param routingTableFilename
+     *            The filename of the JSON-encoded routing table snapshot.
+     * @throws TelehashException
+     *             If a problem happened while writing the snapshot.
+     */
+    @Override
+    public void writeRoutingTable(List<RoutingTableEntry> entries, String routingTableFilename)
+            throws TelehashException {
+        JSONObject toplevel = new JSONObject();
+        for (RoutingTableEntry entry : entries) {
+            SeedNode node = entry.getNode();
+            JSONObject keysObject = new JSONObject();
+            for (Map.Entry<CipherSetIdentifier,HashNamePublicKey> keyEntry :
+                    node.getPublicKeys().entrySet()) {
+                keysObject.put(
+                        keyEntry.getKey().asHex(),
+                        Util.base64Encode(keyEntry.getValue().getEncoded())
+                );
+            }
+            JSONArray pathsArray = new JSONArray();
+            for (Path path : node.getPaths()) {
+                pathsArray.put(path.toJSONObject());
+            }
+            JSONObject nodeObject = new JSONObject();
+            nodeObject.put(FINGERPRINTS_KEY, node.getFingerprints().toJSON());
+            nodeObject.put(PUBLICKEYS_KEY, keysObject);
+            nodeObject.put(PATHS_KEY, pathsArray);
+            nodeObject.put(SEEN_KEY, entry.getLastSeenTime());
+            toplevel.put(node.getHashName().asHex(), nodeObject);
+        }
 
-                // key
-                Object pubkeyObject = keysObject.get(csidString);
-                if (! (pubkeyObject instanceof String)) {
-                    throw new TelehashException("invalid key in seeds json for csid "+csid);
-                }
-                String pubkeyString = (String)pubkeyObject;
-                byte[] pubkeyBuffer = Util.base64Decode(pubkeyString);
-                CipherSet cipherSet = Telehash.get().getCrypto()
-                        .getCipherSet(csid);
-                if (cipherSet == null) {
-                    Log.w("unknown cipher set in seeds json: "+csid);
-                } else {
-                    HashNamePublicKey publicKey = cipherSet.decodeHashNamePublicKey(pubkeyBuffer);
-
-                    // confirm fingerprint
-                    byte[] publicKeyFingerprint = publicKey.getFingerprint();
-                    byte[] providedFingerprint = fingerprints.get(csid);
-                    if (publicKeyFingerprint == null ||
-                            providedFingerprint == null ||
-                            (! Arrays.equals(publicKeyFingerprint,  providedFingerprint))) {
-                        throw new TelehashException("seed pubkey does not match fingerprint");
-                    }
-                    publicKeys.put(csid, publicKey);
-                }
+        File file = new File(routingTableFilename);
+        File temporaryFile = new File(routingTableFilename + TEMPORARY_FILENAME_SUFFIX);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+            try {
+                toplevel.write(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (JSONException e) {
+            throw new TelehashException(e);
+        } catch (IOException e) {
+            throw new TelehashException(e);
+        }
+        if (! temporaryFile.renameTo(file)) {
+            // some platforms will not rename over an existing file.
+            file.delete();
+            if (! temporaryFile.renameTo(file)) {
+                throw new TelehashException("cannot write routing table: "+routingTableFilename);
+            }
+        }
+    }
+
+    /**
+     * Parse a node from its JSON representation in a seeds file or routing
+     * table snapshot, verifying its fingerprints and public keys.
+     *
+     * @param hashNameString The hex-encoded hash name of the node.
+     * @param seed The JSON object describing the node.
+     * @return The parsed node.
+     * @throws TelehashException If the node could not be parsed or verified.
+     */
+    private SeedNode parseNode(String hashNameString, JSONObject seed) throws TelehashException {
+        HashName hashName = new HashName(Util.hexToBytes(hashNameString));
+
+        FingerprintSet fingerprints = new FingerprintSet(seed.getJSONObject(FINGERPRINTS_KEY));
+        if (! fingerprints.getHashName().equals(hashName)) {
+            throw new TelehashException("seed fingerprints do not match hashname");
+        }
+
+        // parse seed paths
+        List<Path> paths = new ArrayList<Path>();
+        if (seed.has(PATHS_KEY)) {
+            JSONArray pathsArray = seed.getJSONArray(PATHS_KEY);
+            paths.addAll(Path.parsePathArray(pathsArray));
+        }
+        if (paths.isEmpty()) {
+            throw new TelehashException("no valid network paths found for seed!");
+        }
+
+        JSONObject keysObject = seed.getJSONObject(PUBLICKEYS_KEY);
+        Iterator<?> keysIter = keysObject.keys();
+        SortedMap<CipherSetIdentifier,HashNamePublicKey> publicKeys =
+                new TreeMap<CipherSetIdentifier,HashNamePublicKey>();
+        while (keysIter.hasNext()) {
+            // cipher set id
+            Object csidObject = keysIter.next();
+            if (! (csidObject instanceof String)) {
+                throw new TelehashException("invalid csid in seeds json");
+            }
+            String csidString = (String)csidObject;
+            CipherSetIdentifier csid = new CipherSetIdentifier((String)csidObject);
+
+            // key
+            Object pubkeyObject = keysObject.get(csidString);
+            if (! (pubkeyObject instanceof String)) {
+                throw new TelehashException("invalid key in seeds json for csid "+csid);
             }
+            String pubkeyString = (String)pubkeyObject;
+            byte[] pubkeyBuffer = Util.base64Decode(pubkeyString);
+            CipherSet cipherSet = Telehash.get().getCrypto()
+                    .getCipherSet(csid);
+            if (cipherSet == null) {
+                Log.w("unknown cipher set in seeds json: "+csid);
+            } else {
+                HashNamePublicKey publicKey = cipherSet.decodeHashNamePublicKey(pubkeyBuffer);
 
-            SeedNode node = new SeedNode(fingerprints, publicKeys, paths);
-            nodes.add(node);
+                // confirm fingerprint
+                byte[] publicKeyFingerprint = publicKey.getFingerprint();
+                byte[] providedFingerprint = fingerprints.get(csid);
+                if (publicKeyFingerprint == null ||
+                        providedFingerprint == null ||
+                        (! Arrays.equals(publicKeyFingerprint,  providedFingerprint))) {
+                    throw new TelehashException("seed pubkey does not match fingerprint");
+                }
+                publicKeys.put(csid, publicKey);
+            }
         }
-        return nodes;
+
+        return new SeedNode(fingerprints, publicKeys, paths);
     }
 }
@@ -7,6 +7,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
@@ -14,6 +15,7 @@ import org.junit.Test;
 import org.telehash.core.CipherSetIdentifier;
 import org.telehash.core.HashName;
 import org.telehash.core.LocalNode;
+import org.telehash.core.TelehashException;
 import org.telehash.core.Util;
 import org.telehash.crypto.CipherSet;
 import org.telehash.crypto.Crypto;
@@ -23,8 +25,15 @@ import org.telehash.crypto.HashNamePublicKey;
 import org.telehash.crypto.LineKeyPair;
 import org.telehash.crypto.LinePublicKey;
 import org.telehash.crypto.impl.CryptoImpl;
+import org.telehash.crypto.set2a.AEADCipher;
+import org.telehash.crypto.set2a.AEADProvider;
+import org.telehash.crypto.set2a.JCEAEADProvider;
+import org.telehash.crypto.set2a.LineIVGenerator;
+import org.telehash.crypto.set2a.SpongyCastleAEADProvider;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -391,6 +400,69 @@ public class CryptoTest {
         assertArrayEquals(localSharedSecret, remoteSharedSecret);
     }
 
+    @Test
+    public void testAEADProviderInterop() throws Exception {
+        AEADProvider spongyCastle = new SpongyCastleAEADProvider();
+        AEADProvider jce = new JCEAEADProvider(spongyCastle);
+        byte[] key = mCrypto.sha256Digest("secret".getBytes("UTF-8"));
+        byte[] plainText = "a small line packet".getBytes("UTF-8");
+
+        for (int tagBits : new int[] {32, 64, 128}) {
+            AEADCipher jceEncrypt = jce.createCipher(key, true, tagBits);
+            AEADCipher jceDecrypt = jce.createCipher(key, false, tagBits);
+            AEADCipher scEncrypt = spongyCastle.createCipher(key, true, tagBits);
+            AEADCipher scDecrypt = spongyCastle.createCipher(key, false, tagBits);
+            for (int i=0; i<3; i++) {
+                byte[] iv = mCrypto.getRandomBytes(16);
+                byte[] jceCipherText = jceEncrypt.process(iv, plainText, 0, plainText.length);
+                byte[] scCipherText = scEncrypt.process(iv, plainText, 0, plainText.length);
+                assertArrayEquals(jceCipherText, scCipherText);
+                assertEquals(jceCipherText.length, plainText.length + tagBits/8);
+                assertArrayEquals(
+                        scDecrypt.process(iv, jceCipherText, 0, jceCipherText.length),
+                        plainText
+                );
+                assertArrayEquals(
+                        jceDecrypt.process(iv, scCipherText, 0, scCipherText.length),
+                        plainText
+                );
+            }
+        }
+
+        // a corrupted tag must be rejected
+        byte[] iv = mCrypto.getRandomBytes(16);
+        byte[] cipherText =
+                jce.createCipher(key, true, 128).process(iv, plainText, 0, plainText.length);
+        cipherText[cipherText.length-1] ^= 1;
+        try {
+            jce.createCipher(key, false, 128).process(iv, cipherText, 0, cipherText.length);
+            fail("corrupted ciphertext was accepted");
+        } catch (TelehashException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLineIVGenerator() throws Exception {
+        byte[] prefix = mCrypto.getRandomBytes(LineIVGenerator.PREFIX_SIZE);
+        LineIVGenerator generator = new LineIVGenerator(prefix);
+        Set<String> ivs = new HashSet<String>();
+        for (int i=0; i<1000; i++) {
+            byte[] iv = generator.next();
+            assertEquals(iv.length, LineIVGenerator.IV_SIZE);
+            for (int j=0; j<LineIVGenerator.PREFIX_SIZE; j++) {
+                assertEquals(iv[j], prefix[j]);
+            }
+            assertTrue(ivs.add(Util.bytesToHex(iv)));
+        }
+
+        // the counter is big-endian and carries across bytes
+        byte[] iv = new byte[LineIVGenerator.IV_SIZE + 2];
+        generator.next(iv, 2);
+        assertEquals(iv[2+LineIVGenerator.IV_SIZE-1], (byte)(1000 & 0xFF));
+        assertEquals(iv[2+LineIVGenerator.IV_SIZE-2], (byte)(1000 >> 8));
+    }
+
     /*
     @Test
     public void testAESSimple() throws Exception {
@@ -1,24 +1,61 @@
 package org.telehash.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.telehash.core.Channel;
+import org.telehash.core.ChannelHandler;
+import org.telehash.core.ChannelPacket;
+import org.telehash.core.CompletionHandler;
 import org.telehash.core.HashName;
+import org.telehash.core.Line;
+import org.telehash.core.LineManager;
+import org.telehash.core.LocalNode;
+import org.telehash.core.Node;
+import org.telehash.core.PeerNode;
+import org.telehash.core.Switch;
+import org.telehash.core.Telehash;
 import org.telehash.core.Util;
+import org.telehash.core.VirtualClock;
 import org.telehash.crypto.Crypto;
 import org.telehash.crypto.impl.CryptoImpl;
+import org.telehash.dht.ClosestNodeHeap;
 import org.telehash.dht.DHT;
+import org.telehash.dht.Link;
+import org.telehash.dht.NodeLookupCache;
+import org.telehash.dht.NodeTracker;
+import org.telehash.dht.RttEstimator;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.network.Path;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 public class DHTTest {
 
+    private Telehash mPreviousTelehash;
+
     @Before
     public void setUp() throws Exception {
+        mPreviousTelehash = Telehash.get();
     }
 
     @After
     public void tearDown() throws Exception {
+        mPreviousTelehash.setThreadLocal();
     }
 
     private class DistanceTest {
@@ -131,4 +168,399 @@ public class DHTTest {
         }
     }
 
+    private static final int NUM_ORDERING_TESTS = 4096;
+
+    @Test
+    public void testHashNameOrdering() throws Exception {
+        Crypto crypto = new CryptoImpl();
+        for (int i=0; i<NUM_ORDERING_TESTS; i++) {
+            HashName origin = new HashName(crypto.getRandomBytes(HashName.SIZE));
+            HashName a = new HashName(crypto.getRandomBytes(HashName.SIZE));
+            // share a random-length prefix, to exercise every word
+            byte[] bytes = crypto.getRandomBytes(HashName.SIZE);
+            System.arraycopy(a.getBytes(), 0, bytes, 0, i % HashName.SIZE);
+            HashName b = new HashName(bytes);
+
+            BigInteger ia = new BigInteger(1, a.getBytes());
+            BigInteger ib = new BigInteger(1, b.getBytes());
+            assertEquals(Integer.signum(ia.compareTo(ib)), Integer.signum(a.compareTo(b)));
+            assertEquals(
+                    Integer.signum(origin.distance(a).compareTo(origin.distance(b))),
+                    Integer.signum(origin.compareDistance(a, b))
+            );
+            assertEquals(0, origin.compareDistance(a, a));
+            assertEquals(a, new HashName(a.getBytes().clone()));
+            assertEquals(a.hashCode(), new HashName(a.getBytes().clone()).hashCode());
+        }
+    }
+
+    private static final int NUM_HEAP_NODES = 1000;
+    private static final int HEAP_CAPACITIES[] = {0, 1, 8, NUM_HEAP_NODES, NUM_HEAP_NODES*2};
+
+    @Test
+    public void testClosestNodeHeap() throws Exception {
+        Crypto crypto = new CryptoImpl();
+        final HashName target = new HashName(crypto.getRandomBytes(HashName.SIZE));
+        List<PeerNode> nodes = new ArrayList<PeerNode>();
+        for (int i=0; i<NUM_HEAP_NODES; i++) {
+            nodes.add(new PeerNode(
+                    new HashName(crypto.getRandomBytes(HashName.SIZE)),
+                    Collections.<Path>emptySet()
+            ));
+        }
+        List<PeerNode> sorted = new ArrayList<PeerNode>(nodes);
+        Collections.sort(sorted, new Comparator<PeerNode>() {
+            @Override
+            public int compare(PeerNode a, PeerNode b) {
+                return target.distance(a.getHashName()).compareTo(
+                        target.distance(b.getHashName()));
+            }
+        });
+
+        for (int capacity : HEAP_CAPACITIES) {
+            ClosestNodeHeap heap = new ClosestNodeHeap(target, capacity);
+            for (PeerNode node : nodes) {
+                heap.offer(node);
+            }
+            assertEquals(
+                    sorted.subList(0, Math.min(capacity, NUM_HEAP_NODES)),
+                    heap.toSortedList()
+            );
+            assertEquals(0, heap.size());
+        }
+    }
+
+    @Test
+    public void testNodeLookupCache() throws Exception {
+        Random random = new Random(1);
+        List<PeerNode> nodes = new ArrayList<PeerNode>();
+        for (int i=0; i<4; i++) {
+            byte[] bytes = new byte[HashName.SIZE];
+            random.nextBytes(bytes);
+            nodes.add(new PeerNode(new HashName(bytes), Collections.<Path>emptySet()));
+        }
+        NodeLookupCache cache = new NodeLookupCache(3, 100);
+
+        // results expire after the time-to-live
+        cache.put(nodes.get(0).getHashName(), nodes.get(0), 0);
+        assertSame(nodes.get(0), cache.get(nodes.get(0).getHashName(), 99));
+        assertNull(cache.get(nodes.get(0).getHashName(), 100));
+        assertEquals(0, cache.size());
+
+        // the least-recently used result is evicted
+        cache.put(nodes.get(0).getHashName(), nodes.get(0), 0);
+        cache.put(nodes.get(1).getHashName(), nodes.get(1), 0);
+        cache.put(nodes.get(2).getHashName(), nodes.get(2), 0);
+        assertSame(nodes.get(0), cache.get(nodes.get(0).getHashName(), 1));
+        cache.put(nodes.get(3).getHashName(), nodes.get(3), 1);
+        assertEquals(3, cache.size());
+        assertNull(cache.get(nodes.get(1).getHashName(), 2));
+        assertSame(nodes.get(0), cache.get(nodes.get(0).getHashName(), 2));
+        assertSame(nodes.get(3), cache.get(nodes.get(3).getHashName(), 2));
+
+        cache.remove(nodes.get(3).getHashName());
+        assertNull(cache.get(nodes.get(3).getHashName(), 2));
+    }
+
+    @Test
+    public void testRttEstimator() throws Exception {
+        final long ms = 1000000L;
+        HashName a = new HashName(Util.fixedSizeBytes(new byte[] {1}, HashName.SIZE));
+        HashName b = new HashName(Util.fixedSizeBytes(new byte[] {2}, HashName.SIZE));
+        RttEstimator estimator = new RttEstimator(1);
+
+        assertNull(estimator.getEstimate(a));
+        assertEquals(RttEstimator.DEFAULT_TIMEOUT, estimator.getTimeout(a));
+        assertEquals(Long.MAX_VALUE, estimator.getSmoothedRtt(a));
+
+        // first sample: srtt = R, rttvar = R/2
+        estimator.addSample(a, 100*ms);
+        assertEquals(100*ms, estimator.getEstimate(a).getSmoothedRtt());
+        assertEquals(50*ms, estimator.getEstimate(a).getRttVariation());
+        assertEquals(300, estimator.getTimeout(a));
+
+        // rttvar = 3/4*50 + 1/4*|100-200| = 62.5; srtt = 7/8*100 + 1/8*200 = 112.5
+        estimator.addSample(a, 200*ms);
+        assertEquals(112500000L, estimator.getEstimate(a).getSmoothedRtt());
+        assertEquals(62500000L, estimator.getEstimate(a).getRttVariation());
+        assertEquals(362, estimator.getTimeout(a));
+
+        // timeouts are clamped
+        estimator.addSample(b, 1*ms);
+        assertEquals(RttEstimator.MINIMUM_TIMEOUT, estimator.getTimeout(b));
+
+        // the least-recently updated peer is forgotten
+        assertNull(estimator.getEstimate(a));
+        assertEquals(1, estimator.size());
+    }
+
+    @Test
+    public void testRttEstimatorTimeout() throws Exception {
+        final long ms = 1000000L;
+        HashName a = new HashName(Util.fixedSizeBytes(new byte[] {1}, HashName.SIZE));
+        HashName b = new HashName(Util.fixedSizeBytes(new byte[] {2}, HashName.SIZE));
+        RttEstimator estimator = new RttEstimator();
+
+        // a timeout is a sample of twice the timeout: 2*(100+4*50) = 600ms.
+        // rttvar = 3/4*50 + 1/4*|100-600| = 162.5; srtt = 7/8*100 + 1/8*600 = 162.5
+        estimator.addSample(a, 100*ms);
+        estimator.addTimeout(a);
+        assertEquals(162500000L, estimator.getEstimate(a).getSmoothedRtt());
+        assertEquals(162500000L, estimator.getEstimate(a).getRttVariation());
+        assertEquals(812, estimator.getTimeout(a));
+
+        // repeated timeouts keep backing off, up to the maximum.
+        long timeout = estimator.getTimeout(a);
+        for (int i=0; i<20; i++) {
+            estimator.addTimeout(a);
+            assertTrue(estimator.getTimeout(a) >= timeout);
+            timeout = estimator.getTimeout(a);
+        }
+        assertEquals(RttEstimator.MAXIMUM_TIMEOUT, timeout);
+
+        // a peer with no samples still ranks last, with the default timeout.
+        estimator.addTimeout(b);
+        assertNull(estimator.getEstimate(b));
+        assertEquals(Long.MAX_VALUE, estimator.getSmoothedRtt(b));
+        assertEquals(RttEstimator.DEFAULT_TIMEOUT, estimator.getTimeout(b));
+    }
+
+    private static final long NANOSECONDS_IN_SECOND = 1000000000L;
+    // the link timeout after which a silent peer is unresponsive
+    private static final long LINK_TIMEOUT = 120*NANOSECONDS_IN_SECOND;
+    private static final int TEST_BUCKET = 200;
+
+    /**
+     * A node tracker whose links are accepted from peers over channels that
+     * never reach a network. The switch records the nodes it is asked to
+     * open link channels to, and line packets are discarded.
+     */
+    private class BucketFixture {
+        final VirtualClock mClock = new VirtualClock();
+        final Telehash mTelehash;
+        final NodeTracker mNodeTracker;
+        final Map<Link,Channel> mChannels = new HashMap<Link,Channel>();
+        final List<Node> mOpened = new ArrayList<Node>();
+
+        BucketFixture(int bucketSize, int replacementCacheSize) throws Exception {
+            LocalNode localNode = Telehash.get().getCrypto().generateLocalNode();
+            mTelehash = new Telehash(localNode);
+            mTelehash.setClock(mClock);
+            final LineManager lineManager = new LineManager(mTelehash) {
+                @Override
+                public boolean sendLinePacket(
+                        Line line,
+                        ChannelPacket channelPacket,
+                        CompletionHandler<Line> handler,
+                        Object attachment
+                ) {
+                    return true;
+                }
+            };
+            mTelehash.setSwitch(new Switch(mTelehash, null) {
+                @Override
+                public LineManager getLineManager() {
+                    return lineManager;
+                }
+                @Override
+                public void openChannelNow(
+                        Node destination,
+                        String type,
+                        ChannelHandler channelHandler
+                ) {
+                    mOpened.add(destination);
+                }
+            });
+            mTelehash.setThreadLocal();
+            mNodeTracker = new NodeTracker(localNode);
+            mNodeTracker.setBucketSize(bucketSize, replacementCacheSize);
+        }
+
+        PeerNode createNode() throws Exception {
+            HashName hashName = DHT.getRandomHashName(
+                    mTelehash.getLocalNode().getHashName(), TEST_BUCKET);
+            return new PeerNode(hashName, Collections.<Path>emptySet());
+        }
+
+        Link accept(PeerNode node) {
+            Channel channel = new Channel(mTelehash, new Line(mTelehash, node), DHT.LINK_TYPE);
+            ChannelPacket channelPacket = new ChannelPacket();
+            channelPacket.setType(DHT.LINK_TYPE);
+            Link link = new Link(mNodeTracker, channel, channelPacket);
+            mChannels.put(link, channel);
+            return link;
+        }
+
+        void receive(Link link) {
+            mChannels.get(link).receive(new ChannelPacket());
+        }
+
+        void advance(long nanoseconds) {
+            mClock.advance(nanoseconds);
+        }
+
+        SwitchSnapshot.BucketInfo getBucket() {
+            for (SwitchSnapshot.BucketInfo bucket : mNodeTracker.getBucketSnapshots()) {
+                if (bucket.getIndex() == TEST_BUCKET) {
+                    return bucket;
+                }
+            }
+            return null;
+        }
+
+        List<String> getLinkOrder() {
+            List<String> order = new ArrayList<String>();
+            SwitchSnapshot.BucketInfo bucket = getBucket();
+            if (bucket != null) {
+                for (SwitchSnapshot.LinkInfo link : bucket.getLinks()) {
+                    order.add(link.getHashName());
+                }
+            }
+            return order;
+        }
+
+        int getReplacementCount() {
+            SwitchSnapshot.BucketInfo bucket = getBucket();
+            return (bucket == null) ? 0 : bucket.getReplacementCount();
+        }
+    }
+
+    private static List<String> hashNames(PeerNode... nodes) {
+        List<String> list = new ArrayList<String>();
+        for (PeerNode node : nodes) {
+            list.add(node.getHashName().asHex());
+        }
+        return list;
+    }
+
+    @Test
+    public void testBucketLeastRecentlySeenOrder() throws Exception {
+        BucketFixture fixture = new BucketFixture(3, 3);
+        PeerNode a = fixture.createNode();
+        PeerNode b = fixture.createNode();
+        PeerNode c = fixture.createNode();
+        Link linkA = fixture.accept(a);
+        Link linkB = fixture.accept(b);
+        fixture.accept(c);
+        assertEquals(hashNames(a, b, c), fixture.getLinkOrder());
+
+        // traffic moves a link to the most-recently seen end.
+        fixture.advance(NANOSECONDS_IN_SECOND);
+        fixture.receive(linkA);
+        assertEquals(hashNames(b, c, a), fixture.getLinkOrder());
+        fixture.receive(linkB);
+        assertEquals(hashNames(c, a, b), fixture.getLinkOrder());
+    }
+
+    @Test
+    public void testLinkUnresponsive() throws Exception {
+        BucketFixture fixture = new BucketFixture(3, 3);
+        Link link = fixture.accept(fixture.createNode());
+        assertFalse(link.isUnresponsive(fixture.mClock.nanoTime()));
+        fixture.advance(LINK_TIMEOUT);
+        assertFalse(link.isUnresponsive(fixture.mClock.nanoTime()));
+        fixture.advance(NANOSECONDS_IN_SECOND);
+        assertTrue(link.isUnresponsive(fixture.mClock.nanoTime()));
+
+        // traffic makes the link responsive again.
+        fixture.receive(link);
+        assertFalse(link.isUnresponsive(fixture.mClock.nanoTime()));
+    }
+
+    @Test
+    public void testBucketKeepsResponsiveIncumbent() throws Exception {
+        BucketFixture fixture = new BucketFixture(2, 2);
+        PeerNode a = fixture.createNode();
+        PeerNode b = fixture.createNode();
+        PeerNode c = fixture.createNode();
+        fixture.accept(a);
+        fixture.accept(b);
+        fixture.advance(LINK_TIMEOUT/2);
+        Link linkC = fixture.accept(c);
+        assertEquals(Link.State.CLOSED, linkC.getState());
+        assertEquals(hashNames(a, b), fixture.getLinkOrder());
+        assertEquals(1, fixture.getReplacementCount());
+    }
+
+    @Test
+    public void testBucketEvictsUnresponsive() throws Exception {
+        BucketFixture fixture = new BucketFixture(2, 2);
+        PeerNode a = fixture.createNode();
+        PeerNode b = fixture.createNode();
+        PeerNode c = fixture.createNode();
+        Link linkA = fixture.accept(a);
+        Link linkB = fixture.accept(b);
+
+        // b stays in touch, while a falls silent.
+        fixture.advance(LINK_TIMEOUT - NANOSECONDS_IN_SECOND);
+        fixture.receive(linkB);
+        fixture.advance(2*NANOSECONDS_IN_SECOND);
+        assertTrue(linkA.isUnresponsive(fixture.mClock.nanoTime()));
+        assertFalse(linkB.isUnresponsive(fixture.mClock.nanoTime()));
+
+        // the unresponsive least-recently seen link makes way for c.
+        fixture.accept(c);
+        assertEquals(Link.State.CLOSED, linkA.getState());
+        assertEquals(hashNames(b, c), fixture.getLinkOrder());
+        assertEquals(2, fixture.mNodeTracker.size());
+        assertEquals(0, fixture.getReplacementCount());
+    }
+
+    @Test
+    public void testBucketReplacementCacheBound() throws Exception {
+        BucketFixture fixture = new BucketFixture(1, 2);
+        fixture.accept(fixture.createNode());
+        for (int i=0; i<4; i++) {
+            fixture.accept(fixture.createNode());
+        }
+        assertEquals(1, fixture.getLinkOrder().size());
+        assertEquals(2, fixture.getReplacementCount());
+    }
+
+    @Test
+    public void testBucketFillsVacancyOnClose() throws Exception {
+        BucketFixture fixture = new BucketFixture(1, 2);
+        PeerNode a = fixture.createNode();
+        PeerNode b = fixture.createNode();
+        PeerNode c = fixture.createNode();
+        Link linkA = fixture.accept(a);
+        fixture.accept(b);
+        fixture.accept(c);
+        assertEquals(2, fixture.getReplacementCount());
+        assertTrue(fixture.mOpened.isEmpty());
+
+        // the most-recently seen replacement is linked in a's place.
+        linkA.close();
+        assertEquals(1, fixture.mOpened.size());
+        assertSame(c, fixture.mOpened.get(0));
+        assertEquals(hashNames(c), fixture.getLinkOrder());
+        assertEquals(1, fixture.mNodeTracker.size());
+        assertEquals(1, fixture.getReplacementCount());
+    }
+
+    @Test
+    public void testSetBucketSize() throws Exception {
+        BucketFixture fixture = new BucketFixture(4, 0);
+        assertEquals(4, fixture.mNodeTracker.getBucketSize());
+        for (int i=0; i<5; i++) {
+            fixture.accept(fixture.createNode());
+        }
+        assertEquals(4, fixture.getLinkOrder().size());
+        assertEquals(4, fixture.mNodeTracker.size());
+        // no replacements are remembered with an empty cache.
+        assertEquals(0, fixture.getReplacementCount());
+
+        try {
+            fixture.mNodeTracker.setBucketSize(0, 1);
+            fail("bucket size of zero accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            fixture.mNodeTracker.setBucketSize(1, -1);
+            fail("negative replacement cache size accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package org.telehash.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telehash.core.AsyncLogger;
+import org.telehash.core.Log;
+import org.telehash.core.Log.Category;
+import org.telehash.core.Log.Level;
+import org.telehash.core.LogEntry;
+import org.telehash.core.LogListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogTest {
+
+    /**
+     * Record the entries logged by the test thread, ignoring any stray
+     * threads left over from other tests.
+     */
+    private static class RecordingListener implements LogListener {
+        final Thread thread = Thread.currentThread();
+        final List<LogEntry> entries = new ArrayList<LogEntry>();
+        @Override
+        public void onLogEvent(LogEntry entry) {
+            if (Thread.currentThread() == thread) {
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * An argument which records whether it was ever formatted.
+     */
+    private static class FormatProbe {
+        boolean formatted = false;
+        @Override
+        public String toString() {
+            formatted = true;
+            return "probe";
+        }
+    }
+
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mListener = new RecordingListener();
+        Log.addLogListener(mListener);
+        Log.setLevel(Level.DEBUG);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Log.removeLogListener(mListener);
+        Log.setLevel(Level.DEBUG);
+    }
+
+    @Test
+    public void testCategory() {
+        Log.i(Category.LINE, "line %s opened in %s", "a", "b");
+        assertEquals(mListener.entries.size(), 1);
+        LogEntry entry = mListener.entries.get(0);
+        assertEquals(entry.getCategory(), Category.LINE);
+        assertEquals(entry.getLevel(), Level.INFO);
+        assertEquals(entry.getMessage(), "line a opened in b");
+
+        Log.w("uncategorized %d", 42);
+        assertEquals(mListener.entries.get(1).getCategory(), Category.UNKNOWN);
+        assertEquals(mListener.entries.get(1).getMessage(), "uncategorized 42");
+    }
+
+    @Test
+    public void testThresholds() {
+        Log.setLevel(Level.WARNING);
+        Log.setLevel(Category.DHT, Level.DEBUG);
+        assertFalse(Log.isEnabled(Category.NETWORK, Level.INFO));
+        assertTrue(Log.isEnabled(Category.NETWORK, Level.WARNING));
+        assertTrue(Log.isEnabled(Category.NETWORK, Level.ERROR));
+        assertTrue(Log.isEnabled(Category.DHT, Level.DEBUG));
+
+        Log.i(Category.NETWORK, "suppressed");
+        Log.i("suppressed");
+        Log.w(Category.NETWORK, "network warning");
+        Log.d(Category.DHT, "dht debug");
+        assertEquals(mListener.entries.size(), 2);
+        assertEquals(mListener.entries.get(0).getMessage(), "network warning");
+        assertEquals(mListener.entries.get(1).getMessage(), "dht debug");
+    }
+
+    @Test
+    public void testDisabledDoesNotFormat() {
+        Log.setLevel(Category.CHANNEL, Level.ERROR);
+        FormatProbe probe = new FormatProbe();
+        Log.d(Category.CHANNEL, "%s", probe);
+        Log.v(Category.CHANNEL, "%s %s", probe, probe);
+        Log.i(Category.CHANNEL, "%s %s %s", probe, probe, probe);
+        Log.w(Category.CHANNEL, "%s", probe);
+        assertFalse(probe.formatted);
+        assertEquals(mListener.entries.size(), 0);
+
+        Log.e(Category.CHANNEL, "%s", probe);
+        assertTrue(probe.formatted);
+        assertEquals(mListener.entries.size(), 1);
+    }
+
+    @Test
+    public void testThrowable() {
+        Exception error = new Exception("failure");
+        Log.e(Category.CRYPTO, "operation %s failed", "x", error);
+        LogEntry entry = mListener.entries.get(0);
+        assertEquals(entry.getMessage(), "operation x failed");
+        assertSame(entry.getError(), error);
+    }
+
+    @Test
+    public void testAsyncLoggerDrops() throws Exception {
+        File file = File.createTempFile("telehash-log", ".log");
+        AsyncLogger logger = new AsyncLogger(file.getPath(), false, 4, 1024*1024, 1);
+        // the writer is not yet started, so the buffer fills.
+        for (int i=0; i<10; i++) {
+            logger.onLogEvent(new LogEntry(Category.UNKNOWN, Level.INFO, "entry "+i));
+        }
+        assertEquals(4, logger.size());
+        assertEquals(6, logger.getDroppedCount());
+
+        logger.start();
+        logger.sync();
+        assertEquals(0, logger.size());
+        logger.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0).contains("6 log entries dropped"));
+        for (int i=0; i<4; i++) {
+            assertTrue(lines.get(i+1).endsWith("entry "+i));
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testAsyncLoggerRotation() throws Exception {
+        File file = File.createTempFile("telehash-log", ".log");
+        AsyncLogger logger = new AsyncLogger(file.getPath(), false, 64, 256, 2);
+        logger.start();
+        for (int i=0; i<20; i++) {
+            logger.onLogEvent(new LogEntry(Category.UNKNOWN, Level.INFO, "rotation entry "+i));
+            logger.sync();
+        }
+        logger.close();
+
+        File first = new File(file.getPath()+".1");
+        File second = new File(file.getPath()+".2");
+        File third = new File(file.getPath()+".3");
+        assertTrue(file.length() <= 256);
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+        assertFalse(third.exists());
+        List<String> lines = readLines(file);
+        assertTrue(lines.get(lines.size()-1).endsWith("rotation entry 19"));
+        file.delete();
+        first.delete();
+        second.delete();
+    }
+
+    private static List<String> readLines(File file) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,125 @@
+package org.telehash.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.telehash.metrics.Counter;
+import org.telehash.metrics.Gauge;
+import org.telehash.metrics.Histogram;
+import org.telehash.metrics.HistogramSnapshot;
+import org.telehash.metrics.MetricsRegistry;
+import org.telehash.metrics.MetricsSnapshot;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class MetricsTest {
+
+    @Test
+    public void testCounter() {
+        Counter counter = new Counter();
+        counter.increment();
+        counter.add(41);
+        assertEquals(counter.getCount(), 42);
+    }
+
+    @Test
+    public void testHistogramPrecision() {
+        // each reported percentile is within 25% of the true value.
+        long[] values = new long[] {
+            0, 1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 100, 1000, 12345,
+            1000000, 987654321L, Long.MAX_VALUE / 3, Long.MAX_VALUE
+        };
+        for (long value : values) {
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            histogram.record(value);
+            HistogramSnapshot snapshot = histogram.getSnapshot();
+            assertEquals(snapshot.getCount(), 2);
+            assertEquals(snapshot.getMax(), value);
+            long median = snapshot.getPercentile(0.5);
+            assertTrue(median <= value);
+            assertTrue(median >= value - value / 4);
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i=1; i<=1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        HistogramSnapshot snapshot = histogram.getSnapshot();
+        assertEquals(snapshot.getCount(), 1001);
+        assertEquals(snapshot.getMax(), 1000);
+        assertEquals(snapshot.getSum(), 500500);
+        assertEquals(snapshot.getPercentile(1.0), 1000);
+        assertEquals(snapshot.getPercentile(0.0), 0);
+        long median = snapshot.getPercentile(0.5);
+        assertTrue(median >= 500 && median <= 625);
+        long p99 = snapshot.getPercentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(new Histogram().getSnapshot().getPercentile(0.99), 0);
+    }
+
+    @Test
+    public void testRegistry() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("a.count");
+        assertTrue(registry.counter("a.count") == counter);
+        registry.histogram("a.time").record(10);
+        registry.gauge("a.depth", new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        try {
+            registry.histogram("a.count");
+            fail("a counter was returned as a histogram");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        counter.add(3);
+        MetricsSnapshot snapshot = registry.getSnapshot();
+        assertEquals(snapshot.getCounter("a.count"), 3);
+        assertEquals(snapshot.getGauge("a.depth"), 7);
+        assertEquals(snapshot.getHistogram("a.time").getCount(), 1);
+        assertNull(snapshot.getHistogram("missing"));
+
+        // later updates do not affect the snapshot
+        counter.increment();
+        assertEquals(snapshot.getCounter("a.count"), 3);
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.count").add(5);
+        registry.registerMBeans("metrics-test");
+        // metrics added after registration are registered too
+        registry.histogram("test.time").record(100);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName counterName = new ObjectName(MetricsRegistry.DOMAIN+
+                ":type=Metrics,scope="+ObjectName.quote("metrics-test")+
+                ",name="+ObjectName.quote("test.count"));
+        ObjectName histogramName = new ObjectName(MetricsRegistry.DOMAIN+
+                ":type=Metrics,scope="+ObjectName.quote("metrics-test")+
+                ",name="+ObjectName.quote("test.time"));
+        assertEquals(server.getAttribute(counterName, "Count"), 5L);
+        assertEquals(server.getAttribute(histogramName, "Max"), 100L);
+
+        registry.unregisterMBeans();
+        assertFalse(server.isRegistered(counterName));
+        assertFalse(server.isRegistered(histogramName));
+    }
+}
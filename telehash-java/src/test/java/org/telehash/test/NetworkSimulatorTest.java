@@ -0,0 +1,185 @@
+package org.telehash.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.telehash.core.VirtualClock;
+import org.telehash.network.Datagram;
+import org.telehash.network.DatagramHandler;
+import org.telehash.network.InetPath;
+import org.telehash.network.Network;
+import org.telehash.network.Reactor;
+import org.telehash.test.network.LinkModel;
+import org.telehash.test.network.NatType;
+import org.telehash.test.network.NetworkSimulator;
+import org.telehash.test.network.NetworkStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class NetworkSimulatorTest {
+
+    private static final int PORT = 42424;
+    private static final String ADDRESS_A = "10.0.0.1";
+    private static final String ADDRESS_B = "10.0.0.2";
+    private static final long NANOSECONDS_IN_MILLISECOND = 1000000L;
+
+    private static class Endpoint implements DatagramHandler {
+        final Network network;
+        final Reactor reactor;
+        final InetPath path;
+        final List<Datagram> received = new ArrayList<Datagram>();
+        Endpoint(NetworkSimulator simulator, String address) throws Exception {
+            network = simulator.createNode(address, PORT);
+            reactor = network.createReactor(PORT);
+            reactor.setDatagramHandler(this);
+            path = (InetPath)network.parsePath(address, PORT);
+        }
+        @Override
+        public void handleDatagram(Datagram datagram) {
+            received.add(datagram);
+        }
+        void send(InetPath destination, int length) throws Exception {
+            reactor.sendDatagram(new Datagram(new byte[length], null, destination));
+            // dispatch the queued write without blocking
+            reactor.select(-1);
+        }
+        void drain() throws Exception {
+            int count;
+            do {
+                count = received.size();
+                reactor.select(-1);
+            } while (received.size() > count);
+        }
+    }
+
+    private VirtualClock mClock;
+    private NetworkSimulator mSimulator;
+
+    @Before
+    public void setUp() throws Exception {
+        mClock = new VirtualClock(0L);
+        mSimulator = new NetworkSimulator(mClock);
+        mSimulator.setRandomSeed(1234L);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        LinkModel model = new LinkModel();
+        model.setLatency(50);
+        mSimulator.setLinkModel(model);
+        Endpoint a = new Endpoint(mSimulator, ADDRESS_A);
+        Endpoint b = new Endpoint(mSimulator, ADDRESS_B);
+
+        a.send(b.path, 100);
+        b.drain();
+        assertEquals(b.received.size(), 0);
+
+        mSimulator.waitForQuiescence(1000);
+        b.drain();
+        assertEquals(b.received.size(), 1);
+        assertEquals(mClock.nanoTime(), 50 * NANOSECONDS_IN_MILLISECOND);
+        NetworkStatistics statistics = mSimulator.getStatistics();
+        assertEquals(statistics.getSentCount(), 1);
+        assertEquals(statistics.getDeliveredBytes(), 100);
+        assertEquals(statistics.getMeanDelay(), 50 * NANOSECONDS_IN_MILLISECOND);
+    }
+
+    @Test
+    public void testLoss() throws Exception {
+        mSimulator.setLinkModel(LinkModel.wan(10, 5, 0.3));
+        Endpoint a = new Endpoint(mSimulator, ADDRESS_A);
+        Endpoint b = new Endpoint(mSimulator, ADDRESS_B);
+
+        int count = 1000;
+        for (int i=0; i<count; i++) {
+            a.send(b.path, 10);
+        }
+        mSimulator.waitForQuiescence(1000);
+        b.drain();
+
+        NetworkStatistics statistics = mSimulator.getStatistics();
+        assertEquals(statistics.getSentCount(), count);
+        assertEquals(statistics.getDeliveredCount() + statistics.getLostCount(), count);
+        assertEquals(b.received.size(), statistics.getDeliveredCount());
+        assertTrue(statistics.getLostCount() > count/5 && statistics.getLostCount() < count*2/5);
+        assertTrue(statistics.getMeanDelay() >= 10 * NANOSECONDS_IN_MILLISECOND);
+    }
+
+    @Test
+    public void testBandwidth() throws Exception {
+        LinkModel model = new LinkModel();
+        model.setBandwidth(1000, 250);
+        mSimulator.setLinkModel(model);
+        Endpoint a = new Endpoint(mSimulator, ADDRESS_A);
+        Endpoint b = new Endpoint(mSimulator, ADDRESS_B);
+
+        // 100 byte packets take 100ms each to transmit, so the fourth and
+        // fifth would wait longer than the 250ms queue limit.
+        for (int i=0; i<5; i++) {
+            a.send(b.path, 100);
+        }
+        mSimulator.waitForQuiescence(1000);
+        b.drain();
+
+        NetworkStatistics statistics = mSimulator.getStatistics();
+        assertEquals(b.received.size(), 3);
+        assertEquals(statistics.getQueueDroppedCount(), 2);
+        assertEquals(statistics.getMeanDelay(), 200 * NANOSECONDS_IN_MILLISECOND);
+    }
+
+    @Test
+    public void testRestrictedNat() throws Exception {
+        mSimulator.setNat(ADDRESS_B, NatType.PORT_RESTRICTED);
+        mSimulator.setNatBindingTimeout(1000);
+        Endpoint a = new Endpoint(mSimulator, ADDRESS_A);
+        Endpoint b = new Endpoint(mSimulator, ADDRESS_B);
+
+        // unsolicited inbound traffic is filtered
+        a.send(b.path, 10);
+        b.drain();
+        assertEquals(b.received.size(), 0);
+        assertEquals(mSimulator.getStatistics().getNatFilteredCount(), 1);
+
+        // outbound traffic opens a mapping
+        b.send(a.path, 10);
+        a.drain();
+        assertEquals(a.received.size(), 1);
+        a.send(b.path, 10);
+        b.drain();
+        assertEquals(b.received.size(), 1);
+
+        // the mapping lapses
+        mSimulator.sleep(1000);
+        a.send(b.path, 10);
+        b.drain();
+        assertEquals(b.received.size(), 1);
+        assertEquals(mSimulator.getStatistics().getNatFilteredCount(), 2);
+    }
+
+    @Test
+    public void testSymmetricNat() throws Exception {
+        mSimulator.setNat(ADDRESS_B, NatType.SYMMETRIC);
+        Endpoint a = new Endpoint(mSimulator, ADDRESS_A);
+        Endpoint b = new Endpoint(mSimulator, ADDRESS_B);
+
+        b.send(a.path, 10);
+        a.drain();
+        assertEquals(a.received.size(), 1);
+        InetPath external = (InetPath)a.received.get(0).getSource();
+        assertEquals(external.getAddress(), b.path.getAddress());
+        assertTrue(external.getPort() != PORT);
+
+        // replies to the external port reach the internal port, but the
+        // internal port itself is not reachable.
+        a.send(external, 10);
+        b.drain();
+        assertEquals(b.received.size(), 1);
+        assertEquals(((InetPath)b.received.get(0).getDestination()).getPort(), PORT);
+        a.send(b.path, 10);
+        b.drain();
+        assertEquals(b.received.size(), 1);
+    }
+}
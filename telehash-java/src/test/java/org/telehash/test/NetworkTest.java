@@ -1,6 +1,8 @@
 package org.telehash.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -9,10 +11,24 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.telehash.core.TelehashException;
+import org.telehash.network.Datagram;
+import org.telehash.network.DatagramHandler;
 import org.telehash.network.InetPath;
+import org.telehash.network.Message;
+import org.telehash.network.MessageHandler;
+import org.telehash.network.OverflowHandler;
+import org.telehash.network.OverflowPolicy;
 import org.telehash.network.Path;
+import org.telehash.network.Reactor;
+import org.telehash.network.impl.NetworkImpl;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class NetworkTest {
 
@@ -105,4 +121,232 @@ public class NetworkTest {
         }
     }
 
+    private static final int WRITE_QUEUE_CAPACITY = 4;
+
+    private Reactor createReactor(OverflowPolicy policy, OverflowHandler handler) {
+        NetworkImpl network = new NetworkImpl();
+        network.setWriteQueue(WRITE_QUEUE_CAPACITY, policy, handler);
+        return network.createReactor(0);
+    }
+
+    private Datagram createDatagram() throws Exception {
+        return new Datagram(new byte[1], null, new InetPath(InetAddress.getLocalHost(), 4242));
+    }
+
+    @Test
+    public void testWriteQueueDropNewest() throws Exception {
+        Reactor reactor = createReactor(OverflowPolicy.DROP_NEWEST, null);
+        for (int i=0; i<WRITE_QUEUE_CAPACITY; i++) {
+            assertTrue(reactor.sendDatagram(createDatagram()));
+        }
+        assertFalse(reactor.sendDatagram(createDatagram()));
+        assertFalse(reactor.sendDatagram(createDatagram()));
+        assertEquals(2, reactor.getStatistics().getDroppedDatagrams());
+    }
+
+    @Test
+    public void testWriteQueueDropOldest() throws Exception {
+        Reactor reactor = createReactor(OverflowPolicy.DROP_OLDEST, null);
+        for (int i=0; i<WRITE_QUEUE_CAPACITY; i++) {
+            assertTrue(reactor.sendDatagram(createDatagram()));
+        }
+        // the new datagram is queued in place of the oldest.
+        assertTrue(reactor.sendDatagram(createDatagram()));
+        assertEquals(1, reactor.getStatistics().getDroppedDatagrams());
+    }
+
+    @Test
+    public void testWriteQueueCallback() throws Exception {
+        final List<Datagram> overflow = new ArrayList<Datagram>();
+        Reactor reactor = createReactor(OverflowPolicy.CALLBACK, new OverflowHandler() {
+            @Override
+            public void handleOverflow(Datagram datagram) {
+                overflow.add(datagram);
+            }
+        });
+        for (int i=0; i<WRITE_QUEUE_CAPACITY; i++) {
+            assertTrue(reactor.sendDatagram(createDatagram()));
+        }
+        Datagram rejected = createDatagram();
+        assertFalse(reactor.sendDatagram(rejected));
+        assertEquals(1, overflow.size());
+        assertTrue(overflow.get(0) == rejected);
+    }
+
+    private static final int BATCH_TEST_PORT = 42471;
+    private static final int BATCH_LIMIT = 2;
+    private static final int BATCH_ITEMS = 5;
+
+    private static class CountingHandler implements DatagramHandler, MessageHandler {
+        int datagrams = 0;
+        int messages = 0;
+        @Override
+        public void handleDatagram(Datagram datagram) {
+            datagrams++;
+        }
+        @Override
+        public void handleMessage(Message message) {
+            messages++;
+        }
+    }
+
+    private Reactor createBatchReactor(int limit, CountingHandler handler) throws Exception {
+        NetworkImpl network = new NetworkImpl();
+        network.setBatchLimits(limit, limit, limit);
+        Reactor reactor = network.createReactor(BATCH_TEST_PORT);
+        reactor.setDatagramHandler(handler);
+        reactor.setMessageHandler(handler);
+        reactor.start();
+        return reactor;
+    }
+
+    @Test
+    public void testBatchReadLimit() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        Reactor reactor = createBatchReactor(BATCH_LIMIT, handler);
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            for (int i=0; i<BATCH_ITEMS; i++) {
+                socket.send(new DatagramPacket(
+                        new byte[1], 1, InetAddress.getLoopbackAddress(), BATCH_TEST_PORT));
+            }
+            // each batch stops at the limit, leaving the rest for the next.
+            reactor.select(1000);
+            assertEquals(BATCH_LIMIT, reactor.getStatistics().getLastBatchReads());
+            assertEquals(1, reactor.getStatistics().getLimitedBatches());
+            while (handler.datagrams < BATCH_ITEMS) {
+                reactor.select(1000);
+                assertTrue(reactor.getStatistics().getLastBatchReads() <= BATCH_LIMIT);
+            }
+            assertEquals(BATCH_ITEMS, reactor.getStatistics().getTotalReads());
+        } finally {
+            socket.close();
+            reactor.close();
+        }
+    }
+
+    @Test
+    public void testBatchMessageLimit() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        Reactor reactor = createBatchReactor(BATCH_LIMIT, handler);
+        try {
+            for (int i=0; i<BATCH_ITEMS; i++) {
+                reactor.sendMessage(new Message());
+            }
+            // messages left over from a limited batch must not block the
+            // next select.
+            long start = System.nanoTime();
+            reactor.select(60000);
+            assertEquals(BATCH_LIMIT, handler.messages);
+            reactor.select(60000);
+            assertEquals(BATCH_LIMIT*2, handler.messages);
+            reactor.select(60000);
+            assertEquals(BATCH_ITEMS, handler.messages);
+            assertTrue(System.nanoTime() - start < 10000000000L);
+            assertEquals(2, reactor.getStatistics().getLimitedBatches());
+        } finally {
+            reactor.close();
+        }
+    }
+
+    @Test
+    public void testUnlimitedIdleBatchIsNotLimited() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        Reactor reactor = createBatchReactor(0, handler);
+        try {
+            reactor.select(1);
+            reactor.select(1);
+            assertEquals(2, reactor.getStatistics().getBatches());
+            assertEquals(0, reactor.getStatistics().getLimitedBatches());
+        } finally {
+            reactor.close();
+        }
+    }
+
+    private static final int SHARD_TEST_PORT = 42472;
+    private static final int SHARDS = 4;
+    private static final int SHARD_TEST_SOURCES = 8;
+    private static final int SHARD_TEST_DATAGRAMS = 50;
+
+    /**
+     * Record the sequence numbers received from each source, and the
+     * threads which dispatched them.
+     */
+    private static class SourceRecorder implements DatagramHandler {
+        final Map<Path,List<Integer>> sequences = new HashMap<Path,List<Integer>>();
+        final Map<Path,Thread> threads = new HashMap<Path,Thread>();
+        int count = 0;
+        boolean threadChanged = false;
+        @Override
+        public synchronized void handleDatagram(Datagram datagram) {
+            Path source = datagram.getSource();
+            List<Integer> list = sequences.get(source);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                sequences.put(source, list);
+            }
+            list.add(datagram.getBytes()[datagram.getOffset()] & 0xFF);
+            Thread previous = threads.put(source, Thread.currentThread());
+            if (previous != null && previous != Thread.currentThread()) {
+                threadChanged = true;
+            }
+            count++;
+            notifyAll();
+        }
+    }
+
+    @Test
+    public void testShardedReactorPreservesSourceOrder() throws Exception {
+        NetworkImpl network = new NetworkImpl();
+        network.setShardCount(SHARDS);
+        Reactor reactor = network.createReactor(SHARD_TEST_PORT);
+        SourceRecorder recorder = new SourceRecorder();
+        reactor.setDatagramHandler(recorder);
+        reactor.start();
+        List<DatagramSocket> sockets = new ArrayList<DatagramSocket>();
+        try {
+            for (int i=0; i<SHARD_TEST_SOURCES; i++) {
+                sockets.add(new DatagramSocket());
+            }
+            for (int sequence=0; sequence<SHARD_TEST_DATAGRAMS; sequence++) {
+                for (DatagramSocket socket : sockets) {
+                    socket.send(new DatagramPacket(
+                            new byte[] {(byte)sequence}, 1,
+                            InetAddress.getLoopbackAddress(), SHARD_TEST_PORT));
+                }
+            }
+
+            // shard threads receive on their own; select() is only needed
+            // if SO_REUSEPORT is unavailable and a single socket is used.
+            int expected = SHARD_TEST_SOURCES * SHARD_TEST_DATAGRAMS;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                reactor.select(10);
+                synchronized (recorder) {
+                    if (recorder.count >= expected) {
+                        break;
+                    }
+                }
+            }
+
+            synchronized (recorder) {
+                assertEquals(expected, recorder.count);
+                assertEquals(SHARD_TEST_SOURCES, recorder.sequences.size());
+                for (List<Integer> list : recorder.sequences.values()) {
+                    assertEquals(SHARD_TEST_DATAGRAMS, list.size());
+                    for (int i=0; i<list.size(); i++) {
+                        assertEquals(i, (int)list.get(i));
+                    }
+                }
+                assertFalse(recorder.threadChanged);
+            }
+            assertEquals(expected, reactor.getStatistics().getTotalReads());
+            assertEquals(0, reactor.getStatistics().getDroppedHandoffs());
+        } finally {
+            for (DatagramSocket socket : sockets) {
+                socket.close();
+            }
+            reactor.close();
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package org.telehash.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telehash.core.OpenPacketExecutor;
+import org.telehash.core.OpenPacketStatistics;
+import org.telehash.core.Telehash;
+import org.telehash.network.Datagram;
+import org.telehash.network.DatagramHandler;
+import org.telehash.network.InetPath;
+import org.telehash.network.Message;
+import org.telehash.network.MessageHandler;
+import org.telehash.network.Path;
+import org.telehash.network.Reactor;
+import org.telehash.network.ReactorStatistics;
+
+import java.net.InetAddress;
+
+public class OpenPacketExecutorTest {
+
+    private static final int BASE_PORT = 42600;
+    private static final int REPEATED_OPENS = 10;
+    private static final int DATAGRAMS_PER_OPEN = 20;
+
+    /**
+     * A reactor which holds the executor's results instead of passing them
+     * to a switch, so that their sources remain pending.
+     */
+    private static class HoldingReactor implements Reactor {
+        private int mMessages = 0;
+
+        @Override
+        public synchronized void sendMessage(Message message) {
+            mMessages++;
+            notifyAll();
+        }
+
+        public synchronized void waitForMessages(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (mMessages < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, mMessages);
+        }
+
+        @Override public void setDatagramHandler(DatagramHandler datagramHandler) {}
+        @Override public void setMessageHandler(MessageHandler messageHandler) {}
+        @Override public void start() {}
+        @Override public void stop() {}
+        @Override public void close() {}
+        @Override public void wakeup() {}
+        @Override public void select(long timeout) {}
+        @Override public boolean sendDatagram(Datagram datagram) { return true; }
+        @Override public ReactorStatistics getStatistics() { return null; }
+    }
+
+    private HoldingReactor mReactor;
+    private OpenPacketExecutor mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mReactor = new HoldingReactor();
+        mExecutor = new OpenPacketExecutor(
+                new Telehash(),
+                mReactor,
+                OpenPacketExecutor.DEFAULT_THREADS,
+                OpenPacketExecutor.DEFAULT_QUEUE_CAPACITY
+        );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.close();
+    }
+
+    private static Path createSource(int index) throws Exception {
+        return new InetPath(InetAddress.getLoopbackAddress(), BASE_PORT + index);
+    }
+
+    // an open packet header, followed by a body which will fail to decrypt.
+    private static Datagram createOpen(Path source) {
+        byte[] bytes = new byte[64];
+        bytes[1] = 1;
+        bytes[2] = 0x2a;
+        return new Datagram(bytes, source, null);
+    }
+
+    private static Datagram createLinePacket(Path source) {
+        return new Datagram(new byte[34], source, null);
+    }
+
+    @Test
+    public void testRepeatedOpensDeferralBounded() throws Exception {
+        // a source keeps re-sending its open, interleaved with other
+        // datagrams, while the switch has yet to handle any of its opens.
+        Path source = createSource(0);
+        for (int i=0; i<REPEATED_OPENS; i++) {
+            assertTrue(mExecutor.submit(createOpen(source)));
+            for (int j=0; j<DATAGRAMS_PER_OPEN; j++) {
+                assertTrue(mExecutor.deferIfPending(createLinePacket(source)));
+            }
+        }
+        mReactor.waitForMessages(REPEATED_OPENS);
+
+        OpenPacketStatistics statistics = mExecutor.getStatistics();
+        assertEquals(REPEATED_OPENS, statistics.getSubmitted());
+        assertEquals(REPEATED_OPENS, statistics.getFailed());
+        assertEquals(OpenPacketExecutor.MAXIMUM_DEFERRED_PER_SOURCE,
+                statistics.getDeferredDatagrams());
+        assertEquals(REPEATED_OPENS * DATAGRAMS_PER_OPEN -
+                OpenPacketExecutor.MAXIMUM_DEFERRED_PER_SOURCE,
+                statistics.getDroppedDeferredDatagrams());
+
+        // datagrams from other sources are not held back.
+        assertFalse(mExecutor.deferIfPending(createLinePacket(createSource(1))));
+    }
+
+    @Test
+    public void testSubmitAfterClose() throws Exception {
+        mExecutor.close();
+        Path source = createSource(0);
+        assertFalse(mExecutor.submit(createOpen(source)));
+        assertEquals(1, mExecutor.getStatistics().getRejected());
+        assertEquals(0, mExecutor.getStatistics().getSubmitted());
+
+        // the rejected open does not hold back the source's datagrams.
+        assertFalse(mExecutor.deferIfPending(createLinePacket(source)));
+    }
+
+    @Test
+    public void testDeferralBoundedInTotal() throws Exception {
+        int sources = OpenPacketExecutor.MAXIMUM_DEFERRED /
+                OpenPacketExecutor.MAXIMUM_DEFERRED_PER_SOURCE + 2;
+        int datagrams = OpenPacketExecutor.MAXIMUM_DEFERRED_PER_SOURCE;
+        for (int i=0; i<sources; i++) {
+            Path source = createSource(i);
+            assertTrue(mExecutor.submit(createOpen(source)));
+            for (int j=0; j<datagrams; j++) {
+                assertTrue(mExecutor.deferIfPending(createLinePacket(source)));
+            }
+        }
+        mReactor.waitForMessages(sources);
+
+        OpenPacketStatistics statistics = mExecutor.getStatistics();
+        assertEquals(OpenPacketExecutor.MAXIMUM_DEFERRED, statistics.getDeferredDatagrams());
+        assertEquals(sources * datagrams - OpenPacketExecutor.MAXIMUM_DEFERRED,
+                statistics.getDroppedDeferredDatagrams());
+    }
+}
@@ -8,14 +8,19 @@ import static org.junit.Assert.assertTrue;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.telehash.core.ChannelIdentifier;
+import org.telehash.core.ChannelPacket;
 import org.telehash.core.CipherSetIdentifier;
 import org.telehash.core.FingerprintSet;
+import org.telehash.core.Line;
 import org.telehash.core.LineIdentifier;
+import org.telehash.core.LinePacket;
 import org.telehash.core.LocalNode;
 import org.telehash.core.OpenPacket;
 import org.telehash.core.Packet;
 import org.telehash.core.PeerNode;
 import org.telehash.core.SeedNode;
+import org.telehash.core.Switch;
 import org.telehash.core.Telehash;
 import org.telehash.core.Util;
 import org.telehash.crypto.CipherSet;
@@ -26,6 +31,7 @@ import org.telehash.crypto.LineKeyPair;
 import org.telehash.network.Path;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -261,4 +267,69 @@ public class PacketTest {
         assertEquals(openPacket.getLineIdentifier(), openPacket2.getLineIdentifier());
     }
 
+    @Test
+    public void testOpenPacketParseFromBufferRegion() throws Exception {
+        Path localPath = Path.parsePath(SAMPLE_PATH);
+        Path remotePath = Path.parsePath(SAMPLE_PATH);
+        mLocalNode2.setPaths(Collections.singleton(remotePath));
+        OpenPacket openPacket = new OpenPacket(
+                mLocalNode1,
+                mLocalNode2,
+                NODE2_CIPHER_SET_ID,
+                LineIdentifier.generate()
+        );
+        byte[] openPacketBuffer = openPacket.render();
+        assertNotNull(openPacketBuffer);
+
+        // embed the packet in a larger buffer, as a pooled receive buffer would.
+        final int offset = 7;
+        byte[] buffer = new byte[2048];
+        System.arraycopy(openPacketBuffer, 0, buffer, offset, openPacketBuffer.length);
+
+        Packet packet = Packet.parse(
+                mTelehash2, buffer, offset, openPacketBuffer.length, localPath
+        );
+        assertNotNull(packet);
+        assertTrue(packet instanceof OpenPacket);
+        OpenPacket openPacket2 = (OpenPacket)packet;
+        assertEquals(
+                openPacket.getLinePublicKey(),
+                openPacket2.getLinePublicKey()
+        );
+        assertEquals(openPacket.getOpenTime(), openPacket2.getOpenTime());
+        assertEquals(openPacket.getLineIdentifier(), openPacket2.getLineIdentifier());
+    }
+
+    @Test
+    public void testLinePacketParseFromBufferRegion() throws Exception {
+        mTelehash1.setThreadLocal();
+        mTelehash1.setSwitch(new Switch(mTelehash1, new HashSet<SeedNode>()));
+        byte[] key = mCrypto.getRandomBytes(32);
+        Line line = new Line(mTelehash1, mLocalNode2);
+        line.setCipherSetIdentifier(NODE2_CIPHER_SET_ID);
+        line.setOutgoingLineIdentifier(LineIdentifier.generate());
+        line.setEncryptionKey(key);
+        line.setDecryptionKey(key);
+
+        byte[] body = mCrypto.getRandomBytes(100);
+        ChannelPacket channelPacket = new ChannelPacket();
+        channelPacket.setChannelIdentifier(new ChannelIdentifier(42));
+        channelPacket.setType("test");
+        channelPacket.setBody(body);
+        byte[] linePacketBuffer = new LinePacket(line, channelPacket).render();
+
+        // embed the packet in a larger buffer, as a pooled receive buffer would.
+        final int offset = 7;
+        byte[] buffer = new byte[2048];
+        System.arraycopy(linePacketBuffer, 0, buffer, offset, linePacketBuffer.length);
+
+        Packet.SplitPacket splitPacket =
+                Packet.splitPacket(buffer, offset, linePacketBuffer.length);
+        LinePacket linePacket = LinePacket.parse(mTelehash1, line, splitPacket, null);
+        assertNotNull(linePacket);
+        ChannelPacket channelPacket2 = linePacket.getChannelPacket();
+        assertEquals(new ChannelIdentifier(42), channelPacket2.getChannelIdentifier());
+        assertEquals("test", channelPacket2.getType());
+        assertArrayEquals(body, channelPacket2.getBody());
+    }
 }
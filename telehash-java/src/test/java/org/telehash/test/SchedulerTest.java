@@ -0,0 +1,260 @@
+package org.telehash.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.telehash.core.OnTimeoutListener;
+import org.telehash.core.Scheduler;
+import org.telehash.core.Timeout;
+import org.telehash.core.VirtualClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SchedulerTest {
+
+    private static final long NANOSECONDS_IN_MILLISECOND = 1000000L;
+
+    /**
+     * A scheduler whose time is advanced manually by the test.
+     */
+    private static class ManualScheduler extends Scheduler {
+        private static long sTime = 1000 * NANOSECONDS_IN_MILLISECOND;
+        @Override
+        protected long now() {
+            return sTime;
+        }
+        void advance(long milliseconds) {
+            sTime += milliseconds * NANOSECONDS_IN_MILLISECOND;
+        }
+        long getTimeMilliseconds() {
+            return sTime / NANOSECONDS_IN_MILLISECOND;
+        }
+    }
+
+    private static class RecordingTask implements Runnable {
+        final ManualScheduler scheduler;
+        long deadline;
+        int runCount = 0;
+        long runTime = -1;
+        RecordingTask(ManualScheduler scheduler, long delay) {
+            this.scheduler = scheduler;
+            this.deadline = scheduler.getTimeMilliseconds() + delay;
+        }
+        @Override
+        public void run() {
+            runCount++;
+            runTime = scheduler.getTimeMilliseconds();
+        }
+    }
+
+    private ManualScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new ManualScheduler();
+    }
+
+    @Test
+    public void testOrdering() {
+        final List<Integer> order = new ArrayList<Integer>();
+        int[] delays = {300, 5, 70000, 0, 256, 255, 65536, 100};
+        for (final int delay : delays) {
+            mScheduler.addTask(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                }
+            }, delay);
+        }
+        assertEquals(mScheduler.size(), delays.length);
+        for (int i=0; i<=70000; i++) {
+            mScheduler.runTasks();
+            mScheduler.advance(1);
+        }
+        assertEquals(mScheduler.size(), 0);
+        int last = -1;
+        for (int delay : order) {
+            assertTrue(delay >= last);
+            last = delay;
+        }
+        assertEquals(order.size(), delays.length);
+    }
+
+    @Test
+    public void testRandomDeadlines() {
+        Random random = new Random(1);
+        List<RecordingTask> tasks = new ArrayList<RecordingTask>();
+        for (int i=0; i<2000; i++) {
+            long delay;
+            switch (i % 4) {
+            case 0: delay = random.nextInt(256); break;
+            case 1: delay = random.nextInt(65536); break;
+            case 2: delay = random.nextInt(1 << 24); break;
+            default: delay = random.nextInt(1000); break;
+            }
+            RecordingTask task = new RecordingTask(mScheduler, delay);
+            mScheduler.addTask(task, delay);
+            tasks.add(task);
+        }
+
+        // advance in irregular steps, so that some runTasks() calls
+        // cover many ticks and wheel rotations at once.
+        long end = mScheduler.getTimeMilliseconds() + (1 << 24) + 1;
+        while (mScheduler.getTimeMilliseconds() <= end) {
+            long before = mScheduler.getTimeMilliseconds();
+            mScheduler.runTasks();
+            for (RecordingTask task : tasks) {
+                if (task.deadline <= before) {
+                    assertEquals(task.runCount, 1);
+                }
+            }
+            long next = mScheduler.getNextTaskTime();
+            if (next == 0) {
+                break;
+            }
+            assertTrue(next != -1);
+            mScheduler.advance(Math.min(next, 1 + random.nextInt(5000)));
+        }
+
+        for (RecordingTask task : tasks) {
+            assertEquals(task.runCount, 1);
+            assertTrue(task.runTime >= task.deadline);
+        }
+        assertEquals(mScheduler.size(), 0);
+    }
+
+    @Test
+    public void testRemoveAndUpdate() {
+        RecordingTask removed = new RecordingTask(mScheduler, 100);
+        RecordingTask updated = new RecordingTask(mScheduler, 100);
+        Scheduler.Task removedTask = mScheduler.addTask(removed, 100);
+        Scheduler.Task updatedTask = mScheduler.addTask(updated, 100);
+        assertTrue(removedTask.isScheduled());
+
+        mScheduler.removeTask(removedTask);
+        assertFalse(removedTask.isScheduled());
+        mScheduler.removeTask(removedTask);
+        mScheduler.updateTask(updatedTask, null, 1000);
+        assertEquals(mScheduler.size(), 1);
+
+        mScheduler.advance(500);
+        mScheduler.runTasks();
+        assertEquals(removed.runCount, 0);
+        assertEquals(updated.runCount, 0);
+
+        mScheduler.advance(500);
+        mScheduler.runTasks();
+        assertEquals(updated.runCount, 1);
+        assertFalse(updatedTask.isScheduled());
+
+        // a task which has already run may be rescheduled
+        mScheduler.updateTask(updatedTask, null, 10);
+        mScheduler.advance(10);
+        mScheduler.runTasks();
+        assertEquals(updated.runCount, 2);
+        assertEquals(removed.runCount, 0);
+    }
+
+    @Test
+    public void testRescheduleFromRunnable() {
+        final int[] count = new int[1];
+        final Scheduler.Task[] task = new Scheduler.Task[1];
+        task[0] = mScheduler.addTask(new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+                if (count[0] < 3) {
+                    mScheduler.updateTask(task[0], null, 0);
+                }
+            }
+        }, 0);
+
+        // rescheduled tasks are not run again within the same call.
+        mScheduler.runTasks();
+        assertEquals(count[0], 1);
+        assertEquals(mScheduler.getNextTaskTime(), 1);
+        mScheduler.advance(1);
+        mScheduler.runTasks();
+        assertEquals(count[0], 2);
+        mScheduler.advance(1);
+        mScheduler.runTasks();
+        assertEquals(count[0], 3);
+        assertEquals(mScheduler.getNextTaskTime(), 0);
+    }
+
+    @Test
+    public void testLazyTimeout() {
+        final int[] count = new int[1];
+        OnTimeoutListener listener = new OnTimeoutListener() {
+            @Override
+            public void handleTimeout() {
+                count[0]++;
+            }
+        };
+        Timeout timeout = new Timeout(mScheduler, listener, 100, true);
+
+        // activity within the delay extends the deadline without rescheduling
+        for (int i=0; i<5; i++) {
+            mScheduler.advance(60);
+            timeout.reset();
+            mScheduler.runTasks();
+        }
+        assertEquals(count[0], 0);
+        assertEquals(mScheduler.size(), 1);
+
+        // the task re-arms for the remaining time, then fires
+        mScheduler.advance(99);
+        mScheduler.runTasks();
+        assertEquals(count[0], 0);
+        mScheduler.advance(1);
+        mScheduler.runTasks();
+        assertEquals(count[0], 1);
+        assertEquals(mScheduler.size(), 0);
+
+        // reset after expiry starts the timer again
+        timeout.reset();
+        mScheduler.advance(100);
+        mScheduler.runTasks();
+        assertEquals(count[0], 2);
+
+        // cancelled timeouts do not fire
+        timeout.reset();
+        timeout.cancel();
+        mScheduler.advance(200);
+        mScheduler.runTasks();
+        assertEquals(count[0], 2);
+    }
+
+    @Test
+    public void testVirtualClock() {
+        VirtualClock clock = new VirtualClock(0L);
+        Scheduler scheduler = new Scheduler(clock);
+        final int[] count = new int[1];
+        scheduler.addTask(new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+            }
+        }, 500);
+
+        // nothing runs until the clock is advanced
+        scheduler.runTasks();
+        assertEquals(count[0], 0);
+        clock.advance(499 * NANOSECONDS_IN_MILLISECOND);
+        scheduler.runTasks();
+        assertEquals(count[0], 0);
+        clock.advanceTo(500 * NANOSECONDS_IN_MILLISECOND);
+        scheduler.runTasks();
+        assertEquals(count[0], 1);
+
+        // the clock never moves backwards
+        clock.advanceTo(0L);
+        assertEquals(clock.nanoTime(), 500 * NANOSECONDS_IN_MILLISECOND);
+        assertEquals(clock.currentTimeMillis(), 500);
+    }
+}
@@ -2,17 +2,29 @@ package org.telehash.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.telehash.core.LocalNode;
 import org.telehash.core.SeedNode;
+import org.telehash.core.Telehash;
 import org.telehash.network.InetPath;
+import org.telehash.network.Path;
+import org.telehash.storage.RoutingTableEntry;
 import org.telehash.storage.Storage;
 import org.telehash.storage.impl.StorageImpl;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class StorageTest {
@@ -115,4 +127,53 @@ public class StorageTest {
             assertEquals(lowerOctet, port-9000);
         }
     }
+
+    @Test
+    public void testRoutingTableRoundTrip() throws Exception {
+        File temp = File.createTempFile("routingtable", "json");
+        temp.delete();
+        assertTrue(mStorage.readRoutingTable(temp.getAbsolutePath()).isEmpty());
+
+        List<RoutingTableEntry> entries = new ArrayList<RoutingTableEntry>();
+        for (int i=0; i<3; i++) {
+            LocalNode localNode = Telehash.get().getCrypto().generateLocalNode();
+            Path path = new InetPath(InetAddress.getByName("10.0.0."+(i+1)), 42424+i);
+            SeedNode node = new SeedNode(
+                    localNode.getFingerprints(),
+                    localNode.getPublicKeys(),
+                    Collections.singleton(path)
+            );
+            entries.add(new RoutingTableEntry(node, 1000000L*(i+1)));
+        }
+        mStorage.writeRoutingTable(entries, temp.getAbsolutePath());
+        // overwrite an existing snapshot
+        mStorage.writeRoutingTable(entries, temp.getAbsolutePath());
+
+        List<RoutingTableEntry> read = mStorage.readRoutingTable(temp.getAbsolutePath());
+        temp.delete();
+        assertEquals(entries.size(), read.size());
+        Map<Object,RoutingTableEntry> readByHashName = new HashMap<Object,RoutingTableEntry>();
+        for (RoutingTableEntry entry : read) {
+            readByHashName.put(entry.getNode().getHashName(), entry);
+        }
+        for (RoutingTableEntry entry : entries) {
+            RoutingTableEntry readEntry = readByHashName.get(entry.getNode().getHashName());
+            assertNotNull(readEntry);
+            assertEquals(entry.getLastSeenTime(), readEntry.getLastSeenTime());
+            assertEquals(
+                    entry.getNode().getFingerprints().toJSONString(),
+                    readEntry.getNode().getFingerprints().toJSONString()
+            );
+            // Path's ordering is not consistent with equals, so compare
+            // the paths as hash sets.
+            assertEquals(
+                    new HashSet<Path>(entry.getNode().getPaths()),
+                    new HashSet<Path>(readEntry.getNode().getPaths())
+            );
+            assertEquals(
+                    entry.getNode().getPublicKeys().keySet(),
+                    readEntry.getNode().getPublicKeys().keySet()
+            );
+        }
+    }
 }
@@ -14,7 +14,11 @@ import org.telehash.core.Line;
 import org.telehash.core.Log;
 import org.telehash.core.Node;
 import org.telehash.core.PlaceholderNode;
+import org.telehash.core.VirtualClock;
+import org.telehash.test.network.NetworkSimulator;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -34,7 +38,10 @@ public class LargeScaleMeshTest {
 
     @Before
     public void setUp() throws Exception {
-        mMesh = TelehashTestInstance.createLargeScaleTopology(TREE_DEPTH);
+        mMesh = TelehashTestInstance.createLargeScaleTopology(
+                TREE_DEPTH,
+                new NetworkSimulator(new VirtualClock())
+        );
         mNodes = mMesh.getInstances();
         assertEquals(mNodes.size(), NUM_NODES);
     }
@@ -70,7 +77,7 @@ public class LargeScaleMeshTest {
         });
 
         // TODO: signal failure/success/timeout via Object.notify().
-        Thread.sleep(1000);
+        mMesh.getNetworkSimulator().sleep(1000);
 
         // assure src has a line open to dst.
         Log.i("TEST: assert line open from "+src.getNode()+" to "+dst.getNode());
@@ -78,6 +85,45 @@ public class LargeScaleMeshTest {
         assertLineOpen(dst, src);
     }
 
+    @Test
+    public void testLookupLatency() throws Exception {
+        // open lines from every leaf node to a node in the other half of
+        // the tree, so each open requires a node lookup.
+        int firstLeaf = NUM_NODES-(1<<(TREE_DEPTH-1));
+        for (int i=firstLeaf; i<NUM_NODES; i++) {
+            TelehashTestInstance src = mNodes.get(i);
+            TelehashTestInstance dst = mNodes.get(firstLeaf + (i - firstLeaf + NUM_NODES/4 + 1)
+                    % (NUM_NODES - firstLeaf));
+            Node destinationNode = new PlaceholderNode(dst.getNode().getHashName());
+            src.getSwitch().openChannel(destinationNode, "test", new ChannelHandler() {
+                @Override
+                public void handleError(Channel channel, Throwable error) {
+                    Log.e("channel open error:",error);
+                }
+                @Override
+                public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+                }
+                @Override
+                public void handleOpen(Channel channel) {
+                }
+            });
+        }
+        mMesh.getNetworkSimulator().sleep(2000);
+
+        List<Long> medians = new ArrayList<Long>();
+        for (int i=firstLeaf; i<NUM_NODES; i++) {
+            long median = mNodes.get(i).getSwitch().getDHT().getNodeLookupManager()
+                    .getMedianLookupLatency();
+            if (median >= 0) {
+                medians.add(median);
+            }
+        }
+        assertTrue(! medians.isEmpty());
+        Collections.sort(medians);
+        Log.i(String.format("TEST: median node lookup latency over %d nodes: %.1f ms",
+                medians.size(), medians.get(medians.size()/2) / 1e6));
+    }
+
     protected void assertLineOpen(TelehashTestInstance a, TelehashTestInstance b) {
         // assure A has a line open to B.
         boolean found = false;
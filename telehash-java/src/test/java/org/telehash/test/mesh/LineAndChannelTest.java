@@ -1,5 +1,6 @@
 package org.telehash.test.mesh;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -11,11 +12,23 @@ import org.telehash.core.Channel;
 import org.telehash.core.ChannelHandler;
 import org.telehash.core.ChannelPacket;
 import org.telehash.core.Flag;
+import org.telehash.core.Line;
 import org.telehash.core.Log;
+import org.telehash.core.OpenPacketStatistics;
 import org.telehash.core.TelehashException;
+import org.telehash.crypto.impl.LineKeyPairPool;
+import org.telehash.diagnostics.SwitchDiagnostics;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.metrics.MetricsSnapshot;
+import org.telehash.metrics.TelehashMetrics;
 import org.telehash.test.network.NetworkSimulator;
 import org.telehash.test.util.EchoChannelHandler;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 public class LineAndChannelTest {
 
     private static final int PORT = 42424;
@@ -151,4 +164,121 @@ public class LineAndChannelTest {
         Log.i("programmed timeout = "+CHANNEL_TIMEOUT+"  elapsed = "+elapsedTime);
         assertTrue(Math.abs(elapsedTime - CHANNEL_TIMEOUT) <= ALLOWED_TIMEOUT_VARIANCE);
     }
+    @Test
+    public void lineOpenLatencyTest() throws Throwable {
+        TelehashTestInstance src = node0;
+        TelehashTestInstance dst = node1;
+        final Flag flag = new Flag();
+        final Line[] openedLine = new Line[1];
+
+        // give the key pair pools a chance to fill, so the open
+        // measures the pooled path.
+        LineKeyPairPool srcPool = src.getSwitch().getLineManager().getLineKeyPairPool(
+                dst.getNode().getActiveCipherSetIdentifier());
+        LineKeyPairPool dstPool = dst.getSwitch().getLineManager().getLineKeyPairPool(
+                dst.getNode().getActiveCipherSetIdentifier());
+        assertNotNull(srcPool);
+        assertNotNull(dstPool);
+        long deadline = System.nanoTime() + 5000 * NANOSECONDS_IN_MILLISECOND;
+        while ((srcPool.size() == 0 || dstPool.size() == 0) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // open through the switch, so the line is opened on the switch thread.
+        dst.getSwitch().registerChannelHandler(EchoChannelHandler.TYPE, new EchoChannelHandler());
+        src.getSwitch().openChannel(dst.getNode(), EchoChannelHandler.TYPE, new ChannelHandler() {
+            @Override
+            public void handleOpen(Channel channel) {
+                openedLine[0] = channel.getLine();
+                flag.signal();
+            }
+            @Override
+            public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+            }
+            @Override
+            public void handleError(Channel channel, Throwable error) {
+                flag.signalError(error);
+            }
+        });
+        Throwable error = flag.waitForSignal(CHANNEL_TIMEOUT);
+        if (error != null) {
+            throw error;
+        }
+        assertFalse(flag.timeoutOccurred());
+        assertNotNull(openedLine[0]);
+
+        long latency = openedLine[0].getOpenLatency();
+        Log.i("line open latency: "+(latency/1000)+" us");
+        assertTrue(latency > 0L);
+
+        // both the outgoing and the reply open used pooled key pairs
+        assertTrue(srcPool.getHits() >= 1);
+        assertTrue(dstPool.getHits() >= 1);
+
+        // each side processed the other's open on its open packet executor
+        OpenPacketStatistics srcStatistics =
+                src.getSwitch().getOpenPacketExecutor().getStatistics();
+        OpenPacketStatistics dstStatistics =
+                dst.getSwitch().getOpenPacketExecutor().getStatistics();
+        Log.i("open packet statistics: "+dstStatistics);
+        assertTrue(srcStatistics.getSubmitted() >= 1);
+        assertTrue(dstStatistics.getSubmitted() >= 1);
+        assertTrue(dstStatistics.getStage(OpenPacketStatistics.Stage.ECDH).getCount() >= 1);
+        assertTrue(dstStatistics.getStage(OpenPacketStatistics.Stage.COMPLETE).getCount() >= 1);
+
+        // the line open was recorded in the metrics of both sides
+        MetricsSnapshot srcMetrics = src.getTelehash().getMetrics().getSnapshot();
+        MetricsSnapshot dstMetrics = dst.getTelehash().getMetrics().getSnapshot();
+        Log.i("source metrics:\n%s", srcMetrics);
+        assertTrue(srcMetrics.getCounter(TelehashMetrics.LINES_ESTABLISHED) >= 1);
+        assertTrue(srcMetrics.getHistogram(TelehashMetrics.LINE_OPEN_LATENCY).getCount() >= 1);
+        assertTrue(srcMetrics.getCounter(TelehashMetrics.DATAGRAMS_SENT) >= 1);
+        assertTrue(srcMetrics.getCounter(TelehashMetrics.BYTES_RECEIVED) > 0);
+        assertTrue(srcMetrics.getHistogram(TelehashMetrics.CRYPTO_OPEN_RENDER).getCount() >= 1);
+        assertTrue(dstMetrics.getHistogram(TelehashMetrics.CRYPTO_OPEN_PARSE).getCount() >= 1);
+        assertTrue(dstMetrics.getHistogram(TelehashMetrics.CRYPTO_ECDH).getCount() >= 1);
+    }
+
+    @Test
+    public void snapshotTest() throws Throwable {
+        TelehashTestInstance src = node0;
+        TelehashTestInstance dst = node1;
+        final Flag flag = new Flag();
+        dst.getSwitch().registerChannelHandler(EchoChannelHandler.TYPE, new EchoChannelHandler());
+        src.getSwitch().openChannel(dst.getNode(), EchoChannelHandler.TYPE, new ChannelHandler() {
+            @Override
+            public void handleOpen(Channel channel) {
+                flag.signal();
+            }
+            @Override
+            public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+            }
+            @Override
+            public void handleError(Channel channel, Throwable error) {
+                flag.signalError(error);
+            }
+        });
+        Throwable error = flag.waitForSignal();
+        if (error != null) {
+            throw error;
+        }
+
+        SwitchSnapshot snapshot = src.getSwitch().getSnapshot();
+        Log.i("snapshot: %s", snapshot);
+        assertEquals(snapshot.getLines().size(), 1);
+        SwitchSnapshot.LineInfo line = snapshot.getLines().get(0);
+        assertEquals(line.getRemoteHashName(), dst.getNode().getHashName().asHex());
+        assertEquals(line.getState(), Line.State.ESTABLISHED.name());
+        assertEquals(line.getChannels().size(), 1);
+        assertEquals(line.getChannels().get(0).getType(), EchoChannelHandler.TYPE);
+        assertFalse(snapshot.getTimers().isEmpty());
+
+        // the same state is reachable over JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SwitchDiagnostics.DOMAIN+":type=Switch,hashname="+
+                src.getNode().getHashName().asHex());
+        assertEquals(server.getAttribute(name, "LineCount"), 1);
+        String dump = (String)server.invoke(name, "dump", null, null);
+        assertTrue(dump.contains("1 lines"));
+    }
 }
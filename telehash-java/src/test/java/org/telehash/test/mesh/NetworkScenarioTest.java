@@ -0,0 +1,154 @@
+package org.telehash.test.mesh;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.telehash.core.Channel;
+import org.telehash.core.ChannelHandler;
+import org.telehash.core.ChannelPacket;
+import org.telehash.core.Line;
+import org.telehash.core.Log;
+import org.telehash.core.Node;
+import org.telehash.core.PlaceholderNode;
+import org.telehash.core.VirtualClock;
+import org.telehash.test.network.LinkModel;
+import org.telehash.test.network.NatType;
+import org.telehash.test.network.NetworkSimulator;
+import org.telehash.test.network.NetworkStatistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures lookup latency, line open latency and packet counts of a mesh
+ * under different simulated network conditions. The mesh runs in virtual
+ * time, so the measured latencies reflect the link models rather than the
+ * speed of the host. The tree depth may be set with the
+ * telehash.scenario.depth system property.
+ */
+@Ignore
+public class NetworkScenarioTest {
+
+    private static final int DEFAULT_TREE_DEPTH = 5;
+    private static final long SETTLE_TIME = 10 * 1000;
+
+    private static final ChannelHandler IGNORING_HANDLER = new ChannelHandler() {
+        @Override
+        public void handleError(Channel channel, Throwable error) {
+        }
+        @Override
+        public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+        }
+        @Override
+        public void handleOpen(Channel channel) {
+        }
+    };
+
+    private List<TelehashTestInstance> mNodes;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mNodes != null) {
+            for (TelehashTestInstance node : mNodes) {
+                node.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testIdeal() throws Exception {
+        runScenario("ideal", LinkModel.ideal(), NatType.NONE);
+    }
+
+    @Test
+    public void testWideArea() throws Exception {
+        runScenario("wan", LinkModel.wan(40, 10, 0.01), NatType.NONE);
+    }
+
+    @Test
+    public void testLossyConstrained() throws Exception {
+        LinkModel model = LinkModel.wan(100, 50, 0.05);
+        model.setBandwidth(16 * 1024, 500);
+        runScenario("lossy", model, NatType.NONE);
+    }
+
+    @Test
+    public void testRestrictedNat() throws Exception {
+        runScenario("nat", LinkModel.wan(40, 10, 0.01), NatType.PORT_RESTRICTED);
+    }
+
+    /**
+     * Build a mesh under the specified conditions, then open a line from
+     * every leaf node to a leaf in the other half of the tree.
+     *
+     * @param name The scenario name for the report.
+     * @param model The link model between every pair of nodes.
+     * @param leafNat The NAT in front of every other leaf node.
+     */
+    private void runScenario(String name, LinkModel model, NatType leafNat) throws Exception {
+        int depth = Integer.getInteger("telehash.scenario.depth", DEFAULT_TREE_DEPTH);
+        int numNodes = (1<<depth)-1;
+        int firstLeaf = numNodes-(1<<(depth-1));
+        int numLeaves = numNodes-firstLeaf;
+
+        NetworkSimulator simulator = new NetworkSimulator(new VirtualClock());
+        simulator.setLinkModel(model);
+        for (int i=firstLeaf; i<numNodes; i+=2) {
+            simulator.setNat(TelehashTestInstance.getAddress(i), leafNat);
+        }
+        long start = System.nanoTime();
+        Mesh mesh = TelehashTestInstance.createLargeScaleTopology(depth, simulator);
+        mNodes = mesh.getInstances();
+        NetworkStatistics bootstrap = simulator.getStatistics();
+        Log.i("SCENARIO %s: %d nodes bootstrapped in %.1fs real time; %s",
+                name, numNodes, (System.nanoTime() - start) / 1e9, bootstrap);
+
+        simulator.resetStatistics();
+        List<TelehashTestInstance> destinations = new ArrayList<TelehashTestInstance>();
+        for (int i=firstLeaf; i<numNodes; i++) {
+            TelehashTestInstance dst =
+                    mNodes.get(firstLeaf + (i - firstLeaf + numLeaves/2 + 1) % numLeaves);
+            destinations.add(dst);
+            Node destinationNode = new PlaceholderNode(dst.getNode().getHashName());
+            mNodes.get(i).getSwitch().openChannel(destinationNode, "test", IGNORING_HANDLER);
+        }
+        simulator.sleep(SETTLE_TIME);
+
+        List<Long> lookupLatencies = new ArrayList<Long>();
+        List<Long> openLatencies = new ArrayList<Long>();
+        for (int i=firstLeaf; i<numNodes; i++) {
+            TelehashTestInstance src = mNodes.get(i);
+            long lookupLatency = src.getSwitch().getDHT().getNodeLookupManager()
+                    .getMedianLookupLatency();
+            if (lookupLatency >= 0) {
+                lookupLatencies.add(lookupLatency);
+            }
+            TelehashTestInstance dst = destinations.get(i - firstLeaf);
+            for (Line line : src.getSwitch().getLineManager().getLines()) {
+                if (line.getRemoteNode().equals(dst.getNode()) && line.getOpenLatency() >= 0) {
+                    openLatencies.add(line.getOpenLatency());
+                }
+            }
+        }
+
+        Log.i("SCENARIO %s: link model: %s; leaf NAT: %s", name, model, leafNat);
+        Log.i("SCENARIO %s: lines opened %d/%d; median lookup latency %s; "+
+                "median line open latency %s",
+                name, openLatencies.size(), numLeaves,
+                formatMedian(lookupLatencies), formatMedian(openLatencies));
+        NetworkStatistics statistics = simulator.getStatistics();
+        Log.i("SCENARIO %s: packets: %s", name, statistics);
+        assertTrue(statistics.getDeliveredCount() > 0);
+    }
+
+    private static String formatMedian(List<Long> values) {
+        if (values.isEmpty()) {
+            return "n/a";
+        }
+        Collections.sort(values);
+        return String.format("%.1fms", values.get(values.size()/2) / 1e6);
+    }
+}
@@ -0,0 +1,106 @@
+package org.telehash.test.mesh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telehash.core.LocalNode;
+import org.telehash.core.Log;
+import org.telehash.core.SeedNode;
+import org.telehash.core.Telehash;
+import org.telehash.diagnostics.SwitchSnapshot;
+import org.telehash.network.InetPath;
+import org.telehash.network.Path;
+import org.telehash.test.network.NetworkSimulator;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restart a switch from a routing table snapshot written by a previous run.
+ */
+public class RoutingTableRestoreTest {
+
+    private static final int PORT = 42424;
+    private static final long NANOSECONDS_IN_MILLISECOND = 1000000L;
+    // well below the 15 second line open timeout of an unreachable seed.
+    private static final long MAXIMUM_WARM_INIT_TIME = 5000;
+
+    private NetworkSimulator mNetworkSimulator;
+    private File mRoutingTableFile;
+    private TelehashTestInstance mPeer;
+    private TelehashTestInstance mNode;
+
+    @Before
+    public void setUp() throws Exception {
+        mNetworkSimulator = new NetworkSimulator();
+        mRoutingTableFile = File.createTempFile("routingtable", "json");
+        mRoutingTableFile.delete();
+        mPeer = new TelehashTestInstance(0, PORT, null);
+        mPeer.setNetwork(mNetworkSimulator.createNode("10.0.0.1", PORT));
+        mPeer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mNode != null) {
+            mNode.stop();
+        }
+        mPeer.stop();
+        mRoutingTableFile.delete();
+    }
+
+    private TelehashTestInstance startNode(String address, Set<SeedNode> seeds) {
+        TelehashTestInstance node = new TelehashTestInstance(1, PORT, seeds);
+        node.setNetwork(mNetworkSimulator.createNode(address, PORT));
+        node.setRoutingTableFile(mRoutingTableFile.getAbsolutePath());
+        node.start();
+        return node;
+    }
+
+    @Test
+    public void testWarmRestartSkipsSeeds() throws Exception {
+        // a cold start links to the peer as its seed, and the snapshot
+        // written on stop records it.
+        mNode = startNode("10.0.0.2", Collections.singleton(mPeer.getNodeAsSeed()));
+        mNode.stop();
+        mNode = null;
+        assertTrue(mRoutingTableFile.exists());
+
+        // restart with only a seed that never answers. init must finish
+        // once the restored link to the peer is active, without waiting
+        // for the seed.
+        LocalNode unreachable = Telehash.get().getCrypto().generateLocalNode();
+        Path unreachablePath = new InetPath(InetAddress.getByName("10.0.0.99"), PORT);
+        Set<SeedNode> seeds = new HashSet<SeedNode>();
+        seeds.add(new SeedNode(
+                unreachable.getFingerprints(),
+                unreachable.getPublicKeys(),
+                Collections.singleton(unreachablePath)
+        ));
+        long start = System.nanoTime();
+        mNode = startNode("10.0.0.3", seeds);
+        long initTime = (System.nanoTime() - start) / NANOSECONDS_IN_MILLISECOND;
+        Log.i("warm restart init time: %d ms", initTime);
+        assertTrue(initTime < MAXIMUM_WARM_INIT_TIME);
+
+        // the peer is linked, and the seed is only a replacement candidate.
+        SwitchSnapshot snapshot = mNode.getSwitch().getSnapshot();
+        int links = 0;
+        int replacements = 0;
+        for (SwitchSnapshot.BucketInfo bucket : snapshot.getBuckets()) {
+            for (SwitchSnapshot.LinkInfo link : bucket.getLinks()) {
+                assertEquals(mPeer.getNode().getHashName().asHex(), link.getHashName());
+                links++;
+            }
+            replacements += bucket.getReplacementCount();
+        }
+        assertEquals(1, links);
+        assertEquals(1, replacements);
+    }
+}
@@ -0,0 +1,136 @@
+package org.telehash.test.mesh;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+import org.telehash.core.Channel;
+import org.telehash.core.ChannelHandler;
+import org.telehash.core.ChannelPacket;
+import org.telehash.core.Flag;
+import org.telehash.core.LineIdentifier;
+import org.telehash.core.OpenPacketExecutor;
+import org.telehash.core.TelehashException;
+import org.telehash.metrics.TelehashMetrics;
+import org.telehash.network.Datagram;
+import org.telehash.network.InetPath;
+import org.telehash.network.Path;
+import org.telehash.network.impl.NetworkImpl;
+import org.telehash.test.util.EchoChannelHandler;
+
+import java.net.InetAddress;
+
+/**
+ * Exchange packets between two switches whose reactors receive on several
+ * SO_REUSEPORT shard threads, over the loopback network.
+ */
+public class ShardedReactorTest {
+
+    private static final int PORT0 = 42491;
+    private static final int PORT1 = 42492;
+    private static final int SHARDS = 4;
+    private static final int PACKETS = 50;
+    private static final int TIMEOUT = 10000;
+
+    private TelehashTestInstance node0, node1;
+
+    private TelehashTestInstance createInstance(int index, int port, int openPacketThreads) {
+        NetworkImpl network = new NetworkImpl();
+        network.setShardCount(SHARDS);
+        TelehashTestInstance node = new TelehashTestInstance(index, port, null);
+        node.setNetwork(network);
+        node.setOpenPacketThreads(openPacketThreads);
+        node.start();
+        return node;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (node0 != null) {
+            node0.stop();
+        }
+        if (node1 != null) {
+            node1.stop();
+        }
+    }
+
+    @Test
+    public void testEchoWithOpenPacketExecutor() throws Throwable {
+        node0 = createInstance(0, PORT0, OpenPacketExecutor.DEFAULT_THREADS);
+        node1 = createInstance(1, PORT1, OpenPacketExecutor.DEFAULT_THREADS);
+        runEcho();
+    }
+
+    @Test
+    public void testEchoWithOpensParsedOnShards() throws Throwable {
+        node0 = createInstance(0, PORT0, 0);
+        node1 = createInstance(1, PORT1, 0);
+        runEcho();
+    }
+
+    @Test
+    public void testForwardedDatagramCountedOnce() throws Throwable {
+        node0 = createInstance(0, PORT0, 0);
+        TelehashMetrics metrics = node0.getTelehash().getMetrics();
+        long received = metrics.getDatagramsReceived().getCount();
+
+        // a line packet for an unknown line, received off the switch thread
+        // as on a shard, is handled again on the switch thread.
+        byte[] bytes = new byte[2 + LineIdentifier.SIZE + 16];
+        System.arraycopy(LineIdentifier.generate().getBytes(), 0, bytes, 2, LineIdentifier.SIZE);
+        Path source = new InetPath(InetAddress.getLoopbackAddress(), PORT1);
+        node0.getSwitch().handleDatagram(new Datagram(bytes, source, null));
+
+        // messages are handled in order, so once a snapshot has been taken
+        // the forwarded datagram has been handled.
+        node0.getSwitch().getSnapshot();
+        assertEquals(received + 1, metrics.getDatagramsReceived().getCount());
+    }
+
+    private void runEcho() throws Throwable {
+        final Flag flag = new Flag();
+        node1.getSwitch().registerChannelHandler(
+                EchoChannelHandler.TYPE, new EchoChannelHandler());
+        node0.getSwitch().openChannel(node1.getNode(), EchoChannelHandler.TYPE,
+                new ChannelHandler() {
+            int mReceived = 0;
+            @Override
+            public void handleOpen(Channel channel) {
+                // send a burst, so that packets arrive while the line is new.
+                try {
+                    for (int i=0; i<PACKETS; i++) {
+                        channel.send(new byte[] {(byte)i});
+                    }
+                } catch (TelehashException e) {
+                    flag.signalError(e);
+                }
+            }
+            @Override
+            public void handleIncoming(Channel channel, ChannelPacket channelPacket) {
+                if (channelPacket.getBody()[0] != (byte)mReceived) {
+                    flag.signalError(new TelehashException("echo out of order"));
+                    return;
+                }
+                mReceived++;
+                if (mReceived == PACKETS) {
+                    flag.signal();
+                }
+            }
+            @Override
+            public void handleError(Channel channel, Throwable error) {
+                flag.signalError(error);
+            }
+        });
+
+        Throwable error = flag.waitForSignal(TIMEOUT);
+        if (error != null) {
+            throw error;
+        }
+        assertEquals(false, flag.timeoutOccurred());
+        for (TelehashTestInstance node : new TelehashTestInstance[] {node0, node1}) {
+            TelehashMetrics metrics = node.getTelehash().getMetrics();
+            assertEquals(0, metrics.getParseFailures().getCount());
+            assertEquals(0, metrics.getIncomingDropped().getCount());
+        }
+    }
+}
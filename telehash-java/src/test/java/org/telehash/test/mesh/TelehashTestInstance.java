@@ -1,16 +1,20 @@
 package org.telehash.test.mesh;
 
 import org.telehash.core.CipherSetIdentifier;
+import org.telehash.core.Clock;
 import org.telehash.core.LocalNode;
 import org.telehash.core.Log;
+import org.telehash.core.OpenPacketExecutor;
 import org.telehash.core.SeedNode;
 import org.telehash.core.Switch;
 import org.telehash.core.Telehash;
 import org.telehash.core.TelehashException;
 import org.telehash.core.Util;
+import org.telehash.core.VirtualClock;
 import org.telehash.crypto.Crypto;
 import org.telehash.crypto.HashNamePublicKey;
 import org.telehash.crypto.impl.CryptoImpl;
+import org.telehash.dht.DHT;
 import org.telehash.network.InetPath;
 import org.telehash.network.Network;
 import org.telehash.network.impl.NetworkImpl;
@@ -45,6 +49,9 @@ public class TelehashTestInstance {
     private Crypto mCrypto = new CryptoImpl();
     private Network mNetwork = new NetworkImpl();
     private Storage mStorage = new StorageImpl();
+    private Clock mClock = null;
+    private int mOpenPacketThreads = -1;
+    private String mRoutingTableFilename = null;
 
     private static void dumpNode(StringBuilder sb, TelehashTestInstance node) {
         String path;
@@ -73,6 +80,15 @@ public class TelehashTestInstance {
         return seedNode;
     }
 
+    /**
+     * Return the simulated network address of the instance with the
+     * specified index.
+     */
+    public static String getAddress(int index) {
+        return String.format("10.%d.%d.%d",
+                (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF);
+    }
+
     private static TelehashTestInstance createInstance(
             NetworkSimulator networkSimulator,
             int index,
@@ -95,7 +111,8 @@ public class TelehashTestInstance {
             seeds.add(seed);
         }
         TelehashTestInstance node = new TelehashTestInstance(index, PORT, seeds);
-        node.setNetwork(networkSimulator.createNode("10.0.0."+index, PORT));
+        node.setNetwork(networkSimulator.createNode(getAddress(index), PORT));
+        node.setClock(networkSimulator.getClock());
         node.start();
         networkSimulator.waitForQuiescence(100);
 
@@ -143,11 +160,21 @@ public class TelehashTestInstance {
      * @return The list of Telehash test instances.
      */
     public static Mesh createLargeScaleTopology(int depth) {
+        return createLargeScaleTopology(depth, new NetworkSimulator());
+    }
+
+    /**
+     *
+     * @param depth The depth of the tree.  Number of nodes will be 2^depth-1.
+     * @param networkSimulator The simulated network, which may run in
+     *        virtual time.
+     * @return The list of Telehash test instances.
+     */
+    public static Mesh createLargeScaleTopology(int depth, NetworkSimulator networkSimulator) {
         // 63 nodes in a tree
 
         List<TelehashTestInstance> list = new ArrayList<TelehashTestInstance>();
         List<TelehashTestInstance> leafNodes = new ArrayList<TelehashTestInstance>();
-        NetworkSimulator networkSimulator = new NetworkSimulator();
         int index = 0;
         TelehashTestInstance root = createInstance(networkSimulator, index++, null);
         list.add(root);
@@ -198,9 +225,32 @@ public class TelehashTestInstance {
         mStorage = storage;
     }
 
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Set the number of open packet worker threads, overriding the switch
+     * default. Zero processes open packets on the receiving thread.
+     */
+    public void setOpenPacketThreads(int threads) {
+        mOpenPacketThreads = threads;
+    }
+
+    /**
+     * Persist the routing table in the specified file, and restore it at
+     * startup.
+     */
+    public void setRoutingTableFile(String routingTableFilename) {
+        mRoutingTableFilename = routingTableFilename;
+    }
+
     public void start() {
         loadLocalNode();
         mTelehash = new Telehash(mLocalNode, mCrypto, mStorage, mNetwork);
+        if (mClock != null) {
+            mTelehash.setClock(mClock);
+        }
 
         // store a summary of this node
         try {
@@ -234,6 +284,19 @@ public class TelehashTestInstance {
         // launch the switch
         final Switch telehashSwitch = new Switch(mTelehash, mSeeds, mPort);
         mTelehash.setSwitch(telehashSwitch);
+        if (mClock instanceof VirtualClock) {
+            // worker threads run outside virtual time, so keep all packet
+            // processing on the switch thread.
+            telehashSwitch.setOpenPacketExecutorSize(0, 0);
+        }
+        if (mRoutingTableFilename != null) {
+            telehashSwitch.setRoutingTableFile(
+                    mRoutingTableFilename, DHT.DEFAULT_MAXIMUM_RESTORED_LINKS);
+        }
+        if (mOpenPacketThreads >= 0) {
+            telehashSwitch.setOpenPacketExecutorSize(
+                    mOpenPacketThreads, OpenPacketExecutor.DEFAULT_QUEUE_CAPACITY);
+        }
 
         try {
             telehashSwitch.start();
@@ -267,6 +330,10 @@ public class TelehashTestInstance {
         return localNodeToSeedNode(getNode());
     }
 
+    public Telehash getTelehash() {
+        return mTelehash;
+    }
+
     public Switch getSwitch() {
         return mTelehash.getSwitch();
     }
@@ -6,6 +6,7 @@ import org.telehash.network.InetPath;
 import org.telehash.network.Message;
 import org.telehash.network.MessageHandler;
 import org.telehash.network.Reactor;
+import org.telehash.network.ReactorStatistics;
 
 import java.io.IOException;
 import java.util.LinkedList;
@@ -23,6 +24,7 @@ public class FakeReactorImpl implements Reactor {
     private Queue<Datagram> mReadQueue = new LinkedList<Datagram>();
     private Queue<Message> mMessageQueue = new LinkedList<Message>();
     private Object mLock = new Object();
+    private ReactorStatistics mStatistics = new ReactorStatistics();
 
     /**
      * Construct a new ReactorImpl.
@@ -42,6 +44,10 @@ public class FakeReactorImpl implements Reactor {
         wakeup();
     }
 
+    private VirtualTimeController getTimeController() {
+        return mNetwork.getRouter().getTimeController();
+    }
+
     @Override
     public void setDatagramHandler(DatagramHandler datagramHandler) {
         mDatagramHandler = datagramHandler;
@@ -54,6 +60,9 @@ public class FakeReactorImpl implements Reactor {
 
     @Override
     public void start() throws IOException {
+        if (getTimeController() != null) {
+            getTimeController().register(this);
+        }
     }
 
     @Override
@@ -63,6 +72,9 @@ public class FakeReactorImpl implements Reactor {
 
     @Override
     public void close() throws IOException {
+        if (getTimeController() != null) {
+            getTimeController().unregister(this);
+        }
     }
 
     @Override
@@ -70,6 +82,9 @@ public class FakeReactorImpl implements Reactor {
         synchronized (mLock) {
             mLock.notifyAll();
         }
+        if (getTimeController() != null) {
+            getTimeController().signal(this);
+        }
     }
 
     @Override
@@ -78,6 +93,20 @@ public class FakeReactorImpl implements Reactor {
         Datagram readDatagram;
         Message message;
 
+        VirtualTimeController timeController = getTimeController();
+        if (timeController != null && timeout != -1) {
+            // in virtual time, wait on the controller so that the clock can
+            // jump to the deadline once every reactor is idle.
+            boolean idle;
+            synchronized (mLock) {
+                idle = mWriteQueue.isEmpty() && mReadQueue.isEmpty() && mMessageQueue.isEmpty();
+            }
+            if (idle) {
+                timeController.awaitWork(this, timeout);
+            }
+            timeout = -1;
+        }
+
         synchronized (mLock) {
             // select
             if (mWriteQueue.isEmpty() &&
@@ -110,6 +139,18 @@ public class FakeReactorImpl implements Reactor {
                 mMessageHandler.handleMessage(message);
             }
         }
+
+        mStatistics.recordBatch(
+                (readDatagram != null) ? 1 : 0,
+                (writeDatagram != null) ? 1 : 0,
+                (message != null) ? 1 : 0,
+                false
+        );
+    }
+
+    @Override
+    public ReactorStatistics getStatistics() {
+        return mStatistics;
     }
 
     /**
@@ -118,12 +159,13 @@ public class FakeReactorImpl implements Reactor {
      * @param datagram
      */
     @Override
-    public void sendDatagram(Datagram datagram) {
+    public boolean sendDatagram(Datagram datagram) {
         synchronized (mLock) {
             datagram.setSource(mPath);
             mWriteQueue.offer(datagram);
             wakeup();
         }
+        return true;
     }
 
     @Override
@@ -0,0 +1,174 @@
+package org.telehash.test.network;
+
+import java.util.Random;
+
+/**
+ * The behaviour of a simulated network link: propagation latency with
+ * jitter, random loss, and a bandwidth cap with a bounded transmit queue.
+ * Packets whose jitter exceeds the spacing between them arrive out of
+ * order, so reordering follows from the jitter settings.
+ *
+ * A link model should be fully configured before traffic starts flowing
+ * over it.
+ */
+public class LinkModel {
+
+    /**
+     * The distribution from which the jitter added to each packet's
+     * latency is drawn.
+     */
+    public enum JitterDistribution {
+        /** Uniform between zero and the jitter value. */
+        UNIFORM,
+        /** Absolute value of a normal distribution with the jitter as its deviation. */
+        NORMAL,
+        /** Exponential with the jitter as its mean; models queueing delay. */
+        EXPONENTIAL
+    }
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+    private static final long NANOSECONDS_PER_SECOND = 1000000000L;
+
+    private long mLatency = 0L;
+    private long mJitter = 0L;
+    private JitterDistribution mJitterDistribution = JitterDistribution.UNIFORM;
+    private double mLossRate = 0.0;
+    private long mBandwidth = 0L;
+    private long mMaximumQueueDelay = 1000 * NANOSECONDS_PER_MILLISECOND;
+
+    /**
+     * Return a model of a link with no latency, loss or bandwidth limit.
+     */
+    public static LinkModel ideal() {
+        return new LinkModel();
+    }
+
+    /**
+     * Return a model of a wide area link.
+     *
+     * @param latency The one-way latency in milliseconds.
+     * @param jitter The mean exponentially distributed jitter in milliseconds.
+     * @param lossRate The probability of a packet being lost.
+     */
+    public static LinkModel wan(long latency, long jitter, double lossRate) {
+        LinkModel model = new LinkModel();
+        model.setLatency(latency);
+        model.setJitter(jitter, JitterDistribution.EXPONENTIAL);
+        model.setLossRate(lossRate);
+        return model;
+    }
+
+    /**
+     * Set the fixed one-way propagation latency.
+     *
+     * @param latency The latency in milliseconds.
+     */
+    public void setLatency(long latency) {
+        mLatency = latency * NANOSECONDS_PER_MILLISECOND;
+    }
+
+    /**
+     * Set the random delay added to each packet's latency.
+     *
+     * @param jitter The jitter in milliseconds.
+     * @param distribution The distribution of the jitter.
+     */
+    public void setJitter(long jitter, JitterDistribution distribution) {
+        mJitter = jitter * NANOSECONDS_PER_MILLISECOND;
+        mJitterDistribution = distribution;
+    }
+
+    /**
+     * Set the probability that a packet is lost in transit.
+     *
+     * @param lossRate The loss probability, between 0 and 1.
+     */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0.0 || lossRate > 1.0) {
+            throw new IllegalArgumentException("invalid loss rate: "+lossRate);
+        }
+        mLossRate = lossRate;
+    }
+
+    /**
+     * Cap the link's bandwidth. Packets are serialized onto the link one at
+     * a time, so a sender exceeding the cap builds up a queue; packets
+     * which would wait longer than the maximum queue delay are dropped.
+     *
+     * @param bandwidth The bandwidth in bytes per second, or 0 for no limit.
+     * @param maximumQueueDelay The maximum queueing delay in milliseconds.
+     */
+    public void setBandwidth(long bandwidth, long maximumQueueDelay) {
+        mBandwidth = bandwidth;
+        mMaximumQueueDelay = maximumQueueDelay * NANOSECONDS_PER_MILLISECOND;
+    }
+
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    public long getBandwidth() {
+        return mBandwidth;
+    }
+
+    /** intentionally package-private */
+    long getMaximumQueueDelay() {
+        return mMaximumQueueDelay;
+    }
+
+    /**
+     * Return the time needed to serialize a packet onto this link.
+     *
+     * @param length The packet length in bytes.
+     * @return The transmission time in nanoseconds.
+     */
+    /* intentionally package-private */
+    long getTransmissionTime(int length) {
+        if (mBandwidth <= 0) {
+            return 0L;
+        }
+        return length * NANOSECONDS_PER_SECOND / mBandwidth;
+    }
+
+    /**
+     * Draw the propagation delay of a single packet.
+     *
+     * @param random The random source of the simulation.
+     * @return The delay in nanoseconds.
+     */
+    /* intentionally package-private */
+    long sampleDelay(Random random) {
+        if (mJitter <= 0) {
+            return mLatency;
+        }
+        double jitter;
+        switch (mJitterDistribution) {
+        case NORMAL:
+            jitter = Math.abs(random.nextGaussian()) * mJitter;
+            break;
+        case EXPONENTIAL:
+            jitter = -Math.log(1.0 - random.nextDouble()) * mJitter;
+            break;
+        case UNIFORM:
+        default:
+            jitter = random.nextDouble() * mJitter;
+            break;
+        }
+        return mLatency + (long)jitter;
+    }
+
+    /** intentionally package-private */
+    boolean isIdeal() {
+        return mLatency == 0 && mJitter == 0 && mLossRate == 0.0 && mBandwidth <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("latency=%dms jitter=%dms(%s) loss=%.1f%% bandwidth=%s",
+                mLatency / NANOSECONDS_PER_MILLISECOND,
+                mJitter / NANOSECONDS_PER_MILLISECOND,
+                mJitterDistribution.name().toLowerCase(),
+                mLossRate * 100.0,
+                (mBandwidth > 0) ? mBandwidth+"B/s" : "unlimited");
+    }
+}
@@ -0,0 +1,101 @@
+package org.telehash.test.network;
+
+import org.telehash.network.InetPath;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The mapping and filtering state of a simulated NAT. Bindings are keyed by
+ * remote path, so a node is assumed to talk to each remote path from a
+ * single local port. This class is not thread-safe; the router serializes
+ * access to it.
+ */
+/* intentionally package-private */
+class Nat {
+
+    private static final int FIRST_SYMMETRIC_PORT = 20000;
+
+    private static class Binding {
+        int mInternalPort;
+        int mExternalPort;
+        long mExpiration;
+    }
+
+    private final NatType mType;
+    private final Map<InetPath,Binding> mBindings = new HashMap<InetPath,Binding>();
+    private int mNextPort = FIRST_SYMMETRIC_PORT;
+
+    Nat(NatType type) {
+        mType = type;
+    }
+
+    NatType getType() {
+        return mType;
+    }
+
+    /**
+     * Create or refresh the mapping for an outbound packet.
+     *
+     * @param local The internal path of the sender.
+     * @param remote The destination path.
+     * @param expiration The time at which the mapping lapses, in nanoseconds.
+     * @return The external path of the sender as seen by the destination.
+     */
+    InetPath mapOutbound(InetPath local, InetPath remote, long expiration) {
+        Binding binding = mBindings.get(remote);
+        if (binding == null || binding.mInternalPort != local.getPort()) {
+            binding = new Binding();
+            binding.mInternalPort = local.getPort();
+            binding.mExternalPort =
+                    (mType == NatType.SYMMETRIC) ? mNextPort++ : local.getPort();
+            mBindings.put(remote, binding);
+        }
+        binding.mExpiration = expiration;
+        return new InetPath(local.getAddress(), binding.mExternalPort);
+    }
+
+    /**
+     * Filter an inbound packet.
+     *
+     * @param remote The source path of the packet.
+     * @param externalPort The destination port of the packet.
+     * @param now The current time in nanoseconds.
+     * @return The internal port to deliver the packet to, or -1 if the
+     *         packet is filtered.
+     */
+    int mapInbound(InetPath remote, int externalPort, long now) {
+        switch (mType) {
+        case NONE:
+            return externalPort;
+        case PORT_RESTRICTED:
+        case SYMMETRIC:
+            Binding binding = mBindings.get(remote);
+            if (binding == null || binding.mExternalPort != externalPort) {
+                return -1;
+            }
+            if (binding.mExpiration <= now) {
+                mBindings.remove(remote);
+                return -1;
+            }
+            return binding.mInternalPort;
+        case FULL_CONE:
+        case ADDRESS_RESTRICTED:
+        default:
+            int port = -1;
+            Iterator<Map.Entry<InetPath,Binding>> iterator = mBindings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<InetPath,Binding> entry = iterator.next();
+                if (entry.getValue().mExpiration <= now) {
+                    iterator.remove();
+                } else if (entry.getValue().mExternalPort == externalPort && (
+                        mType == NatType.FULL_CONE ||
+                        entry.getKey().getAddress().equals(remote.getAddress()))) {
+                    port = entry.getValue().mInternalPort;
+                }
+            }
+            return port;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.telehash.test.network;
+
+/**
+ * The behaviour of a simulated NAT in front of a node. Mappings are created
+ * by outbound packets and expire after the router's NAT binding timeout
+ * unless refreshed by further outbound traffic.
+ */
+public enum NatType {
+    /** No NAT; the node is publicly reachable. */
+    NONE,
+    /** Any remote host may send to the node while it has a live mapping. */
+    FULL_CONE,
+    /** Only remote addresses the node has sent to may reach it. */
+    ADDRESS_RESTRICTED,
+    /** Only remote address and port pairs the node has sent to may reach it. */
+    PORT_RESTRICTED,
+    /**
+     * As PORT_RESTRICTED, but each remote path sees a different external
+     * port for the node.
+     */
+    SYMMETRIC
+}
@@ -1,16 +1,115 @@
 package org.telehash.test.network;
 
+import org.telehash.core.Clock;
+import org.telehash.core.VirtualClock;
 import org.telehash.network.Network;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 public class NetworkSimulator {
 
-    private Router mRouter = new Router();
+    private Router mRouter;
+
+    public NetworkSimulator() {
+        mRouter = new Router();
+    }
+
+    /**
+     * Construct a NetworkSimulator whose switches run in virtual time. The
+     * switches must use the simulator's clock (see getClock()).
+     *
+     * @param clock The virtual clock.
+     */
+    public NetworkSimulator(VirtualClock clock) {
+        mRouter = new Router(clock);
+    }
+
+    public Clock getClock() {
+        return mRouter.getClock();
+    }
+
+    public boolean isVirtualTime() {
+        return mRouter.getTimeController() != null;
+    }
 
     public Network createNode(String addressString, int port) {
         return new FakeNetworkImpl(mRouter, addressString);
     }
 
+    /**
+     * Set the link model used between nodes with no specific link model.
+     * Links are ideal (no latency, loss or bandwidth limit) by default.
+     */
+    public void setLinkModel(LinkModel model) {
+        mRouter.setDefaultLinkModel(model);
+    }
+
+    /**
+     * Set the link model for datagrams sent from one node to another. The
+     * reverse direction is not affected.
+     *
+     * @param fromAddress The address of the sending node.
+     * @param toAddress The address of the receiving node.
+     * @param model The link model, or null to use the default model.
+     */
+    public void setLinkModel(String fromAddress, String toAddress, LinkModel model) {
+        mRouter.setLinkModel(parseAddress(fromAddress), parseAddress(toAddress), model);
+    }
+
+    /**
+     * Place a node behind a NAT. This should be done before the node starts
+     * sending.
+     *
+     * @param address The address of the node.
+     * @param type The NAT behaviour.
+     */
+    public void setNat(String address, NatType type) {
+        mRouter.setNat(parseAddress(address), type);
+    }
+
+    /**
+     * Set the time after which an idle NAT mapping lapses.
+     *
+     * @param timeout The timeout in milliseconds.
+     */
+    public void setNatBindingTimeout(long timeout) {
+        mRouter.setNatBindingTimeout(timeout);
+    }
+
+    /**
+     * Seed the random source used for loss and jitter.
+     */
+    public void setRandomSeed(long seed) {
+        mRouter.setRandomSeed(seed);
+    }
+
+    public NetworkStatistics getStatistics() {
+        return mRouter.getStatistics();
+    }
+
+    public void resetStatistics() {
+        mRouter.resetStatistics();
+    }
+
     public void waitForQuiescence(long time) {
         mRouter.waitForQuiescence(time);
     }
+
+    /**
+     * Wait for the specified time to pass on the simulator's clock.
+     *
+     * @param time The time in milliseconds.
+     */
+    public void sleep(long time) throws InterruptedException {
+        mRouter.sleep(time);
+    }
+
+    private static InetAddress parseAddress(String addressString) {
+        try {
+            return InetAddress.getByName(addressString);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("invalid address: "+addressString);
+        }
+    }
 }
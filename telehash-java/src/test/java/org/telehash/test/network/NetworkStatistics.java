@@ -0,0 +1,111 @@
+package org.telehash.test.network;
+
+/**
+ * Packet counters for a simulated network. Instances returned by the
+ * router are snapshots and are not updated further.
+ */
+public class NetworkStatistics {
+
+    private long mSent;
+    private long mSentBytes;
+    private long mDelivered;
+    private long mDeliveredBytes;
+    private long mTotalDelay;
+    private long mLost;
+    private long mQueueDropped;
+    private long mNatFiltered;
+    private long mUnroutable;
+
+    /** intentionally package-private */
+    NetworkStatistics() {
+    }
+
+    /** intentionally package-private */
+    NetworkStatistics(NetworkStatistics other) {
+        mSent = other.mSent;
+        mSentBytes = other.mSentBytes;
+        mDelivered = other.mDelivered;
+        mDeliveredBytes = other.mDeliveredBytes;
+        mTotalDelay = other.mTotalDelay;
+        mLost = other.mLost;
+        mQueueDropped = other.mQueueDropped;
+        mNatFiltered = other.mNatFiltered;
+        mUnroutable = other.mUnroutable;
+    }
+
+    void recordSent(int length) {
+        mSent++;
+        mSentBytes += length;
+    }
+
+    void recordDelivered(int length, long delay) {
+        mDelivered++;
+        mDeliveredBytes += length;
+        mTotalDelay += delay;
+    }
+
+    void recordLost() {
+        mLost++;
+    }
+
+    void recordQueueDropped() {
+        mQueueDropped++;
+    }
+
+    void recordNatFiltered() {
+        mNatFiltered++;
+    }
+
+    void recordUnroutable() {
+        mUnroutable++;
+    }
+
+    public long getSentCount() {
+        return mSent;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    public long getDeliveredBytes() {
+        return mDeliveredBytes;
+    }
+
+    /**
+     * Return the mean time from sending to delivery of delivered packets,
+     * in nanoseconds.
+     */
+    public long getMeanDelay() {
+        return (mDelivered > 0) ? mTotalDelay / mDelivered : 0L;
+    }
+
+    public long getLostCount() {
+        return mLost;
+    }
+
+    public long getQueueDroppedCount() {
+        return mQueueDropped;
+    }
+
+    public long getNatFilteredCount() {
+        return mNatFiltered;
+    }
+
+    public long getUnroutableCount() {
+        return mUnroutable;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "sent=%d (%d bytes) delivered=%d (%d bytes, mean delay %.1fms) "+
+                "lost=%d queue-dropped=%d nat-filtered=%d unroutable=%d",
+                mSent, mSentBytes, mDelivered, mDeliveredBytes, getMeanDelay() / 1e6,
+                mLost, mQueueDropped, mNatFiltered, mUnroutable);
+    }
+}
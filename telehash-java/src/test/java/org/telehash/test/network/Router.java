@@ -1,43 +1,365 @@
 package org.telehash.test.network;
 
+import org.telehash.core.Clock;
 import org.telehash.core.Log;
+import org.telehash.core.SystemClock;
+import org.telehash.core.VirtualClock;
 import org.telehash.network.Datagram;
-import org.telehash.network.DatagramHandler;
 import org.telehash.network.InetPath;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 
+/**
+ * Routes datagrams between simulated networks as a discrete-event
+ * simulation. Each datagram is subjected to the link model between its
+ * source and destination, and to the NATs of both ends. Datagrams crossing
+ * ideal links are delivered synchronously; all others are queued by
+ * delivery time and delivered by a router thread, which takes part in
+ * virtual time like a reactor.
+ */
 public class Router {
-    private long lastDatagramTime = 0L;
 
-    private Map<InetPath,DatagramHandler> mNetworkMap =
-            new HashMap<InetPath,DatagramHandler>();
+    public static final long DEFAULT_NAT_BINDING_TIMEOUT = 30 * 1000;
 
-    public void registerNetwork(FakeNetworkImpl network) {
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
+    private static class LinkKey {
+        final InetAddress mFrom;
+        final InetAddress mTo;
+        LinkKey(InetAddress from, InetAddress to) {
+            mFrom = from;
+            mTo = to;
+        }
+        @Override
+        public int hashCode() {
+            return mFrom.hashCode() * 31 + mTo.hashCode();
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof LinkKey)) {
+                return false;
+            }
+            LinkKey other = (LinkKey)obj;
+            return mFrom.equals(other.mFrom) && mTo.equals(other.mTo);
+        }
+    }
+
+    private static class Delivery implements Comparable<Delivery> {
+        final long mTime;
+        final long mSequence;
+        final long mSendTime;
+        final Datagram mDatagram;
+        final FakeNetworkImpl mNetwork;
+        Delivery(long time, long sequence, long sendTime,
+                Datagram datagram, FakeNetworkImpl network) {
+            mTime = time;
+            mSequence = sequence;
+            mSendTime = sendTime;
+            mDatagram = datagram;
+            mNetwork = network;
+        }
+        @Override
+        public int compareTo(Delivery other) {
+            if (mTime != other.mTime) {
+                return (mTime < other.mTime) ? -1 : 1;
+            }
+            return (mSequence < other.mSequence) ? -1 : ((mSequence == other.mSequence) ? 0 : 1);
+        }
+    }
+
+    private volatile long lastDatagramTime = 0L;
+    private final Clock mClock;
+    private final VirtualTimeController mTimeController;
+
+    private Map<InetPath,FakeNetworkImpl> mNetworkMap =
+            new HashMap<InetPath,FakeNetworkImpl>();
+    private Map<InetAddress,Nat> mNats = new HashMap<InetAddress,Nat>();
+    private long mNatBindingTimeout = DEFAULT_NAT_BINDING_TIMEOUT * NANOSECONDS_PER_MILLISECOND;
+    private LinkModel mDefaultLinkModel = LinkModel.ideal();
+    private Map<LinkKey,LinkModel> mLinkModels = new HashMap<LinkKey,LinkModel>();
+    private Map<LinkKey,Long> mLinkBusyUntil = new HashMap<LinkKey,Long>();
+    private PriorityQueue<Delivery> mDeliveries = new PriorityQueue<Delivery>();
+    private long mNextSequence = 0L;
+    private Random mRandom = new Random(0L);
+    private NetworkStatistics mStatistics = new NetworkStatistics();
+    private Thread mDeliveryThread;
+
+    public Router() {
+        mClock = new SystemClock();
+        mTimeController = null;
+    }
+
+    /**
+     * Construct a Router whose networks run in virtual time.
+     *
+     * @param clock The virtual clock shared by the simulated switches.
+     */
+    public Router(VirtualClock clock) {
+        mClock = clock;
+        mTimeController = new VirtualTimeController(clock);
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Return the virtual time controller, or null if the network runs in
+     * real time.
+     */
+    public VirtualTimeController getTimeController() {
+        return mTimeController;
+    }
+
+    public synchronized void registerNetwork(FakeNetworkImpl network) {
         mNetworkMap.put(network.getPath(), network);
     }
 
+    /**
+     * Set the link model used between addresses with no specific model.
+     */
+    public synchronized void setDefaultLinkModel(LinkModel model) {
+        mDefaultLinkModel = model;
+    }
+
+    /**
+     * Set the link model for datagrams from one address to another.
+     *
+     * @param from The source address.
+     * @param to The destination address.
+     * @param model The link model, or null to use the default model.
+     */
+    public synchronized void setLinkModel(InetAddress from, InetAddress to, LinkModel model) {
+        LinkKey key = new LinkKey(from, to);
+        if (model == null) {
+            mLinkModels.remove(key);
+        } else {
+            mLinkModels.put(key, model);
+        }
+    }
+
+    /**
+     * Place a NAT in front of the network with the specified address.
+     */
+    public synchronized void setNat(InetAddress address, NatType type) {
+        if (type == NatType.NONE) {
+            mNats.remove(address);
+        } else {
+            mNats.put(address, new Nat(type));
+        }
+    }
+
+    /**
+     * Set the time after which an idle NAT mapping lapses.
+     *
+     * @param timeout The timeout in milliseconds.
+     */
+    public synchronized void setNatBindingTimeout(long timeout) {
+        mNatBindingTimeout = timeout * NANOSECONDS_PER_MILLISECOND;
+    }
+
+    /**
+     * Seed the random source used for loss and jitter.
+     */
+    public synchronized void setRandomSeed(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Return a snapshot of the packet counters.
+     */
+    public synchronized NetworkStatistics getStatistics() {
+        return new NetworkStatistics(mStatistics);
+    }
+
+    public synchronized void resetStatistics() {
+        mStatistics = new NetworkStatistics();
+    }
+
     public void sendDatagram(Datagram datagram) {
-        InetPath destination = new InetPath(((InetPath)datagram.getDestination()).getAddress(), 0);
-        DatagramHandler handler = mNetworkMap.get(destination);
-        if (handler != null) {
+        FakeNetworkImpl network;
+        boolean queued = false;
+        boolean startThread = false;
+        synchronized (this) {
+            long now = mClock.nanoTime();
+            lastDatagramTime = now;
+            mStatistics.recordSent(datagram.getLength());
+
+            InetPath source = (InetPath)datagram.getSource();
+            InetPath destination = (InetPath)datagram.getDestination();
+            network = mNetworkMap.get(new InetPath(destination.getAddress(), 0));
+            if (network == null) {
+                mStatistics.recordUnroutable();
+                return;
+            }
+            Nat sourceNat = mNats.get(source.getAddress());
+            if (sourceNat != null) {
+                InetPath external = sourceNat.mapOutbound(
+                        source, destination, now + mNatBindingTimeout);
+                if (external.getPort() != source.getPort()) {
+                    datagram = new Datagram(datagram.getBytes(), datagram.getOffset(),
+                            datagram.getLength(), external, destination);
+                }
+            }
+
+            LinkModel model = getLinkModel(source.getAddress(), destination.getAddress());
+            if (model.isIdeal()) {
+                datagram = filterInbound(datagram, now);
+                if (datagram == null) {
+                    return;
+                }
+                mStatistics.recordDelivered(datagram.getLength(), 0L);
+            } else {
+                if (model.getLossRate() > 0.0 && mRandom.nextDouble() < model.getLossRate()) {
+                    mStatistics.recordLost();
+                    return;
+                }
+                long start = now;
+                long transmissionTime = model.getTransmissionTime(datagram.getLength());
+                if (transmissionTime > 0) {
+                    LinkKey key = new LinkKey(source.getAddress(), destination.getAddress());
+                    Long busyUntil = mLinkBusyUntil.get(key);
+                    if (busyUntil != null && busyUntil > now) {
+                        start = busyUntil;
+                    }
+                    if (start - now > model.getMaximumQueueDelay()) {
+                        mStatistics.recordQueueDropped();
+                        return;
+                    }
+                    mLinkBusyUntil.put(key, start + transmissionTime);
+                }
+                long time = start + transmissionTime + model.sampleDelay(mRandom);
+                mDeliveries.offer(new Delivery(time, mNextSequence++, now, datagram, network));
+                queued = true;
+                if (mDeliveryThread == null) {
+                    mDeliveryThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            runDeliveries();
+                        }
+                    }, "router");
+                    mDeliveryThread.setDaemon(true);
+                    startThread = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (! queued) {
+            network.handleDatagram(datagram);
+            return;
+        }
+        // the controller is never called while holding this router's lock.
+        if (startThread) {
+            if (mTimeController != null) {
+                mTimeController.register(this);
+            }
+            mDeliveryThread.start();
+        }
+        if (mTimeController != null) {
+            mTimeController.signal(this);
+        }
+    }
+
+    private LinkModel getLinkModel(InetAddress from, InetAddress to) {
+        if (mLinkModels.isEmpty()) {
+            return mDefaultLinkModel;
+        }
+        LinkModel model = mLinkModels.get(new LinkKey(from, to));
+        return (model != null) ? model : mDefaultLinkModel;
+    }
+
+    /**
+     * Apply the destination's NAT to an arriving datagram.
+     *
+     * @return The datagram to deliver, or null if it was filtered.
+     */
+    private Datagram filterInbound(Datagram datagram, long now) {
+        InetPath destination = (InetPath)datagram.getDestination();
+        Nat nat = mNats.get(destination.getAddress());
+        if (nat == null) {
+            return datagram;
+        }
+        int port = nat.mapInbound((InetPath)datagram.getSource(), destination.getPort(), now);
+        if (port == -1) {
+            mStatistics.recordNatFiltered();
+            return null;
+        }
+        if (port != destination.getPort()) {
+            datagram = new Datagram(datagram.getBytes(), datagram.getOffset(),
+                    datagram.getLength(), datagram.getSource(),
+                    new InetPath(destination.getAddress(), port));
+        }
+        return datagram;
+    }
+
+    private void runDeliveries() {
+        List<Delivery> due = new ArrayList<Delivery>();
+        while (true) {
+            long next;
             synchronized (this) {
-                lastDatagramTime = System.nanoTime();
+                long now = mClock.nanoTime();
+                while (! mDeliveries.isEmpty() && mDeliveries.peek().mTime <= now) {
+                    Delivery delivery = mDeliveries.poll();
+                    Datagram datagram = filterInbound(delivery.mDatagram, now);
+                    if (datagram != null) {
+                        mStatistics.recordDelivered(
+                                datagram.getLength(), now - delivery.mSendTime);
+                        due.add(new Delivery(delivery.mTime, delivery.mSequence,
+                                delivery.mSendTime, datagram, delivery.mNetwork));
+                    }
+                }
+                next = mDeliveries.isEmpty() ? NO_DEADLINE : mDeliveries.peek().mTime;
+                if (due.isEmpty() && mTimeController == null) {
+                    try {
+                        if (next == NO_DEADLINE) {
+                            wait();
+                        } else {
+                            long delay = next - now;
+                            wait(delay / NANOSECONDS_PER_MILLISECOND,
+                                    (int)(delay % NANOSECONDS_PER_MILLISECOND));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                if (! due.isEmpty()) {
+                    lastDatagramTime = now;
+                }
+            }
+
+            if (due.isEmpty()) {
+                mTimeController.awaitWorkUntil(this, next);
+                continue;
+            }
+            for (Delivery delivery : due) {
+                delivery.mNetwork.handleDatagram(delivery.mDatagram);
             }
-            handler.handleDatagram(datagram);
+            due.clear();
         }
     }
 
     public void waitForQuiescence(long time) {
         time = time * 1000000; // convert ms to ns
+        if (mTimeController != null) {
+            waitForVirtualQuiescence(time);
+            return;
+        }
         long start = System.nanoTime();
         long now;
         do {
             final long diff;
             synchronized (this) {
                 now = System.nanoTime();
-                diff = now - lastDatagramTime;
+                diff = mDeliveries.isEmpty() ? now - lastDatagramTime : 0L;
             }
             Log.i("QUI: time since last datagram: "+diff+" ns  (wanting "+time+" ns)");
             if (diff >= time) {
@@ -53,4 +375,37 @@ public class Router {
                 "Paused %7.3fs while waiting for network quiescence.",
                 (now - start) / 1000000000.0));
     }
+
+    private void waitForVirtualQuiescence(long time) {
+        long start = mClock.nanoTime();
+        synchronized (mTimeController) {
+            try {
+                while (true) {
+                    long diff = mClock.nanoTime() - lastDatagramTime;
+                    if (diff >= time || mTimeController.isStalled()) {
+                        break;
+                    }
+                    mTimeController.awaitChange();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Log.i(String.format(
+                "Paused %7.3fs of virtual time while waiting for network quiescence.",
+                (mClock.nanoTime() - start) / 1000000000.0));
+    }
+
+    /**
+     * Wait for the specified time to pass on the network's clock.
+     *
+     * @param time The time in milliseconds.
+     */
+    public void sleep(long time) throws InterruptedException {
+        if (mTimeController != null) {
+            mTimeController.sleep(time);
+        } else {
+            Thread.sleep(time);
+        }
+    }
 }
@@ -0,0 +1,203 @@
+package org.telehash.test.network;
+
+import org.telehash.core.VirtualClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives the VirtualClock of a simulated network. Each reactor reports
+ * here when it has nothing to do and would wait until a deadline (its
+ * switch's next scheduled task). When every reactor is idle, the clock
+ * jumps directly to the earliest deadline and the reactors whose deadlines
+ * have arrived are woken. Idle protocol time therefore costs no real time.
+ *
+ * Reactors are woken through this object's monitor rather than their own
+ * locks, so that no reactor lock is ever held while acquiring another.
+ */
+public class VirtualTimeController {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
+    private static class ReactorState {
+        boolean mIdle = false;
+        boolean mSignaled = false;
+        long mDeadline = NO_DEADLINE;
+    }
+
+    private final VirtualClock mClock;
+    private final Map<Object,ReactorState> mReactors = new HashMap<Object,ReactorState>();
+    private final List<Long> mSleepers = new ArrayList<Long>();
+    private int mIdleCount = 0;
+
+    public VirtualTimeController(VirtualClock clock) {
+        mClock = clock;
+    }
+
+    public VirtualClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Register a reactor. A registered reactor is considered busy until it
+     * first calls awaitWork().
+     */
+    public synchronized void register(Object reactor) {
+        if (! mReactors.containsKey(reactor)) {
+            mReactors.put(reactor, new ReactorState());
+        }
+    }
+
+    public synchronized void unregister(Object reactor) {
+        ReactorState state = mReactors.remove(reactor);
+        if (state != null && state.mIdle) {
+            mIdleCount--;
+        }
+        advanceIfIdle();
+        notifyAll();
+    }
+
+    /**
+     * Signal that work has been queued for a reactor, waking it if it is
+     * idle. If the reactor is about to become idle, its next awaitWork()
+     * returns immediately.
+     */
+    public synchronized void signal(Object reactor) {
+        ReactorState state = mReactors.get(reactor);
+        if (state == null) {
+            return;
+        }
+        state.mSignaled = true;
+        if (state.mIdle) {
+            state.mIdle = false;
+            mIdleCount--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait until the reactor is signaled or the virtual time reaches the
+     * specified delay.
+     *
+     * @param reactor The reactor.
+     * @param timeout The delay in milliseconds, or 0 to wait indefinitely
+     *        for a signal.
+     */
+    public synchronized void awaitWork(Object reactor, long timeout) {
+        awaitWorkUntil(reactor, (timeout > 0) ?
+                mClock.nanoTime() + timeout*NANOSECONDS_PER_MILLISECOND : NO_DEADLINE);
+    }
+
+    /**
+     * Wait until the reactor is signaled or the virtual time reaches the
+     * specified deadline.
+     *
+     * @param reactor The reactor.
+     * @param deadline The deadline in nanoseconds, or Long.MAX_VALUE to wait
+     *        indefinitely for a signal.
+     */
+    public synchronized void awaitWorkUntil(Object reactor, long deadline) {
+        ReactorState state = mReactors.get(reactor);
+        if (state == null) {
+            return;
+        }
+        if (state.mSignaled) {
+            state.mSignaled = false;
+            return;
+        }
+        state.mDeadline = deadline;
+        state.mIdle = true;
+        mIdleCount++;
+        if (mIdleCount == mReactors.size()) {
+            // let quiescence waiters notice a stall.
+            notifyAll();
+        }
+        try {
+            while (! state.mSignaled && mClock.nanoTime() < state.mDeadline) {
+                advanceIfIdle();
+                if (state.mSignaled || mClock.nanoTime() >= state.mDeadline) {
+                    break;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (state.mIdle) {
+                state.mIdle = false;
+                mIdleCount--;
+            }
+            state.mSignaled = false;
+            state.mDeadline = NO_DEADLINE;
+        }
+    }
+
+    /**
+     * Block the calling (non-reactor) thread until the virtual time has
+     * advanced by the specified amount.
+     *
+     * @param time The time in milliseconds.
+     */
+    public synchronized void sleep(long time) throws InterruptedException {
+        Long deadline = mClock.nanoTime() + time*NANOSECONDS_PER_MILLISECOND;
+        mSleepers.add(deadline);
+        try {
+            while (mClock.nanoTime() < deadline) {
+                advanceIfIdle();
+                if (mClock.nanoTime() >= deadline) {
+                    break;
+                }
+                wait();
+            }
+        } finally {
+            mSleepers.remove(deadline);
+        }
+    }
+
+    /**
+     * Return true if every reactor is idle with no deadline, so that
+     * virtual time cannot advance until something external happens.
+     */
+    public synchronized boolean isStalled() {
+        return mIdleCount == mReactors.size() && nextDeadline() == NO_DEADLINE;
+    }
+
+    /**
+     * Wait on this controller's monitor until the next change of state.
+     * The caller must hold the monitor.
+     */
+    /* intentionally package-private */
+    void awaitChange() throws InterruptedException {
+        advanceIfIdle();
+        wait();
+    }
+
+    private long nextDeadline() {
+        long next = NO_DEADLINE;
+        for (ReactorState state : mReactors.values()) {
+            if (state.mIdle && state.mDeadline < next) {
+                next = state.mDeadline;
+            }
+        }
+        for (Long sleeper : mSleepers) {
+            if (sleeper < next) {
+                next = sleeper;
+            }
+        }
+        return next;
+    }
+
+    private void advanceIfIdle() {
+        if (mIdleCount < mReactors.size()) {
+            return;
+        }
+        long next = nextDeadline();
+        if (next != NO_DEADLINE && next > mClock.nanoTime()) {
+            mClock.advanceTo(next);
+            notifyAll();
+        }
+    }
+}